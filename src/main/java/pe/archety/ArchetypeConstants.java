@@ -7,7 +7,9 @@ import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 
 import com.google.common.base.Charsets;
+import com.google.i18n.phonenumbers.NumberParseException;
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
+import com.google.i18n.phonenumbers.Phonenumber;
 import org.apache.commons.validator.routines.EmailValidator;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
@@ -19,8 +21,6 @@ import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.util.encoders.Base64;
 
 public class ArchetypeConstants {
-    public static final String ACTION = "action";
-    public static final String DATA = "data";
     public static final String URLPREFIX = "http://en.wikipedia.org/wiki/";
 
     public static final EmailValidator EMAIL_VALIDATOR = EmailValidator.getInstance();
@@ -79,6 +79,29 @@ public class ArchetypeConstants {
         return result.toString();
     }
 
+    /*
+        An email as is or a phone number (read in the region) in E164, the form identities
+        are hashed in. Throws IllegalArgumentException with the error the API answers with.
+     */
+    public static String normalizeIdentity(String identity, String region) {
+        if (identity.contains("@")) {
+            if (!EMAIL_VALIDATOR.isValid(identity)) {
+                throw new IllegalArgumentException("Email not valid.");
+            }
+            return identity;
+        }
+        Phonenumber.PhoneNumber phoneNumber;
+        try {
+            phoneNumber = PHONE_UTIL.parse(identity, region);
+        } catch (NumberParseException e) {
+            throw new IllegalArgumentException("Error Parsing Phone Number.");
+        }
+        if (!PHONE_UTIL.isValidNumber(phoneNumber)) {
+            throw new IllegalArgumentException("Invalid Phone Number.");
+        }
+        return PHONE_UTIL.format(phoneNumber, PhoneNumberUtil.PhoneNumberFormat.E164); // "+41446681800"
+    }
+
     private static final int ITERATIONS = 1000;
     private static final int KEY_LENGTH = 256; // bits
 
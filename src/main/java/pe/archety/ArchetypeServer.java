@@ -1,17 +1,36 @@
 package pe.archety;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.net.MediaType;
 import io.undertow.Undertow;
 import io.undertow.server.RoutingHandler;
+import org.apache.log4j.Logger;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.factory.HighlyAvailableGraphDatabaseFactory;
 import pe.archety.handlers.admin.*;
 import pe.archety.handlers.api.*;
+import pe.archety.idempotency.IdempotencyStore;
+import pe.archety.mail.FileMailTransport;
+import pe.archety.mail.MailTransport;
+import pe.archety.mail.SmtpMailTransport;
+import pe.archety.mail.TokenMailer;
+import pe.archety.writes.DeadLetterFile;
+import pe.archety.writes.JournalSyncPolicy;
+import pe.archety.writes.MicroBatchController;
+import pe.archety.writes.OverloadPolicy;
+import pe.archety.writes.WaitStrategy;
+import pe.archety.writes.WriteJournal;
+import pe.archety.writes.WriteQueue;
+import pe.archety.writes.WriteRecorder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class ArchetypeServer {
+    private final static Logger logger = Logger.getLogger( ArchetypeServer.class );
 
     public static final String JSON_UTF8 = MediaType.JSON_UTF_8.toString();
     public static final String TEXT_PLAIN = MediaType.PLAIN_TEXT_UTF_8.toString();
@@ -20,25 +39,126 @@ public class ArchetypeServer {
     private static final String STOREDIR = "/home/shroot/graphipedia/neo4j/data/graph.db";
     private static final String CONFIG = "/home/shroot/graphipedia/neo4j/conf/neo4j.properties";
 
+    // Batch writer queue limits, see WriteQueue and OverloadPolicy
+    private static final int WRITER_CAPACITY = Integer.getInteger( "archetype.writer.capacity", WriteQueue.DEFAULT_CAPACITY );
+    private static final long WRITER_CAPACITY_BYTES = Long.getLong( "archetype.writer.capacityBytes", WriteQueue.DEFAULT_CAPACITY_BYTES );
+    private static final OverloadPolicy WRITER_OVERLOAD_POLICY = OverloadPolicy.valueOf( System.getProperty( "archetype.writer.overloadPolicy", OverloadPolicy.REJECT.name() ) );
+    private static final long WRITER_BLOCK_TIMEOUT_MILLIS = Long.getLong( "archetype.writer.blockTimeoutMillis", WriteQueue.DEFAULT_BLOCK_TIMEOUT_MILLIS );
+    private static final double WRITER_SHED_THRESHOLD = Double.parseDouble( System.getProperty( "archetype.writer.shedThreshold", String.valueOf( WriteQueue.DEFAULT_SHED_THRESHOLD ) ) );
+    private static final double WRITER_LOW_SHARE = Double.parseDouble( System.getProperty( "archetype.writer.lowShare", String.valueOf( WriteQueue.DEFAULT_LOW_SHARE ) ) );
+    private static final long WRITER_MAX_LOW_WAIT_MILLIS = Long.getLong( "archetype.writer.maxLowWaitMillis", WriteQueue.DEFAULT_MAX_LOW_WAIT_MILLIS );
+    private static final WaitStrategy WRITER_WAIT_STRATEGY = WaitStrategy.valueOf( System.getProperty( "archetype.writer.waitStrategy", WaitStrategy.BLOCKING.name() ) );
+
+    // Batch writer micro-batching, see MicroBatchController
+    private static final int WRITER_BATCH_SIZE = Integer.getInteger( "archetype.writer.batchSize", MicroBatchController.DEFAULT_BATCH_SIZE );
+    private static final int WRITER_MIN_BATCH_SIZE = Integer.getInteger( "archetype.writer.minBatchSize", MicroBatchController.DEFAULT_MIN_BATCH_SIZE );
+    private static final int WRITER_MAX_BATCH_SIZE = Integer.getInteger( "archetype.writer.maxBatchSize", MicroBatchController.DEFAULT_MAX_BATCH_SIZE );
+    private static final long WRITER_LINGER_MILLIS = Long.getLong( "archetype.writer.lingerMillis", MicroBatchController.DEFAULT_LINGER_MILLIS );
+    private static final int WRITER_LANES = Integer.getInteger( "archetype.writer.lanes", BatchWriterService.DEFAULT_LANES );
+    private static final boolean WRITER_LOCALITY_SORT = Boolean.getBoolean( "archetype.writer.localitySort" );
+    private static final boolean WRITER_DEFER_RESOLUTION = Boolean.getBoolean( "archetype.writer.deferResolution" );
+    private static final boolean WRITER_COUNTERS = Boolean.parseBoolean( System.getProperty( "archetype.writer.counters", "true" ) );
+
+    // How much one transaction holds, for the writer lanes and the admin handlers, see CommitSizer
+    private static final long COMMIT_CHUNK_MILLIS = Long.getLong( "archetype.commit.chunkMillis", CommitSizer.DEFAULT_TARGET_COMMIT_MILLIS );
+    private static final long COMMIT_STATE_BUDGET_BYTES = Long.getLong( "archetype.commit.stateBudgetBytes", CommitSizer.DEFAULT_STATE_BUDGET_BYTES );
+
+    // Write-ahead journal of accepted writes, see WriteJournal
+    private static final String JOURNAL_DIR = System.getProperty( "archetype.journal.dir", "/home/shroot/graphipedia/neo4j/data/journal" );
+    private static final int JOURNAL_SEGMENT_BYTES = Integer.getInteger( "archetype.journal.segmentBytes", WriteJournal.DEFAULT_SEGMENT_BYTES );
+    private static final JournalSyncPolicy JOURNAL_SYNC_POLICY = JournalSyncPolicy.valueOf( System.getProperty( "archetype.journal.syncPolicy", JournalSyncPolicy.BATCH.name() ) );
+
+    // Writes that could not be committed, see DeadLetterFile
+    private static final String WRITER_DEAD_LETTER_FILE = System.getProperty( "archetype.writer.deadLetterFile", "/home/shroot/graphipedia/neo4j/data/dead-letters.json" );
+
+    // Every drained write recorded for the WriteReplay tool, see WriteRecorder
+    private static final String WRITER_RECORD_FILE = System.getProperty( "archetype.writer.recordFile" );
+
+    // Mailing generated tokens, through an SMTP relay or else appended to a file, see TokenMailer
+    private static final String MAIL_SMTP_HOST = System.getProperty( "archetype.mail.smtpHost" );
+    private static final int MAIL_SMTP_PORT = Integer.getInteger( "archetype.mail.smtpPort", 25 );
+    private static final String MAIL_FROM = System.getProperty( "archetype.mail.from", "tokens@archety.pe" );
+    private static final String MAIL_FILE = System.getProperty( "archetype.mail.file" );
+    private static final int MAIL_CAPACITY = Integer.getInteger( "archetype.mail.capacity", TokenMailer.DEFAULT_CAPACITY );
+    private static final int MAIL_THREADS = Integer.getInteger( "archetype.mail.threads", TokenMailer.DEFAULT_THREADS );
+
+    // Responses kept for repeated Idempotency-Keys, see IdempotencyStore
+    private static final long IDEMPOTENCY_WINDOW_MILLIS = Long.getLong( "archetype.idempotency.windowMillis", IdempotencyStore.DEFAULT_WINDOW_MILLIS );
+    private static final int IDEMPOTENCY_MAX_ENTRIES = Integer.getInteger( "archetype.idempotency.maxEntries", IdempotencyStore.DEFAULT_MAX_ENTRIES );
+    private static final String IDEMPOTENCY_FILE = System.getProperty( "archetype.idempotency.file" );
+
+    // Writes a request waits on, committed together, see GroupCommitExecutor
+    private static final long GROUP_COMMIT_WINDOW_MICROS = Long.getLong( "archetype.groupCommit.windowMicros", GroupCommitExecutor.DEFAULT_WINDOW_MICROS );
+    private static final int GROUP_COMMIT_MAX_SIZE = Integer.getInteger( "archetype.groupCommit.maxSize", GroupCommitExecutor.DEFAULT_MAX_GROUP_SIZE );
+
+    // How long shutting down waits for the writer to finish its batch, and for each of the others
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = Long.getLong( "archetype.shutdown.timeoutMillis", 30_000L );
+
     private static GraphDatabaseService graphDb;
+    // What the shutdown hook stops, in order, before the database; null until started
+    private static volatile Undertow adminServer;
+    private static volatile Undertow apiServer;
+    private static volatile GroupCommitExecutor groupCommit;
+    private static volatile IdempotencyStore idempotencyStore;
+    private static volatile DeadLetterFile deadLetterFile;
 
     private static final BatchWriterService batchWriterService = BatchWriterService.INSTANCE;
 
-    public static final Cache<String, Long> identityCache = CacheBuilder.newBuilder().maximumSize( 10_000_000 ).build();
-    public static final Cache<String, Long> urlCache = CacheBuilder.newBuilder().maximumSize( 11_000_000 ).build();
+    // Off the heap, see NodeIdCache; they take direct memory, so -XX:MaxDirectMemorySize has to leave room for them
+    public static final NodeIdCache identityCache = NodeIdCache.forDigests( 10_000_000 );
+    public static final NodeIdCache urlCache = NodeIdCache.forUrls( 11_000_000 );
 
-    public static void main(final String[] args) {
+    public static void main(final String[] args) throws IOException, InterruptedException {
         graphDb = new HighlyAvailableGraphDatabaseFactory()
                 .newEmbeddedDatabaseBuilder( STOREDIR )
                 .loadPropertiesFromFile( CONFIG )
                 .newGraphDatabase();
 
-        registerShutdownHook( graphDb );
+        registerShutdownHook();
 
+        CommitSizer.setDefaults( COMMIT_CHUNK_MILLIS, COMMIT_STATE_BUDGET_BYTES );
         batchWriterService.SetGraphDatabase( graphDb );
+        batchWriterService.getQueue().configure( WRITER_CAPACITY, WRITER_CAPACITY_BYTES, WRITER_OVERLOAD_POLICY,
+                WRITER_BLOCK_TIMEOUT_MILLIS, WRITER_SHED_THRESHOLD );
+        batchWriterService.getQueue().configurePriorities( WRITER_LOW_SHARE, WRITER_MAX_LOW_WAIT_MILLIS );
+        batchWriterService.getQueue().setWaitStrategy( WRITER_WAIT_STRATEGY );
+        batchWriterService.getBatchController().configure( WRITER_BATCH_SIZE, WRITER_MIN_BATCH_SIZE, WRITER_MAX_BATCH_SIZE,
+                WRITER_LINGER_MILLIS );
+        batchWriterService.setLanes( WRITER_LANES );
+        batchWriterService.setLocalitySort( WRITER_LOCALITY_SORT );
+        batchWriterService.setDeferredResolution( WRITER_DEFER_RESOLUTION );
+        batchWriterService.setCounting( WRITER_COUNTERS );
+
+        deadLetterFile = new DeadLetterFile( new File( WRITER_DEAD_LETTER_FILE ) );
+        batchWriterService.setDeadLetterFile( deadLetterFile );
+        if ( WRITER_RECORD_FILE != null ) {
+            batchWriterService.setRecorder( new WriteRecorder( new File( WRITER_RECORD_FILE ) ) );
+        }
+
+        MailTransport mailTransport = null;
+        if ( MAIL_SMTP_HOST != null ) {
+            mailTransport = new SmtpMailTransport( MAIL_SMTP_HOST, MAIL_SMTP_PORT, MAIL_FROM );
+        } else if ( MAIL_FILE != null ) {
+            mailTransport = new FileMailTransport( new File( MAIL_FILE ) );
+        }
+        if ( mailTransport != null ) {
+            TokenMailer tokenMailer = new TokenMailer( mailTransport, MAIL_CAPACITY, MAIL_THREADS );
+            tokenMailer.start();
+            batchWriterService.setTokenMailer( tokenMailer );
+        }
+
+        // Replays writes that were accepted but not committed before the last shutdown or crash
+        batchWriterService.setJournal( WriteJournal.open( new File( JOURNAL_DIR ), JOURNAL_SEGMENT_BYTES, JOURNAL_SYNC_POLICY ) );
+
+        idempotencyStore = IDEMPOTENCY_FILE == null
+                ? new IdempotencyStore( IDEMPOTENCY_WINDOW_MILLIS, IDEMPOTENCY_MAX_ENTRIES )
+                : IdempotencyStore.open( IDEMPOTENCY_WINDOW_MILLIS, IDEMPOTENCY_MAX_ENTRIES, new File( IDEMPOTENCY_FILE ) );
+
+        groupCommit = new GroupCommitExecutor( graphDb, GROUP_COMMIT_WINDOW_MICROS, GROUP_COMMIT_MAX_SIZE );
+        groupCommit.start();
 
         // Administrative server accessible internally only
-        Undertow.builder()
+        adminServer = Undertow.builder()
                 .addHttpListener( 8079, "archety.pe" )
                 .setBufferSize( 1024 * 16 )
                 .setIoThreads( Runtime.getRuntime().availableProcessors() * 2 ) //this seems slightly faster in some configurations
@@ -47,17 +167,20 @@ public class ArchetypeServer {
                                 .add( "GET", "/v1/admin/warmup", new WarmUpHandler( graphDb ) )
                                 .add( "GET", "/v1/admin/initialize", new InitializeHandler( graphDb ) )
                                 .add( "GET", "/v1/admin/wikipedia", new WikipediaHandler( graphDb ) )
+                                .add( "GET", "/v1/admin/counters/repair", new RepairCountersHandler( graphDb ) )
+                                .add( "GET", "/v1/admin/metrics", new MetricsHandler( batchWriterService, groupCommit ) )
                                 .add( "GET", "/v1/hello/{name}", new HelloNameHandler() )
                                 .add( "GET", "/v1/hi", new HiNameHandler() )
                 )
-                .setWorkerThreads( 200 ).build().start();
+                .setWorkerThreads( 200 ).build();
+        adminServer.start();
 
         // Public API
-        Undertow.builder()
+        apiServer = Undertow.builder()
                 .addHttpListener( 8080, "archety.pe" )
                 .setBufferSize( 1024 * 16 )
                 .setIoThreads(Runtime.getRuntime().availableProcessors() * 2) //this seems slightly faster in some configurations
-                .setHandler(new RoutingHandler()
+                .setHandler(new IdempotencyHandler( new BackpressureHandler( new RoutingHandler()
                                 .add( "GET",  "/v1/identities/{identity}", new GetIdentityHandler( graphDb, objectMapper ) )
                                 .add( "POST", "/v1/identities", new CreateIdentityHandler( graphDb, objectMapper ) )
                                 .add( "POST", "/v1/identities/{identity}/likes", new CreateLikesOrHatesHandler( graphDb, objectMapper, Relationships.LIKES.name() ) )
@@ -67,15 +190,17 @@ public class ArchetypeServer {
                                 .add( "POST", "/v1/identities/{identity}/knows", new CreateKnowsHandler( graphDb, objectMapper ) )
                                 .add( "GET", "/v1/identities/{identity}/knows", new GetKnowsHandler( graphDb, objectMapper ) )
                                 .add( "POST", "/v1/pages", new CreatePageHandler( graphDb, objectMapper ) )
+                                .add( "GET",  "/v1/pages", new GetPageHandler( graphDb, objectMapper ) )
+                                .add( "POST", "/v1/bulk", new CreateBulkHandler( graphDb, objectMapper ) )
                                 .add( "POST", "/v1/tokens", new CreateTokenHandler( graphDb, objectMapper ) )
-                                .add( "GET",  "/v1/tokens/{token}", new GetTokenHandler( graphDb ) )
-                )
-                .setWorkerThreads(200).build().start();
-
-
+                                .add( "GET",  "/v1/tokens/{token}", new GetTokenHandler( groupCommit ) )
+                                .add( "GET",  "/v1/writes/{receipt}", new GetWriteHandler( objectMapper ) )
+                ), idempotencyStore ) )
+                .setWorkerThreads(200).build();
+        apiServer.start();
     }
 
-    private static void registerShutdownHook( final GraphDatabaseService graphDb )
+    private static void registerShutdownHook()
     {
         // Registers a shutdown hook for the Neo4j instance so that it
         // shuts down nicely when the VM exits (even if you "Ctrl-C" the
@@ -85,8 +210,63 @@ public class ArchetypeServer {
             @Override
             public void run()
             {
-                graphDb.shutdown();
+                shutdown();
             }
         } );
     }
+
+    /*
+        Stops taking requests, lets the writer finish the batch in flight and
+        closes what it writes to, and only then shuts the database down. Writes
+        still queued stay uncommitted in the journal and are replayed on the next
+        start; with the database gone first the writer would dead-letter them all.
+     */
+    private static void shutdown() {
+        if ( apiServer != null ) {
+            apiServer.stop();
+        }
+        if ( adminServer != null ) {
+            adminServer.stop();
+        }
+        try {
+            batchWriterService.stopAsync().awaitTerminated( SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS );
+        } catch ( TimeoutException e ) {
+            logger.warn( "BatchWriterService did not stop in time, its batch will be replayed", e );
+        } catch ( IllegalStateException e ) {
+            logger.error( "BatchWriterService had failed", e );
+        }
+        try {
+            if ( groupCommit != null ) {
+                groupCommit.stop( SHUTDOWN_TIMEOUT_MILLIS );
+            }
+            // only the writer queues mails, and it has stopped by now
+            TokenMailer tokenMailer = batchWriterService.getTokenMailer();
+            if ( tokenMailer != null ) {
+                tokenMailer.stop( SHUTDOWN_TIMEOUT_MILLIS );
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        WriteJournal journal = batchWriterService.getJournal();
+        if ( journal != null ) {
+            journal.close();
+        }
+        close( batchWriterService.getRecorder() );
+        close( deadLetterFile );
+        close( idempotencyStore );
+        if ( graphDb != null ) {
+            graphDb.shutdown();
+        }
+    }
+
+    private static void close( Closeable closeable ) {
+        if ( closeable == null ) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch ( IOException e ) {
+            logger.error( "Could not close " + closeable, e );
+        }
+    }
 }
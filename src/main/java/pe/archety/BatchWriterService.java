@@ -1,43 +1,271 @@
 package pe.archety;
 
-import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.apache.log4j.Logger;
-import org.joda.time.DateTime;
-import org.neo4j.graphdb.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.index.UniqueFactory;
-import org.neo4j.graphalgo.GraphAlgoFactory;
-import org.neo4j.graphalgo.PathFinder;
+import pe.archety.mail.TokenMailer;
+import pe.archety.metrics.WriterMetrics;
+import pe.archety.writes.*;
 
-import java.math.BigInteger;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static pe.archety.ArchetypeConstants.DATA;
-import static pe.archety.ArchetypeConstants.ACTION;
-
-public class BatchWriterService extends AbstractScheduledService {
+public class BatchWriterService extends AbstractExecutionThreadService {
 
     private final static Logger logger = Logger.getLogger( BatchWriterService.class );
-    private static final PathExpander LIKES_EXPANDER = PathExpanders.forTypeAndDirection( Relationships.LIKES, Direction.OUTGOING );
-    private static final PathFinder<Path> ONE_HOP_LIKES_PATH = GraphAlgoFactory.shortestPath( LIKES_EXPANDER, 1 );
-    private static final PathExpander HATES_EXPANDER = PathExpanders.forTypeAndDirection( Relationships.HATES, Direction.OUTGOING );
-    private static final PathFinder<Path> ONE_HOP_HATES_PATH = GraphAlgoFactory.shortestPath( HATES_EXPANDER, 1 );
-    private static final PathExpander KNOWS_EXPANDER = PathExpanders.forTypeAndDirection( Relationships.KNOWS, Direction.OUTGOING );
-    private static final PathFinder<Path> ONE_HOP_KNOWS_PATH = GraphAlgoFactory.shortestPath( KNOWS_EXPANDER, 1 );
-    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
 
-    private GraphDatabaseService graphDb;
-    public LinkedBlockingQueue<HashMap<String, Object>> queue = new LinkedBlockingQueue<>();
+    private volatile GraphDatabaseService graphDb;
+    // the database the batch in flight is applied to, even if graphDb changes meanwhile
+    private volatile GraphDatabaseService db;
+    private final AtomicLong accepted = new AtomicLong();
+    private volatile long completed = 0;
+    private static final long IDLE_POLL_MILLIS = 100;
+    // submit() waits for room as the queue's overload policy says
+    private static final long POLICY_WAIT = -1;
+    public static final int DEFAULT_LANES = 1;
+
+    private final WriteQueue queue = new WriteQueue();
+    private final MicroBatchController batchController = new MicroBatchController();
+    private final WriteCoalescer coalescer = new WriteCoalescer();
+    private final LocalityOrder localityOrder = new LocalityOrder();
+    private volatile boolean localitySort;
+    private volatile boolean counting = true;
+    private final NodeResolver nodeResolver = new NodeResolver();
+    private volatile boolean deferredResolution;
+    private final WriteReceipts receipts = new WriteReceipts();
+    private final PendingWrites pending = new PendingWrites();
+    private final WriterMetrics metrics = new WriterMetrics();
+    private volatile long coalescedOperations = 0;
+    private final AtomicLong deadLetters = new AtomicLong();
+    private final AtomicLong deadlockRetries = new AtomicLong();
+    private volatile DeadLetterFile deadLetterFile;
+    private volatile TokenMailer tokenMailer;
+    private volatile WriteRecorder recorder;
+
+    // Writer thread only, see lanes()
+    private volatile int laneCount = DEFAULT_LANES;
+    private WriterLane[] lanes;
+    // what the metrics read, replaced along with the lanes
+    private volatile List<CommitSizer> commitSizers = new ArrayList<>();
+    private final ArrayList<ArrayList<Write>> laneBatches = new ArrayList<>();
+    private ExecutorService laneExecutor;
+    private volatile double writesPerSecond = 0;
+    private volatile WriteJournal journal;
 
     public void SetGraphDatabase(GraphDatabaseService graphDb){
         this.graphDb = graphDb;
     }
 
+    public WriteQueue getQueue() {
+        return queue;
+    }
+
+    public MicroBatchController getBatchController() {
+        return batchController;
+    }
+
+    /*
+        Queues whatever the journal still holds from a previous run, under the
+        receipts they were accepted with, then journals every write accepted from
+        here on. Call before the API starts taking writes.
+     */
+    public void setJournal( WriteJournal journal ) throws InterruptedException {
+        List<Write> recovered = journal.recover();
+        if ( !recovered.isEmpty() ) {
+            logger.info( "Replaying " + recovered.size() + " journaled writes" );
+        }
+        for ( Write write : recovered ) {
+            accepted.incrementAndGet();
+            receipts.restore( write );
+            pending.add( write );
+            write.markSubmitted();
+            queue.restore( write );
+        }
+        queue.setJournal( journal );
+        this.journal = journal;
+    }
+
+    public WriteJournal getJournal() {
+        return journal;
+    }
+
+    // Where writes that cannot be committed end up; without one they are only logged.
+    public void setDeadLetterFile( DeadLetterFile deadLetterFile ) {
+        this.deadLetterFile = deadLetterFile;
+    }
+
+    // Where generated tokens go once committed; without one they are not mailed.
+    public void setTokenMailer( TokenMailer tokenMailer ) {
+        this.tokenMailer = tokenMailer;
+    }
+
+    public TokenMailer getTokenMailer() {
+        return tokenMailer;
+    }
+
+    // Where every drained write is recorded for the WriteReplay tool; null stops recording.
+    public void setRecorder( WriteRecorder recorder ) {
+        this.recorder = recorder;
+    }
+
+    public WriteRecorder getRecorder() {
+        return recorder;
+    }
+
+    public long getDeadLetters() {
+        return deadLetters.get();
+    }
+
+    // Transactions rolled back on a deadlock between lanes and tried again.
+    public long getDeadlockRetries() {
+        return deadlockRetries.get();
+    }
+
+    /*
+        How many transactions the writer commits concurrently. Writes are routed by
+        identity hash, so each identity is still written by one lane at a time.
+     */
+    public void setLanes( int lanes ) {
+        if ( lanes < 1 ) {
+            throw new IllegalArgumentException( "The writer needs at least one lane" );
+        }
+        this.laneCount = lanes;
+    }
+
+    public int getLanes() {
+        return laneCount;
+    }
+
+    // The CommitSizer of each lane, by lane index. Empty until the first batch.
+    public List<CommitSizer> getCommitSizers() {
+        return commitSizers;
+    }
+
+    // Whether each batch is sorted by node id before it is applied, see LocalityOrder.
+    public void setLocalitySort( boolean localitySort ) {
+        this.localitySort = localitySort;
+    }
+
+    public boolean isLocalitySort() {
+        return localitySort;
+    }
+
+    // Whether the lanes keep the NodeCounters up to date.
+    public void setCounting( boolean counting ) {
+        this.counting = counting;
+    }
+
+    public boolean isCounting() {
+        return counting;
+    }
+
+    /*
+        Whether the handlers leave looking up identities they have not cached to
+        the writer, which does it for a whole batch at once, see NodeResolver.
+     */
+    public void setDeferredResolution( boolean deferredResolution ) {
+        this.deferredResolution = deferredResolution;
+    }
+
+    public boolean isDeferredResolution() {
+        return deferredResolution;
+    }
+
+    public NodeResolver getNodeResolver() {
+        return nodeResolver;
+    }
+
+    // Total operations the WriteCoalescer saved since startup.
+    public long getCoalescedOperations() {
+        return coalescedOperations;
+    }
+
+    /*
+        Hands a write to the writer. Returns false when the queue is at capacity
+        and its OverloadPolicy turned the write away; the write is released then.
+     */
+    public boolean enqueue( Write write ) throws InterruptedException, IOException {
+        return submit( write ) != WriteReceipts.NO_RECEIPT;
+    }
+
+    /*
+        Like enqueue(), but returns the receipt the write can be followed by in
+        getReceipts(), or NO_RECEIPT if it was turned away. Read the receipt from
+        here and not from the write: once queued the write belongs to the writer.
+     */
+    public long submit( Write write ) throws InterruptedException, IOException {
+        return submit( write, POLICY_WAIT );
+    }
+
+    /*
+        Like submit(), but waits up to waitMillis for room in the queue whatever
+        the overload policy, for handlers that would rather stall their client
+        than turn writes away.
+     */
+    public long submit( Write write, long waitMillis ) throws InterruptedException, IOException {
+        long receipt = receipts.issue( write );
+        accepted.incrementAndGet();
+        BatchWriterServiceAction action = write.action;
+        write.markSubmitted();
+        // before the offer, the writer may commit the write before offer() returns
+        PendingWrites.Edge edge = pending.add( write );
+        boolean queued = false;
+        try {
+            queued = waitMillis == POLICY_WAIT ? queue.offer( write ) : queue.offer( write, waitMillis );
+        } finally {
+            if ( !queued ) {
+                accepted.decrementAndGet();
+                receipts.forget( receipt );
+                // offer() released the write already
+                pending.remove( edge );
+            }
+        }
+        if ( queued ) {
+            metrics.recordSubmitted( action );
+        }
+        return queued ? receipt : WriteReceipts.NO_RECEIPT;
+    }
+
+    public WriteReceipts getReceipts() {
+        return receipts;
+    }
+
+    public WriterMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Queued likes, hates and knows for read-your-writes in the GET handlers.
+    public PendingWrites getPending() {
+        return pending;
+    }
+
+    // True when every accepted write has been applied or given up on.
+    public boolean isIdle() {
+        return completed >= accepted.get();
+    }
+
+    public boolean isSaturated() {
+        return queue.isSaturated();
+    }
+
+    // How long a rejected client should wait, based on how fast the writer has been draining.
+    public long retryAfterSeconds() {
+        double rate = Math.max( writesPerSecond, 1 );
+        return Math.min( 60, Math.max( 1, (long) Math.ceil( queue.size() / rate ) ) );
+    }
+
     public final static BatchWriterService INSTANCE = new BatchWriterService();
     private BatchWriterService() {
         if ( !this.isRunning() ){
@@ -49,221 +277,298 @@ public class BatchWriterService extends AbstractScheduledService {
     }
 
     @Override
-    protected void runOneIteration() throws Exception {
-        long startTime = System.nanoTime();
-        long transactionTime = System.nanoTime();
-        Collection<HashMap<String, Object>> writes = new ArrayList<>();
-        queue.drainTo( writes );
-
-        if(!writes.isEmpty()){
-            int i = 0;
-            Transaction tx = graphDb.beginTx();
-            try {
-                for( HashMap write : writes ){
-                    try {
-                        i++;
-                        if ( write.get( DATA ) == null) {
-                            logger.error( "BatchWriterService received write without data:" + write.toString() );
-                            continue;
-                        }
-                        switch ((BatchWriterServiceAction) write.get( ACTION )) {
-                            case CREATE_IDENTITY: {
-                                createIdentity((String)((HashMap)write.get( DATA )).get( "identityHash" ));
-                                break;
-                            }
-                            case CREATE_IDENTITY_AND_LIKES_RELATIONSHIP: {
-                                Node identityNode = createIdentity((String)((HashMap)write.get( DATA )).get( "identityHash" ));
-                                Node pageNode = graphDb.getNodeById((Long) ((HashMap) write.get(DATA)).get( "pageNodeId" ));
-                                CreateLikesRelationship(identityNode, pageNode);
-                                break;
-                            }
-                            case CREATE_IDENTITY_AND_HATES_RELATIONSHIP: {
-                                Node identityNode = createIdentity((String)((HashMap)write.get( DATA )).get( "identityHash" ));
-                                Node pageNode = graphDb.getNodeById((Long) ((HashMap) write.get(DATA)).get( "pageNodeId" ));
-                                CreateHatesRelationship(identityNode, pageNode);
-                                break;
-                            }
-
-                            case CREATE_IDENTITY_WITH_TOKEN: {
-                                Node identityNode = createIdentity((String)((HashMap)write.get( DATA )).get( "identityHash" ));
-                                identityNode.setProperty( "generatedToken", createToken() );
-                                emailTokenAsync((String)((HashMap)write.get( DATA )).get( "identity" ) );
-                                break;
-                            }
-
-                            case CREATE_TOKEN: {
-                                Node identityNode = graphDb.getNodeById((Long) ((HashMap) write.get(DATA)).get( "identityNodeId" ));
-                                identityNode.setProperty( "generatedToken", createToken() );
-                                emailTokenAsync((String)((HashMap)write.get( DATA )).get( "identity" ) );
-                                break;
-                            }
-
-                            case CREATE_PAGE: {
-                                createPage(write);
-                                break;
-                            }
-                            case CREATE_PAGE_AND_LIKES_RELATIONSHIP: {
-                                Node identityNode = graphDb.getNodeById((Long) ((HashMap) write.get(DATA)).get( "identityNodeId" ));
-                                Node pageNode = createPage(write);
-                                CreateLikesRelationship(identityNode, pageNode);
-                                break;
-                            }
-                            case CREATE_PAGE_AND_HATES_RELATIONSHIP: {
-                                Node identityNode = graphDb.getNodeById((Long) ((HashMap) write.get(DATA)).get( "identityNodeId" ));
-                                Node pageNode = createPage(write);
-                                CreateHatesRelationship(identityNode, pageNode);
-                                break;
-                            }
-
-                            case CREATE_BOTH_AND_LIKES_RELATIONSHIP: {
-                                Node identityNode = createIdentity((String)((HashMap)write.get( DATA )).get( "identityHash" ));
-                                Node pageNode = createPage(write);
-                                CreateLikesRelationship(identityNode, pageNode);
-                                break;
-                            }
-                            case CREATE_BOTH_AND_HATES_RELATIONSHIP: {
-                                Node identityNode = createIdentity((String)((HashMap)write.get( DATA )).get( "identityHash" ));
-                                Node pageNode = createPage(write);
-                                CreateHatesRelationship(identityNode, pageNode);
-                                break;
-                            }
-
-                            case CREATE_LIKES_RELATIONSHIP: {
-                                Node identityNode = graphDb.getNodeById((Long) ((HashMap) write.get(DATA)).get( "identityNodeId" ));
-                                Node pageNode = graphDb.getNodeById((Long) ((HashMap) write.get(DATA)).get( "pageNodeId" ));
-                                CreateLikesRelationship(identityNode, pageNode);
-                                break;
-                            }
-                            case CREATE_HATES_RELATIONSHIP: {
-                                Node identityNode = graphDb.getNodeById((Long) ((HashMap) write.get(DATA)).get( "identityNodeId" ));
-                                Node pageNode = graphDb.getNodeById((Long) ((HashMap) write.get(DATA)).get( "pageNodeId" ));
-                                CreateHatesRelationship(identityNode, pageNode);
-                                break;
-                            }
-
-                            case CREATE_BOTH_AND_KNOWS_RELATIONSHIP: {
-                                Node identityNode = createIdentity((String)((HashMap)write.get( DATA )).get( "identityHash" ));
-                                Node identityNode2 = createIdentity((String)((HashMap)write.get( DATA )).get( "identityHash2" ));
-                                CreateKnowsRelationship( identityNode, identityNode2, (String)((HashMap)write.get( DATA )).get( "encryptedIdentity" ) );
-                                break;
-                            }
-                            case CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP: {
-                                Node identityNode = createIdentity((String)((HashMap)write.get( DATA )).get( "identityHash" ));
-                                Node identityNode2 = graphDb.getNodeById((Long) ((HashMap) write.get(DATA)).get("identityNodeId2"));
-                                CreateKnowsRelationship( identityNode, identityNode2, (String)((HashMap)write.get( DATA )).get( "encryptedIdentity" ) );
-                                break;
-                            }
-                            case CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP: {
-                                Node identityNode = graphDb.getNodeById((Long) ((HashMap) write.get(DATA)).get("identityNodeId"));
-                                Node identityNode2 = createIdentity((String)((HashMap)write.get( DATA )).get( "identityHash2" ));
-                                CreateKnowsRelationship( identityNode, identityNode2, (String)((HashMap)write.get( DATA )).get( "encryptedIdentity" ) );
-                                break;
-                            }
-                            case CREATE_KNOWS_RELATIONSHIP: {
-                                Node identityNode = graphDb.getNodeById((Long) ((HashMap) write.get(DATA)).get("identityNodeId"));
-                                Node identityNode2 = graphDb.getNodeById((Long) ((HashMap) write.get(DATA)).get("identityNodeId2"));
-                                CreateKnowsRelationship( identityNode, identityNode2, (String)((HashMap)write.get( DATA )).get( "encryptedIdentity" ) );
-                                break;
-                            }
-
-                        }
-
-                    } catch ( Exception exception ) {
-                        logger.error( "Error in Write: " + write );
+    protected void run() throws Exception {
+        ArrayList<Write> writes = new ArrayList<>();
+        while ( isRunning() ) {
+            if ( graphDb == null ) {
+                Thread.sleep( IDLE_POLL_MILLIS );
+                continue;
+            }
+            boolean filled = nextBatch( writes );
+            // a batch gathered while the database was being swapped waits for the next one
+            db = graphDb;
+            if ( !writes.isEmpty() && db != null ) {
+                if ( journal != null ) {
+                    journal.syncBatch();
+                }
+                record( writes );
+                long commitTime;
+                long startTime = System.nanoTime();
+                try {
+                    commitTime = applyWrites( writes );
+                } catch ( RuntimeException e ) {
+                    if ( WriterLane.isDatabaseUnavailable( e ) ) {
+                        // the journal replays what is not committed when the database is back
+                        logger.error( "The database is not available, stopping BatchWriterService", e );
+                        return;
                     }
-
-                    if(i % 40000 == 0){
-                        tx.success();
-                        tx.close();
-                        DateTime currently = new DateTime();
-                        System.out.printf( "Performed a transaction of 40000 writes in  %d [msec] @ %s \n", ( System.nanoTime() - transactionTime ) / 1000000, currently.toDateTimeISO() );
-                        transactionTime = System.nanoTime();
-                        tx = graphDb.beginTx();
+                    // the lanes complete their own failures, so this one came before any write did
+                    metrics.recordBatchFailure();
+                    logger.error( "Writer batch failed", e );
+                    giveUp( writes, e );
+                    commitTime = System.nanoTime() - startTime;
+                } finally {
+                    for ( Write write : writes ) {
+                        write.release();
                     }
                 }
-
-                tx.success();
-            } finally {
-                tx.close();
-                DateTime currently = new DateTime();
-                System.out.printf("Performed a set of transactions with %d writes in  %d [msec] @ %s \n", writes.size(), (System.nanoTime() - startTime) / 1000000, currently.toDateTimeISO());
+                batchController.onCommit( writes.size(), filled, commitTime );
+                metrics.drainSize.record( writes.size() );
+                metrics.batchNanos.record( commitTime );
+                completed += writes.size();
+                writes.clear();
             }
         }
     }
 
-    private void emailTokenAsync(String identity) {
-        // TODO: Create me
+    // As the handlers queued them, before resolution and coalescing change anything.
+    private void record( List<Write> writes ) {
+        WriteRecorder recorder = this.recorder;
+        if ( recorder == null ) {
+            return;
+        }
+        try {
+            recorder.record( writes );
+        } catch ( IOException e ) {
+            logger.error( "Could not record writes, recording stopped", e );
+            this.recorder = null;
+        }
     }
 
-    private String createToken() {
-        byte bytes[] = new byte[64];
-        SECURE_RANDOM.nextBytes(bytes);
-        return String.format( "%x", new BigInteger(bytes)).substring( 0, 64 );
+    /*
+        Waits for a first write, then keeps gathering until the batch is full or the
+        linger deadline of the first write has passed. A first write with nothing
+        queued behind it does not linger at all, and a HIGH priority write has
+        someone waiting on it, so once one is in the batch it does not linger any
+        longer. Returns true if it was cut by size.
+     */
+    private boolean nextBatch( ArrayList<Write> writes ) throws InterruptedException {
+        Write first = queue.poll( IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS );
+        if ( first == null ) {
+            return false;
+        }
+        writes.add( first );
+        boolean lingering = first.priority() != WritePriority.HIGH && queue.size() > 0;
+
+        int batchSize = batchController.batchSize();
+        long deadline = System.nanoTime() + batchController.lingerNanos();
+        while ( writes.size() < batchSize ) {
+            int drainedFrom = writes.size();
+            // HIGH writes come out first
+            if ( queue.drainTo( writes, batchSize - writes.size() ) > 0 ) {
+                lingering &= writes.get( drainedFrom ).priority() != WritePriority.HIGH;
+            }
+            long remaining = deadline - System.nanoTime();
+            if ( writes.size() >= batchSize || remaining <= 0 || !lingering ) {
+                break;
+            }
+            Write next = queue.poll( remaining, TimeUnit.NANOSECONDS );
+            if ( next != null ) {
+                writes.add( next );
+                lingering &= next.priority() != WritePriority.HIGH;
+            }
+        }
+        return writes.size() >= batchSize;
     }
 
-    private void CreateLikesRelationship(Node identityNode, Node pageNode) {
-        Relationship rel;
+    // Applies and commits a batch, returning how long it took in nanoseconds.
+    private long applyWrites( ArrayList<Write> writes ) throws InterruptedException {
+        long startTime = System.nanoTime();
+        if ( deferredResolution ) {
+            nodeResolver.resolve( db, writes );
+        }
+        coalescedOperations += coalescer.coalesce( writes );
+        if ( localitySort ) {
+            localityOrder.sort( writes );
+        }
 
-        org.neo4j.graphdb.Path relPath = ONE_HOP_LIKES_PATH.findSinglePath(identityNode, pageNode);
-        if (relPath == null) {
-            rel = identityNode.createRelationshipTo(pageNode, Relationships.LIKES);
+        WriterLane[] lanes = lanes();
+        if ( lanes.length == 1 ) {
+            try {
+                lanes[ 0 ].apply( db, writes );
+            } catch ( RuntimeException | Error e ) {
+                if ( WriterLane.isDatabaseUnavailable( e ) ) {
+                    throw e;
+                }
+                laneFailed( lanes[ 0 ], writes, e );
+            }
         } else {
-            rel = relPath.lastRelationship();
+            applyInLanes( lanes, writes );
         }
+
+        long elapsed = System.nanoTime() - startTime;
+        writesPerSecond = writes.size() * 1e9 / Math.max( elapsed, 1 );
+        if ( logger.isDebugEnabled() ) {
+            logger.debug( String.format( "Performed a set of transactions with %d writes (%d coalesced) in  %d [msec]", writes.size(), coalescer.coalesced(), elapsed / 1000000 ) );
+        }
+        return elapsed;
     }
 
-    private void CreateHatesRelationship(Node identityNode, Node pageNode) {
-        Relationship rel;
+    // Splits the batch by lane and waits until every lane has committed its part.
+    private void applyInLanes( WriterLane[] lanes, ArrayList<Write> writes ) throws InterruptedException {
+        for ( ArrayList<Write> laneWrites : laneBatches ) {
+            laneWrites.clear();
+        }
+        for ( Write write : writes ) {
+            laneBatches.get( lane( write, lanes.length ) ).add( write );
+        }
 
-        org.neo4j.graphdb.Path relPath = ONE_HOP_HATES_PATH.findSinglePath(identityNode, pageNode);
-        if (relPath == null) {
-            rel = identityNode.createRelationshipTo(pageNode, Relationships.HATES);
-        } else {
-            rel = relPath.lastRelationship();
+        ArrayList<Callable<Void>> tasks = new ArrayList<>( lanes.length );
+        ArrayList<Integer> taskLanes = new ArrayList<>( lanes.length );
+        for ( int i = 0; i < lanes.length; i++ ) {
+            final WriterLane lane = lanes[ i ];
+            final ArrayList<Write> laneWrites = laneBatches.get( i );
+            if ( laneWrites.isEmpty() ) {
+                continue;
+            }
+            tasks.add( new Callable<Void>() {
+                @Override
+                public Void call() {
+                    lane.apply( db, laneWrites );
+                    return null;
+                }
+            } );
+            taskLanes.add( i );
+        }
+        List<Future<Void>> futures = laneExecutor.invokeAll( tasks );
+        WriterLane.DatabaseUnavailableException unavailable = null;
+        for ( int i = 0; i < futures.size(); i++ ) {
+            try {
+                futures.get( i ).get();
+            } catch ( ExecutionException e ) {
+                if ( WriterLane.isDatabaseUnavailable( e.getCause() ) ) {
+                    // not the writes' fault, they stay uncommitted
+                    unavailable = new WriterLane.DatabaseUnavailableException( e.getCause() );
+                    continue;
+                }
+                int lane = taskLanes.get( i );
+                laneFailed( lanes[ lane ], laneBatches.get( lane ), e.getCause() );
+            }
+        }
+        if ( unavailable != null ) {
+            throw unavailable;
         }
     }
 
-    private void CreateKnowsRelationship(Node identityNode, Node identityNode2, String encryptedIdentity) {
-        Relationship rel;
+    /*
+        The writes a failed lane left behind are given up on like any other write
+        that cannot be applied: dead-lettered, then completed, so their receipts
+        resolve, their pending edges go and the journal does not replay them.
+     */
+    private void laneFailed( WriterLane lane, List<Write> laneWrites, Throwable error ) {
+        metrics.recordLaneFailure();
+        logger.error( "Writer lane failed", error );
+        giveUp( lane.unfinished( laneWrites ), error );
+    }
 
-        org.neo4j.graphdb.Path relPath = ONE_HOP_KNOWS_PATH.findSinglePath(identityNode, identityNode2);
-        if (relPath == null) {
-            rel = identityNode.createRelationshipTo(identityNode2, Relationships.KNOWS);
-            rel.setProperty("encryptedIdentity", encryptedIdentity);
-        } else {
-            rel = relPath.lastRelationship();
+    private void giveUp( List<Write> writes, Throwable error ) {
+        for ( Write write : writes ) {
+            // already dead-lettered by the lane, or coalesced away
+            if ( !write.isSkipped() ) {
+                deadLetter( write, error );
+            }
         }
+        committed( writes );
     }
 
-    private Node createIdentity(String identityHash) {
-        UniqueFactory.UniqueNodeFactory identityFactory = getUniqueIdentityFactory( graphDb );
-        Node identityNode = identityFactory.getOrCreate( "identity", identityHash );
-        ArchetypeServer.identityCache.put(identityHash, identityNode.getId());
-        return identityNode;
+    // Every write of an identity goes to the same lane, bare pages go by url.
+    static int lane( Write write, int lanes ) {
+        String key;
+        switch ( write.action ) {
+            case CREATE_IDENTITY:
+                key = ( (IdentityWrite) write ).identityHash;
+                break;
+            case CREATE_IDENTITY_WITH_TOKEN:
+            case CREATE_TOKEN:
+                key = ( (TokenWrite) write ).identityHash;
+                break;
+            case CREATE_PAGE:
+                key = ( (PageWrite) write ).url;
+                break;
+            case CREATE_BOTH_AND_KNOWS_RELATIONSHIP:
+            case CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP:
+            case CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP:
+            case CREATE_KNOWS_RELATIONSHIP:
+                key = ( (KnowsWrite) write ).identityHash;
+                break;
+            default:
+                key = ( (LikesOrHatesWrite) write ).identityHash;
+        }
+        return ( key.hashCode() & Integer.MAX_VALUE ) % lanes;
     }
 
-    private Node createPage(HashMap write) {
-        Node pageNode = null;
-        if (((HashMap) write.get(DATA)).containsKey("url") &&
-                ((HashMap) write.get(DATA)).containsKey("title")) {
-            String url = (String) ((HashMap) write.get(DATA)).get("url");
-            String title = (String) ((HashMap) write.get(DATA)).get("title");
-            UniqueFactory.UniqueNodeFactory pageFactory = getUniquePageFactory(graphDb);
-            pageNode = pageFactory.getOrCreate("url", url);
-            if (!pageNode.hasProperty("title")) {
-                pageNode.setProperty("title", title);
+    /*
+        The lanes are only ever rebuilt here, on the writer thread between two
+        batches, so setLanes() never races a batch in flight.
+     */
+    private WriterLane[] lanes() {
+        int count = laneCount;
+        if ( lanes == null || lanes.length != count ) {
+            if ( laneExecutor != null ) {
+                laneExecutor.shutdown();
+                laneExecutor = null;
             }
-            ArchetypeServer.urlCache.put(url, pageNode.getId());
+            lanes = new WriterLane[ count ];
+            laneBatches.clear();
+            ArrayList<CommitSizer> sizers = new ArrayList<>( count );
+            for ( int i = 0; i < count; i++ ) {
+                lanes[ i ] = new WriterLane( this, i, count > 1 );
+                laneBatches.add( new ArrayList<Write>() );
+                sizers.add( lanes[ i ].commitSizer() );
+            }
+            commitSizers = sizers;
+            if ( count > 1 ) {
+                laneExecutor = Executors.newFixedThreadPool( count, new ThreadFactoryBuilder()
+                        .setNameFormat( "writer-lane-%d" ).setDaemon( true ).build() );
+            }
+            logger.info( "Writing with " + count + " lane" + ( count == 1 ? "" : "s" ) );
         }
-        return pageNode;
+        return lanes;
     }
 
-    @Override
-    protected Scheduler scheduler() {
-        return Scheduler.newFixedRateSchedule(0, 1, TimeUnit.SECONDS);
+    // Only after the transaction closed cleanly, anything else is replayed on the next start.
+    void committed( List<Write> writes ) {
+        WriteJournal journal = this.journal;
+        if ( journal != null ) {
+            journal.committed( writes );
+        }
+        TokenMailer mailer = tokenMailer;
+        long now = System.nanoTime();
+        for ( Write write : writes ) {
+            pending.remove( write );
+            receipts.committed( write.receipt() );
+            if ( !write.isSkipped() ) {
+                metrics.recordCommitted( write.action, now - write.submittedNanos() );
+            }
+            if ( mailer != null && write instanceof TokenWrite && !write.isSkipped() ) {
+                TokenWrite tokenWrite = (TokenWrite) write;
+                mailer.offer( tokenWrite.identity, tokenWrite.token );
+            }
+        }
+    }
+
+    // Skips the write from now on and records it in the dead letter file, if there is one.
+    void deadLetter( Write write, Throwable error ) {
+        write.skip();
+        pending.remove( write );
+        receipts.deadLettered( write.receipt() );
+        deadLetters.incrementAndGet();
+        logger.error( "Dead-lettering Write: " + write, error );
+        DeadLetterFile file = deadLetterFile;
+        if ( file != null ) {
+            try {
+                file.write( write, error );
+            } catch ( IOException e ) {
+                logger.error( "Could not write to the dead letter file", e );
+            }
+        }
+    }
+
+    void deadlockRetried() {
+        deadlockRetries.incrementAndGet();
     }
 
-    private UniqueFactory.UniqueNodeFactory getUniquePageFactory(final GraphDatabaseService db) {
+    public static UniqueFactory.UniqueNodeFactory uniquePageFactory(final GraphDatabaseService db) {
         return new UniqueFactory.UniqueNodeFactory( db, Labels.Page.name() )
         {
             @Override
@@ -275,7 +580,7 @@ public class BatchWriterService extends AbstractScheduledService {
         };
     }
 
-    private UniqueFactory.UniqueNodeFactory getUniqueIdentityFactory(final GraphDatabaseService db) {
+    public static UniqueFactory.UniqueNodeFactory uniqueIdentityFactory(final GraphDatabaseService db) {
         return new UniqueFactory.UniqueNodeFactory( db, Labels.Identity.name() )
         {
             @Override
@@ -1,24 +1,32 @@
 package pe.archety;
 
+import pe.archety.writes.WritePriority;
+
 public enum BatchWriterServiceAction {
-    CREATE_IDENTITY,
-    CREATE_IDENTITY_AND_LIKES_RELATIONSHIP,
-    CREATE_IDENTITY_AND_HATES_RELATIONSHIP,
-    CREATE_IDENTITY_WITH_TOKEN,
-    CREATE_TOKEN,
-
-    CREATE_PAGE,
-    CREATE_PAGE_AND_LIKES_RELATIONSHIP,
-    CREATE_PAGE_AND_HATES_RELATIONSHIP,
-
-    CREATE_BOTH_AND_LIKES_RELATIONSHIP,
-    CREATE_BOTH_AND_HATES_RELATIONSHIP,
-
-    CREATE_LIKES_RELATIONSHIP,
-    CREATE_HATES_RELATIONSHIP,
-
-    CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP,
-    CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP,
-    CREATE_BOTH_AND_KNOWS_RELATIONSHIP,
-    CREATE_KNOWS_RELATIONSHIP
+    CREATE_IDENTITY( WritePriority.NORMAL ),
+    CREATE_IDENTITY_AND_LIKES_RELATIONSHIP( WritePriority.LOW ),
+    CREATE_IDENTITY_AND_HATES_RELATIONSHIP( WritePriority.LOW ),
+    CREATE_IDENTITY_WITH_TOKEN( WritePriority.HIGH ),
+    CREATE_TOKEN( WritePriority.HIGH ),
+
+    CREATE_PAGE( WritePriority.NORMAL ),
+    CREATE_PAGE_AND_LIKES_RELATIONSHIP( WritePriority.LOW ),
+    CREATE_PAGE_AND_HATES_RELATIONSHIP( WritePriority.LOW ),
+
+    CREATE_BOTH_AND_LIKES_RELATIONSHIP( WritePriority.LOW ),
+    CREATE_BOTH_AND_HATES_RELATIONSHIP( WritePriority.LOW ),
+
+    CREATE_LIKES_RELATIONSHIP( WritePriority.LOW ),
+    CREATE_HATES_RELATIONSHIP( WritePriority.LOW ),
+
+    CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP( WritePriority.LOW ),
+    CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP( WritePriority.LOW ),
+    CREATE_BOTH_AND_KNOWS_RELATIONSHIP( WritePriority.LOW ),
+    CREATE_KNOWS_RELATIONSHIP( WritePriority.LOW );
+
+    public final WritePriority priority;
+
+    BatchWriterServiceAction( WritePriority priority ) {
+        this.priority = priority;
+    }
 }
@@ -0,0 +1,122 @@
+package pe.archety;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    Decides how much goes into one transaction, for anything that commits a long
+    run of operations in chunks: the writer lanes and the admin handlers.
+
+    Operations are not counted but weighed, in rough bytes of transaction state:
+    a new node with its label and unique index entry, a relationship, a property
+    and its value. A chunk is closed once it reaches chunkBytes(). After every
+    commit the measured bytes per nanosecond (smoothed) sets the next chunk to
+    what should commit in targetCommitMillis, never above the state budget and
+    never below MIN_CHUNK_BYTES. Changes are logged once they are large enough to
+    matter, and the writer lanes' counters are exported by the MetricsHandler.
+
+    Every run gets its own instance; the defaults are shared and set at startup.
+ */
+public class CommitSizer {
+    private final static Logger logger = Logger.getLogger( CommitSizer.class );
+
+    public static final long DEFAULT_TARGET_COMMIT_MILLIS = 500;
+    public static final long DEFAULT_STATE_BUDGET_BYTES = 32 * 1024 * 1024;
+
+    public static final long NODE_BYTES = 256;
+    public static final long RELATIONSHIP_BYTES = 128;
+    public static final long PROPERTY_BYTES = 64;
+    public static final long MIN_CHUNK_BYTES = 64 * 1024;
+    private static final long INITIAL_CHUNK_BYTES = 4 * 1024 * 1024;
+
+    private static final double SMOOTHING = 0.3;
+    private static final double REPORT_CHANGE = 0.25;
+
+    private static volatile long defaultTargetCommitNanos = TimeUnit.MILLISECONDS.toNanos( DEFAULT_TARGET_COMMIT_MILLIS );
+    private static volatile long defaultStateBudgetBytes = DEFAULT_STATE_BUDGET_BYTES;
+
+    private final String name;
+    private final long targetCommitNanos;
+    private final long stateBudgetBytes;
+
+    private volatile long chunkBytes;
+    private long reportedChunkBytes;
+    private double bytesPerNano = -1;
+    private volatile long commits;
+    private volatile long committedOperations;
+    private volatile long averageCommitNanos;
+
+    public CommitSizer( String name ) {
+        this( name, defaultTargetCommitNanos, defaultStateBudgetBytes );
+    }
+
+    CommitSizer( String name, long targetCommitNanos, long stateBudgetBytes ) {
+        this.name = name;
+        this.targetCommitNanos = targetCommitNanos;
+        this.stateBudgetBytes = Math.max( MIN_CHUNK_BYTES, stateBudgetBytes );
+        this.chunkBytes = Math.min( INITIAL_CHUNK_BYTES, this.stateBudgetBytes );
+        this.reportedChunkBytes = chunkBytes;
+    }
+
+    public static void setDefaults( long targetCommitMillis, long stateBudgetBytes ) {
+        defaultTargetCommitNanos = TimeUnit.MILLISECONDS.toNanos( targetCommitMillis );
+        defaultStateBudgetBytes = stateBudgetBytes;
+    }
+
+    // The commit latency target, the MicroBatchController sizes writer batches by it too.
+    public static long defaultTargetCommitNanos() {
+        return defaultTargetCommitNanos;
+    }
+
+    public static long propertyBytes( String value ) {
+        return PROPERTY_BYTES + ( value == null ? 0 : 2 * value.length() );
+    }
+
+    // How many bytes of transaction state the next chunk may hold.
+    public long chunkBytes() {
+        return chunkBytes;
+    }
+
+    public boolean isFull( long bytes ) {
+        return bytes >= chunkBytes;
+    }
+
+    /*
+        Called after every commit with what the transaction held and how long it
+        took from beginTx() to close().
+     */
+    public synchronized void onCommit( int operations, long bytes, long nanos ) {
+        commits++;
+        committedOperations += operations;
+        averageCommitNanos = commits == 1
+                ? nanos
+                : (long) ( averageCommitNanos + SMOOTHING * ( nanos - averageCommitNanos ) );
+
+        // a tiny tail chunk says more about the fixed cost of a commit than about its size
+        if ( bytes < MIN_CHUNK_BYTES && bytes < chunkBytes ) {
+            return;
+        }
+        double rate = (double) bytes / Math.max( nanos, 1 );
+        bytesPerNano = bytesPerNano < 0 ? rate : bytesPerNano + SMOOTHING * ( rate - bytesPerNano );
+        chunkBytes = Math.max( MIN_CHUNK_BYTES, Math.min( stateBudgetBytes, (long) ( bytesPerNano * targetCommitNanos ) ) );
+
+        if ( Math.abs( chunkBytes - reportedChunkBytes ) > reportedChunkBytes * REPORT_CHANGE ) {
+            logger.info( String.format( "%s: chunks of %d KB from now on, the last one held %d operations (%d KB) and committed in %d [msec]",
+                    name, chunkBytes / 1024, operations, bytes / 1024, TimeUnit.NANOSECONDS.toMillis( nanos ) ) );
+            reportedChunkBytes = chunkBytes;
+        }
+    }
+
+    public long commits() {
+        return commits;
+    }
+
+    public long committedOperations() {
+        return committedOperations;
+    }
+
+    public long averageCommitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis( averageCommitNanos );
+    }
+}
@@ -0,0 +1,172 @@
+package pe.archety;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Recomputes the NodeCounters of every identity and page from their
+    relationships, for a store written before there were counters or one
+    they have drifted on.
+
+    One thread walks the nodes of each label and hands them out in chunks of
+    CHUNK_NODES to the workers, each chunk in a transaction of its own. A node
+    is write locked before its relationships are counted, so the writer cannot
+    add one between the count and the property being set; a chunk that
+    deadlocks with the writer is tried again. Only counters that are off are
+    written. A chunk that still fails is logged and its nodes counted in
+    failed(), the rest of the repair goes on.
+ */
+public class CounterRepair {
+    private final static Logger logger = Logger.getLogger( CounterRepair.class );
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    static final int CHUNK_NODES = 1000;
+    private static final int MAX_DEADLOCK_RETRIES = 10;
+
+    private final GraphDatabaseService db;
+    private final int threads;
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong corrected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public CounterRepair( GraphDatabaseService db, int threads ) {
+        this.db = db;
+        this.threads = threads;
+    }
+
+    public void repair() throws InterruptedException, ExecutionException {
+        ExecutorService workers = Executors.newFixedThreadPool( threads,
+                new ThreadFactoryBuilder().setNameFormat( "counter-repair-%d" ).setDaemon( true ).build() );
+        // bounds the node ids waiting for a worker
+        final Semaphore chunks = new Semaphore( threads * 2 );
+        ArrayList<Future<?>> running = new ArrayList<>();
+        try {
+            for ( final Labels label : new Labels[]{ Labels.Identity, Labels.Page } ) {
+                long[] ids = new long[ CHUNK_NODES ];
+                int count = 0;
+                try ( Transaction tx = db.beginTx() ) {
+                    for ( Node node : GlobalGraphOperations.at( db ).getAllNodesWithLabel( label ) ) {
+                        ids[ count++ ] = node.getId();
+                        if ( count == CHUNK_NODES ) {
+                            submit( workers, chunks, running, label, ids, count );
+                            count = 0;
+                        }
+                    }
+                    tx.success();
+                }
+                if ( count > 0 ) {
+                    submit( workers, chunks, running, label, ids, count );
+                }
+            }
+            for ( Future<?> future : running ) {
+                future.get();
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        if ( failed.get() > 0 ) {
+            logger.error( "Checked the counters of " + checked.get() + " nodes, corrected " + corrected.get()
+                    + ", could not check " + failed.get() );
+        } else {
+            logger.info( "Checked the counters of " + checked.get() + " nodes, corrected " + corrected.get() );
+        }
+    }
+
+    private void submit( ExecutorService workers, final Semaphore chunks, ArrayList<Future<?>> running,
+                         final Labels label, long[] ids, int count ) throws InterruptedException {
+        final long[] chunk = Arrays.copyOf( ids, count );
+        chunks.acquire();
+        running.add( workers.submit( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    repair( label, chunk, 0 );
+                } catch ( RuntimeException e ) {
+                    failed.addAndGet( chunk.length );
+                    logger.error( "Could not repair the counters of a chunk of " + chunk.length + " " + label + " nodes", e );
+                } finally {
+                    chunks.release();
+                }
+            }
+        } ) );
+        // forget the chunks that are done, there may be millions; a failed one is counted in failed
+        while ( running.size() > threads * 4 && running.get( 0 ).isDone() ) {
+            running.remove( 0 );
+        }
+    }
+
+    private void repair( Labels label, long[] chunk, int attempt ) {
+        int fixed = 0;
+        try ( Transaction tx = db.beginTx() ) {
+            for ( long nodeId : chunk ) {
+                Node node;
+                try {
+                    node = db.getNodeById( nodeId );
+                } catch ( NotFoundException e ) {
+                    continue;
+                }
+                tx.acquireWriteLock( node );
+                if ( label == Labels.Identity ) {
+                    fixed += fix( node, NodeCounters.LIKES, Direction.OUTGOING, Relationships.LIKES );
+                    fixed += fix( node, NodeCounters.HATES, Direction.OUTGOING, Relationships.HATES );
+                    fixed += fix( node, NodeCounters.KNOWS, Direction.OUTGOING, Relationships.KNOWS );
+                } else {
+                    fixed += fix( node, NodeCounters.LIKED, Direction.INCOMING, Relationships.LIKES );
+                    fixed += fix( node, NodeCounters.HATED, Direction.INCOMING, Relationships.HATES );
+                }
+            }
+            tx.success();
+        } catch ( RuntimeException e ) {
+            if ( attempt < MAX_DEADLOCK_RETRIES && WriterLane.isDeadlock( e ) ) {
+                repair( label, chunk, attempt + 1 );
+                return;
+            }
+            throw e;
+        }
+        checked.addAndGet( chunk.length );
+        corrected.addAndGet( fixed );
+    }
+
+    // Returns 1 if the counter was off.
+    private static int fix( Node node, String counter, Direction direction, Relationships type ) {
+        long count = 0;
+        for ( Relationship ignored : node.getRelationships( direction, type ) ) {
+            count++;
+        }
+        if ( count == NodeCounters.get( node, counter ) ) {
+            return 0;
+        }
+        node.setProperty( counter, count );
+        return 1;
+    }
+
+    // Nodes whose counters were checked, and counters that were off and set.
+    public long checked() {
+        return checked.get();
+    }
+
+    public long corrected() {
+        return corrected.get();
+    }
+
+    // Nodes in chunks that failed, their counters may still be off.
+    public long failed() {
+        return failed.get();
+    }
+}
@@ -0,0 +1,229 @@
+package pe.archety;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Group commit for the small writes a request has to see committed before it
+    answers, where queueing on the BatchWriterService would not do.
+
+    Handlers submit a Work and get a future back. One thread of its own takes
+    what has been submitted, waits up to window for more (and everything that
+    arrives while a commit runs joins the next one), applies up to maxGroupSize
+    of them in a single transaction and completes their futures once it has
+    committed, so a burst of requests pays for one commit and log force instead
+    of one each.
+
+    A Work that throws would take the others down with it, so then the group is
+    rolled back and every Work in it retried in a transaction of its own.
+ */
+public class GroupCommitExecutor {
+    private final static Logger logger = Logger.getLogger( GroupCommitExecutor.class );
+
+    public static final long DEFAULT_WINDOW_MICROS = 1000;
+    public static final int DEFAULT_MAX_GROUP_SIZE = 200;
+    private static final long POLL_MILLIS = 100;
+
+    // Reads and writes through db, inside the transaction it is given.
+    public interface Work<T> {
+        T apply( GraphDatabaseService db ) throws Exception;
+    }
+
+    private static final class Submission<T> {
+        final Work<T> work;
+        final SettableFuture<T> future = SettableFuture.create();
+        T result;
+
+        Submission( Work<T> work ) {
+            this.work = work;
+        }
+
+        void apply( GraphDatabaseService db ) throws Exception {
+            result = work.apply( db );
+        }
+
+        void complete() {
+            future.set( result );
+        }
+    }
+
+    private final GraphDatabaseService db;
+    private final long windowNanos;
+    private final int maxGroupSize;
+    private final LinkedBlockingQueue<Submission<?>> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService committer;
+    private volatile boolean running;
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public GroupCommitExecutor( GraphDatabaseService db ) {
+        this( db, DEFAULT_WINDOW_MICROS, DEFAULT_MAX_GROUP_SIZE );
+    }
+
+    public GroupCommitExecutor( GraphDatabaseService db, long windowMicros, int maxGroupSize ) {
+        this.db = db;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos( windowMicros );
+        this.maxGroupSize = maxGroupSize;
+        this.committer = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat( "group-commit" ).setDaemon( true ).build() );
+    }
+
+    public void start() {
+        running = true;
+        committer.execute( new Runnable() {
+            @Override
+            public void run() {
+                commitGroups();
+            }
+        } );
+    }
+
+    // Commits what has been submitted, up to timeoutMillis, then fails whatever is left.
+    public void stop( long timeoutMillis ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while ( !queue.isEmpty() && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+        running = false;
+        committer.shutdown();
+        committer.awaitTermination( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+        Submission<?> submission;
+        while ( ( submission = queue.poll() ) != null ) {
+            submission.future.setException( new IllegalStateException( "Group commit stopped" ) );
+        }
+    }
+
+    // The future completes once the transaction the work was applied in has committed.
+    public <T> ListenableFuture<T> submit( Work<T> work ) {
+        Submission<T> submission = new Submission<>( work );
+        if ( !running ) {
+            submission.future.setException( new IllegalStateException( "Group commit is not running" ) );
+        } else {
+            queue.add( submission );
+        }
+        return submission.future;
+    }
+
+    private void commitGroups() {
+        ArrayList<Submission<?>> group = new ArrayList<>( maxGroupSize );
+        while ( running ) {
+            try {
+                Submission<?> first = queue.poll( POLL_MILLIS, TimeUnit.MILLISECONDS );
+                if ( first == null ) {
+                    continue;
+                }
+                group.add( first );
+                fill( group );
+                commit( group );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch ( RuntimeException e ) {
+                logger.error( "Group commit failed", e );
+                for ( Submission<?> submission : group ) {
+                    submission.future.setException( e );
+                }
+            } finally {
+                group.clear();
+            }
+        }
+    }
+
+    private void fill( ArrayList<Submission<?>> group ) throws InterruptedException {
+        queue.drainTo( group, maxGroupSize - group.size() );
+        long deadline = System.nanoTime() + windowNanos;
+        while ( group.size() < maxGroupSize ) {
+            long remaining = deadline - System.nanoTime();
+            if ( remaining <= 0 ) {
+                return;
+            }
+            Submission<?> next = queue.poll( remaining, TimeUnit.NANOSECONDS );
+            if ( next == null ) {
+                return;
+            }
+            group.add( next );
+            queue.drainTo( group, maxGroupSize - group.size() );
+        }
+    }
+
+    private void commit( ArrayList<Submission<?>> group ) {
+        boolean committed = false;
+        try ( Transaction tx = db.beginTx() ) {
+            boolean failed = false;
+            for ( Submission<?> submission : group ) {
+                try {
+                    submission.apply( db );
+                } catch ( Exception e ) {
+                    failed = true;
+                    break;
+                }
+            }
+            if ( failed ) {
+                tx.failure();
+            } else {
+                tx.success();
+                committed = true;
+            }
+        } catch ( Exception e ) {
+            // the commit itself failed
+            committed = false;
+        }
+
+        if ( committed ) {
+            commits.incrementAndGet();
+            applied.addAndGet( group.size() );
+            for ( Submission<?> submission : group ) {
+                submission.complete();
+            }
+            return;
+        }
+
+        fallbacks.incrementAndGet();
+        for ( Submission<?> submission : group ) {
+            commitAlone( submission );
+        }
+    }
+
+    private void commitAlone( Submission<?> submission ) {
+        try ( Transaction tx = db.beginTx() ) {
+            submission.apply( db );
+            tx.success();
+        } catch ( Exception e ) {
+            submission.future.setException( e );
+            return;
+        }
+        commits.incrementAndGet();
+        applied.incrementAndGet();
+        submission.complete();
+    }
+
+    // Transactions committed, works committed in them, and groups that had to be retried one by one.
+    public long commits() {
+        return commits.get();
+    }
+
+    public long applied() {
+        return applied.get();
+    }
+
+    public long fallbacks() {
+        return fallbacks.get();
+    }
+
+    public int queued() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,86 @@
+package pe.archety;
+
+import org.neo4j.graphdb.Node;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+    Relationship counts kept as properties, so "how many likes does this page
+    have" is one property read instead of a walk over its relationships:
+    likes, hates and knows given on every Identity, likes and hates received
+    on every Page.
+
+    A WriterLane adds a delta for every relationship it actually creates and
+    sets each node's counters once, just before its transaction commits, so a
+    page liked a thousand times in a batch is written once. The deltas go with
+    a transaction that rolls back. CounterRepair recomputes them from the
+    relationships.
+ */
+public final class NodeCounters {
+    public static final String LIKES = "likesCount";
+    public static final String HATES = "hatesCount";
+    public static final String KNOWS = "knowsCount";
+    public static final String LIKED = "likedCount";
+    public static final String HATED = "hatedCount";
+
+    // a node's deltas, by index into COUNTERS
+    private static final String[] COUNTERS = { LIKES, HATES, KNOWS, LIKED, HATED };
+    private static final int LIKES_INDEX = 0;
+    private static final int HATES_INDEX = 1;
+    private static final int KNOWS_INDEX = 2;
+    private static final int LIKED_INDEX = 3;
+    private static final int HATED_INDEX = 4;
+
+    // Writer lane only, emptied for every transaction
+    private final LinkedHashMap<Node, long[]> deltas = new LinkedHashMap<>();
+
+    public static long get( Node node, String counter ) {
+        return ( (Number) node.getProperty( counter, 0L ) ).longValue();
+    }
+
+    // Counts a relationship created in the current transaction.
+    void created( Node start, Node end, Relationships type ) {
+        switch ( type ) {
+            case LIKES:
+                add( start, LIKES_INDEX );
+                add( end, LIKED_INDEX );
+                break;
+
+            case HATES:
+                add( start, HATES_INDEX );
+                add( end, HATED_INDEX );
+                break;
+
+            default:
+                add( start, KNOWS_INDEX );
+        }
+    }
+
+    private void add( Node node, int counter ) {
+        long[] nodeDeltas = deltas.get( node );
+        if ( nodeDeltas == null ) {
+            nodeDeltas = new long[ COUNTERS.length ];
+            deltas.put( node, nodeDeltas );
+        }
+        nodeDeltas[ counter ]++;
+    }
+
+    // Sets the counters of every node with a delta; the relationships created have locked them already.
+    void apply() {
+        for ( Map.Entry<Node, long[]> entry : deltas.entrySet() ) {
+            Node node = entry.getKey();
+            long[] nodeDeltas = entry.getValue();
+            for ( int i = 0; i < COUNTERS.length; i++ ) {
+                if ( nodeDeltas[ i ] != 0 ) {
+                    node.setProperty( COUNTERS[ i ], get( node, COUNTERS[ i ] ) + nodeDeltas[ i ] );
+                }
+            }
+        }
+        deltas.clear();
+    }
+
+    void clear() {
+        deltas.clear();
+    }
+}
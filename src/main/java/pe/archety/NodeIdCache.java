@@ -0,0 +1,455 @@
+package pe.archety;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static pe.archety.ArchetypeConstants.URLPREFIX;
+
+/*
+    The identity hash -> node id and url -> node id caches, kept off the heap.
+
+    As Guava caches every entry was a String, a boxed Long and a segment entry,
+    some 300 bytes an identity and 250 a page, all of it for the old generation
+    to trace. Here an entry is a fixed size slot in a direct buffer: the hash of
+    its key, its length, a referenced bit, the node id and the key bytes.
+
+    Keys are stored in a compact form. An identity hash is the Base64 of a
+    SHA3-512 digest, only its first 16 bytes are kept; two identities sharing
+    them is about as likely as a random UUID collision. A url loses the
+    Wikipedia prefix and keeps its UTF-8 bytes, exactly. A url longer than
+    URL_KEY_BYTES after that, as percent-encoded titles outside the Latin
+    alphabet often are, is kept as the first 16 bytes of its SHA-256 digest
+    instead, under a length of its own so it never matches an exact key. Keys
+    of the wrong shape are never cached, the handlers look them up in the
+    index every time.
+
+    The map is split in SEGMENTS segments, each an open addressing (linear
+    probing) table behind its own lock, grown by doubling up to its share of
+    the maximum size. A full segment evicts with CLOCK: the hand clears the
+    referenced bit of entries read since it last passed and takes the first
+    entry that was not read, so like Guava's LRU it is the entries nobody asks
+    for that go.
+ */
+public final class NodeIdCache {
+    static final int SEGMENTS = 64;
+    static final int DIGEST_KEY_BYTES = 16;
+    static final int URL_KEY_BYTES = 56;
+    // The length of a url kept as a digest
+    private static final int DIGESTED = URL_KEY_BYTES + 1;
+    private static final int DIGEST_CHARS = 88;
+    private static final int INITIAL_SLOTS = 256;
+
+    // Slot layout, the key is padded with zeros to a multiple of 8 bytes
+    private static final int HASH = 0;       // int, 0 for an empty slot
+    private static final int LENGTH = 4;     // byte, length of the key
+    private static final int REFERENCED = 5; // byte, read since the clock hand passed
+    private static final int NODE_ID = 8;    // long
+    private static final int KEY = 16;
+
+    private static final byte[] BASE64 = new byte[ 128 ];
+    static {
+        Arrays.fill( BASE64, (byte) -1 );
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for ( int i = 0; i < alphabet.length(); i++ ) {
+            BASE64[ alphabet.charAt( i ) ] = (byte) i;
+        }
+    }
+
+    private enum Keys {
+        DIGEST( DIGEST_KEY_BYTES ) {
+            @Override
+            int encode( String key, ByteBuffer into ) {
+                if ( key.length() != DIGEST_CHARS ) {
+                    return -1;
+                }
+                int bits = 0;
+                int accumulator = 0;
+                int length = 0;
+                for ( int i = 0; length < DIGEST_KEY_BYTES; i++ ) {
+                    char c = key.charAt( i );
+                    int value = c < 128 ? BASE64[ c ] : -1;
+                    if ( value < 0 ) {
+                        return -1;
+                    }
+                    accumulator = ( accumulator << 6 ) | value;
+                    bits += 6;
+                    if ( bits >= 8 ) {
+                        bits -= 8;
+                        into.put( length++, (byte) ( accumulator >>> bits ) );
+                        accumulator &= ( 1 << bits ) - 1;
+                    }
+                }
+                return length;
+            }
+        },
+
+        URL( URL_KEY_BYTES ) {
+            @Override
+            int encode( String key, ByteBuffer into ) {
+                if ( !key.startsWith( URLPREFIX ) ) {
+                    return -1;
+                }
+                int length = 0;
+                for ( int i = URLPREFIX.length(); i < key.length(); i++ ) {
+                    char c = key.charAt( i );
+                    int codePoint = c;
+                    int bytes;
+                    if ( c < 0x80 ) {
+                        bytes = 1;
+                    } else if ( c < 0x800 ) {
+                        bytes = 2;
+                    } else if ( Character.isHighSurrogate( c ) && i + 1 < key.length()
+                            && Character.isLowSurrogate( key.charAt( i + 1 ) ) ) {
+                        codePoint = Character.toCodePoint( c, key.charAt( ++i ) );
+                        bytes = 4;
+                    } else if ( Character.isSurrogate( c ) ) {
+                        return -1;
+                    } else {
+                        bytes = 3;
+                    }
+                    if ( length + bytes > URL_KEY_BYTES ) {
+                        return digest( key, into );
+                    }
+                    switch ( bytes ) {
+                        case 1:
+                            into.put( length++, (byte) codePoint );
+                            break;
+                        case 2:
+                            into.put( length++, (byte) ( 0xC0 | ( codePoint >> 6 ) ) );
+                            into.put( length++, (byte) ( 0x80 | ( codePoint & 0x3F ) ) );
+                            break;
+                        case 3:
+                            into.put( length++, (byte) ( 0xE0 | ( codePoint >> 12 ) ) );
+                            into.put( length++, (byte) ( 0x80 | ( ( codePoint >> 6 ) & 0x3F ) ) );
+                            into.put( length++, (byte) ( 0x80 | ( codePoint & 0x3F ) ) );
+                            break;
+                        default:
+                            into.put( length++, (byte) ( 0xF0 | ( codePoint >> 18 ) ) );
+                            into.put( length++, (byte) ( 0x80 | ( ( codePoint >> 12 ) & 0x3F ) ) );
+                            into.put( length++, (byte) ( 0x80 | ( ( codePoint >> 6 ) & 0x3F ) ) );
+                            into.put( length++, (byte) ( 0x80 | ( codePoint & 0x3F ) ) );
+                    }
+                }
+                return length;
+            }
+
+            private int digest( String key, ByteBuffer into ) {
+                for ( int i = URLPREFIX.length(); i < key.length(); i++ ) {
+                    char c = key.charAt( i );
+                    if ( Character.isHighSurrogate( c ) && i + 1 < key.length()
+                            && Character.isLowSurrogate( key.charAt( i + 1 ) ) ) {
+                        i++;
+                    } else if ( Character.isSurrogate( c ) ) {
+                        return -1;
+                    }
+                }
+                byte[] digest = Hashing.sha256().hashString( key.substring( URLPREFIX.length() ), Charsets.UTF_8 ).asBytes();
+                for ( int i = 0; i < DIGEST_KEY_BYTES; i++ ) {
+                    into.put( i, digest[ i ] );
+                }
+                return DIGESTED;
+            }
+        };
+
+        final int keyBytes;
+
+        Keys( int keyBytes ) {
+            this.keyBytes = keyBytes;
+        }
+
+        // Writes the key's bytes from the start of into, -1 for a key that cannot be cached.
+        abstract int encode( String key, ByteBuffer into );
+    }
+
+    private final Keys keys;
+    private final int slotBytes;
+    private final long seed = ThreadLocalRandom.current().nextLong();
+    private final Segment[] segments = new Segment[ SEGMENTS ];
+    private final ThreadLocal<ByteBuffer> scratch;
+
+    private NodeIdCache( final Keys keys, long maximumSize ) {
+        this.keys = keys;
+        this.slotBytes = KEY + keys.keyBytes;
+        int segmentSize = (int) Math.max( 1, ( maximumSize + SEGMENTS - 1 ) / SEGMENTS );
+        // a full segment is still at most 3/4 full
+        long maxSlots = Long.highestOneBit( (long) segmentSize * 4 / 3 ) << 1;
+        if ( maxSlots * slotBytes > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException( "A maximum size of " + maximumSize + " is too large" );
+        }
+        for ( int i = 0; i < SEGMENTS; i++ ) {
+            segments[ i ] = new Segment( segmentSize, (int) maxSlots );
+        }
+        scratch = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocate( keys.keyBytes ).order( ByteOrder.nativeOrder() );
+            }
+        };
+    }
+
+    // Keyed by ArchetypeConstants.calculateHash
+    public static NodeIdCache forDigests( long maximumSize ) {
+        return new NodeIdCache( Keys.DIGEST, maximumSize );
+    }
+
+    // Keyed by Wikipedia urls
+    public static NodeIdCache forUrls( long maximumSize ) {
+        return new NodeIdCache( Keys.URL, maximumSize );
+    }
+
+    public Long getIfPresent( String key ) {
+        ByteBuffer keyBytes = scratch.get();
+        int length = encode( key, keyBytes );
+        if ( length < 0 ) {
+            return null;
+        }
+        int hash = hash( keyBytes, length );
+        long nodeId = segmentFor( hash ).get( hash, keyBytes, length );
+        return nodeId < 0 ? null : nodeId;
+    }
+
+    public void put( String key, long nodeId ) {
+        ByteBuffer keyBytes = scratch.get();
+        int length = encode( key, keyBytes );
+        if ( length < 0 ) {
+            return;
+        }
+        int hash = hash( keyBytes, length );
+        segmentFor( hash ).put( hash, keyBytes, length, nodeId );
+    }
+
+    public void invalidateAll() {
+        for ( Segment segment : segments ) {
+            segment.clear();
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for ( Segment segment : segments ) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    // Direct memory held by the tables.
+    public long offHeapBytes() {
+        long bytes = 0;
+        for ( Segment segment : segments ) {
+            bytes += segment.bytes();
+        }
+        return bytes;
+    }
+
+    private int encode( String key, ByteBuffer keyBytes ) {
+        int length = keys.encode( key, keyBytes );
+        if ( length >= 0 ) {
+            for ( int i = keyBytes( length ); i < padded( keyBytes( length ) ); i++ ) {
+                keyBytes.put( i, (byte) 0 );
+            }
+        }
+        return length;
+    }
+
+    // The key bytes a length stands for
+    private static int keyBytes( int length ) {
+        return length == DIGESTED ? DIGEST_KEY_BYTES : length;
+    }
+
+    private static int padded( int length ) {
+        return ( length + 7 ) & ~7;
+    }
+
+    private int hash( ByteBuffer keyBytes, int length ) {
+        long hash = seed ^ length;
+        for ( int i = 0; i < keyBytes( length ); i += 8 ) {
+            hash = mix( hash ^ keyBytes.getLong( i ) );
+        }
+        int folded = (int) ( hash ^ ( hash >>> 32 ) );
+        return folded == 0 ? 1 : folded;
+    }
+
+    private static long mix( long value ) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    // The top bits pick the segment, the low bits the slot in it.
+    private Segment segmentFor( int hash ) {
+        return segments[ hash >>> 26 ];
+    }
+
+    private final class Segment {
+        private final int maxSize;
+        private final int maxSlots;
+        private ByteBuffer table;
+        private int mask;
+        private int size;
+        private int hand;
+
+        Segment( int maxSize, int maxSlots ) {
+            this.maxSize = maxSize;
+            this.maxSlots = maxSlots;
+            allocate( Math.min( INITIAL_SLOTS, maxSlots ) );
+        }
+
+        private void allocate( int slots ) {
+            table = ByteBuffer.allocateDirect( slots * slotBytes ).order( ByteOrder.nativeOrder() );
+            mask = slots - 1;
+            size = 0;
+            hand = 0;
+        }
+
+        synchronized long get( int hash, ByteBuffer key, int length ) {
+            int slot = find( hash, key, length );
+            if ( slot < 0 ) {
+                return -1;
+            }
+            int offset = slot * slotBytes;
+            table.put( offset + REFERENCED, (byte) 1 );
+            return table.getLong( offset + NODE_ID );
+        }
+
+        synchronized void put( int hash, ByteBuffer key, int length, long nodeId ) {
+            int slot = find( hash, key, length );
+            if ( slot >= 0 ) {
+                table.putLong( slot * slotBytes + NODE_ID, nodeId );
+                return;
+            }
+            if ( size >= maxSize ) {
+                evict();
+            } else if ( ( size + 1 ) * 4 > ( mask + 1 ) * 3 && mask + 1 < maxSlots ) {
+                grow();
+            }
+            slot = hash & mask;
+            while ( table.getInt( slot * slotBytes + HASH ) != 0 ) {
+                slot = ( slot + 1 ) & mask;
+            }
+            int offset = slot * slotBytes;
+            table.putInt( offset + HASH, hash );
+            table.put( offset + LENGTH, (byte) length );
+            table.put( offset + REFERENCED, (byte) 0 );
+            table.putLong( offset + NODE_ID, nodeId );
+            for ( int i = 0; i < keys.keyBytes; i += 8 ) {
+                table.putLong( offset + KEY + i, i < keyBytes( length ) ? key.getLong( i ) : 0L );
+            }
+            size++;
+        }
+
+        private int find( int hash, ByteBuffer key, int length ) {
+            for ( int slot = hash & mask; ; slot = ( slot + 1 ) & mask ) {
+                int offset = slot * slotBytes;
+                int slotHash = table.getInt( offset + HASH );
+                if ( slotHash == 0 ) {
+                    return -1;
+                }
+                if ( slotHash == hash && matches( offset, key, length ) ) {
+                    return slot;
+                }
+            }
+        }
+
+        private boolean matches( int offset, ByteBuffer key, int length ) {
+            if ( ( table.get( offset + LENGTH ) & 0xFF ) != length ) {
+                return false;
+            }
+            for ( int i = 0; i < keyBytes( length ); i += 8 ) {
+                if ( table.getLong( offset + KEY + i ) != key.getLong( i ) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void evict() {
+            while ( true ) {
+                int offset = hand * slotBytes;
+                if ( table.getInt( offset + HASH ) != 0 ) {
+                    if ( table.get( offset + REFERENCED ) == 0 ) {
+                        remove( hand );
+                        return;
+                    }
+                    table.put( offset + REFERENCED, (byte) 0 );
+                }
+                hand = ( hand + 1 ) & mask;
+            }
+        }
+
+        // Backward shift deletion: moves up the entries that probed past the slot.
+        private void remove( int slot ) {
+            int empty = slot;
+            int next = slot;
+            while ( true ) {
+                next = ( next + 1 ) & mask;
+                int nextHash = table.getInt( next * slotBytes + HASH );
+                if ( nextHash == 0 ) {
+                    break;
+                }
+                int home = nextHash & mask;
+                boolean staysPut = empty <= next ? empty < home && home <= next : empty < home || home <= next;
+                if ( !staysPut ) {
+                    copy( next, empty );
+                    empty = next;
+                }
+            }
+            table.putInt( empty * slotBytes + HASH, 0 );
+            size--;
+        }
+
+        private void copy( int from, int to ) {
+            for ( int i = 0; i < slotBytes; i += 8 ) {
+                table.putLong( to * slotBytes + i, table.getLong( from * slotBytes + i ) );
+            }
+        }
+
+        private void grow() {
+            ByteBuffer old = table;
+            int oldSlots = mask + 1;
+            int entries = size;
+            allocate( oldSlots * 2 );
+            for ( int from = 0; from < oldSlots; from++ ) {
+                int hash = old.getInt( from * slotBytes + HASH );
+                if ( hash == 0 ) {
+                    continue;
+                }
+                int slot = hash & mask;
+                while ( table.getInt( slot * slotBytes + HASH ) != 0 ) {
+                    slot = ( slot + 1 ) & mask;
+                }
+                for ( int i = 0; i < slotBytes; i += 8 ) {
+                    table.putLong( slot * slotBytes + i, old.getLong( from * slotBytes + i ) );
+                }
+            }
+            size = entries;
+        }
+
+        synchronized void clear() {
+            if ( mask + 1 > INITIAL_SLOTS ) {
+                allocate( INITIAL_SLOTS );
+            } else if ( size > 0 ) {
+                for ( int i = 0; i < table.capacity(); i += 8 ) {
+                    table.putLong( i, 0L );
+                }
+                size = 0;
+                hand = 0;
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized long bytes() {
+            return table.capacity();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package pe.archety;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import pe.archety.writes.IdentityWrite;
+import pe.archety.writes.KnowsWrite;
+import pe.archety.writes.LikesOrHatesWrite;
+import pe.archety.writes.PageWrite;
+import pe.archety.writes.TokenWrite;
+import pe.archety.writes.Write;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    The resolution stage of the BatchWriterService, for when the handlers defer
+    resolution: they only validate and hash, and queue their writes with NO_NODE
+    for whatever is not in the node id caches.
+
+    Before a batch is coalesced every identity hash and url it still misses is
+    looked up once, all in a single read transaction, and the ids found go into
+    the caches and into the writes; a bare CREATE_IDENTITY or CREATE_PAGE of a
+    node that exists is skipped. What is still NO_NODE after that does not exist
+    yet and is created by the lanes as before.
+
+    Neo4j 2.0 has no multi-key index seek (and Cypher's IN does not use the
+    schema index), so this is one seek per distinct key, but on the writer
+    thread and in one transaction per batch instead of one per request.
+
+    Belongs to the writer thread; the maps are reused from batch to batch.
+ */
+public class NodeResolver {
+    private final HashMap<String, Long> identities = new HashMap<>();
+    private final HashMap<String, Long> pages = new HashMap<>();
+    private long lookups;
+    private long found;
+
+    public void resolve( GraphDatabaseService db, List<Write> writes ) {
+        try {
+            collect( writes );
+            if ( identities.isEmpty() && pages.isEmpty() ) {
+                return;
+            }
+            try ( Transaction tx = db.beginTx() ) {
+                lookUp( db, Labels.Identity, "identity", identities );
+                lookUp( db, Labels.Page, "url", pages );
+                tx.success();
+            }
+            apply( writes );
+        } finally {
+            // a failed batch leaves nothing behind for the next one
+            identities.clear();
+            pages.clear();
+        }
+    }
+
+    private void collect( List<Write> writes ) {
+        for ( Write write : writes ) {
+            switch ( write.action ) {
+                case CREATE_IDENTITY:
+                    identity( ( (IdentityWrite) write ).identityHash, Write.NO_NODE );
+                    break;
+
+                case CREATE_IDENTITY_WITH_TOKEN:
+                case CREATE_TOKEN: {
+                    TokenWrite tokenWrite = (TokenWrite) write;
+                    identity( tokenWrite.identityHash, tokenWrite.identityNodeId );
+                    break;
+                }
+
+                case CREATE_PAGE:
+                    page( ( (PageWrite) write ).url, Write.NO_NODE );
+                    break;
+
+                case CREATE_KNOWS_RELATIONSHIP:
+                case CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP:
+                case CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP:
+                case CREATE_BOTH_AND_KNOWS_RELATIONSHIP: {
+                    KnowsWrite knowsWrite = (KnowsWrite) write;
+                    identity( knowsWrite.identityHash, knowsWrite.identityNodeId );
+                    identity( knowsWrite.identityHash2, knowsWrite.identityNodeId2 );
+                    break;
+                }
+
+                default: {
+                    LikesOrHatesWrite likesOrHatesWrite = (LikesOrHatesWrite) write;
+                    identity( likesOrHatesWrite.identityHash, likesOrHatesWrite.identityNodeId );
+                    page( likesOrHatesWrite.url, likesOrHatesWrite.pageNodeId );
+                }
+            }
+        }
+    }
+
+    private void apply( List<Write> writes ) {
+        for ( Write write : writes ) {
+            switch ( write.action ) {
+                case CREATE_IDENTITY:
+                    if ( identities.get( ( (IdentityWrite) write ).identityHash ) != null ) {
+                        write.skip();
+                    }
+                    break;
+
+                case CREATE_IDENTITY_WITH_TOKEN:
+                case CREATE_TOKEN: {
+                    TokenWrite tokenWrite = (TokenWrite) write;
+                    tokenWrite.identityNodeId = resolved( identities, tokenWrite.identityHash, tokenWrite.identityNodeId );
+                    break;
+                }
+
+                case CREATE_PAGE:
+                    if ( pages.get( ( (PageWrite) write ).url ) != null ) {
+                        write.skip();
+                    }
+                    break;
+
+                case CREATE_KNOWS_RELATIONSHIP:
+                case CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP:
+                case CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP:
+                case CREATE_BOTH_AND_KNOWS_RELATIONSHIP: {
+                    KnowsWrite knowsWrite = (KnowsWrite) write;
+                    knowsWrite.identityNodeId = resolved( identities, knowsWrite.identityHash, knowsWrite.identityNodeId );
+                    knowsWrite.identityNodeId2 = resolved( identities, knowsWrite.identityHash2, knowsWrite.identityNodeId2 );
+                    break;
+                }
+
+                default: {
+                    LikesOrHatesWrite likesOrHatesWrite = (LikesOrHatesWrite) write;
+                    likesOrHatesWrite.identityNodeId = resolved( identities, likesOrHatesWrite.identityHash, likesOrHatesWrite.identityNodeId );
+                    likesOrHatesWrite.pageNodeId = resolved( pages, likesOrHatesWrite.url, likesOrHatesWrite.pageNodeId );
+                }
+            }
+        }
+    }
+
+    // Only keys the cache does not know are looked up; null marks one still to look up.
+    private void identity( String identityHash, long identityNodeId ) {
+        if ( identityNodeId == Write.NO_NODE && !identities.containsKey( identityHash ) ) {
+            identities.put( identityHash, ArchetypeServer.identityCache.getIfPresent( identityHash ) );
+        }
+    }
+
+    private void page( String url, long pageNodeId ) {
+        if ( pageNodeId == Write.NO_NODE && !pages.containsKey( url ) ) {
+            pages.put( url, ArchetypeServer.urlCache.getIfPresent( url ) );
+        }
+    }
+
+    private void lookUp( GraphDatabaseService db, Labels label, String property, HashMap<String, Long> keys ) {
+        for ( Map.Entry<String, Long> entry : keys.entrySet() ) {
+            if ( entry.getValue() != null ) {
+                continue;
+            }
+            lookups++;
+            try ( ResourceIterator<Node> results = db.findNodesByLabelAndProperty( label, property, entry.getKey() ).iterator() ) {
+                if ( results.hasNext() ) {
+                    long nodeId = results.next().getId();
+                    entry.setValue( nodeId );
+                    if ( label == Labels.Identity ) {
+                        ArchetypeServer.identityCache.put( entry.getKey(), nodeId );
+                    } else {
+                        ArchetypeServer.urlCache.put( entry.getKey(), nodeId );
+                    }
+                    found++;
+                }
+            }
+        }
+    }
+
+    private static long resolved( HashMap<String, Long> keys, String key, long nodeId ) {
+        if ( nodeId != Write.NO_NODE ) {
+            return nodeId;
+        }
+        Long resolved = keys.get( key );
+        return resolved == null ? Write.NO_NODE : resolved;
+    }
+
+    // Index seeks done since startup, and how many of them found their node.
+    public long lookups() {
+        return lookups;
+    }
+
+    public long found() {
+        return found;
+    }
+}
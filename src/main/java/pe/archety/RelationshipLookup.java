@@ -0,0 +1,245 @@
+package pe.archety;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+
+/*
+    Answers "is there already a start -[type]-> end relationship" for the BatchWriterService.
+
+    Neo4j 2.0 has no cheap degree, so instead of walking the whole outgoing list of
+    the start node it walks the start's outgoing and the end's incoming relationships
+    in lockstep and stops as soon as either side runs out: the cost is twice the
+    smaller degree. Pairs created in the current batch are remembered in a LongPairSet.
+    When a start node turns out to be dense its neighbour ids are loaded once into a
+    LongSet and kept in a bounded cache, so heavy identities become a hash probe.
+
+    Only the writer thread creates these relationships, which is what keeps the
+    cache correct; call invalidate() whenever a transaction rolled back.
+ */
+public class RelationshipLookup {
+    public static final int DEFAULT_DENSE_DEGREE = 1000;
+    public static final long DEFAULT_MAX_CACHED_NEIGHBOURS = 10_000_000L;
+
+    private final int denseDegree;
+    private final EnumMap<Relationships, LongPairSet> created = new EnumMap<>( Relationships.class );
+    private final EnumMap<Relationships, Cache<Long, LongSet>> neighbours = new EnumMap<>( Relationships.class );
+
+    public RelationshipLookup() {
+        this( DEFAULT_DENSE_DEGREE, DEFAULT_MAX_CACHED_NEIGHBOURS );
+    }
+
+    public RelationshipLookup( int denseDegree, long maxCachedNeighbours ) {
+        this.denseDegree = denseDegree;
+        for ( Relationships type : Relationships.values() ) {
+            created.put( type, new LongPairSet() );
+            neighbours.put( type, CacheBuilder.newBuilder()
+                    .concurrencyLevel( 1 )
+                    .maximumWeight( maxCachedNeighbours )
+                    .weigher( new Weigher<Long, LongSet>() {
+                        @Override
+                        public int weigh( Long nodeId, LongSet set ) {
+                            return set.size() + 1;
+                        }
+                    } )
+                    .<Long, LongSet>build() );
+        }
+    }
+
+    public boolean exists( Node start, Node end, Relationships type ) {
+        long startId = start.getId();
+        long endId = end.getId();
+        if ( created.get( type ).contains( startId, endId ) ) {
+            return true;
+        }
+        LongSet cached = neighbours.get( type ).getIfPresent( startId );
+        if ( cached != null ) {
+            return cached.contains( endId );
+        }
+
+        Iterator<Relationship> outgoing = start.getRelationships( Direction.OUTGOING, type ).iterator();
+        Iterator<Relationship> incoming = end.getRelationships( Direction.INCOMING, type ).iterator();
+        int steps = 0;
+        boolean found = false;
+        while ( outgoing.hasNext() && incoming.hasNext() ) {
+            if ( outgoing.next().getEndNode().getId() == endId || incoming.next().getStartNode().getId() == startId ) {
+                found = true;
+                break;
+            }
+            steps++;
+        }
+        if ( steps >= denseDegree ) {
+            cacheNeighbours( start, type );
+        }
+        // whichever side ran out has been checked in full
+        return found;
+    }
+
+    public Relationship create( Node start, Node end, Relationships type ) {
+        Relationship relationship = start.createRelationshipTo( end, type );
+        created.get( type ).add( start.getId(), end.getId() );
+        LongSet cached = neighbours.get( type ).getIfPresent( start.getId() );
+        if ( cached != null ) {
+            cached.add( end.getId() );
+        }
+        return relationship;
+    }
+
+    private void cacheNeighbours( Node start, Relationships type ) {
+        LongSet set = new LongSet( denseDegree * 2 );
+        for ( Relationship relationship : start.getRelationships( Direction.OUTGOING, type ) ) {
+            set.add( relationship.getEndNode().getId() );
+        }
+        if ( set.size() >= denseDegree ) {
+            neighbours.get( type ).put( start.getId(), set );
+        }
+    }
+
+    // Forgets the pairs created in the previous batch.
+    public void startBatch() {
+        for ( LongPairSet pairs : created.values() ) {
+            pairs.clear();
+        }
+    }
+
+    // After a rollback neither the batch's pairs nor the cached neighbour sets can be trusted.
+    public void invalidate() {
+        startBatch();
+        for ( Cache<Long, LongSet> cache : neighbours.values() ) {
+            cache.invalidateAll();
+        }
+    }
+
+    public long cachedNodes() {
+        long nodes = 0;
+        for ( Cache<Long, LongSet> cache : neighbours.values() ) {
+            nodes += cache.size();
+        }
+        return nodes;
+    }
+
+    private static long mix( long value ) {
+        value *= 0x9E3779B97F4A7C15L;
+        return value ^ ( value >>> 32 );
+    }
+
+    /*
+        Open addressing sets of node ids. Node ids are never negative, so -1 marks
+        an empty slot. Not thread safe, they belong to the writer thread.
+     */
+    static final class LongSet {
+        private long[] keys;
+        private int size;
+
+        LongSet( int expected ) {
+            keys = new long[ Integer.highestOneBit( Math.max( expected, 8 ) * 2 - 1 ) << 1 ];
+            Arrays.fill( keys, -1L );
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean contains( long key ) {
+            int mask = keys.length - 1;
+            for ( int i = (int) mix( key ) & mask; keys[ i ] != -1L; i = ( i + 1 ) & mask ) {
+                if ( keys[ i ] == key ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add( long key ) {
+            if ( ( size + 1 ) * 2 > keys.length ) {
+                long[] old = keys;
+                keys = new long[ old.length * 2 ];
+                Arrays.fill( keys, -1L );
+                size = 0;
+                for ( long k : old ) {
+                    if ( k != -1L ) {
+                        add( k );
+                    }
+                }
+            }
+            int mask = keys.length - 1;
+            int i = (int) mix( key ) & mask;
+            while ( keys[ i ] != -1L ) {
+                if ( keys[ i ] == key ) {
+                    return;
+                }
+                i = ( i + 1 ) & mask;
+            }
+            keys[ i ] = key;
+            size++;
+        }
+    }
+
+    // Pairs of non-negative longs, also what the WriteCoalescer keys edges on.
+    public static final class LongPairSet {
+        private long[] firsts = new long[ 16 ];
+        private long[] seconds = new long[ 16 ];
+        private int size;
+
+        public LongPairSet() {
+            Arrays.fill( firsts, -1L );
+        }
+
+        private static int slot( long first, long second, int mask ) {
+            return (int) mix( mix( first ) + second ) & mask;
+        }
+
+        public boolean contains( long first, long second ) {
+            int mask = firsts.length - 1;
+            for ( int i = slot( first, second, mask ); firsts[ i ] != -1L; i = ( i + 1 ) & mask ) {
+                if ( firsts[ i ] == first && seconds[ i ] == second ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // False if the pair was there already.
+        public boolean add( long first, long second ) {
+            if ( ( size + 1 ) * 2 > firsts.length ) {
+                long[] oldFirsts = firsts;
+                long[] oldSeconds = seconds;
+                firsts = new long[ oldFirsts.length * 2 ];
+                seconds = new long[ oldSeconds.length * 2 ];
+                Arrays.fill( firsts, -1L );
+                size = 0;
+                for ( int i = 0; i < oldFirsts.length; i++ ) {
+                    if ( oldFirsts[ i ] != -1L ) {
+                        add( oldFirsts[ i ], oldSeconds[ i ] );
+                    }
+                }
+            }
+            int mask = firsts.length - 1;
+            int i = slot( first, second, mask );
+            while ( firsts[ i ] != -1L ) {
+                if ( firsts[ i ] == first && seconds[ i ] == second ) {
+                    return false;
+                }
+                i = ( i + 1 ) & mask;
+            }
+            firsts[ i ] = first;
+            seconds[ i ] = second;
+            size++;
+            return true;
+        }
+
+        public void clear() {
+            if ( size > 0 ) {
+                Arrays.fill( firsts, -1L );
+                size = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package pe.archety;
+
+import org.apache.log4j.Logger;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.index.UniqueFactory;
+import org.neo4j.kernel.DeadlockDetectedException;
+import pe.archety.writes.*;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Applies the share of a batch routed to it by the BatchWriterService, in
+    transactions of its own.
+
+    Every write belongs to the lane of its identityHash, so all likes, hates and
+    knows leaving an identity are created by one lane and its RelationshipLookup
+    stays correct without sharing. Pages and the second identity of a knows are
+    shared between lanes though: with more than one lane the nodes a transaction
+    is about to touch are write locked up front in node id order, so two lanes
+    can wait on each other but never in a cycle. What is left (two lanes creating
+    the same unique node) shows up as a deadlock and is retried.
+ */
+final class WriterLane {
+    private final static Logger logger = Logger.getLogger( WriterLane.class );
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    private static final int MAX_DEADLOCK_RETRIES = 3;
+
+    private final BatchWriterService service;
+    private final boolean orderedLocks;
+    private final CommitSizer commitSizer;
+    private final RelationshipLookup relationshipLookup = new RelationshipLookup();
+    private final HashMap<String, Node> batchIdentities = new HashMap<>();
+    private final HashMap<String, Node> batchPages = new HashMap<>();
+    private final NodeCounters counters = new NodeCounters();
+    private boolean counting;
+    // writes at the front of the lane's share that went through service.committed()
+    private int finished;
+    private long[] lockIds = new long[ 1024 ];
+
+    // the database the batch in flight is applied to, even if the service's changes meanwhile
+    private GraphDatabaseService db;
+
+    // Long-lived, rebuilt only when the lane is pointed at another database
+    private GraphDatabaseService factoryDb;
+    private UniqueFactory.UniqueNodeFactory identityFactory;
+    private UniqueFactory.UniqueNodeFactory pageFactory;
+
+    WriterLane( BatchWriterService service, int index, boolean orderedLocks ) {
+        this.service = service;
+        this.orderedLocks = orderedLocks;
+        this.commitSizer = new CommitSizer( "writer lane " + index );
+    }
+
+    CommitSizer commitSizer() {
+        return commitSizer;
+    }
+
+    /*
+        Applies and commits the lane's writes, chunk by chunk. A chunk ends once the
+        transaction state its writes may add fills what the CommitSizer allows,
+        and every commit tells the sizer how long that took.
+     */
+    void apply( GraphDatabaseService db, List<Write> writes ) {
+        this.db = db;
+        relationshipLookup.startBatch();
+        finished = 0;
+
+        int from = 0;
+        long bytes = 0;
+        for ( int i = 0; i < writes.size(); i++ ) {
+            Write write = writes.get( i );
+            if ( !write.isSkipped() ) {
+                bytes += write.transactionBytes();
+            }
+            boolean full = commitSizer.isFull( bytes );
+            if ( full || i == writes.size() - 1 ) {
+                long transactionTime = System.nanoTime();
+                commitRange( writes, from, i + 1, 0 );
+                long nanos = System.nanoTime() - transactionTime;
+                commitSizer.onCommit( i + 1 - from, bytes, nanos );
+                service.getMetrics().commitNanos.record( nanos );
+                if ( full && logger.isDebugEnabled() ) {
+                    logger.debug( String.format( "Performed a transaction of %d writes in  %d [msec]", i + 1 - from, nanos / 1000000 ) );
+                }
+                from = i + 1;
+                bytes = 0;
+            }
+        }
+    }
+
+    /*
+        Applies writes[from, to) in one transaction. If the commit fails:
+        - writes that threw while being applied are dead-lettered and the rest retried,
+        - otherwise a deadlock is retried as is, a few times,
+        - otherwise the range is split in half and each half retried,
+        until the write that breaks the commit is alone and can be dead-lettered.
+        A poisoned batch with a write that threw costs one extra commit, one that
+        fails silently log2(size) levels of smaller commits.
+        A database that is shut down or cannot begin a transaction is no fault of
+        the writes: DatabaseUnavailableException leaves the range uncommitted.
+     */
+    private void commitRange( List<Write> writes, int from, int to, int attempt ) {
+        List<Write> range = writes.subList( from, to );
+        ArrayList<Write> failed = null;
+        ArrayList<Exception> errors = null;
+        batchIdentities.clear();
+        batchPages.clear();
+        counters.clear();
+        counting = service.isCounting();
+
+        try {
+            try ( Transaction tx = beginTx() ) {
+                resolveNodes( range );
+                if ( orderedLocks ) {
+                    lockNodes( tx, range );
+                }
+                for ( Write write : range ) {
+                    if ( write.isSkipped() ) {
+                        continue;
+                    }
+                    Exception error = applyWrite( write );
+                    if ( error != null ) {
+                        if ( failed == null ) {
+                            failed = new ArrayList<>();
+                            errors = new ArrayList<>();
+                        }
+                        failed.add( write );
+                        errors.add( error );
+                    }
+                }
+                counters.apply();
+                tx.success();
+            }
+        } catch ( RuntimeException exception ) {
+            // whatever the lookup learned in this transaction is gone with it
+            relationshipLookup.invalidate();
+            if ( isDatabaseUnavailable( exception ) ) {
+                throw exception instanceof DatabaseUnavailableException
+                        ? exception : new DatabaseUnavailableException( exception );
+            }
+
+            if ( failed != null ) {
+                for ( int i = 0; i < failed.size(); i++ ) {
+                    service.deadLetter( failed.get( i ), errors.get( i ) );
+                }
+                commitRange( writes, from, to, attempt );
+            } else if ( attempt < MAX_DEADLOCK_RETRIES && isDeadlock( exception ) ) {
+                service.deadlockRetried();
+                commitRange( writes, from, to, attempt + 1 );
+            } else if ( to - from > 1 ) {
+                int middle = ( from + to ) >>> 1;
+                commitRange( writes, from, middle, 0 );
+                commitRange( writes, middle, to, 0 );
+            } else {
+                service.deadLetter( range.get( 0 ), exception );
+                service.committed( range );
+                finished = to;
+            }
+            return;
+        }
+
+        // only committed nodes go into the id caches, a rolled back id may be handed out again
+        for ( Map.Entry<String, Node> entry : batchIdentities.entrySet() ) {
+            ArchetypeServer.identityCache.put( entry.getKey(), entry.getValue().getId() );
+        }
+        for ( Map.Entry<String, Node> entry : batchPages.entrySet() ) {
+            ArchetypeServer.urlCache.put( entry.getKey(), entry.getValue().getId() );
+        }
+        if ( failed != null ) {
+            for ( int i = 0; i < failed.size(); i++ ) {
+                service.deadLetter( failed.get( i ), errors.get( i ) );
+            }
+        }
+        service.committed( range );
+        finished = to;
+    }
+
+    /*
+        After apply() threw: the writes it never got to complete, in order. Ranges
+        are completed front to back, so that is everything past the last one.
+        Whatever the lookup learned in the transaction that threw is forgotten.
+     */
+    List<Write> unfinished( List<Write> writes ) {
+        relationshipLookup.invalidate();
+        return writes.subList( Math.min( finished, writes.size() ), writes.size() );
+    }
+
+    private Transaction beginTx() {
+        try {
+            return db.beginTx();
+        } catch ( DatabaseShutdownException | TransactionFailureException e ) {
+            throw new DatabaseUnavailableException( e );
+        }
+    }
+
+    static boolean isDatabaseUnavailable( Throwable exception ) {
+        for ( Throwable cause = exception; cause != null; cause = cause.getCause() ) {
+            if ( cause instanceof DatabaseUnavailableException || cause instanceof DatabaseShutdownException ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The writer stops on it, leaving what it has not committed in the journal.
+    static final class DatabaseUnavailableException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        DatabaseUnavailableException( Throwable cause ) {
+            super( "The database is not available", cause );
+        }
+    }
+
+    static boolean isDeadlock( Throwable exception ) {
+        for ( Throwable cause = exception; cause != null; cause = cause.getCause() ) {
+            if ( cause instanceof DeadlockDetectedException ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A deadlock is the transaction's problem, not the write's: it has to reach commitRange.
+    private static void rethrowDeadlock( Exception exception ) {
+        if ( isDeadlock( exception ) ) {
+            throw exception instanceof RuntimeException
+                    ? (RuntimeException) exception
+                    : new TransactionFailureException( "Deadlock", exception );
+        }
+    }
+
+    /*
+        Takes the write locks the range's relationships would take anyway, but all
+        at once and in ascending node id order. Nodes this transaction created are
+        invisible to the other lanes and skipped.
+     */
+    private void lockNodes( Transaction tx, List<Write> range ) {
+        int count = 0;
+        for ( Write write : range ) {
+            if ( write.isSkipped() ) {
+                continue;
+            }
+            if ( count + 2 > lockIds.length ) {
+                lockIds = Arrays.copyOf( lockIds, lockIds.length * 2 );
+            }
+            switch ( write.action ) {
+                case CREATE_IDENTITY:
+                case CREATE_PAGE:
+                    break;
+
+                case CREATE_IDENTITY_WITH_TOKEN:
+                case CREATE_TOKEN:
+                    count = addLockId( count, ( (TokenWrite) write ).identityNodeId );
+                    break;
+
+                case CREATE_BOTH_AND_KNOWS_RELATIONSHIP:
+                case CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP:
+                case CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP:
+                case CREATE_KNOWS_RELATIONSHIP: {
+                    KnowsWrite knowsWrite = (KnowsWrite) write;
+                    count = addLockId( count, lockId( knowsWrite.identityNodeId, batchIdentities.get( knowsWrite.identityHash ) ) );
+                    count = addLockId( count, lockId( knowsWrite.identityNodeId2, batchIdentities.get( knowsWrite.identityHash2 ) ) );
+                    break;
+                }
+
+                default: {
+                    LikesOrHatesWrite likesOrHatesWrite = (LikesOrHatesWrite) write;
+                    count = addLockId( count, lockId( likesOrHatesWrite.identityNodeId, batchIdentities.get( likesOrHatesWrite.identityHash ) ) );
+                    count = addLockId( count, lockId( likesOrHatesWrite.pageNodeId, batchPages.get( likesOrHatesWrite.url ) ) );
+                }
+            }
+        }
+
+        Arrays.sort( lockIds, 0, count );
+        long previous = Write.NO_NODE;
+        for ( int i = 0; i < count; i++ ) {
+            long nodeId = lockIds[ i ];
+            if ( nodeId == previous ) {
+                continue;
+            }
+            previous = nodeId;
+            try {
+                tx.acquireWriteLock( db.getNodeById( nodeId ) );
+            } catch ( NotFoundException e ) {
+                // the write that points at it fails on its own and is dead-lettered
+            }
+        }
+    }
+
+    private static long lockId( long nodeId, Node resolved ) {
+        return nodeId != Write.NO_NODE || resolved == null ? nodeId : resolved.getId();
+    }
+
+    private int addLockId( int count, long nodeId ) {
+        if ( nodeId == Write.NO_NODE ) {
+            return count;
+        }
+        lockIds[ count ] = nodeId;
+        return count + 1;
+    }
+
+    // Returns what went wrong, or null if the write was applied.
+    private Exception applyWrite( Write write ) {
+        try {
+            switch ( write.action ) {
+                case CREATE_IDENTITY: {
+                    createIdentity( ( (IdentityWrite) write ).identityHash );
+                    break;
+                }
+
+                case CREATE_IDENTITY_WITH_TOKEN:
+                case CREATE_TOKEN: {
+                    TokenWrite tokenWrite = (TokenWrite) write;
+                    Node identityNode = identityNode( tokenWrite.identityHash, tokenWrite.identityNodeId );
+                    tokenWrite.token = createToken();
+                    identityNode.setProperty( "generatedToken", tokenWrite.token );
+                    break;
+                }
+
+                case CREATE_PAGE: {
+                    PageWrite pageWrite = (PageWrite) write;
+                    createPage( pageWrite.url, pageWrite.title );
+                    break;
+                }
+
+                case CREATE_IDENTITY_AND_LIKES_RELATIONSHIP:
+                case CREATE_PAGE_AND_LIKES_RELATIONSHIP:
+                case CREATE_BOTH_AND_LIKES_RELATIONSHIP:
+                case CREATE_LIKES_RELATIONSHIP: {
+                    LikesOrHatesWrite likesWrite = (LikesOrHatesWrite) write;
+                    Node identityNode = identityNode( likesWrite.identityHash, likesWrite.identityNodeId );
+                    Node pageNode = pageNode( likesWrite.url, likesWrite.title, likesWrite.pageNodeId );
+                    CreateLikesRelationship( identityNode, pageNode );
+                    break;
+                }
+
+                case CREATE_IDENTITY_AND_HATES_RELATIONSHIP:
+                case CREATE_PAGE_AND_HATES_RELATIONSHIP:
+                case CREATE_BOTH_AND_HATES_RELATIONSHIP:
+                case CREATE_HATES_RELATIONSHIP: {
+                    LikesOrHatesWrite hatesWrite = (LikesOrHatesWrite) write;
+                    Node identityNode = identityNode( hatesWrite.identityHash, hatesWrite.identityNodeId );
+                    Node pageNode = pageNode( hatesWrite.url, hatesWrite.title, hatesWrite.pageNodeId );
+                    CreateHatesRelationship( identityNode, pageNode );
+                    break;
+                }
+
+                case CREATE_BOTH_AND_KNOWS_RELATIONSHIP:
+                case CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP:
+                case CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP:
+                case CREATE_KNOWS_RELATIONSHIP: {
+                    KnowsWrite knowsWrite = (KnowsWrite) write;
+                    Node identityNode = identityNode( knowsWrite.identityHash, knowsWrite.identityNodeId );
+                    Node identityNode2 = identityNode( knowsWrite.identityHash2, knowsWrite.identityNodeId2 );
+                    CreateKnowsRelationship( identityNode, identityNode2, knowsWrite.encryptedIdentity );
+                    break;
+                }
+
+            }
+        } catch ( Exception exception ) {
+            rethrowDeadlock( exception );
+            return exception;
+        }
+        return null;
+    }
+
+    /*
+        Resolves every identityHash/url the batch still has to create, once per key,
+        before any write is applied; the writes then find their nodes in
+        batchIdentities/batchPages. The node id caches are tried first since an
+        earlier batch may have created the node after the handler looked.
+     */
+    private void resolveNodes( List<Write> writes ) {
+        if ( factoryDb != db ) {
+            // the legacy index handles behind the factories can only be had inside a transaction
+            identityFactory = BatchWriterService.uniqueIdentityFactory( db );
+            pageFactory = BatchWriterService.uniquePageFactory( db );
+            factoryDb = db;
+        }
+
+        for ( Write write : writes ) {
+            if ( write.isSkipped() ) {
+                continue;
+            }
+            switch ( write.action ) {
+                case CREATE_IDENTITY: {
+                    resolveIdentity( ( (IdentityWrite) write ).identityHash, Write.NO_NODE );
+                    break;
+                }
+
+                case CREATE_IDENTITY_WITH_TOKEN:
+                case CREATE_TOKEN: {
+                    TokenWrite tokenWrite = (TokenWrite) write;
+                    resolveIdentity( tokenWrite.identityHash, tokenWrite.identityNodeId );
+                    break;
+                }
+
+                case CREATE_PAGE: {
+                    PageWrite pageWrite = (PageWrite) write;
+                    resolvePage( pageWrite.url, pageWrite.title, Write.NO_NODE );
+                    break;
+                }
+
+                case CREATE_BOTH_AND_KNOWS_RELATIONSHIP:
+                case CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP:
+                case CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP:
+                case CREATE_KNOWS_RELATIONSHIP: {
+                    KnowsWrite knowsWrite = (KnowsWrite) write;
+                    resolveIdentity( knowsWrite.identityHash, knowsWrite.identityNodeId );
+                    resolveIdentity( knowsWrite.identityHash2, knowsWrite.identityNodeId2 );
+                    break;
+                }
+
+                default: {
+                    LikesOrHatesWrite likesOrHatesWrite = (LikesOrHatesWrite) write;
+                    resolveIdentity( likesOrHatesWrite.identityHash, likesOrHatesWrite.identityNodeId );
+                    resolvePage( likesOrHatesWrite.url, likesOrHatesWrite.title, likesOrHatesWrite.pageNodeId );
+                }
+            }
+        }
+    }
+
+    private void resolveIdentity( String identityHash, long identityNodeId ) {
+        if ( identityNodeId != Write.NO_NODE || batchIdentities.containsKey( identityHash ) ) {
+            return;
+        }
+        try {
+            Node identityNode = cachedNode( ArchetypeServer.identityCache.getIfPresent( identityHash ) );
+            if ( identityNode != null ) {
+                batchIdentities.put( identityHash, identityNode );
+            } else {
+                createIdentity( identityHash );
+            }
+        } catch ( Exception exception ) {
+            rethrowDeadlock( exception );
+            logger.error( "Error resolving identity: " + identityHash, exception );
+        }
+    }
+
+    private void resolvePage( String url, String title, long pageNodeId ) {
+        if ( pageNodeId != Write.NO_NODE || batchPages.containsKey( url ) ) {
+            return;
+        }
+        try {
+            Node pageNode = cachedNode( ArchetypeServer.urlCache.getIfPresent( url ) );
+            if ( pageNode != null ) {
+                batchPages.put( url, pageNode );
+            } else {
+                createPage( url, title );
+            }
+        } catch ( Exception exception ) {
+            rethrowDeadlock( exception );
+            logger.error( "Error resolving page: " + url, exception );
+        }
+    }
+
+    // A cached id can point at a node whose transaction was rolled back.
+    private Node cachedNode( Long nodeId ) {
+        if ( nodeId == null ) {
+            return null;
+        }
+        try {
+            return db.getNodeById( nodeId );
+        } catch ( NotFoundException e ) {
+            return null;
+        }
+    }
+
+    // Nodes resolved for this batch are reused rather than looked up in the UniqueFactory again.
+    private Node identityNode( String identityHash, long identityNodeId ) {
+        if ( identityNodeId == Write.NO_NODE ) {
+            Node identityNode = batchIdentities.get( identityHash );
+            return identityNode != null ? identityNode : createIdentity( identityHash );
+        }
+        return db.getNodeById( identityNodeId );
+    }
+
+    private Node pageNode( String url, String title, long pageNodeId ) {
+        if ( pageNodeId == Write.NO_NODE ) {
+            Node pageNode = batchPages.get( url );
+            return pageNode != null ? pageNode : createPage( url, title );
+        }
+        return db.getNodeById( pageNodeId );
+    }
+
+    private String createToken() {
+        byte bytes[] = new byte[64];
+        SECURE_RANDOM.nextBytes(bytes);
+        return String.format( "%x", new BigInteger(bytes)).substring( 0, 64 );
+    }
+
+    private void CreateLikesRelationship(Node identityNode, Node pageNode) {
+        if ( !relationshipLookup.exists( identityNode, pageNode, Relationships.LIKES ) ) {
+            relationshipLookup.create( identityNode, pageNode, Relationships.LIKES );
+            count( identityNode, pageNode, Relationships.LIKES );
+        }
+    }
+
+    private void CreateHatesRelationship(Node identityNode, Node pageNode) {
+        if ( !relationshipLookup.exists( identityNode, pageNode, Relationships.HATES ) ) {
+            relationshipLookup.create( identityNode, pageNode, Relationships.HATES );
+            count( identityNode, pageNode, Relationships.HATES );
+        }
+    }
+
+    private void CreateKnowsRelationship(Node identityNode, Node identityNode2, String encryptedIdentity) {
+        if ( !relationshipLookup.exists( identityNode, identityNode2, Relationships.KNOWS ) ) {
+            Relationship rel = relationshipLookup.create( identityNode, identityNode2, Relationships.KNOWS );
+            rel.setProperty("encryptedIdentity", encryptedIdentity);
+            count( identityNode, identityNode2, Relationships.KNOWS );
+        }
+    }
+
+    private void count( Node start, Node end, Relationships type ) {
+        if ( counting ) {
+            counters.created( start, end, type );
+        }
+    }
+
+    private Node createIdentity(String identityHash) {
+        Node identityNode = identityFactory.getOrCreate( "identity", identityHash );
+        batchIdentities.put( identityHash, identityNode );
+        return identityNode;
+    }
+
+    private Node createPage( String url, String title ) {
+        Node pageNode = pageFactory.getOrCreate( "url", url );
+        if ( !pageNode.hasProperty( "title" ) ) {
+            pageNode.setProperty( "title", title );
+        }
+        batchPages.put( url, pageNode );
+        return pageNode;
+    }
+}
@@ -11,6 +11,7 @@ import org.neo4j.graphdb.index.IndexManager;
 import org.neo4j.graphdb.schema.Schema;
 import org.neo4j.helpers.collection.MapUtil;
 import org.neo4j.tooling.GlobalGraphOperations;
+import pe.archety.CommitSizer;
 import pe.archety.Labels;
 
 import java.util.concurrent.TimeUnit;
@@ -59,17 +60,27 @@ public class InitializeHandler implements HttpHandler {
         long startTime = System.nanoTime();
         long transactionTime = System.nanoTime();
         int i = 0;
+        int chunk = 0;
+        long bytes = 0;
+        CommitSizer commitSizer = new CommitSizer( "initialize" );
         Transaction tx = db.beginTx();
         try {
             for (Node page : GlobalGraphOperations.at(db).getAllNodesWithLabel(Labels.Page)) {
-                page.setProperty(TITLE, page.getProperty(TITLE));
+                Object title = page.getProperty(TITLE);
+                page.setProperty(TITLE, title);
+                bytes += CommitSizer.propertyBytes( (String) title );
                 i++;
+                chunk++;
 
-                if(i % 40000 == 0){
+                if(commitSizer.isFull( bytes )){
                     tx.success();
                     tx.close();
+                    long nanos = System.nanoTime() - transactionTime;
+                    commitSizer.onCommit( chunk, bytes, nanos );
                     DateTime currently = new DateTime();
-                    System.out.printf("Performed a transaction of 40000 writes in  %d [msec] @ %s \n", (System.nanoTime() - transactionTime) / 1000000, currently.toDateTimeISO());
+                    System.out.printf("Performed a transaction of %d writes in  %d [msec] @ %s \n", chunk, nanos / 1000000, currently.toDateTimeISO());
+                    chunk = 0;
+                    bytes = 0;
                     transactionTime = System.nanoTime();
                     tx = db.beginTx();
                 }
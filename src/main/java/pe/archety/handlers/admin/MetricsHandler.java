@@ -0,0 +1,200 @@
+package pe.archety.handlers.admin;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import pe.archety.ArchetypeServer;
+import pe.archety.BatchWriterService;
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.CommitSizer;
+import pe.archety.GroupCommitExecutor;
+import pe.archety.mail.TokenMailer;
+import pe.archety.metrics.Histogram;
+import pe.archety.metrics.WriterMetrics;
+import pe.archety.writes.WriteJournal;
+import pe.archety.writes.WritePriority;
+import pe.archety.writes.WriteQueue;
+
+import java.util.List;
+
+/*
+    The write pipeline in the Prometheus text format, for scraping:
+    gauges for what is queued right now, counters since startup and the
+    WriterMetrics histograms as Prometheus histograms (times in seconds).
+
+    The histograms never decay, so they are exported as cumulative _bucket
+    counters at fixed bounds rather than as quantiles since startup; quantiles
+    over a recent window come from histogram_quantile() of their rate().
+ */
+public class MetricsHandler implements HttpHandler {
+    public static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] SECONDS_BOUNDS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30 };
+    private static final double[] SIZE_BOUNDS = { 1, 10, 50, 100, 500, 1000, 5000, 10000, 40000 };
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final BatchWriterService writer;
+    private final GroupCommitExecutor groupCommit;
+
+    public MetricsHandler( BatchWriterService writer ) {
+        this( writer, null );
+    }
+
+    public MetricsHandler( BatchWriterService writer, GroupCommitExecutor groupCommit ) {
+        this.writer = writer;
+        this.groupCommit = groupCommit;
+    }
+
+    @Override
+    public void handleRequest( final HttpServerExchange exchange ) throws Exception {
+        exchange.getResponseHeaders().put( Headers.CONTENT_TYPE, PROMETHEUS_TEXT );
+        exchange.getResponseSender().send( render() );
+    }
+
+    String render() {
+        StringBuilder out = new StringBuilder( 8192 );
+        WriteQueue queue = writer.getQueue();
+        WriterMetrics metrics = writer.getMetrics();
+
+        gauge( out, "archetype_writer_queue_depth", "Writes waiting in the queue.", queue.size() );
+        gauge( out, "archetype_writer_queue_bytes", "Estimated heap held by queued writes.", queue.bytes() );
+        gauge( out, "archetype_writer_queue_capacity", "Most writes the queue takes.", queue.capacity() );
+        gauge( out, "archetype_writer_batch_size", "Batch size the writer is aiming for.", writer.getBatchController().batchSize() );
+        gauge( out, "archetype_writer_lanes", "Concurrent writer transactions.", writer.getLanes() );
+        gauge( out, "archetype_writer_pending_identities", "Identities with queued likes, hates or knows.", writer.getPending().identities() );
+        gauge( out, "archetype_writer_receipt_waiters", "Requests waiting for their write to commit.", writer.getReceipts().waiting() );
+        header( out, "archetype_writer_priority_queue_depth", "Writes waiting in the queue, by priority.", "gauge" );
+        for ( WritePriority priority : WritePriority.values() ) {
+            sample( out, "archetype_writer_priority_queue_depth", "priority", priority.name(), queue.size( priority ) );
+        }
+        header( out, "archetype_writer_priority_oldest_seconds", "How long the oldest queued write has waited, by priority.", "gauge" );
+        for ( WritePriority priority : WritePriority.values() ) {
+            sample( out, "archetype_writer_priority_oldest_seconds", "priority", priority.name(), queue.oldestWaitNanos( priority ) / NANOS_PER_SECOND );
+        }
+        WriteJournal journal = writer.getJournal();
+        if ( journal != null ) {
+            gauge( out, "archetype_writer_journal_pending", "Journaled writes not committed yet.", journal.pendingRecords() );
+        }
+
+        header( out, "archetype_writer_submitted_total", "Writes accepted into the queue, by action.", "counter" );
+        for ( BatchWriterServiceAction action : BatchWriterServiceAction.values() ) {
+            sample( out, "archetype_writer_submitted_total", "action", action.name(), metrics.submitted( action ) );
+        }
+        header( out, "archetype_writer_committed_total", "Writes applied and committed, by action (coalesced duplicates not included).", "counter" );
+        for ( BatchWriterServiceAction action : BatchWriterServiceAction.values() ) {
+            sample( out, "archetype_writer_committed_total", "action", action.name(), metrics.committed( action ) );
+        }
+        counter( out, "archetype_writer_coalesced_total", "Operations saved by coalescing batches.", writer.getCoalescedOperations() );
+        counter( out, "archetype_writer_rejected_total", "Writes turned away by the full queue.", queue.rejected() );
+        counter( out, "archetype_writer_dead_letters_total", "Writes given up on.", writer.getDeadLetters() );
+        counter( out, "archetype_writer_deadlock_retries_total", "Transactions retried after a deadlock between lanes.", writer.getDeadlockRetries() );
+        counter( out, "archetype_writer_late_low_drains_total", "Drains that gave LOW writes half the room after they waited too long.", queue.lateLowDrains() );
+        counter( out, "archetype_writer_resolver_lookups_total", "Index seeks by the writer's resolution stage.", writer.getNodeResolver().lookups() );
+        counter( out, "archetype_writer_resolver_found_total", "Index seeks by the resolution stage that found their node.", writer.getNodeResolver().found() );
+        counter( out, "archetype_writer_lane_failures_total", "Lanes that failed a batch outright.", metrics.laneFailures() );
+        counter( out, "archetype_writer_batch_failures_total", "Batches that failed before reaching the lanes.", metrics.batchFailures() );
+        List<CommitSizer> sizers = writer.getCommitSizers();
+        header( out, "archetype_writer_lane_commits_total", "Transactions committed by each lane, since its lanes were set up.", "counter" );
+        for ( int i = 0; i < sizers.size(); i++ ) {
+            sample( out, "archetype_writer_lane_commits_total", "lane", String.valueOf( i ), sizers.get( i ).commits() );
+        }
+        header( out, "archetype_writer_lane_operations_total", "Writes committed by each lane, since its lanes were set up.", "counter" );
+        for ( int i = 0; i < sizers.size(); i++ ) {
+            sample( out, "archetype_writer_lane_operations_total", "lane", String.valueOf( i ), sizers.get( i ).committedOperations() );
+        }
+        header( out, "archetype_writer_lane_commit_average_seconds", "Smoothed commit time of each lane.", "gauge" );
+        for ( int i = 0; i < sizers.size(); i++ ) {
+            sample( out, "archetype_writer_lane_commit_average_seconds", "lane", String.valueOf( i ), sizers.get( i ).averageCommitMillis() / 1000.0 );
+        }
+        header( out, "archetype_writer_lane_chunk_bytes", "Transaction state each lane lets a chunk hold.", "gauge" );
+        for ( int i = 0; i < sizers.size(); i++ ) {
+            sample( out, "archetype_writer_lane_chunk_bytes", "lane", String.valueOf( i ), sizers.get( i ).chunkBytes() );
+        }
+
+        histogram( out, "archetype_writer_drain_size", "Writes per batch taken off the queue.", metrics.drainSize, 1, SIZE_BOUNDS );
+        histogram( out, "archetype_writer_batch_seconds", "Time to apply and commit a batch.", metrics.batchNanos, NANOS_PER_SECOND, SECONDS_BOUNDS );
+        histogram( out, "archetype_writer_commit_seconds", "Time of one lane transaction, retries included.", metrics.commitNanos, NANOS_PER_SECOND, SECONDS_BOUNDS );
+        histogram( out, "archetype_writer_lag_seconds", "Time from a write being accepted until it is committed.", metrics.lagNanos, NANOS_PER_SECOND, SECONDS_BOUNDS );
+        header( out, "archetype_writer_priority_lag_seconds", "Time from a write being accepted until it is committed, by priority.", "histogram" );
+        for ( WritePriority priority : WritePriority.values() ) {
+            buckets( out, "archetype_writer_priority_lag_seconds", "priority=\"" + priority.name() + "\",",
+                    metrics.lagNanos( priority ), NANOS_PER_SECOND, SECONDS_BOUNDS );
+        }
+
+        if ( groupCommit != null ) {
+            gauge( out, "archetype_group_commit_queued", "Request path writes waiting for their group.", groupCommit.queued() );
+            counter( out, "archetype_group_commit_commits_total", "Transactions committed by the group commit.", groupCommit.commits() );
+            counter( out, "archetype_group_commit_applied_total", "Request path writes committed.", groupCommit.applied() );
+            counter( out, "archetype_group_commit_fallbacks_total", "Groups retried one write per transaction after a failure.", groupCommit.fallbacks() );
+        }
+
+        header( out, "archetype_node_id_cache_entries", "Node ids cached, by cache.", "gauge" );
+        sample( out, "archetype_node_id_cache_entries", "cache", "identity", ArchetypeServer.identityCache.size() );
+        sample( out, "archetype_node_id_cache_entries", "cache", "url", ArchetypeServer.urlCache.size() );
+        header( out, "archetype_node_id_cache_bytes", "Direct memory held by the node id caches, by cache.", "gauge" );
+        sample( out, "archetype_node_id_cache_bytes", "cache", "identity", ArchetypeServer.identityCache.offHeapBytes() );
+        sample( out, "archetype_node_id_cache_bytes", "cache", "url", ArchetypeServer.urlCache.offHeapBytes() );
+
+        TokenMailer mailer = writer.getTokenMailer();
+        if ( mailer != null ) {
+            gauge( out, "archetype_mail_queue_depth", "Token mails waiting to be sent.", mailer.queued() );
+            counter( out, "archetype_mail_sent_total", "Token mails sent.", mailer.getSent() );
+            counter( out, "archetype_mail_retried_total", "Token mails tried again.", mailer.getRetried() );
+            counter( out, "archetype_mail_failed_total", "Token mails given up on.", mailer.getFailed() );
+            counter( out, "archetype_mail_dropped_total", "Token mails dropped by the full queue.", mailer.getDropped() );
+        }
+        return out.toString();
+    }
+
+    private static void header( StringBuilder out, String name, String help, String type ) {
+        out.append( "# HELP " ).append( name ).append( ' ' ).append( help ).append( '\n' );
+        out.append( "# TYPE " ).append( name ).append( ' ' ).append( type ).append( '\n' );
+    }
+
+    private static void sample( StringBuilder out, String name, String label, String value, double sample ) {
+        out.append( name );
+        if ( label != null ) {
+            out.append( '{' ).append( label ).append( "=\"" ).append( value ).append( "\"}" );
+        }
+        out.append( ' ' ).append( format( sample ) ).append( '\n' );
+    }
+
+    private static void gauge( StringBuilder out, String name, String help, double value ) {
+        header( out, name, help, "gauge" );
+        sample( out, name, null, null, value );
+    }
+
+    private static void counter( StringBuilder out, String name, String help, double value ) {
+        header( out, name, help, "counter" );
+        sample( out, name, null, null, value );
+    }
+
+    private static void histogram( StringBuilder out, String name, String help, Histogram histogram, double scale, double[] bounds ) {
+        header( out, name, help, "histogram" );
+        buckets( out, name, "", histogram, scale, bounds );
+        gauge( out, name + "_max", "Largest since startup: " + help.substring( 0, 1 ).toLowerCase() + help.substring( 1 ), histogram.max() / scale );
+    }
+
+    // The _bucket, _sum and _count lines of one histogram, labels (if any) ending in a comma.
+    private static void buckets( StringBuilder out, String name, String labels, Histogram histogram, double scale, double[] bounds ) {
+        long cumulative = 0;
+        for ( double bound : bounds ) {
+            cumulative = histogram.countAtOrBelow( (long) ( bound * scale ) );
+            out.append( name ).append( "_bucket{" ).append( labels ).append( "le=\"" ).append( format( bound ) ).append( "\"} " )
+                    .append( cumulative ).append( '\n' );
+        }
+        // read last, and never below the buckets a concurrent record() already reached
+        long count = Math.max( cumulative, histogram.count() );
+        out.append( name ).append( "_bucket{" ).append( labels ).append( "le=\"+Inf\"} " ).append( count ).append( '\n' );
+        String braces = labels.isEmpty() ? "" : "{" + labels.substring( 0, labels.length() - 1 ) + "}";
+        out.append( name ).append( "_sum" ).append( braces ).append( ' ' ).append( format( histogram.sum() / scale ) ).append( '\n' );
+        out.append( name ).append( "_count" ).append( braces ).append( ' ' ).append( count ).append( '\n' );
+    }
+
+    // Whole numbers without the ".0", the rest as Java prints doubles
+    private static String format( double value ) {
+        if ( value == Math.rint( value ) && Math.abs( value ) < 1e15 ) {
+            return Long.toString( (long) value );
+        }
+        return Double.toString( value );
+    }
+}
@@ -0,0 +1,45 @@
+package pe.archety.handlers.admin;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import org.neo4j.graphdb.GraphDatabaseService;
+import pe.archety.CounterRepair;
+
+import static pe.archety.ArchetypeServer.TEXT_PLAIN;
+
+/*
+    Recomputes the NodeCounters of every identity and page, see CounterRepair.
+    Run it once on a store written before the counters, it is safe to run
+    while the writer is busy.
+ */
+public class RepairCountersHandler implements HttpHandler {
+
+    GraphDatabaseService graphDatabaseService;
+
+    public RepairCountersHandler( GraphDatabaseService graphDb ) {
+        this.graphDatabaseService = graphDb;
+    }
+
+    @Override
+    public void handleRequest( final HttpServerExchange exchange ) throws Exception {
+        if ( exchange.isInIoThread() ) {
+            exchange.dispatch( this );
+            return;
+        }
+
+        CounterRepair repair = new CounterRepair( graphDatabaseService, CounterRepair.DEFAULT_THREADS );
+        repair.repair();
+
+        exchange.getResponseHeaders().put( Headers.CONTENT_TYPE, TEXT_PLAIN );
+        if ( repair.failed() > 0 ) {
+            // the log has why, running it again picks up what is left
+            exchange.setResponseCode( 500 );
+            exchange.getResponseSender().send( "Checked the counters of " + repair.checked() + " nodes, corrected "
+                    + repair.corrected() + ", could not check " + repair.failed() + ". See the log and run it again." );
+            return;
+        }
+        exchange.getResponseSender().send( "Checked the counters of " + repair.checked() + " nodes, corrected "
+                + repair.corrected() + "." );
+    }
+}
@@ -29,24 +29,33 @@ public class WikipediaHandler implements HttpHandler {
         long startTime = System.nanoTime();
         long transactionTime = System.nanoTime();
         int i = 0;
+        int chunk = 0;
+        long bytes = 0;
+        CommitSizer commitSizer = new CommitSizer( "wikipedia" );
         Transaction tx = db.beginTx();
         try {
             for ( Node page : GlobalGraphOperations.at(db).getAllNodesWithLabel( Labels.Page )) {
                     if (!( page.hasProperty( URL ) ) ) {
                         i++;
+                        chunk++;
                         String url = (String)page.getProperty( TITLE );
                         url = url.replace(" ", "_");
                         url = URLEncoder.encode(url, "UTF-8");
                         page.setProperty( URL, URLPREFIX + url );
+                        bytes += CommitSizer.propertyBytes( URLPREFIX + url );
                     } else {
                         continue;
                     }
 
-                if(i % 40000 == 0){
+                if(commitSizer.isFull( bytes )){
                     tx.success();
                     tx.close();
+                    long nanos = System.nanoTime() - transactionTime;
+                    commitSizer.onCommit( chunk, bytes, nanos );
                     DateTime currently = new DateTime();
-                    System.out.printf("Performed a transaction of 40000 writes in  %d [msec] @ %s \n", (System.nanoTime() - transactionTime) / 1000000, currently.toDateTimeISO());
+                    System.out.printf("Performed a transaction of %d writes in  %d [msec] @ %s \n", chunk, nanos / 1000000, currently.toDateTimeISO());
+                    chunk = 0;
+                    bytes = 0;
                     transactionTime = System.nanoTime();
                     tx = db.beginTx();
                 }
@@ -0,0 +1,39 @@
+package pe.archety.handlers.api;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import pe.archety.ArchetypeServer;
+
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
+
+/*
+    Sits in front of the public routes and turns writes away with a 503 while
+    the BatchWriterService queue is full, before any parsing or hashing is done.
+    Reads always go through.
+ */
+public class BackpressureHandler implements HttpHandler {
+    private final HttpHandler next;
+
+    public BackpressureHandler( HttpHandler next ) {
+        this.next = next;
+    }
+
+    @Override
+    public void handleRequest( final HttpServerExchange exchange ) throws Exception {
+        if ( !Methods.GET.equals( exchange.getRequestMethod() ) && BATCH_WRITER_SERVICE.isSaturated() ) {
+            sendUnavailable( exchange );
+            return;
+        }
+        next.handleRequest( exchange );
+    }
+
+    public static void sendUnavailable( final HttpServerExchange exchange ) {
+        String error = "Too many pending writes, try again later.";
+        exchange.getResponseHeaders().put( Headers.CONTENT_TYPE, ArchetypeServer.JSON_UTF8 );
+        exchange.getResponseHeaders().put( Headers.RETRY_AFTER, BATCH_WRITER_SERVICE.retryAfterSeconds() );
+        exchange.setResponseCode( 503 );
+        exchange.getResponseSender().send( "{\"error\":\"" + error + "\"}" );
+    }
+}
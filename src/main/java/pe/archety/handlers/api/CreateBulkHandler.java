@@ -0,0 +1,389 @@
+package pe.archety.handlers.api;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.base.Charsets;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpHead;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import pe.archety.ArchetypeConstants;
+import pe.archety.ArchetypeServer;
+import pe.archety.Labels;
+import pe.archety.Relationships;
+import pe.archety.writes.KnowsWrite;
+import pe.archety.writes.LikesOrHatesWrite;
+import pe.archety.writes.Write;
+import pe.archety.writes.WriteReceipts;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
+import static pe.archety.ArchetypeConstants.EMAIL_VALIDATOR;
+import static pe.archety.ArchetypeConstants.HTTP_CLIENT;
+import static pe.archety.ArchetypeConstants.URLPREFIX;
+
+/*
+    Bulk likes, hates and knows, one JSON object per line, mixed freely:
+
+        {"identity":"maxdemarzi@gmail.com","relationship_type":"likes","url":"http://en.wikipedia.org/wiki/Neo4j"}
+        {"identity":"maxdemarzi@gmail.com","relationship_type":"hates","title":"Oracle Database"}
+        {"identity":"maxdemarzi@gmail.com","relationship_type":"knows","phone":"3125137509","region":"US"}
+
+    The body is read line by line as it arrives. Lines are validated and hashed
+    one at a time (each identity once, up to MAX_REMEMBERED of them), then looked
+    up in blocks of BLOCK_SIZE: one transaction finds all identities and pages
+    missing from the caches, and a page not in the graph is checked against
+    Wikipedia once (again, up to MAX_REMEMBERED pages). The writes go straight to
+    the BatchWriterService; when its queue has no room for them reading pauses,
+    which pushes back on the client, for up to SUBMIT_WAIT_MILLIS.
+
+    Answers 200 with a summary, or 503 with the summary so far if the writer
+    stayed full; "errors" lists the first MAX_REPORTED_ERRORS bad lines:
+
+        {"lines":3,"accepted":2,"failed":1,"last_receipt":1234,"errors":[{"line":2,"error":"..."}]}
+ */
+public class CreateBulkHandler implements HttpHandler {
+    public static final int BLOCK_SIZE = 1000;
+    public static final int MAX_REPORTED_ERRORS = 100;
+    // identity hashes and checked pages kept per request, forgotten all at once past that
+    static final int MAX_REMEMBERED = 10 * BLOCK_SIZE;
+    private static final long SUBMIT_WAIT_MILLIS = 30000;
+
+    private static GraphDatabaseService graphDB;
+    private static ObjectMapper objectMapper;
+    private static ObjectReader recordReader;
+
+    // What a line may hold, unknown fields are ignored
+    static final class Record {
+        public String identity;
+        public String relationship_type;
+        public String url;
+        public String title;
+        public String email;
+        public String phone;
+        public String region;
+    }
+
+    // A validated line waiting for its block to be resolved
+    private static final class Line {
+        int number;
+        Relationships type;
+        String identity;
+        String identityHash;
+        String url;
+        String title;
+        String identity2;
+        String identityHash2;
+    }
+
+    // Everything one request has seen so far
+    private static final class Bulk {
+        int lines;
+        int accepted;
+        int failed;
+        long lastReceipt = WriteReceipts.NO_RECEIPT;
+        boolean rejected;
+        final ArrayList<HashMap<String, Object>> errors = new ArrayList<>();
+        final HashMap<String, String> hashes = new HashMap<>();
+        final HashMap<String, String> pageErrors = new HashMap<>();
+        final ArrayList<Line> block = new ArrayList<>( BLOCK_SIZE );
+
+        void error( int line, String error ) {
+            failed++;
+            if ( errors.size() < MAX_REPORTED_ERRORS ) {
+                HashMap<String, Object> entry = new LinkedHashMap<>();
+                entry.put( "line", line );
+                entry.put( "error", error );
+                errors.add( entry );
+            }
+        }
+    }
+
+    public CreateBulkHandler( GraphDatabaseService graphDB, ObjectMapper objectMapper ) {
+        this.graphDB = graphDB;
+        this.objectMapper = objectMapper;
+        this.recordReader = objectMapper.reader( Record.class ).without( DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES );
+    }
+
+    @Override
+    public void handleRequest( final HttpServerExchange exchange ) throws Exception {
+        // reading and resolving takes a while, not on the IO thread
+        if ( exchange.isInIoThread() ) {
+            exchange.dispatch( this );
+            return;
+        }
+        exchange.getResponseHeaders().put( Headers.CONTENT_TYPE, ArchetypeServer.JSON_UTF8 );
+
+        Bulk bulk = new Bulk();
+        exchange.startBlocking();
+        BufferedReader reader = new BufferedReader( new InputStreamReader( exchange.getInputStream(), Charsets.UTF_8 ) );
+        String text;
+        while ( !bulk.rejected && ( text = reader.readLine() ) != null ) {
+            bulk.lines++;
+            if ( text.trim().isEmpty() ) {
+                continue;
+            }
+            Line line = parse( bulk, bulk.lines, text );
+            if ( line != null ) {
+                bulk.block.add( line );
+                if ( bulk.block.size() == BLOCK_SIZE ) {
+                    flush( bulk );
+                }
+            }
+        }
+        if ( !bulk.rejected ) {
+            flush( bulk );
+        }
+
+        HashMap<String, Object> response = new LinkedHashMap<>();
+        response.put( "lines", bulk.lines );
+        response.put( "accepted", bulk.accepted );
+        response.put( "failed", bulk.failed );
+        response.put( "last_receipt", bulk.lastReceipt );
+        response.put( "errors", bulk.errors );
+
+        if ( bulk.rejected ) {
+            exchange.getResponseHeaders().put( Headers.RETRY_AFTER, BATCH_WRITER_SERVICE.retryAfterSeconds() );
+            exchange.setResponseCode( 503 );
+        } else {
+            exchange.setResponseCode( 200 );
+        }
+        exchange.getResponseSender().send( ByteBuffer.wrap(
+                objectMapper.writeValueAsBytes(
+                        response)));
+    }
+
+    // Validates a line, returns null (and records why) if it is no good.
+    private static Line parse( Bulk bulk, int number, String text ) {
+        Record record;
+        try {
+            record = recordReader.readValue( text );
+        } catch ( IOException e ) {
+            bulk.error( number, "Error parsing JSON." );
+            return null;
+        }
+
+        Line line = new Line();
+        line.number = number;
+        if ( record.relationship_type == null ) {
+            bulk.error( number, "Parameter relationship_type required." );
+            return null;
+        }
+        try {
+            line.type = Relationships.valueOf( record.relationship_type.toUpperCase() );
+        } catch ( IllegalArgumentException e ) {
+            bulk.error( number, "Unknown relationship_type " + record.relationship_type + "." );
+            return null;
+        }
+        if ( record.identity == null ) {
+            bulk.error( number, "Parameter identity required." );
+            return null;
+        }
+
+        String error = null;
+        try {
+            line.identity = ArchetypeConstants.normalizeIdentity( record.identity, "US" );
+            line.identityHash = hash( bulk, line.identity );
+
+            switch ( line.type ) {
+                case LIKES:
+                case HATES:
+                    if ( record.url != null ) {
+                        if ( !record.url.startsWith( URLPREFIX ) ) {
+                            error = "URL must start with " + URLPREFIX;
+                            break;
+                        }
+                        line.url = record.url;
+                        line.title = "";
+                    } else if ( record.title != null ) {
+                        line.title = record.title;
+                        line.url = URLPREFIX + URLEncoder.encode( record.title.replace( " ", "_" ), "UTF-8" );
+                    } else {
+                        error = "Parameters url or title required.";
+                    }
+                    break;
+
+                case KNOWS:
+                    if ( record.email != null ) {
+                        if ( !EMAIL_VALIDATOR.isValid( record.email ) ) {
+                            error = "Email not valid.";
+                            break;
+                        }
+                        line.identity2 = record.email;
+                    } else if ( record.phone != null ) {
+                        line.identity2 = ArchetypeConstants.normalizeIdentity( record.phone, record.region == null ? "US" : record.region );
+                    } else {
+                        error = "Parameters email or phone required.";
+                        break;
+                    }
+                    line.identityHash2 = hash( bulk, line.identity2 );
+                    break;
+            }
+        } catch ( IllegalArgumentException e ) {
+            error = e.getMessage();
+        } catch ( IOException e ) {
+            error = "Invalid title.";
+        }
+
+        if ( error != null ) {
+            bulk.error( number, error );
+            return null;
+        }
+        return line;
+    }
+
+    // A sync file repeats its identities, hash each once.
+    private static String hash( Bulk bulk, String identity ) {
+        String identityHash = bulk.hashes.get( identity );
+        if ( identityHash == null ) {
+            identityHash = ArchetypeConstants.calculateHash( identity );
+            bulk.hashes.put( identity, identityHash );
+        }
+        return identityHash;
+    }
+
+    // Resolves the block's identities and pages together, then queues its writes.
+    private static void flush( Bulk bulk ) throws Exception {
+        List<Line> block = bulk.block;
+        if ( block.isEmpty() ) {
+            return;
+        }
+
+        HashMap<String, Long> identities = new HashMap<>();
+        HashMap<String, Long> pages = new HashMap<>();
+        ArrayList<String> unknownPages = new ArrayList<>();
+        try ( Transaction tx = graphDB.beginTx() ) {
+            for ( Line line : block ) {
+                resolveIdentity( identities, line.identityHash );
+                if ( line.identityHash2 != null ) {
+                    resolveIdentity( identities, line.identityHash2 );
+                }
+                if ( line.url != null && !pages.containsKey( line.url ) ) {
+                    Long pageNodeId = ArchetypeServer.urlCache.getIfPresent( line.url );
+                    if ( pageNodeId == null ) {
+                        ResourceIterator<Node> results = graphDB.findNodesByLabelAndProperty( Labels.Page, "url", line.url ).iterator();
+                        if ( results.hasNext() ) {
+                            pageNodeId = results.next().getId();
+                            ArchetypeServer.urlCache.put( line.url, pageNodeId );
+                        } else {
+                            unknownPages.add( line.url );
+                        }
+                        results.close();
+                    }
+                    pages.put( line.url, pageNodeId );
+                }
+            }
+        }
+
+        // pages the graph does not have yet must exist on Wikipedia, checked once per request
+        for ( String url : unknownPages ) {
+            if ( !bulk.pageErrors.containsKey( url ) ) {
+                bulk.pageErrors.put( url, checkPage( url ) );
+            }
+        }
+
+        for ( Line line : block ) {
+            Write write;
+            Long identityNodeId = identities.get( line.identityHash );
+            if ( line.type == Relationships.KNOWS ) {
+                Long identityNodeId2 = identities.get( line.identityHash2 );
+                String encryptedIdentity;
+                try {
+                    encryptedIdentity = ArchetypeConstants.encrypt( line.identity2, line.identity );
+                } catch ( Exception e ) {
+                    bulk.error( line.number, "Error encrypting identity." );
+                    continue;
+                }
+                write = KnowsWrite.acquire(
+                        line.identityHash, identityNodeId == null ? Write.NO_NODE : identityNodeId,
+                        line.identityHash2, identityNodeId2 == null ? Write.NO_NODE : identityNodeId2,
+                        encryptedIdentity );
+            } else {
+                Long pageNodeId = pages.get( line.url );
+                String title = line.title;
+                if ( pageNodeId == null ) {
+                    String error = bulk.pageErrors.get( line.url );
+                    if ( error != null ) {
+                        bulk.error( line.number, error );
+                        continue;
+                    }
+                    if ( title.equals( "" ) ) {
+                        title = URLDecoder.decode( line.url.substring( URLPREFIX.length() ), "UTF-8" ).replace( "_", " " );
+                    }
+                }
+                write = LikesOrHatesWrite.acquire( line.type,
+                        line.identityHash, identityNodeId == null ? Write.NO_NODE : identityNodeId,
+                        line.url, title, pageNodeId == null ? Write.NO_NODE : pageNodeId );
+            }
+
+            long receipt = submit( write );
+            if ( receipt == WriteReceipts.NO_RECEIPT ) {
+                bulk.rejected = true;
+                bulk.error( line.number, "Too many pending writes, try again later." );
+                break;
+            }
+            bulk.accepted++;
+            bulk.lastReceipt = receipt;
+        }
+        block.clear();
+        if ( bulk.hashes.size() > MAX_REMEMBERED ) {
+            bulk.hashes.clear();
+        }
+        if ( bulk.pageErrors.size() > MAX_REMEMBERED ) {
+            bulk.pageErrors.clear();
+        }
+    }
+
+    // Returns why the lines for the page must fail, null if Wikipedia has it.
+    private static String checkPage( String url ) {
+        int code;
+        try {
+            CloseableHttpResponse response = HTTP_CLIENT.execute( new HttpHead( url ) );
+            try {
+                code = response.getStatusLine().getStatusCode();
+            } finally {
+                response.close();
+            }
+        } catch ( IOException e ) {
+            return url + " could not be checked: " + e.getMessage();
+        }
+        return code == 200 ? null : url + " not found. HTTP Code: " + code;
+    }
+
+    private static void resolveIdentity( HashMap<String, Long> identities, String identityHash ) {
+        if ( identities.containsKey( identityHash ) ) {
+            return;
+        }
+        Long identityNodeId = ArchetypeServer.identityCache.getIfPresent( identityHash );
+        if ( identityNodeId == null ) {
+            ResourceIterator<Node> results = graphDB.findNodesByLabelAndProperty( Labels.Identity, "identity", identityHash ).iterator();
+            if ( results.hasNext() ) {
+                identityNodeId = results.next().getId();
+                ArchetypeServer.identityCache.put( identityHash, identityNodeId );
+            }
+            results.close();
+        }
+        identities.put( identityHash, identityNodeId );
+    }
+
+    // Waits for room in the writer's queue rather than failing the rest of the body.
+    private static long submit( Write write ) throws Exception {
+        return BATCH_WRITER_SERVICE.submit( write, SUBMIT_WAIT_MILLIS );
+    }
+}
@@ -14,10 +14,11 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
 import pe.archety.*;
+import pe.archety.writes.IdentityWrite;
+import pe.archety.writes.WriteReceipts;
 
 
 import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.logging.Logger;
@@ -104,35 +105,35 @@ public class CreateIdentityHandler implements HttpHandler {
         }
 
         String identityHash = "";
+        long receipt = WriteReceipts.NO_RECEIPT;
         if( validIdentity ) {
             identityHash = ArchetypeConstants.calculateHash(identity);
             Long identityNodeId = ArchetypeServer.identityCache.getIfPresent( identityHash );
 
-            if( identityNodeId == null ) try (Transaction tx = graphDB.beginTx()) {
+            if( identityNodeId == null && !BATCH_WRITER_SERVICE.isDeferredResolution() ) try (Transaction tx = graphDB.beginTx()) {
 
                 // If the node id is not in the cache, let's try to find the node in the index.
                 ResourceIterator<Node> results = graphDB.findNodesByLabelAndProperty( Labels.Identity, "identity", identityHash ).iterator();
 
                 // If it's in the index, cache it
                 if (results.hasNext()) {
-                    Node identityNode = results.next();
-                    ArchetypeServer.identityCache.put(identityHash, identityNode.getId());
-                } else {
-                    // If it's not in the index go create it asynchronously
-                    HashMap<String, Object> write = new HashMap<>();
-                    HashMap<String, Object> data = new HashMap<>();
-                    data.put( "identityHash", identityHash );
-                    write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_IDENTITY );
-                    write.put( ArchetypeConstants.DATA, data );
-                    BATCH_WRITER_SERVICE.queue.put( write );
+                    identityNodeId = results.next().getId();
+                    ArchetypeServer.identityCache.put(identityHash, identityNodeId);
+                }
+            }
+
+            // If it's not in the index go create it asynchronously, with deferred resolution the writer skips it if it exists
+            if( identityNodeId == null ) {
+                receipt = BATCH_WRITER_SERVICE.submit( IdentityWrite.acquire( identityHash ) );
+                if ( receipt == WriteReceipts.NO_RECEIPT ) {
+                    BackpressureHandler.sendUnavailable( exchange );
+                    return;
                 }
             }
         }
 
-        exchange.setResponseCode( 201 );
-        exchange.getResponseSender().send( ByteBuffer.wrap(
-                objectMapper.writeValueAsBytes(
-                        Collections.singletonMap( "identity", identity ))));
+        WriteAcknowledgement.sendCreated( exchange, receipt, objectMapper.writeValueAsBytes(
+                Collections.singletonMap( "identity", identity ) ) );
     }
 
 }
\ No newline at end of file
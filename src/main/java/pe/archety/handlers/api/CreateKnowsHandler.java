@@ -15,9 +15,11 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
 import pe.archety.*;
+import pe.archety.writes.KnowsWrite;
+import pe.archety.writes.Write;
+import pe.archety.writes.WriteReceipts;
 
 import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.logging.Logger;
 
@@ -71,16 +73,11 @@ public class CreateKnowsHandler implements HttpHandler {
             }
         }
 
-        HashMap<String, Object> write = new HashMap<>();
-        HashMap<String, Object> data = new HashMap<>();
-
-        boolean createIdentity = true;
-
         String identityHash = ArchetypeConstants.calculateHash(identity);
 
         Long identityNodeId = ArchetypeServer.identityCache.getIfPresent( identityHash );
 
-        if( identityNodeId == null ) try ( Transaction tx = graphDB.beginTx() ) {
+        if( identityNodeId == null && !BATCH_WRITER_SERVICE.isDeferredResolution() ) try ( Transaction tx = graphDB.beginTx() ) {
 
             // If the node id is not in the cache, let's try to find the node in the index.
             ResourceIterator<Node> results = graphDB.findNodesByLabelAndProperty( Labels.Identity, "identity", identityHash ).iterator();
@@ -88,16 +85,10 @@ public class CreateKnowsHandler implements HttpHandler {
             // If it's in the index, cache it
             if ( results.hasNext() ) {
                 Node identityNode = results.next();
-                ArchetypeServer.identityCache.put( identityHash, identityNode.getId() );
-                data.put( "identityNodeId", identityNode.getId() );
-                createIdentity = false;
-            } else {
-                // If it's not in the index go create it asynchronously
-                data.put( "identityHash", identityHash );
+                identityNodeId = identityNode.getId();
+                ArchetypeServer.identityCache.put( identityHash, identityNodeId );
             }
-        } else {
-            data.put( "identityNodeId", identityNodeId );
-            createIdentity = false;
+            // If it's not in the index it gets created asynchronously
         }
 
         // here
@@ -159,13 +150,11 @@ public class CreateKnowsHandler implements HttpHandler {
             return;
         }
 
-        boolean createIdentity2 = true;
-
         String identityHash2 = ArchetypeConstants.calculateHash(identity2);
 
         Long identityNodeId2 = ArchetypeServer.identityCache.getIfPresent( identityHash2 );
 
-        if( identityNodeId2 == null ) try ( Transaction tx = graphDB.beginTx() ) {
+        if( identityNodeId2 == null && !BATCH_WRITER_SERVICE.isDeferredResolution() ) try ( Transaction tx = graphDB.beginTx() ) {
 
             // If the node id is not in the cache, let's try to find the node in the index.
             ResourceIterator<Node> results = graphDB.findNodesByLabelAndProperty( Labels.Identity, "identity", identityHash2 ).iterator();
@@ -173,48 +162,28 @@ public class CreateKnowsHandler implements HttpHandler {
             // If it's in the index, cache it
             if ( results.hasNext() ) {
                 Node identityNode2 = results.next();
-                ArchetypeServer.identityCache.put( identityHash, identityNode2.getId() );
-                data.put( "identityNodeId2", identityNode2.getId() );
-                createIdentity = false;
-            } else {
-                // If it's not in the index go create it asynchronously
-                data.put( "identityHash2", identityHash2 );
+                identityNodeId2 = identityNode2.getId();
+                ArchetypeServer.identityCache.put( identityHash2, identityNodeId2 );
             }
-        } else {
-            data.put( "identityNodeId2", identityNodeId2 );
-            createIdentity2 = false;
-        }
-
-        if( !createIdentity && createIdentity2 ){
-                write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP );
-        }
-
-        if( createIdentity && !createIdentity2 ){
-                write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP );
-        }
-
-        if( createIdentity && createIdentity2 ){
-                write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_BOTH_AND_KNOWS_RELATIONSHIP );
+            // If it's not in the index it gets created asynchronously
         }
 
-        if( !createIdentity && !createIdentity2 ){
-                write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_KNOWS_RELATIONSHIP );
+        KnowsWrite write = KnowsWrite.acquire(
+                identityHash, identityNodeId == null ? Write.NO_NODE : identityNodeId,
+                identityHash2, identityNodeId2 == null ? Write.NO_NODE : identityNodeId2,
+                ArchetypeConstants.encrypt( identity2, identity ) );
+        long receipt = BATCH_WRITER_SERVICE.submit( write );
+        if ( receipt == WriteReceipts.NO_RECEIPT ) {
+            BackpressureHandler.sendUnavailable( exchange );
+            return;
         }
 
-        data.put( "encryptedIdentity", ArchetypeConstants.encrypt( identity2, identity ) );
-
-        write.put( ArchetypeConstants.DATA, data );
-        BATCH_WRITER_SERVICE.queue.put( write );
-
         HashMap<String, String> response = new HashMap<>();
         response.put( "identity", identity );
         response.put( "identity2", identity2 );
         response.put( "relationship_type", "KNOWS");
 
-        exchange.setResponseCode( 201 );
-        exchange.getResponseSender().send( ByteBuffer.wrap(
-                objectMapper.writeValueAsBytes(
-                        response)));
+        WriteAcknowledgement.sendCreated( exchange, receipt, objectMapper.writeValueAsBytes( response ) );
 
     }
 
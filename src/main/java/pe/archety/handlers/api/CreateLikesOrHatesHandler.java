@@ -14,11 +14,13 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpHead;
 import org.neo4j.graphdb.*;
 import pe.archety.*;
+import pe.archety.writes.LikesOrHatesWrite;
+import pe.archety.writes.Write;
+import pe.archety.writes.WriteReceipts;
 
 import java.io.InputStream;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.logging.Logger;
 
@@ -33,11 +35,13 @@ public class CreateLikesOrHatesHandler implements HttpHandler {
     private static GraphDatabaseService graphDB;
     private static ObjectMapper objectMapper;
     private String relationshipTypeName;
+    private Relationships relationshipType;
 
     public CreateLikesOrHatesHandler(GraphDatabaseService graphDB, ObjectMapper objectMapper, String relationshipTypeName) {
         this.graphDB = graphDB;
         this.objectMapper = objectMapper;
         this.relationshipTypeName = relationshipTypeName;
+        this.relationshipType = Relationships.valueOf( relationshipTypeName );
     }
 
     @Override
@@ -76,16 +80,11 @@ public class CreateLikesOrHatesHandler implements HttpHandler {
             }
         }
 
-        HashMap<String, Object> write = new HashMap<>();
-        HashMap<String, Object> data = new HashMap<>();
-
-        boolean createIdentity = true;
-
         String identityHash = ArchetypeConstants.calculateHash(identity);
 
         Long identityNodeId = ArchetypeServer.identityCache.getIfPresent( identityHash );
 
-        if( identityNodeId == null ) try ( Transaction tx = graphDB.beginTx() ) {
+        if( identityNodeId == null && !BATCH_WRITER_SERVICE.isDeferredResolution() ) try ( Transaction tx = graphDB.beginTx() ) {
 
             // If the node id is not in the cache, let's try to find the node in the index.
             ResourceIterator<Node> results = graphDB.findNodesByLabelAndProperty( Labels.Identity, "identity", identityHash ).iterator();
@@ -93,20 +92,12 @@ public class CreateLikesOrHatesHandler implements HttpHandler {
             // If it's in the index, cache it
             if ( results.hasNext() ) {
                 Node identityNode = results.next();
-                ArchetypeServer.identityCache.put( identityHash, identityNode.getId() );
-                data.put( "identityNodeId", identityNode.getId() );
-                createIdentity = false;
-            } else {
-                // If it's not in the index go create it asynchronously
-                data.put( "identityHash", identityHash );
+                identityNodeId = identityNode.getId();
+                ArchetypeServer.identityCache.put( identityHash, identityNodeId );
             }
-        } else {
-            data.put( "identityNodeId", identityNodeId );
-            createIdentity = false;
+            // If it's not in the index it gets created asynchronously
         }
 
-        boolean createPage = true;
-
         exchange.startBlocking();
         final InputStream inputStream = exchange.getInputStream();
         final String body = new String(ByteStreams.toByteArray( inputStream), Charsets.UTF_8 );
@@ -138,9 +129,8 @@ public class CreateLikesOrHatesHandler implements HttpHandler {
             // If it's in the index, cache it
             if (results.hasNext()) {
                 Node pageNode = results.next();
-                ArchetypeServer.urlCache.put( url, pageNode.getId() );
-                data.put( "pageNodeId", pageNode.getId() );
-                createPage = false;
+                pageNodeId = pageNode.getId();
+                ArchetypeServer.urlCache.put( url, pageNodeId );
             } else {
                 // Check that it is a valid page
                 HttpHead httpHead = new HttpHead(url);
@@ -155,9 +145,7 @@ public class CreateLikesOrHatesHandler implements HttpHandler {
                         title = title.replace( "_", " " );
                     }
 
-                    // If it's not in the index go create it asynchronously
-                    data.put( "url", url );
-                    data.put( "title", title );
+                    // If it's not in the index it gets created asynchronously
                 } else {
                     String error = url + " not found. HTTP Code: " + code;
                     exchange.setResponseCode( 400 );
@@ -165,56 +153,24 @@ public class CreateLikesOrHatesHandler implements HttpHandler {
                     return;
                 }
             }
-        } else {
-            data.put( "pageNodeId", pageNodeId );
-            createPage = false;
         }
 
-        if( !createPage && createIdentity ){
-            if ( relationshipTypeName.equals(Relationships.LIKES.name())){
-                write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_IDENTITY_AND_LIKES_RELATIONSHIP );
-            } else {
-                write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_IDENTITY_AND_HATES_RELATIONSHIP );
-            }
+        LikesOrHatesWrite write = LikesOrHatesWrite.acquire( relationshipType,
+                identityHash, identityNodeId == null ? Write.NO_NODE : identityNodeId,
+                url, title, pageNodeId == null ? Write.NO_NODE : pageNodeId );
+        long receipt = BATCH_WRITER_SERVICE.submit( write );
+        if ( receipt == WriteReceipts.NO_RECEIPT ) {
+            BackpressureHandler.sendUnavailable( exchange );
+            return;
         }
 
-        if( createPage && !createIdentity ){
-            if ( relationshipTypeName.equals(Relationships.LIKES.name())){
-                write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_PAGE_AND_LIKES_RELATIONSHIP );
-            } else {
-                write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_PAGE_AND_HATES_RELATIONSHIP );
-            }
-        }
-
-        if( createPage && createIdentity ){
-            if ( relationshipTypeName.equals(Relationships.LIKES.name())){
-                write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_BOTH_AND_LIKES_RELATIONSHIP );
-            } else {
-                write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_BOTH_AND_HATES_RELATIONSHIP );
-            }
-        }
-
-        if( !createPage && !createIdentity ){
-            if ( relationshipTypeName.equals(Relationships.LIKES.name())){
-                write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_LIKES_RELATIONSHIP );
-            } else {
-                write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_HATES_RELATIONSHIP );
-            }
-        }
-
-        write.put( ArchetypeConstants.DATA, data );
-        BATCH_WRITER_SERVICE.queue.put( write );
-
         HashMap<String, String> response = new HashMap<>();
         response.put( "identity", identity );
         response.put( "url", url );
         response.put( "title", title );
         response.put( "relationship_type", relationshipTypeName);
 
-        exchange.setResponseCode( 201 );
-        exchange.getResponseSender().send( ByteBuffer.wrap(
-                objectMapper.writeValueAsBytes(
-                        response)));
+        WriteAcknowledgement.sendCreated( exchange, receipt, objectMapper.writeValueAsBytes( response ) );
 
     }
 
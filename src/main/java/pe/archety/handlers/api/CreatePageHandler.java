@@ -13,11 +13,12 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
 import pe.archety.*;
+import pe.archety.writes.PageWrite;
+import pe.archety.writes.WriteReceipts;
 
 import java.io.InputStream;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 import static pe.archety.ArchetypeConstants.URLPREFIX;
@@ -67,6 +68,7 @@ public class CreatePageHandler implements HttpHandler {
             url = URLPREFIX + url;
         }
 
+        long receipt = WriteReceipts.NO_RECEIPT;
         Long pageNodeId = ArchetypeServer.urlCache.getIfPresent( url );
         if( pageNodeId == null ) try (Transaction tx = graphDB.beginTx()) {
 
@@ -92,13 +94,11 @@ public class CreatePageHandler implements HttpHandler {
                     }
 
                     // If it's not in the index go create it asynchronously
-                    HashMap<String, Object> write = new HashMap<>();
-                    HashMap<String, Object> data = new HashMap<>();
-                    data.put( "url", url );
-                    data.put( "title", title );
-                    write.put( ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_PAGE );
-                    write.put( ArchetypeConstants.DATA, data );
-                    BATCH_WRITER_SERVICE.queue.put( write );
+                    receipt = BATCH_WRITER_SERVICE.submit( PageWrite.acquire( url, title ) );
+                    if ( receipt == WriteReceipts.NO_RECEIPT ) {
+                        BackpressureHandler.sendUnavailable( exchange );
+                        return;
+                    }
                 } else {
                     String error = url + " not found. HTTP Code: " + code;
                     exchange.setResponseCode( 400 );
@@ -110,10 +110,7 @@ public class CreatePageHandler implements HttpHandler {
         HashMap<String, String> response = new HashMap<>();
         response.put( "url", url );
         response.put( "title", title );
-        exchange.setResponseCode( 201 );
-        exchange.getResponseSender().send( ByteBuffer.wrap(
-                objectMapper.writeValueAsBytes(
-                        response)));
+        WriteAcknowledgement.sendCreated( exchange, receipt, objectMapper.writeValueAsBytes( response ) );
 
     }
 }
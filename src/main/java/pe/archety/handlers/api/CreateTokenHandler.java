@@ -12,11 +12,12 @@ import org.neo4j.graphdb.Transaction;
 import org.neo4j.helpers.collection.IteratorUtil;
 import pe.archety.ArchetypeConstants;
 import pe.archety.ArchetypeServer;
-import pe.archety.BatchWriterServiceAction;
 import pe.archety.Labels;
+import pe.archety.writes.TokenWrite;
+import pe.archety.writes.Write;
+import pe.archety.writes.WriteReceipts;
 
 import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.logging.Logger;
@@ -72,44 +73,36 @@ public class CreateTokenHandler implements HttpHandler {
         }
 
         String identityHash = "";
+        long receipt = WriteReceipts.NO_RECEIPT;
         if (validIdentity) {
             identityHash = ArchetypeConstants.calculateHash(identity);
             Long identityNodeId = ArchetypeServer.identityCache.getIfPresent(identityHash);
 
-            HashMap<String, Object> write = new HashMap<>();
-            HashMap<String, Object> data = new HashMap<>();
-
-            if (identityNodeId == null) try (Transaction tx = graphDB.beginTx()) {
+            if (identityNodeId == null && !BATCH_WRITER_SERVICE.isDeferredResolution()) try (Transaction tx = graphDB.beginTx()) {
 
                 // If the node id is not in the cache, let's try to find the node in the index.
                 final Node identityNode = IteratorUtil.singleOrNull(graphDB.findNodesByLabelAndProperty(Labels.Identity, "identity", identityHash));
 
                 // If it's in the index, cache it
                 if (identityNode != null) {
-
-                    ArchetypeServer.identityCache.put(identityHash, identityNode.getId() );
-                    write.put(ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_TOKEN);
-                    data.put( "identityNodeId", identityNode.getId() );
-                } else {
-                    // If it's not in the index go create it asynchronously
-                    data.put("identityHash", identityHash);
-                    write.put(ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_IDENTITY_WITH_TOKEN);
+                    identityNodeId = identityNode.getId();
+                    ArchetypeServer.identityCache.put(identityHash, identityNodeId);
                 }
-            } else {
-                write.put(ArchetypeConstants.ACTION, BatchWriterServiceAction.CREATE_TOKEN);
-                data.put( "identityNodeId", identityNodeId );
             }
 
-            data.put("identity", identity);
-            write.put(ArchetypeConstants.DATA, data);
-            BATCH_WRITER_SERVICE.queue.put(write);
+            // If we still don't have a node id, the identity gets created asynchronously along with the token
+            TokenWrite write = TokenWrite.acquire(identity, identityHash,
+                    identityNodeId == null ? Write.NO_NODE : identityNodeId);
+            receipt = BATCH_WRITER_SERVICE.submit(write);
+            if (receipt == WriteReceipts.NO_RECEIPT) {
+                BackpressureHandler.sendUnavailable(exchange);
+                return;
+            }
 
         }
 
-        exchange.setResponseCode(201);
-        exchange.getResponseSender().send(ByteBuffer.wrap(
-                objectMapper.writeValueAsBytes(
-                        Collections.singletonMap("identity", identity))));
+        WriteAcknowledgement.sendCreated(exchange, receipt, objectMapper.writeValueAsBytes(
+                Collections.singletonMap("identity", identity)));
     }
 
 }
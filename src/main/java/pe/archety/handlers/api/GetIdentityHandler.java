@@ -11,9 +11,11 @@ import org.neo4j.graphdb.Transaction;
 import pe.archety.ArchetypeConstants;
 import pe.archety.ArchetypeServer;
 import pe.archety.Labels;
+import pe.archety.NodeCounters;
 
 import java.nio.ByteBuffer;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 public class GetIdentityHandler implements HttpHandler {
 
@@ -36,25 +38,36 @@ public class GetIdentityHandler implements HttpHandler {
 
         Long identityNodeId = ArchetypeServer.identityCache.getIfPresent( identityHash );
 
-        if( identityNodeId == null ) try ( Transaction tx = graphDB.beginTx() ) {
+        HashMap<String, Object> response = new LinkedHashMap<>();
+        response.put( "identity", identity );
+        try ( Transaction tx = graphDB.beginTx() ) {
+            Node identityNode;
+            if( identityNodeId == null ) {
 
-            // If the node id is not in the cache, let's try to find the node in the index.
-            ResourceIterator<Node> results = graphDB.findNodesByLabelAndProperty( Labels.Identity, "identity", identityHash ).iterator();
+                // If the node id is not in the cache, let's try to find the node in the index.
+                ResourceIterator<Node> results = graphDB.findNodesByLabelAndProperty( Labels.Identity, "identity", identityHash ).iterator();
 
-            // If it's in the index, cache it
-            if ( results.hasNext() ) {
-                Node identityNode = results.next();
-                ArchetypeServer.identityCache.put( identityHash, identityNode.getId() );
+                // If it's in the index, cache it
+                if ( results.hasNext() ) {
+                    identityNode = results.next();
+                    ArchetypeServer.identityCache.put( identityHash, identityNode.getId() );
+                } else {
+                    exchange.setResponseCode( 404 );
+                    return;
+                }
             } else {
-                exchange.setResponseCode( 404 );
-                return;
+                identityNode = graphDB.getNodeById( identityNodeId );
             }
+
+            // Kept by the writer, see NodeCounters
+            response.put( "likes", NodeCounters.get( identityNode, NodeCounters.LIKES ) );
+            response.put( "hates", NodeCounters.get( identityNode, NodeCounters.HATES ) );
+            response.put( "knows", NodeCounters.get( identityNode, NodeCounters.KNOWS ) );
         }
 
         exchange.setResponseCode( 200 );
         exchange.getResponseSender().send( ByteBuffer.wrap(
-                objectMapper.writeValueAsBytes(
-                        Collections.singletonMap( "identity", identity ))));
+                objectMapper.writeValueAsBytes( response )));
 
     }
 }
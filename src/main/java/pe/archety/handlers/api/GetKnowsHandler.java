@@ -12,12 +12,16 @@ import pe.archety.ArchetypeConstants;
 import pe.archety.ArchetypeServer;
 import pe.archety.Labels;
 import pe.archety.Relationships;
+import pe.archety.writes.PendingWrites;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.logging.Logger;
 
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
 import static pe.archety.ArchetypeConstants.EMAIL_VALIDATOR;
 import static pe.archety.ArchetypeConstants.PHONE_UTIL;
 
@@ -74,6 +78,10 @@ public class GetKnowsHandler implements HttpHandler {
 
         Long identityNodeId = ArchetypeServer.identityCache.getIfPresent( identityHash );
 
+        // Taken before reading the graph, anything committed since is in the graph
+        List<PendingWrites.Edge> pending = BATCH_WRITER_SERVICE.getPending().edges( identityHash, Relationships.KNOWS );
+        HashSet<String> identities = new HashSet<>();
+
         try ( Transaction tx = graphDB.beginTx() ){
             Node identityNode = null;
             if( identityNodeId == null )  {
@@ -85,7 +93,7 @@ public class GetKnowsHandler implements HttpHandler {
                 if ( iterator.hasNext() ) {
                     identityNode = iterator.next();
                     ArchetypeServer.identityCache.put( identityHash, identityNode.getId() );
-                } else {
+                } else if ( pending.isEmpty() ) {
                     logger.warning( identity + " not found." );
                     exchange.setResponseCode( 404 );
                     return;
@@ -94,10 +102,23 @@ public class GetKnowsHandler implements HttpHandler {
                 identityNode = graphDB.getNodeById( identityNodeId );
             }
 
-            for ( Relationship relationship : identityNode.getRelationships( Direction.OUTGOING, Relationships.KNOWS) ) {
-                HashMap<String, String> result = new HashMap();
-                String encryptedIdentity = (String)relationship.getProperty( "encryptedIdentity" );
-                result.put( "identity", ArchetypeConstants.decrypt( encryptedIdentity, identity ) );
+            if ( identityNode != null ) {
+                for ( Relationship relationship : identityNode.getRelationships( Direction.OUTGOING, Relationships.KNOWS) ) {
+                    HashMap<String, String> result = new HashMap<>();
+                    String encryptedIdentity = (String)relationship.getProperty( "encryptedIdentity" );
+                    result.put( "identity", ArchetypeConstants.decrypt( encryptedIdentity, identity ) );
+                    results.add(result);
+                    identities.add( result.get( "identity" ) );
+                }
+            }
+        }
+
+        // Queued but not committed yet
+        for ( PendingWrites.Edge edge : pending ) {
+            String identity2 = ArchetypeConstants.decrypt( edge.encryptedIdentity, identity );
+            if ( identities.add( identity2 ) ) {
+                HashMap<String, String> result = new HashMap<>();
+                result.put( "identity", identity2 );
                 results.add(result);
             }
         }
@@ -11,12 +11,17 @@ import org.neo4j.graphdb.*;
 import pe.archety.ArchetypeConstants;
 import pe.archety.ArchetypeServer;
 import pe.archety.Labels;
+import pe.archety.Relationships;
+import pe.archety.writes.PendingWrites;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.logging.Logger;
 
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
 import static pe.archety.ArchetypeConstants.EMAIL_VALIDATOR;
 import static pe.archety.ArchetypeConstants.PHONE_UTIL;
 
@@ -75,6 +80,11 @@ public class GetLikesOrHatesHandler implements HttpHandler {
 
         Long identityNodeId = ArchetypeServer.identityCache.getIfPresent( identityHash );
 
+        // Taken before reading the graph, anything committed since is in the graph
+        List<PendingWrites.Edge> pending = BATCH_WRITER_SERVICE.getPending().edges( identityHash,
+                Relationships.valueOf( relationshipType.name() ) );
+        HashSet<String> urls = new HashSet<>();
+
         try ( Transaction tx = graphDB.beginTx() ){
             Node identityNode = null;
             if( identityNodeId == null )  {
@@ -86,7 +96,7 @@ public class GetLikesOrHatesHandler implements HttpHandler {
                 if ( iterator.hasNext() ) {
                     identityNode = iterator.next();
                     ArchetypeServer.identityCache.put( identityHash, identityNode.getId() );
-                } else {
+                } else if ( pending.isEmpty() ) {
                     logger.warning( identity + " not found." );
                     exchange.setResponseCode( 404 );
                     return;
@@ -95,11 +105,24 @@ public class GetLikesOrHatesHandler implements HttpHandler {
                 identityNode = graphDB.getNodeById( identityNodeId );
             }
 
-            for ( Relationship relationship : identityNode.getRelationships( Direction.OUTGOING, relationshipType ) ) {
-                Node pageNode = relationship.getEndNode();
-                HashMap<String, String> result = new HashMap();
-                result.put( "title", (String)pageNode.getProperty( "title" ) );
-                result.put( "url", (String)pageNode.getProperty( "url" ) );
+            if ( identityNode != null ) {
+                for ( Relationship relationship : identityNode.getRelationships( Direction.OUTGOING, relationshipType ) ) {
+                    Node pageNode = relationship.getEndNode();
+                    HashMap<String, String> result = new HashMap<>();
+                    result.put( "title", (String)pageNode.getProperty( "title" ) );
+                    result.put( "url", (String)pageNode.getProperty( "url" ) );
+                    results.add(result);
+                    urls.add( result.get( "url" ) );
+                }
+            }
+        }
+
+        // Queued but not committed yet
+        for ( PendingWrites.Edge edge : pending ) {
+            if ( urls.add( edge.url ) ) {
+                HashMap<String, String> result = new HashMap<>();
+                result.put( "title", edge.title );
+                result.put( "url", edge.url );
                 results.add(result);
             }
         }
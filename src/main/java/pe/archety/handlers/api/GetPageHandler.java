@@ -0,0 +1,99 @@
+package pe.archety.handlers.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import pe.archety.ArchetypeServer;
+import pe.archety.Labels;
+import pe.archety.NodeCounters;
+
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import static pe.archety.ArchetypeConstants.URLPREFIX;
+
+public class GetPageHandler implements HttpHandler {
+
+    private static GraphDatabaseService graphDB;
+    private static ObjectMapper objectMapper;
+
+    public GetPageHandler( GraphDatabaseService graphDB, ObjectMapper objectMapper ) {
+        this.graphDB = graphDB;
+        this.objectMapper = objectMapper;
+    }
+
+    /*
+       GET /v1/pages?url=http://en.wikipedia.org/wiki/Neo4j
+       or
+       GET /v1/pages?title=Neo4j
+
+       Output:
+       { "url": "http://en.wikipedia.org/wiki/Neo4j", "title": "Neo4j", "likes": 2, "hates": 0 }
+    */
+    @Override
+    public void handleRequest( final HttpServerExchange exchange ) throws Exception {
+        exchange.getResponseHeaders().put( Headers.CONTENT_TYPE, ArchetypeServer.JSON_UTF8 );
+
+        Deque<String> urlParameter = exchange.getQueryParameters().get( "url" );
+        Deque<String> titleParameter = exchange.getQueryParameters().get( "title" );
+        String url;
+        if ( urlParameter != null ) {
+            url = urlParameter.getFirst();
+            if ( !url.startsWith( URLPREFIX ) ) {
+                String error = "URL must start with " +  URLPREFIX;
+                exchange.setResponseCode( 400 );
+                exchange.getResponseSender().send( "{\"error\":\"" + error + "\"}" );
+                return;
+            }
+        } else if ( titleParameter != null ) {
+            url = URLPREFIX + URLEncoder.encode( titleParameter.getFirst().replace( " ", "_" ), "UTF-8" );
+        } else {
+            String error = "A url or title is required.";
+            exchange.setResponseCode( 400 );
+            exchange.getResponseSender().send( "{\"error\":\"" + error + "\"}" );
+            return;
+        }
+
+        Long pageNodeId = ArchetypeServer.urlCache.getIfPresent( url );
+
+        HashMap<String, Object> response = new LinkedHashMap<>();
+        try ( Transaction tx = graphDB.beginTx() ) {
+            Node pageNode;
+            if( pageNodeId == null ) {
+
+                // If the node id is not in the cache, let's try to find the node in the index.
+                ResourceIterator<Node> results = graphDB.findNodesByLabelAndProperty( Labels.Page, "url", url ).iterator();
+
+                // If it's in the index, cache it
+                if ( results.hasNext() ) {
+                    pageNode = results.next();
+                    ArchetypeServer.urlCache.put( url, pageNode.getId() );
+                } else {
+                    exchange.setResponseCode( 404 );
+                    return;
+                }
+            } else {
+                pageNode = graphDB.getNodeById( pageNodeId );
+            }
+
+            response.put( "url", url );
+            response.put( "title", pageNode.getProperty( "title", "" ) );
+            // Kept by the writer, see NodeCounters
+            response.put( "likes", NodeCounters.get( pageNode, NodeCounters.LIKED ) );
+            response.put( "hates", NodeCounters.get( pageNode, NodeCounters.HATED ) );
+        }
+
+        exchange.setResponseCode( 200 );
+        exchange.getResponseSender().send( ByteBuffer.wrap(
+                objectMapper.writeValueAsBytes( response )));
+
+    }
+}
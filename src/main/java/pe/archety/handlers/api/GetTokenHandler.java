@@ -1,53 +1,82 @@
 package pe.archety.handlers.api;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.util.Headers;
+import io.undertow.util.SameThreadExecutor;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.Transaction;
 import org.neo4j.helpers.collection.IteratorUtil;
+import pe.archety.GroupCommitExecutor;
 import pe.archety.Labels;
 
 import org.apache.log4j.Logger;
 
 import static pe.archety.ArchetypeServer.TEXT_PLAIN;
 
+/*
+    Confirms a token. The authenticatedToken is set through the
+    GroupCommitExecutor, so a burst of confirmations shares its commits; the
+    exchange is left open meanwhile and answered from its IO thread once the
+    confirmation has committed.
+ */
 public class GetTokenHandler implements HttpHandler {
     private static final Logger logger = Logger.getLogger( GetTokenHandler.class.getName() );
-    private static GraphDatabaseService graphDB;
+    private final GroupCommitExecutor groupCommit;
 
-    public GetTokenHandler( GraphDatabaseService graphDB ) {
-        this.graphDB = graphDB;
+    // The executor is started and stopped by whoever owns the database.
+    public GetTokenHandler( GroupCommitExecutor groupCommit ) {
+        this.groupCommit = groupCommit;
     }
 
     @Override
     public void handleRequest( final HttpServerExchange exchange ) throws Exception {
 
-        String token = exchange.getAttachment( io.undertow.util.PathTemplateMatch.ATTACHMENT_KEY )
+        final String token = exchange.getAttachment( io.undertow.util.PathTemplateMatch.ATTACHMENT_KEY )
                 .getParameters().get( "token" );
 
-        try ( Transaction tx = graphDB.beginTx() ){
-            final Node identityNode = IteratorUtil.singleOrNull(graphDB.findNodesByLabelAndProperty( Labels.Identity, "generatedToken", token ) );
-
-            if (identityNode != null) {
+        final ListenableFuture<Boolean> authenticated = groupCommit.submit( new GroupCommitExecutor.Work<Boolean>() {
+            @Override
+            public Boolean apply( GraphDatabaseService db ) {
+                final Node identityNode = IteratorUtil.singleOrNull( db.findNodesByLabelAndProperty( Labels.Identity, "generatedToken", token ) );
+                if ( identityNode == null ) {
+                    return false;
+                }
                 identityNode.setProperty( "authenticatedToken", token );
-            } else {
-                String error = "Error authenticating token.";
-                exchange.setResponseCode( 400 );
-                exchange.getResponseSender().send("{\"error\":\"" + error + "\"}");
-                return;
+                return true;
             }
-            tx.success();
-            exchange.setResponseCode( 200 );
-            exchange.getResponseHeaders().put( Headers.CONTENT_TYPE, TEXT_PLAIN );
-            exchange.getResponseSender().send( "Token Authenticated!" );
-        } catch (Exception e) {
-            logger.error( "Error Authenticating token: " + e.getMessage() );
-            exchange.setResponseCode( 500 );
-            exchange.getResponseHeaders().put( Headers.CONTENT_TYPE, TEXT_PLAIN );
-            exchange.getResponseSender().send( "An error has occurred" );
-        }
+        } );
+
+        // runs once handleRequest has returned, so the callback cannot answer before the handler is done
+        exchange.dispatch( SameThreadExecutor.INSTANCE, new Runnable() {
+            @Override
+            public void run() {
+                Futures.addCallback( authenticated, new FutureCallback<Boolean>() {
+                    @Override
+                    public void onSuccess( Boolean authenticated ) {
+                        if ( authenticated ) {
+                            exchange.setResponseCode( 200 );
+                            exchange.getResponseHeaders().put( Headers.CONTENT_TYPE, TEXT_PLAIN );
+                            exchange.getResponseSender().send( "Token Authenticated!" );
+                        } else {
+                            String error = "Error authenticating token.";
+                            exchange.setResponseCode( 400 );
+                            exchange.getResponseSender().send( "{\"error\":\"" + error + "\"}" );
+                        }
+                    }
 
+                    @Override
+                    public void onFailure( Throwable e ) {
+                        logger.error( "Error Authenticating token: " + e.getMessage() );
+                        exchange.setResponseCode( 500 );
+                        exchange.getResponseHeaders().put( Headers.CONTENT_TYPE, TEXT_PLAIN );
+                        exchange.getResponseSender().send( "An error has occurred" );
+                    }
+                }, exchange.getIoThread() );
+            }
+        } );
     }
 }
@@ -0,0 +1,59 @@
+package pe.archety.handlers.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.PathTemplateMatch;
+import pe.archety.ArchetypeServer;
+import pe.archety.writes.WriteStatus;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
+
+/*
+    Status of a queued write, by the receipt its POST answered with:
+    { "receipt": 42, "status": "pending" | "committed" | "dead_lettered" }
+ */
+public class GetWriteHandler implements HttpHandler {
+    private static ObjectMapper objectMapper;
+
+    public GetWriteHandler( ObjectMapper objectMapper ) {
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public void handleRequest( final HttpServerExchange exchange ) throws Exception {
+        exchange.getResponseHeaders().put( Headers.CONTENT_TYPE, ArchetypeServer.JSON_UTF8 );
+
+        long receipt;
+        try {
+            receipt = Long.parseLong( exchange.getAttachment( PathTemplateMatch.ATTACHMENT_KEY )
+                    .getParameters().get( "receipt" ) );
+        } catch ( NumberFormatException e ) {
+            String error = "Invalid receipt.";
+            exchange.setResponseCode( 400 );
+            exchange.getResponseSender().send( "{\"error\":\"" + error + "\"}" );
+            return;
+        }
+
+        WriteStatus status = BATCH_WRITER_SERVICE.getReceipts().status( receipt );
+        if ( status == WriteStatus.UNKNOWN ) {
+            String error = "Receipt not found.";
+            exchange.setResponseCode( 404 );
+            exchange.getResponseSender().send( "{\"error\":\"" + error + "\"}" );
+            return;
+        }
+
+        HashMap<String, Object> response = new HashMap<>();
+        response.put( "receipt", receipt );
+        response.put( "status", status.name().toLowerCase() );
+
+        exchange.setResponseCode( 200 );
+        exchange.getResponseSender().send( ByteBuffer.wrap(
+                objectMapper.writeValueAsBytes(
+                        response)));
+    }
+}
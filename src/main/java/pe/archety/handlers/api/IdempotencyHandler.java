@@ -0,0 +1,196 @@
+package pe.archety.handlers.api;
+
+import io.undertow.server.ConduitWrapper;
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.ConduitFactory;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.Methods;
+import org.xnio.conduits.AbstractStreamSinkConduit;
+import org.xnio.conduits.StreamSinkConduit;
+import pe.archety.ArchetypeServer;
+import pe.archety.idempotency.IdempotencyStore;
+import pe.archety.idempotency.StoredResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+    Honours an Idempotency-Key header on the POST routes. The first request with
+    a key goes through and what it answered is kept in the IdempotencyStore; a
+    repeat of the key on the same path within the window gets that answer back,
+    marked with Idempotent-Replayed, without reaching the handler, so its write
+    is never queued twice. A repeat while the first is still running gets a 409.
+
+    Server errors, the 503 of a full writer included, are not kept: the client
+    is meant to retry those for real. Neither are bodies over MAX_BODY_BYTES.
+ */
+public class IdempotencyHandler implements HttpHandler {
+    public static final HttpString IDEMPOTENCY_KEY = new HttpString( "Idempotency-Key" );
+    public static final HttpString REPLAYED = new HttpString( "Idempotent-Replayed" );
+    static final int MAX_KEY_LENGTH = 255;
+    static final int MAX_BODY_BYTES = 64 * 1024;
+    // the headers a replay needs, the rest Undertow sets again
+    private static final HttpString[] KEPT_HEADERS = { Headers.CONTENT_TYPE, Headers.LOCATION, WriteAcknowledgement.RECEIPT_HEADER };
+
+    private final HttpHandler next;
+    private final IdempotencyStore store;
+
+    public IdempotencyHandler( HttpHandler next, IdempotencyStore store ) {
+        this.next = next;
+        this.store = store;
+    }
+
+    @Override
+    public void handleRequest( final HttpServerExchange exchange ) throws Exception {
+        String key = exchange.getRequestHeaders().getFirst( IDEMPOTENCY_KEY );
+        if ( key == null || !Methods.POST.equals( exchange.getRequestMethod() ) ) {
+            next.handleRequest( exchange );
+            return;
+        }
+        if ( key.isEmpty() || key.length() > MAX_KEY_LENGTH ) {
+            sendError( exchange, 400, "Idempotency-Key must be 1 to " + MAX_KEY_LENGTH + " characters." );
+            return;
+        }
+
+        final String scopedKey = exchange.getRequestPath() + "\n" + key;
+        StoredResponse previous = store.begin( scopedKey );
+        if ( previous != null ) {
+            if ( previous.isInFlight() ) {
+                sendError( exchange, 409, "A request with this Idempotency-Key is still in progress." );
+            } else {
+                replay( exchange, previous );
+            }
+            return;
+        }
+
+        final ResponseCapture capture = new ResponseCapture();
+        exchange.addResponseWrapper( capture );
+        exchange.addExchangeCompleteListener( new ExchangeCompletionListener() {
+            @Override
+            public void exchangeEvent( HttpServerExchange exchange, NextListener nextListener ) {
+                try {
+                    int status = exchange.getResponseCode();
+                    if ( status < 500 && !capture.overflowed ) {
+                        store.complete( scopedKey, new StoredResponse( status, keptHeaders( exchange ), capture.body.toByteArray() ) );
+                    } else {
+                        store.abandon( scopedKey );
+                    }
+                } finally {
+                    nextListener.proceed();
+                }
+            }
+        } );
+        try {
+            next.handleRequest( exchange );
+        } catch ( Exception e ) {
+            store.abandon( scopedKey );
+            throw e;
+        }
+    }
+
+    private static Map<String, String> keptHeaders( HttpServerExchange exchange ) {
+        LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+        for ( HttpString name : KEPT_HEADERS ) {
+            String value = exchange.getResponseHeaders().getFirst( name );
+            if ( value != null ) {
+                headers.put( name.toString(), value );
+            }
+        }
+        return headers;
+    }
+
+    private static void replay( HttpServerExchange exchange, StoredResponse response ) {
+        exchange.setResponseCode( response.status );
+        for ( Map.Entry<String, String> header : response.headers.entrySet() ) {
+            exchange.getResponseHeaders().put( new HttpString( header.getKey() ), header.getValue() );
+        }
+        exchange.getResponseHeaders().put( REPLAYED, "true" );
+        exchange.getResponseSender().send( ByteBuffer.wrap( response.body ) );
+    }
+
+    private static void sendError( HttpServerExchange exchange, int status, String error ) {
+        exchange.getResponseHeaders().put( Headers.CONTENT_TYPE, ArchetypeServer.JSON_UTF8 );
+        exchange.setResponseCode( status );
+        exchange.getResponseSender().send( "{\"error\":\"" + error + "\"}" );
+    }
+
+    // Copies the body on its way out, up to MAX_BODY_BYTES.
+    private static final class ResponseCapture implements ConduitWrapper<StreamSinkConduit> {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        volatile boolean overflowed;
+
+        @Override
+        public StreamSinkConduit wrap( ConduitFactory<StreamSinkConduit> factory, HttpServerExchange exchange ) {
+            return new AbstractStreamSinkConduit<StreamSinkConduit>( factory.create() ) {
+                @Override
+                public int write( ByteBuffer src ) throws IOException {
+                    int position = src.position();
+                    int written = super.write( src );
+                    copy( src, position );
+                    return written;
+                }
+
+                @Override
+                public long write( ByteBuffer[] srcs, int offs, int len ) throws IOException {
+                    int[] positions = positions( srcs, offs, len );
+                    long written = super.write( srcs, offs, len );
+                    copy( srcs, offs, len, positions );
+                    return written;
+                }
+
+                @Override
+                public int writeFinal( ByteBuffer src ) throws IOException {
+                    int position = src.position();
+                    int written = super.writeFinal( src );
+                    copy( src, position );
+                    return written;
+                }
+
+                @Override
+                public long writeFinal( ByteBuffer[] srcs, int offs, int len ) throws IOException {
+                    int[] positions = positions( srcs, offs, len );
+                    long written = super.writeFinal( srcs, offs, len );
+                    copy( srcs, offs, len, positions );
+                    return written;
+                }
+            };
+        }
+
+        private static int[] positions( ByteBuffer[] srcs, int offs, int len ) {
+            int[] positions = new int[ len ];
+            for ( int i = 0; i < len; i++ ) {
+                positions[ i ] = srcs[ offs + i ].position();
+            }
+            return positions;
+        }
+
+        private void copy( ByteBuffer[] srcs, int offs, int len, int[] positions ) {
+            for ( int i = 0; i < len; i++ ) {
+                copy( srcs[ offs + i ], positions[ i ] );
+            }
+        }
+
+        private synchronized void copy( ByteBuffer src, int from ) {
+            int written = src.position() - from;
+            if ( written <= 0 || overflowed ) {
+                return;
+            }
+            if ( body.size() + written > MAX_BODY_BYTES ) {
+                overflowed = true;
+                return;
+            }
+            ByteBuffer copy = src.duplicate();
+            copy.position( from );
+            copy.limit( from + written );
+            byte[] bytes = new byte[ written ];
+            copy.get( bytes );
+            body.write( bytes, 0, written );
+        }
+    }
+}
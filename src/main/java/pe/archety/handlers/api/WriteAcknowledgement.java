@@ -0,0 +1,112 @@
+package pe.archety.handlers.api;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.HttpString;
+import io.undertow.util.SameThreadExecutor;
+import org.apache.log4j.Logger;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioIoThread;
+import pe.archety.writes.WriteReceipts;
+import pe.archety.writes.WriteStatus;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
+
+/*
+    How the POST handlers answer once their write is queued.
+
+    The receipt goes out in an X-Write-Receipt header; GET /v1/writes/{receipt}
+    tells where the write stands. With ?wait=commit the exchange is left open
+    instead and the 201 is sent from the exchange's IO thread when the writer
+    commits the write, so nothing blocks while it waits. A write that is
+    dead-lettered answers 500, one still pending after COMMIT_WAIT_MILLIS a 202.
+ */
+public final class WriteAcknowledgement {
+    private static final Logger logger = Logger.getLogger( WriteAcknowledgement.class );
+
+    public static final HttpString RECEIPT_HEADER = new HttpString( "X-Write-Receipt" );
+    public static final long COMMIT_WAIT_MILLIS = 30_000;
+
+    private WriteAcknowledgement() {
+    }
+
+    public static boolean waitForCommit( final HttpServerExchange exchange ) {
+        Deque<String> wait = exchange.getQueryParameters().get( "wait" );
+        return wait != null && "commit".equals( wait.peekFirst() );
+    }
+
+    /*
+        Answers 201 with the body, now or, for ?wait=commit, once the write is in
+        the graph. Without a receipt (nothing had to be written) it answers now.
+     */
+    public static void sendCreated( final HttpServerExchange exchange, final long receipt, final byte[] body ) {
+        if ( receipt == WriteReceipts.NO_RECEIPT || !waitForCommit( exchange ) ) {
+            send( exchange, receipt, 201, body );
+            return;
+        }
+
+        // runs once handleRequest has returned, so the listener cannot answer before the handler is done
+        exchange.dispatch( SameThreadExecutor.INSTANCE, new Runnable() {
+            @Override
+            public void run() {
+                final WriteReceipts receipts = BATCH_WRITER_SERVICE.getReceipts();
+                final XnioIoThread ioThread = exchange.getIoThread();
+                final XnioExecutor.Key timeout = ioThread.executeAfter( new Runnable() {
+                    @Override
+                    public void run() {
+                        if ( receipts.cancel( receipt ) ) {
+                            send( exchange, receipt, 202, body );
+                        }
+                    }
+                }, COMMIT_WAIT_MILLIS, TimeUnit.MILLISECONDS );
+
+                boolean known = receipts.onCompletion( receipt, new WriteReceipts.Listener() {
+                    @Override
+                    public void completed( final long receipt, final WriteStatus status ) {
+                        timeout.remove();
+                        ioThread.execute( new Runnable() {
+                            @Override
+                            public void run() {
+                                respond( exchange, receipt, status, body );
+                            }
+                        } );
+                    }
+                } );
+                if ( !known ) {
+                    timeout.remove();
+                    respond( exchange, receipt, WriteStatus.UNKNOWN, body );
+                }
+            }
+        } );
+    }
+
+    private static void respond( HttpServerExchange exchange, long receipt, WriteStatus status, byte[] body ) {
+        switch ( status ) {
+            case COMMITTED:
+                send( exchange, receipt, 201, body );
+                break;
+            case DEAD_LETTERED: {
+                String error = "Write could not be committed.";
+                exchange.getResponseHeaders().put( RECEIPT_HEADER, receipt );
+                exchange.setResponseCode( 500 );
+                exchange.getResponseSender().send( "{\"error\":\"" + error + "\"}" );
+                break;
+            }
+            default:
+                // too old to be tracked any more, it has long been applied or dead-lettered
+                logger.warn( "Lost track of write receipt " + receipt );
+                send( exchange, receipt, 202, body );
+        }
+    }
+
+    private static void send( HttpServerExchange exchange, long receipt, int code, byte[] body ) {
+        if ( receipt != WriteReceipts.NO_RECEIPT ) {
+            exchange.getResponseHeaders().put( RECEIPT_HEADER, receipt );
+        }
+        exchange.setResponseCode( code );
+        exchange.getResponseSender().send( ByteBuffer.wrap( body ) );
+    }
+}
@@ -0,0 +1,381 @@
+package pe.archety.idempotency;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Responses of requests with an Idempotency-Key, kept for at least the window.
+
+    Keys go into time buckets of window / BUCKETS; a lookup checks the few live
+    buckets and expiring is dropping the oldest bucket whole, so there is no
+    per-entry timestamp or sweep. Past maxEntries the oldest buckets go early,
+    and when the current bucket alone is full new keys are not deduplicated.
+
+    With a file every completed response is also appended to it as a JSON line,
+    and the ones still inside the window are loaded (and the file compacted)
+    when the store is opened again. The file is written by a thread of its own,
+    never by the IO thread completing the exchange, and rewritten with only the
+    responses still kept whenever buckets are dropped, so it stays about a
+    window long. Past PERSIST_QUEUE responses waiting for it, new ones are only
+    kept in memory.
+ */
+public class IdempotencyStore implements Closeable {
+    private final static Logger logger = Logger.getLogger( IdempotencyStore.class );
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    public static final long DEFAULT_WINDOW_MILLIS = 60 * 60 * 1000;
+    public static final int DEFAULT_MAX_ENTRIES = 500_000;
+    static final int BUCKETS = 12;
+    static final int PERSIST_QUEUE = 10_000;
+
+    private static final class Bucket {
+        final long start;
+        final ConcurrentHashMap<String, StoredResponse> responses = new ConcurrentHashMap<>();
+
+        Bucket( long start ) {
+            this.start = start;
+        }
+    }
+
+    private final long windowMillis;
+    private final long bucketMillis;
+    private final int maxEntries;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger evicted = new AtomicInteger();
+    // oldest first, replaced whole when a bucket is added or dropped
+    private volatile Bucket[] buckets = new Bucket[ 0 ];
+    // null without a file; the file and out belong to the persister's thread once it runs
+    private volatile ThreadPoolExecutor persister;
+    private File file;
+    private BufferedWriter out;
+
+    public IdempotencyStore( long windowMillis, int maxEntries ) {
+        this.windowMillis = windowMillis;
+        this.bucketMillis = Math.max( 1, windowMillis / BUCKETS );
+        this.maxEntries = maxEntries;
+    }
+
+    public static IdempotencyStore open( long windowMillis, int maxEntries, File file ) throws IOException {
+        IdempotencyStore store = new IdempotencyStore( windowMillis, maxEntries );
+        store.load( file, System.currentTimeMillis() );
+        return store;
+    }
+
+    /*
+        Returns the response kept for the key, IN_FLIGHT while its first request
+        is still running, or null when this request is the first and should go ahead.
+     */
+    public StoredResponse begin( String key ) {
+        return begin( key, System.currentTimeMillis() );
+    }
+
+    StoredResponse begin( String key, long now ) {
+        Bucket current = current( now );
+        for ( Bucket bucket : buckets ) {
+            StoredResponse response = bucket.responses.get( key );
+            if ( response != null ) {
+                return response;
+            }
+        }
+        if ( !reserve( current ) ) {
+            return null;
+        }
+        StoredResponse previous = current.responses.putIfAbsent( key, StoredResponse.IN_FLIGHT );
+        if ( previous != null ) {
+            size.decrementAndGet();
+        }
+        return previous;
+    }
+
+    // Keeps the response of the first request for its repeats.
+    public void complete( String key, StoredResponse response ) {
+        complete( key, response, System.currentTimeMillis() );
+    }
+
+    void complete( String key, StoredResponse response, long now ) {
+        for ( Bucket bucket : buckets ) {
+            if ( bucket.responses.replace( key, StoredResponse.IN_FLIGHT, response ) ) {
+                append( key, response, now );
+                return;
+            }
+        }
+    }
+
+    // Forgets a first request that failed, so its repeat is tried for real.
+    public void abandon( String key ) {
+        for ( Bucket bucket : buckets ) {
+            if ( bucket.responses.remove( key, StoredResponse.IN_FLIGHT ) ) {
+                size.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private Bucket current( long now ) {
+        Bucket[] buckets = this.buckets;
+        long start = now - now % bucketMillis;
+        if ( buckets.length > 0 && buckets[ buckets.length - 1 ].start >= start ) {
+            return buckets[ buckets.length - 1 ];
+        }
+        return rotate( start, now );
+    }
+
+    private synchronized Bucket rotate( long start, long now ) {
+        if ( buckets.length > 0 && buckets[ buckets.length - 1 ].start >= start ) {
+            return buckets[ buckets.length - 1 ];
+        }
+        ArrayList<Bucket> kept = new ArrayList<>( BUCKETS + 1 );
+        for ( Bucket bucket : buckets ) {
+            if ( bucket.start + bucketMillis > now - windowMillis ) {
+                kept.add( bucket );
+            } else {
+                size.addAndGet( -bucket.responses.size() );
+            }
+        }
+        boolean dropped = kept.size() < buckets.length;
+        Bucket current = new Bucket( start );
+        kept.add( current );
+        buckets = kept.toArray( new Bucket[ kept.size() ] );
+        if ( dropped ) {
+            compactLater();
+        }
+        return current;
+    }
+
+    private boolean reserve( Bucket current ) {
+        if ( size.incrementAndGet() <= maxEntries ) {
+            return true;
+        }
+        synchronized ( this ) {
+            while ( size.get() > maxEntries && buckets.length > 1 && buckets[ 0 ] != current ) {
+                Bucket oldest = buckets[ 0 ];
+                Bucket[] kept = new Bucket[ buckets.length - 1 ];
+                System.arraycopy( buckets, 1, kept, 0, kept.length );
+                buckets = kept;
+                size.addAndGet( -oldest.responses.size() );
+                evicted.addAndGet( oldest.responses.size() );
+                compactLater();
+            }
+        }
+        if ( size.get() <= maxEntries ) {
+            return true;
+        }
+        size.decrementAndGet();
+        return false;
+    }
+
+    private void append( final String key, final StoredResponse response, final long now ) {
+        ThreadPoolExecutor persister = this.persister;
+        if ( persister == null ) {
+            return;
+        }
+        try {
+            persister.execute( new Runnable() {
+                @Override
+                public void run() {
+                    write( key, response, now );
+                }
+            } );
+        } catch ( RejectedExecutionException e ) {
+            logger.warn( "Idempotency file is behind or closed, kept key " + key + " in memory only" );
+        }
+    }
+
+    private void compactLater() {
+        ThreadPoolExecutor persister = this.persister;
+        if ( persister == null ) {
+            return;
+        }
+        try {
+            persister.execute( new Runnable() {
+                @Override
+                public void run() {
+                    compact();
+                }
+            } );
+        } catch ( RejectedExecutionException e ) {
+            // the next dropped bucket compacts it, or the next load
+        }
+    }
+
+    // Persister thread only, flushed once nothing else is waiting.
+    private void write( String key, StoredResponse response, long now ) {
+        if ( out == null ) {
+            return;
+        }
+        try {
+            out.write( objectMapper.writeValueAsString( toJson( key, response, now ) ) );
+            out.newLine();
+            ThreadPoolExecutor persister = this.persister;
+            if ( persister == null || persister.getQueue().isEmpty() ) {
+                out.flush();
+            }
+        } catch ( IOException e ) {
+            logger.warn( "Could not persist idempotency key " + key, e );
+        }
+    }
+
+    /*
+        Persister thread only: rewrites the file with the completed responses of
+        the buckets still kept, each dated at the end of its bucket so it is
+        loaded into the same one.
+     */
+    private void compact() {
+        if ( out == null ) {
+            return;
+        }
+        File compacted = new File( file.getPath() + ".tmp" );
+        try {
+            out.close();
+            try ( BufferedWriter writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( compacted ), Charsets.UTF_8 ) ) ) {
+                for ( Bucket bucket : buckets ) {
+                    long time = bucket.start + bucketMillis - 1;
+                    for ( Map.Entry<String, StoredResponse> entry : bucket.responses.entrySet() ) {
+                        if ( !entry.getValue().isInFlight() ) {
+                            writer.write( objectMapper.writeValueAsString( toJson( entry.getKey(), entry.getValue(), time ) ) );
+                            writer.newLine();
+                        }
+                    }
+                }
+            }
+            if ( !compacted.renameTo( file ) ) {
+                throw new IOException( "Could not replace " + file );
+            }
+        } catch ( IOException e ) {
+            logger.warn( "Could not compact " + file + ", appending to it as it is", e );
+        }
+        try {
+            out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file, true ), Charsets.UTF_8 ) );
+        } catch ( IOException e ) {
+            logger.error( "Could not reopen " + file + ", idempotency keys are kept in memory only", e );
+            out = null;
+        }
+    }
+
+    private static Map<String, Object> toJson( String key, StoredResponse response, long time ) {
+        LinkedHashMap<String, Object> entry = new LinkedHashMap<>();
+        entry.put( "key", key );
+        entry.put( "time", time );
+        entry.put( "status", response.status );
+        entry.put( "headers", response.headers );
+        entry.put( "body", Base64.toBase64String( response.body ) );
+        return entry;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized void load( File file, long now ) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if ( directory != null && !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException( "Could not create directory " + directory );
+        }
+        TreeMap<Long, Bucket> loaded = new TreeMap<>();
+        ArrayList<String> live = new ArrayList<>();
+        if ( file.exists() ) {
+            try ( BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), Charsets.UTF_8 ) ) ) {
+                String line;
+                while ( ( line = reader.readLine() ) != null ) {
+                    Map<String, Object> entry;
+                    try {
+                        entry = objectMapper.readValue( line, Map.class );
+                    } catch ( IOException e ) {
+                        // a line torn by a crash
+                        continue;
+                    }
+                    long time = ( (Number) entry.get( "time" ) ).longValue();
+                    if ( time <= now - windowMillis ) {
+                        continue;
+                    }
+                    long start = time - time % bucketMillis;
+                    Bucket bucket = loaded.get( start );
+                    if ( bucket == null ) {
+                        bucket = new Bucket( start );
+                        loaded.put( start, bucket );
+                    }
+                    StoredResponse response = new StoredResponse( ( (Number) entry.get( "status" ) ).intValue(),
+                            (Map<String, String>) entry.get( "headers" ), Base64.decode( (String) entry.get( "body" ) ) );
+                    if ( bucket.responses.put( (String) entry.get( "key" ), response ) == null ) {
+                        size.incrementAndGet();
+                    }
+                    live.add( line );
+                }
+            }
+        }
+        buckets = loaded.values().toArray( new Bucket[ loaded.size() ] );
+
+        File compacted = new File( file.getPath() + ".tmp" );
+        try ( BufferedWriter writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( compacted ), Charsets.UTF_8 ) ) ) {
+            for ( String line : live ) {
+                writer.write( line );
+                writer.newLine();
+            }
+        }
+        if ( !compacted.renameTo( file ) ) {
+            throw new IOException( "Could not replace " + file );
+        }
+        this.file = file;
+        out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file, true ), Charsets.UTF_8 ) );
+        persister = new ThreadPoolExecutor( 1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>( PERSIST_QUEUE ),
+                new ThreadFactoryBuilder().setNameFormat( "idempotency-persister" ).setDaemon( true ).build() );
+        if ( size.get() > 0 ) {
+            logger.info( "Loaded " + size.get() + " idempotency keys from " + file );
+        }
+    }
+
+    // Keys kept, in flight ones included.
+    public int size() {
+        return size.get();
+    }
+
+    // Keys dropped before their window was up to stay under maxEntries.
+    public int evicted() {
+        return evicted.get();
+    }
+
+    // Writes out what the persister has queued, then closes the file.
+    @Override
+    public void close() throws IOException {
+        ThreadPoolExecutor persister = this.persister;
+        if ( persister == null ) {
+            return;
+        }
+        this.persister = null;
+        persister.shutdown();
+        try {
+            if ( !persister.awaitTermination( 10, TimeUnit.SECONDS ) ) {
+                logger.warn( "Closing " + file + " before every idempotency key was written" );
+                persister.shutdownNow();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized ( this ) {
+            if ( out != null ) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+}
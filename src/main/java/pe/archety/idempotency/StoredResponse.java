@@ -0,0 +1,25 @@
+package pe.archety.idempotency;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// What a request with an Idempotency-Key answered, to be sent again for its repeats.
+public class StoredResponse {
+    // Stands in for the response of a request that is still running
+    public static final StoredResponse IN_FLIGHT = new StoredResponse( 0, Collections.<String, String>emptyMap(), new byte[ 0 ] );
+
+    public final int status;
+    public final Map<String, String> headers;
+    public final byte[] body;
+
+    public StoredResponse( int status, Map<String, String> headers, byte[] body ) {
+        this.status = status;
+        this.headers = new LinkedHashMap<>( headers );
+        this.body = body;
+    }
+
+    public boolean isInFlight() {
+        return this == IN_FLIGHT;
+    }
+}
@@ -0,0 +1,54 @@
+package pe.archety.mail;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/*
+    Stand-in for a mail server on development boxes, appends one JSON object per mail:
+
+        {"time":"...","to":"maxdemarzi@gmail.com","token":"..."}
+ */
+public class FileMailTransport implements MailTransport {
+    private final static Logger logger = Logger.getLogger( FileMailTransport.class );
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final File file;
+
+    public FileMailTransport( File file ) {
+        this.file = file;
+    }
+
+    @Override
+    public synchronized List<TokenMail> send( List<TokenMail> mails ) {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if ( directory != null && !directory.isDirectory() && !directory.mkdirs() ) {
+            logger.error( "Could not create directory " + directory );
+            return mails;
+        }
+        try ( BufferedWriter out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file, true ), Charsets.UTF_8 ) ) ) {
+            for ( TokenMail mail : mails ) {
+                LinkedHashMap<String, Object> entry = new LinkedHashMap<>();
+                entry.put( "time", new DateTime().toDateTimeISO().toString() );
+                entry.put( "to", mail.identity );
+                entry.put( "token", mail.token );
+                out.write( objectMapper.writeValueAsString( entry ) );
+                out.newLine();
+            }
+        } catch ( IOException e ) {
+            logger.error( "Could not write to the mail file " + file, e );
+            return mails;
+        }
+        return Collections.emptyList();
+    }
+}
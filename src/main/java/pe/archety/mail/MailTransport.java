@@ -0,0 +1,14 @@
+package pe.archety.mail;
+
+import java.util.List;
+
+/*
+    Delivers token mails for the TokenMailer, a batch at a time so a transport
+    can reuse one connection for all of them. Only ever called from the
+    mailer's own threads, never from the writer.
+ */
+public interface MailTransport {
+
+    // Sends what it can and returns the mails that should be tried again later.
+    List<TokenMail> send( List<TokenMail> mails );
+}
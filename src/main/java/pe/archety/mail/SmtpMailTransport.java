@@ -0,0 +1,116 @@
+package pe.archety.mail;
+
+import com.google.common.base.Charsets;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Plain SMTP to a relay (typically the local MTA, which does TLS and delivery):
+    one connection per batch, one MAIL/RCPT/DATA exchange per mail. A mail the
+    relay refuses with a 4xx is retried, a 5xx is given up on; when the
+    connection itself fails every mail not sent yet is retried.
+ */
+public class SmtpMailTransport implements MailTransport {
+    private final static Logger logger = Logger.getLogger( SmtpMailTransport.class );
+    private static final int TIMEOUT_MILLIS = 10000;
+    private static final String SUBJECT = "Your archetype token";
+
+    private final String host;
+    private final int port;
+    private final String from;
+
+    public SmtpMailTransport( String host, int port, String from ) {
+        this.host = host;
+        this.port = port;
+        this.from = from;
+    }
+
+    @Override
+    public List<TokenMail> send( List<TokenMail> mails ) {
+        ArrayList<TokenMail> retry = new ArrayList<>();
+        int sent = 0;
+        try ( Socket socket = new Socket() ) {
+            socket.connect( new InetSocketAddress( host, port ), TIMEOUT_MILLIS );
+            socket.setSoTimeout( TIMEOUT_MILLIS );
+            BufferedReader in = new BufferedReader( new InputStreamReader( socket.getInputStream(), Charsets.UTF_8 ) );
+            Writer out = new OutputStreamWriter( socket.getOutputStream(), Charsets.UTF_8 );
+
+            expect( in, 220 );
+            command( in, out, "HELO " + socket.getLocalAddress().getHostName(), 250 );
+            for ( TokenMail mail : mails ) {
+                int code = sendOne( in, out, mail );
+                if ( code >= 400 && code < 500 ) {
+                    retry.add( mail );
+                } else if ( code >= 500 ) {
+                    logger.error( "Mail relay refused " + mail + " with " + code );
+                }
+                sent++;
+            }
+            command( in, out, "QUIT", 221 );
+        } catch ( IOException e ) {
+            logger.warn( "Could not talk to the mail relay at " + host + ":" + port, e );
+            retry.addAll( mails.subList( sent, mails.size() ) );
+        }
+        return retry;
+    }
+
+    // Returns 250 once the relay accepted the mail, or the code it refused it with.
+    private int sendOne( BufferedReader in, Writer out, TokenMail mail ) throws IOException {
+        int code = command( in, out, "MAIL FROM:<" + from + ">", 0 );
+        if ( code == 250 ) {
+            code = command( in, out, "RCPT TO:<" + mail.identity + ">", 0 );
+        }
+        if ( code == 250 || code == 251 ) {
+            code = command( in, out, "DATA", 354 );
+            out.write( "From: " + from + "\r\n" +
+                    "To: " + mail.identity + "\r\n" +
+                    "Subject: " + SUBJECT + "\r\n" +
+                    "\r\n" +
+                    "Your token is " + mail.token + "\r\n" +
+                    ".\r\n" );
+            out.flush();
+            code = expect( in, 0 );
+        }
+        if ( code != 250 ) {
+            command( in, out, "RSET", 250 );
+        }
+        return code;
+    }
+
+    private static int command( BufferedReader in, Writer out, String line, int expected ) throws IOException {
+        out.write( line + "\r\n" );
+        out.flush();
+        return expect( in, expected );
+    }
+
+    // Reads a (possibly multi-line) reply; an unexpected one is a broken conversation unless expected is 0.
+    private static int expect( BufferedReader in, int expected ) throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+            if ( line == null || line.length() < 3 ) {
+                throw new IOException( "Mail relay hung up" );
+            }
+        } while ( line.length() > 3 && line.charAt( 3 ) == '-' );
+
+        int code;
+        try {
+            code = Integer.parseInt( line.substring( 0, 3 ) );
+        } catch ( NumberFormatException e ) {
+            throw new IOException( "Unexpected reply from the mail relay: " + line );
+        }
+        if ( expected != 0 && code != expected ) {
+            throw new IOException( "Mail relay answered " + line );
+        }
+        return code;
+    }
+}
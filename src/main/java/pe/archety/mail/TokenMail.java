@@ -0,0 +1,24 @@
+package pe.archety.mail;
+
+/*
+    A generated token on its way to the address of the identity it belongs to.
+ */
+public final class TokenMail {
+    public final String identity;
+    public final String token;
+    int attempts;
+
+    public TokenMail( String identity, String token ) {
+        this.identity = identity;
+        this.token = token;
+    }
+
+    public int attempts() {
+        return attempts;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenMail{identity=" + identity + ", attempts=" + attempts + "}";
+    }
+}
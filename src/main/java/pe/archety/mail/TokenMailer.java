@@ -0,0 +1,186 @@
+package pe.archety.mail;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Mails generated tokens off the writer's path.
+
+    The writer hands a token over once the transaction that stored it has
+    committed; offer() never blocks, if the bounded queue is full the mail is
+    dropped and counted (the client can ask for a new token). A few threads
+    of its own drain the queue in batches into the MailTransport. Mails the
+    transport gives back are retried with exponential backoff, up to
+    MAX_ATTEMPTS, then logged and counted as failed.
+ */
+public class TokenMailer {
+    private final static Logger logger = Logger.getLogger( TokenMailer.class );
+
+    public static final int DEFAULT_CAPACITY = 10_000;
+    public static final int DEFAULT_THREADS = 1;
+    public static final int BATCH_SIZE = 50;
+    public static final int MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_BACKOFF_MILLIS = 1000;
+    private static final long POLL_MILLIS = 100;
+
+    private final MailTransport transport;
+    private final ArrayBlockingQueue<TokenMail> queue;
+    private final ExecutorService dispatchers;
+    private final ScheduledExecutorService retries;
+    private final int threads;
+    private final long backoffMillis;
+    // offered and neither sent nor given up on yet
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile boolean running;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public TokenMailer( MailTransport transport ) {
+        this( transport, DEFAULT_CAPACITY, DEFAULT_THREADS );
+    }
+
+    public TokenMailer( MailTransport transport, int capacity, int threads ) {
+        this( transport, capacity, threads, DEFAULT_BACKOFF_MILLIS );
+    }
+
+    TokenMailer( MailTransport transport, int capacity, int threads, long backoffMillis ) {
+        this.transport = transport;
+        this.backoffMillis = backoffMillis;
+        this.queue = new ArrayBlockingQueue<>( capacity );
+        this.threads = threads;
+        this.dispatchers = Executors.newFixedThreadPool( threads,
+                new ThreadFactoryBuilder().setNameFormat( "token-mailer-%d" ).setDaemon( true ).build() );
+        this.retries = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat( "token-mailer-retry" ).setDaemon( true ).build() );
+    }
+
+    public void start() {
+        running = true;
+        for ( int i = 0; i < threads; i++ ) {
+            dispatchers.execute( new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            } );
+        }
+    }
+
+    // Sends what is queued and waiting for a retry, up to timeoutMillis, then stops.
+    public void stop( long timeoutMillis ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while ( !isIdle() && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+        running = false;
+        retries.shutdownNow();
+        dispatchers.shutdown();
+        dispatchers.awaitTermination( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+        if ( outstanding.get() > 0 ) {
+            logger.warn( "Stopping with " + outstanding.get() + " token mails not sent" );
+        }
+    }
+
+    // Never blocks: returns false (and counts the mail as dropped) when the queue is full.
+    public boolean offer( String identity, String token ) {
+        outstanding.incrementAndGet();
+        if ( queue.offer( new TokenMail( identity, token ) ) ) {
+            return true;
+        }
+        outstanding.decrementAndGet();
+        dropped.incrementAndGet();
+        logger.warn( "Token mail queue is full, dropped the token mail for " + identity );
+        return false;
+    }
+
+    private void dispatch() {
+        ArrayList<TokenMail> batch = new ArrayList<>( BATCH_SIZE );
+        while ( running ) {
+            try {
+                TokenMail first = queue.poll( POLL_MILLIS, TimeUnit.MILLISECONDS );
+                if ( first == null ) {
+                    continue;
+                }
+                batch.add( first );
+                queue.drainTo( batch, BATCH_SIZE - 1 );
+                send( batch );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch ( RuntimeException e ) {
+                logger.error( "Token mail transport failed", e );
+                retry( batch );
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void send( List<TokenMail> batch ) {
+        for ( TokenMail mail : batch ) {
+            mail.attempts++;
+        }
+        List<TokenMail> failures = transport.send( batch );
+        sent.addAndGet( batch.size() - failures.size() );
+        outstanding.addAndGet( failures.size() - batch.size() );
+        retry( failures );
+    }
+
+    private void retry( List<TokenMail> mails ) {
+        for ( final TokenMail mail : mails ) {
+            if ( mail.attempts >= MAX_ATTEMPTS ) {
+                outstanding.decrementAndGet();
+                failed.incrementAndGet();
+                logger.error( "Giving up on " + mail );
+                continue;
+            }
+            retried.incrementAndGet();
+            retries.schedule( new Runnable() {
+                @Override
+                public void run() {
+                    if ( !queue.offer( mail ) ) {
+                        outstanding.decrementAndGet();
+                        dropped.incrementAndGet();
+                    }
+                }
+            }, backoffMillis << ( mail.attempts - 1 ), TimeUnit.MILLISECONDS );
+        }
+    }
+
+    public boolean isIdle() {
+        return outstanding.get() == 0;
+    }
+
+    public int queued() {
+        return queue.size();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,98 @@
+package pe.archety.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    A lock-free histogram of non-negative longs in the manner of HdrHistogram:
+    values are counted in buckets that split every power of two into
+    SUB_BUCKETS, so any percentile read back is at most 1/SUB_BUCKETS (12.5%)
+    above the value recorded, over the whole range of a long, in 4 KB.
+    Recording is an increment or three; readers walk the buckets. Nothing ever
+    decays, readers that want recent values take the difference of two reads of
+    countAtOrBelow(), as Prometheus does with its histogram buckets.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = ( 64 - SUB_BUCKET_BITS ) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record( long value ) {
+        if ( value < 0 ) {
+            value = 0;
+        }
+        counts.incrementAndGet( index( value ) );
+        count.incrementAndGet();
+        sum.addAndGet( value );
+        long current;
+        while ( value > ( current = max.get() ) && !max.compareAndSet( current, value ) ) {
+            // lost to another recorder, look again
+        }
+    }
+
+    static int index( long value ) {
+        if ( value < SUB_BUCKETS ) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros( value );
+        int subBucket = (int) ( value >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+        return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + subBucket;
+    }
+
+    // The largest value that falls in the bucket.
+    static long highestValue( int index ) {
+        if ( index < SUB_BUCKETS ) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) ( SUB_BUCKETS + index % SUB_BUCKETS ) << shift;
+        return lowest + ( 1L << shift ) - 1;
+    }
+
+    // The value at or below which the given fraction of the recorded values fall, 0 if there are none.
+    public long percentile( double fraction ) {
+        long total = count.get();
+        if ( total == 0 ) {
+            return 0;
+        }
+        long rank = Math.max( 1, (long) Math.ceil( fraction * total ) );
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            seen += counts.get( i );
+            if ( seen >= rank ) {
+                return Math.min( highestValue( i ), max.get() );
+            }
+        }
+        return max.get();
+    }
+
+    /*
+        How many recorded values fell in buckets wholly at or below the value. A
+        value in the bucket that straddles it is only counted once the value
+        passes the top of that bucket, at most 1/SUB_BUCKETS later.
+     */
+    public long countAtOrBelow( long value ) {
+        long seen = 0;
+        for ( int i = 0; i < BUCKETS && highestValue( i ) <= value; i++ ) {
+            seen += counts.get( i );
+        }
+        return seen;
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long sum() {
+        return sum.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+}
@@ -0,0 +1,77 @@
+package pe.archety.metrics;
+
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.writes.WritePriority;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    What the write pipeline has done since startup, kept by the BatchWriterService
+    and its lanes and read by the admin MetricsHandler. Times are in nanoseconds.
+
+    drainSize     writes per batch taken off the queue
+    batchNanos    applying and committing a whole batch
+    commitNanos   one transaction (chunk) of a lane, retries included
+    lagNanos      from submit() until the write's transaction has committed,
+                  overall and by the WritePriority of its action
+ */
+public class WriterMetrics {
+    private static final BatchWriterServiceAction[] ACTIONS = BatchWriterServiceAction.values();
+
+    private final AtomicLongArray submitted = new AtomicLongArray( ACTIONS.length );
+    private final AtomicLongArray committed = new AtomicLongArray( ACTIONS.length );
+    private final AtomicLong laneFailures = new AtomicLong();
+    private final AtomicLong batchFailures = new AtomicLong();
+
+    public final Histogram drainSize = new Histogram();
+    public final Histogram batchNanos = new Histogram();
+    public final Histogram commitNanos = new Histogram();
+    public final Histogram lagNanos = new Histogram();
+    private final Histogram[] priorityLagNanos = new Histogram[ WritePriority.values().length ];
+
+    public WriterMetrics() {
+        for ( int i = 0; i < priorityLagNanos.length; i++ ) {
+            priorityLagNanos[ i ] = new Histogram();
+        }
+    }
+
+    public void recordSubmitted( BatchWriterServiceAction action ) {
+        submitted.incrementAndGet( action.ordinal() );
+    }
+
+    public void recordCommitted( BatchWriterServiceAction action, long lagNanos ) {
+        committed.incrementAndGet( action.ordinal() );
+        this.lagNanos.record( lagNanos );
+        priorityLagNanos[ action.priority.ordinal() ].record( lagNanos );
+    }
+
+    public void recordLaneFailure() {
+        laneFailures.incrementAndGet();
+    }
+
+    // A batch that failed before the lanes got it, while being resolved, coalesced or sorted.
+    public void recordBatchFailure() {
+        batchFailures.incrementAndGet();
+    }
+
+    public long submitted( BatchWriterServiceAction action ) {
+        return submitted.get( action.ordinal() );
+    }
+
+    public long committed( BatchWriterServiceAction action ) {
+        return committed.get( action.ordinal() );
+    }
+
+    public Histogram lagNanos( WritePriority priority ) {
+        return priorityLagNanos[ priority.ordinal() ];
+    }
+
+    public long laneFailures() {
+        return laneFailures.get();
+    }
+
+    public long batchFailures() {
+        return batchFailures.get();
+    }
+}
@@ -0,0 +1,349 @@
+package pe.archety.tools;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.base.Charsets;
+import org.apache.log4j.Logger;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.lucene.unsafe.batchinsert.LuceneBatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import pe.archety.ArchetypeConstants;
+import pe.archety.Labels;
+import pe.archety.NodeCounters;
+import pe.archety.Relationships;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static pe.archety.ArchetypeConstants.EMAIL_VALIDATOR;
+import static pe.archety.ArchetypeConstants.URLPREFIX;
+
+/*
+    Seeds a new store without the API, straight through Neo4j's BatchInserter:
+
+        java -cp archetype_api-1.0-SNAPSHOT-jar-with-dependencies.jar pe.archety.tools.BulkLoader <store dir> <file>...
+
+    Files ending in .csv have a header row naming their columns, anything else is
+    read as one JSON object per line. Both use the fields of POST /v1/bulk, and
+    what a record holds decides what it is:
+
+        identity, relationship_type and url/title or email/phone(+region)  a likes, hates or knows
+        identity (or email, or phone+region)                                an identity
+        url and/or title                                                    a page
+
+    Identities are hashed and knows encrypted as ArchetypeConstants does, nodes
+    are created once and the relationships once, as the writer would. Pages are
+    not checked against Wikipedia. The legacy indexes the UniqueFactories use and
+    the title fulltext index are filled in as well, and the constraints the
+    initialize handler would create are left for the database to build when it
+    next starts, so do not run initialize on a loaded store. The NodeCounters
+    properties are written at the end from the relationships created, so the
+    store needs no counter repair.
+
+    The whole load is one pass in memory (a map entry per identity and page, a
+    key per relationship and the counters of every related node), give it a heap
+    to match. Bad records are logged with
+    their file and line and skipped; the exit status is 1 if there were any.
+ */
+public class BulkLoader {
+    private final static Logger logger = Logger.getLogger( BulkLoader.class );
+    private static final int PROGRESS_EVERY = 1_000_000;
+
+    // What a record may hold, unknown fields are ignored
+    static final class Record {
+        public String identity;
+        public String relationship_type;
+        public String url;
+        public String title;
+        public String email;
+        public String phone;
+        public String region;
+    }
+
+    private final BatchInserter inserter;
+    private final BatchInserterIndexProvider indexProvider;
+    private final BatchInserterIndex identityIndex;
+    private final BatchInserterIndex pageIndex;
+    private final BatchInserterIndex titleIndex;
+    private final ObjectReader recordReader = new ObjectMapper().reader( Record.class )
+            .without( DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES );
+
+    private final HashMap<String, Long> identities = new HashMap<>();
+    private final HashMap<String, Long> pages = new HashMap<>();
+    private final EnumMap<Relationships, HashSet<Long>> relationships = new EnumMap<>( Relationships.class );
+    // a node's counters, by index into COUNTERS
+    private static final String[] COUNTERS = { NodeCounters.LIKES, NodeCounters.HATES, NodeCounters.KNOWS,
+            NodeCounters.LIKED, NodeCounters.HATED };
+    private static final int LIKES_INDEX = 0;
+    private static final int HATES_INDEX = 1;
+    private static final int KNOWS_INDEX = 2;
+    private static final int LIKED_INDEX = 3;
+    private static final int HATED_INDEX = 4;
+    private final HashMap<Long, long[]> counters = new HashMap<>();
+    private long records;
+    private long created;
+    private long failed;
+
+    public BulkLoader( File storeDir ) throws IOException {
+        if ( new File( storeDir, "neostore" ).exists() ) {
+            throw new IOException( storeDir + " holds a store already, the loader only seeds new ones" );
+        }
+        inserter = BatchInserters.inserter( storeDir.getAbsolutePath() );
+        indexProvider = new LuceneBatchInserterIndexProvider( inserter );
+        identityIndex = indexProvider.nodeIndex( Labels.Identity.name(), MapUtil.stringMap( "type", "exact" ) );
+        pageIndex = indexProvider.nodeIndex( Labels.Page.name(), MapUtil.stringMap( "type", "exact" ) );
+        titleIndex = indexProvider.nodeIndex( "node_auto_index",
+                MapUtil.stringMap( "type", "fulltext", "to_lower_case", "true" ) );
+        for ( Relationships type : Relationships.values() ) {
+            relationships.put( type, new HashSet<Long>() );
+        }
+    }
+
+    public void load( File file ) throws IOException {
+        logger.info( "Loading " + file );
+        try ( BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), Charsets.UTF_8 ) ) ) {
+            boolean csv = file.getName().toLowerCase().endsWith( ".csv" );
+            String[] header = null;
+            String text;
+            int number = 0;
+            while ( ( text = reader.readLine() ) != null ) {
+                number++;
+                if ( text.trim().isEmpty() ) {
+                    continue;
+                }
+                if ( csv && header == null ) {
+                    header = parseCsv( text ).toArray( new String[ 0 ] );
+                    continue;
+                }
+                try {
+                    load( csv ? csvRecord( header, text ) : recordReader.<Record>readValue( text ) );
+                } catch ( Exception e ) {
+                    failed++;
+                    logger.warn( file.getName() + ":" + number + ": " + ( e.getMessage() == null ? e : e.getMessage() ) );
+                }
+                if ( ++records % PROGRESS_EVERY == 0 ) {
+                    logger.info( String.format( "%d records, %d identities, %d pages, %d relationships",
+                            records, identities.size(), pages.size(), created ) );
+                }
+            }
+        }
+    }
+
+    void load( Record record ) throws Exception {
+        if ( record.relationship_type != null ) {
+            Relationships type;
+            try {
+                type = Relationships.valueOf( record.relationship_type.toUpperCase() );
+            } catch ( IllegalArgumentException e ) {
+                throw new IllegalArgumentException( "Unknown relationship_type " + record.relationship_type + "." );
+            }
+            if ( record.identity == null ) {
+                throw new IllegalArgumentException( "Parameter identity required." );
+            }
+            String identity = ArchetypeConstants.normalizeIdentity( record.identity, "US" );
+            long identityNode = identity( identity );
+            if ( type == Relationships.KNOWS ) {
+                String identity2 = secondIdentity( record );
+                relate( identityNode, identity( identity2 ), type,
+                        MapUtil.map( "encryptedIdentity", ArchetypeConstants.encrypt( identity2, identity ) ) );
+            } else {
+                relate( identityNode, page( record ), type, null );
+            }
+        } else if ( record.identity != null ) {
+            identity( ArchetypeConstants.normalizeIdentity( record.identity, record.region == null ? "US" : record.region ) );
+        } else if ( record.email != null || record.phone != null ) {
+            identity( secondIdentity( record ) );
+        } else if ( record.url != null || record.title != null ) {
+            page( record );
+        } else {
+            throw new IllegalArgumentException( "Nothing to load." );
+        }
+    }
+
+    private static String secondIdentity( Record record ) {
+        if ( record.email != null ) {
+            if ( !EMAIL_VALIDATOR.isValid( record.email ) ) {
+                throw new IllegalArgumentException( "Email not valid." );
+            }
+            return record.email;
+        } else if ( record.phone != null ) {
+            return ArchetypeConstants.normalizeIdentity( record.phone, record.region == null ? "US" : record.region );
+        }
+        throw new IllegalArgumentException( "Parameters email or phone required." );
+    }
+
+    private long identity( String identity ) {
+        String identityHash = ArchetypeConstants.calculateHash( identity );
+        Long nodeId = identities.get( identityHash );
+        if ( nodeId == null ) {
+            Map<String, Object> properties = MapUtil.map( "identity", identityHash );
+            nodeId = inserter.createNode( properties, Labels.Identity );
+            identityIndex.add( nodeId, properties );
+            identities.put( identityHash, nodeId );
+        }
+        return nodeId;
+    }
+
+    // A url as the API takes it, or one made from the title; the title is made from the url if missing.
+    private long page( Record record ) throws IOException {
+        String url = record.url;
+        String title = record.title;
+        if ( url == null ) {
+            if ( title == null ) {
+                throw new IllegalArgumentException( "Parameters url or title required." );
+            }
+            url = URLPREFIX + URLEncoder.encode( title.replace( " ", "_" ), "UTF-8" );
+        } else if ( !url.startsWith( URLPREFIX ) ) {
+            throw new IllegalArgumentException( "URL must start with " + URLPREFIX );
+        }
+        Long nodeId = pages.get( url );
+        if ( nodeId == null ) {
+            if ( title == null ) {
+                title = URLDecoder.decode( url.substring( URLPREFIX.length() ), "UTF-8" ).replace( "_", " " );
+            }
+            nodeId = inserter.createNode( MapUtil.map( "url", url, "title", title ), Labels.Page );
+            pageIndex.add( nodeId, MapUtil.<String, Object>map( "url", url ) );
+            titleIndex.add( nodeId, MapUtil.<String, Object>map( "title", title ) );
+            pages.put( url, nodeId );
+        }
+        return nodeId;
+    }
+
+    private void relate( long from, long to, Relationships type, Map<String, Object> properties ) {
+        // node ids of a freshly seeded store fit in 32 bits
+        if ( relationships.get( type ).add( from << 32 | to ) ) {
+            inserter.createRelationship( from, to, type, properties );
+            created++;
+            switch ( type ) {
+                case LIKES:
+                    count( from, LIKES_INDEX );
+                    count( to, LIKED_INDEX );
+                    break;
+
+                case HATES:
+                    count( from, HATES_INDEX );
+                    count( to, HATED_INDEX );
+                    break;
+
+                default:
+                    count( from, KNOWS_INDEX );
+            }
+        }
+    }
+
+    private void count( long nodeId, int counter ) {
+        long[] nodeCounters = counters.get( nodeId );
+        if ( nodeCounters == null ) {
+            nodeCounters = new long[ COUNTERS.length ];
+            counters.put( nodeId, nodeCounters );
+        }
+        nodeCounters[ counter ]++;
+    }
+
+    private Record csvRecord( String[] header, String text ) {
+        List<String> values = parseCsv( text );
+        Record record = new Record();
+        for ( int i = 0; i < header.length && i < values.size(); i++ ) {
+            String value = values.get( i ).isEmpty() ? null : values.get( i );
+            switch ( header[ i ].trim() ) {
+                case "identity": record.identity = value; break;
+                case "relationship_type": record.relationship_type = value; break;
+                case "url": record.url = value; break;
+                case "title": record.title = value; break;
+                case "email": record.email = value; break;
+                case "phone": record.phone = value; break;
+                case "region": record.region = value; break;
+            }
+        }
+        return record;
+    }
+
+    // Comma separated, fields may be "quoted" with "" for a quote; no line breaks inside fields.
+    static List<String> parseCsv( String line ) {
+        if ( line.isEmpty() ) {
+            return Collections.emptyList();
+        }
+        ArrayList<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for ( int i = 0; i < line.length(); i++ ) {
+            char c = line.charAt( i );
+            if ( quoted ) {
+                if ( c == '"' && i + 1 < line.length() && line.charAt( i + 1 ) == '"' ) {
+                    value.append( '"' );
+                    i++;
+                } else if ( c == '"' ) {
+                    quoted = false;
+                } else {
+                    value.append( c );
+                }
+            } else if ( c == '"' ) {
+                quoted = true;
+            } else if ( c == ',' ) {
+                values.add( value.toString() );
+                value.setLength( 0 );
+            } else {
+                value.append( c );
+            }
+        }
+        values.add( value.toString() );
+        return values;
+    }
+
+    // Sets the counters, leaves the constraints for the database to build, then writes everything out.
+    public void finish() {
+        for ( Map.Entry<Long, long[]> entry : counters.entrySet() ) {
+            long[] nodeCounters = entry.getValue();
+            for ( int i = 0; i < COUNTERS.length; i++ ) {
+                if ( nodeCounters[ i ] != 0 ) {
+                    inserter.setNodeProperty( entry.getKey(), COUNTERS[ i ], nodeCounters[ i ] );
+                }
+            }
+        }
+        inserter.createDeferredConstraint( Labels.Identity ).assertPropertyIsUnique( "identity" ).create();
+        inserter.createDeferredConstraint( Labels.Identity ).assertPropertyIsUnique( "generatedToken" ).create();
+        inserter.createDeferredConstraint( Labels.Identity ).assertPropertyIsUnique( "authenticatedToken" ).create();
+        inserter.createDeferredConstraint( Labels.Page ).assertPropertyIsUnique( "url" ).create();
+        indexProvider.shutdown();
+        inserter.shutdown();
+        logger.info( String.format( "Loaded %d records: %d identities, %d pages, %d relationships, %d records failed",
+                records, identities.size(), pages.size(), created, failed ) );
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public static void main( final String[] args ) throws IOException {
+        if ( args.length < 2 ) {
+            System.err.println( "Usage: BulkLoader <store dir> <file.csv|file.json>..." );
+            System.exit( 2 );
+        }
+        BulkLoader loader = new BulkLoader( new File( args[ 0 ] ) );
+        try {
+            for ( int i = 1; i < args.length; i++ ) {
+                loader.load( new File( args[ i ] ) );
+            }
+        } finally {
+            loader.finish();
+        }
+        // hashing starts the API's writer thread along with ArchetypeConstants, do not wait for it
+        System.exit( loader.getFailed() == 0 ? 0 : 1 );
+    }
+}
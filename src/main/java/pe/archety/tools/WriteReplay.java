@@ -0,0 +1,173 @@
+package pe.archety.tools;
+
+import org.apache.log4j.Logger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.schema.Schema;
+import pe.archety.BatchWriterService;
+import pe.archety.Labels;
+import pe.archety.metrics.Histogram;
+import pe.archety.metrics.WriterMetrics;
+import pe.archety.writes.KnowsWrite;
+import pe.archety.writes.LikesOrHatesWrite;
+import pe.archety.writes.OverloadPolicy;
+import pe.archety.writes.TokenWrite;
+import pe.archety.writes.Write;
+import pe.archety.writes.WriteQueue;
+import pe.archety.writes.WriteRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.TimeUnit;
+
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
+
+/*
+    Plays a recording made with archetype.writer.recordFile into a store
+    through the BatchWriterService, to measure the writer against real traffic:
+
+        java -cp ArchetypeServer-jar-with-dependencies.jar pe.archety.tools.WriteReplay <store dir> <recording> [speed]
+
+    Without a speed (or with 0) writes are queued as fast as the writer takes
+    them; with one they keep the recorded timing, speed times faster. Give it a
+    copy of the production store, or a new one (the constraints the initialize
+    handler would create are created first). Node ids in the recording are only
+    valid for the store it was made on, so they are dropped and the writer
+    resolves every write by its hashes and urls.
+
+    At the end it reports writes per second, the batch and commit time
+    percentiles of the WriterMetrics, and the heap used.
+ */
+public class WriteReplay {
+    private final static Logger logger = Logger.getLogger( WriteReplay.class );
+    private static final int PROGRESS_EVERY = 100_000;
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p99.9" };
+
+    private final GraphDatabaseService db;
+    private final BatchWriterService writer = BATCH_WRITER_SERVICE;
+    private long replayed;
+    private long elapsedNanos;
+
+    public WriteReplay( GraphDatabaseService db ) {
+        this.db = db;
+        createConstraints();
+        writer.getQueue().configure( WriteQueue.DEFAULT_CAPACITY, WriteQueue.DEFAULT_CAPACITY_BYTES, OverloadPolicy.BLOCK,
+                TimeUnit.DAYS.toMillis( 1 ), 1.0 );
+        writer.setDeferredResolution( true );
+        writer.SetGraphDatabase( db );
+    }
+
+    private void createConstraints() {
+        try ( Transaction tx = db.beginTx() ) {
+            Schema schema = db.schema();
+            if ( schema.getConstraints().iterator().hasNext() ) {
+                return;
+            }
+            schema.constraintFor( Labels.Identity ).assertPropertyIsUnique( "identity" ).create();
+            schema.constraintFor( Labels.Identity ).assertPropertyIsUnique( "generatedToken" ).create();
+            schema.constraintFor( Labels.Identity ).assertPropertyIsUnique( "authenticatedToken" ).create();
+            schema.constraintFor( Labels.Page ).assertPropertyIsUnique( "url" ).create();
+            tx.success();
+        }
+        try ( Transaction tx = db.beginTx() ) {
+            db.schema().awaitIndexesOnline( 1, TimeUnit.DAYS );
+            tx.success();
+        }
+    }
+
+    // Replays the whole recording and waits for the writer to commit it.
+    public void replay( File recording, double speed ) throws IOException, InterruptedException {
+        logger.info( "Replaying " + recording + ( speed > 0 ? " at " + speed + "x" : " as fast as possible" ) );
+        long start = System.nanoTime();
+        try ( WriteRecorder.Reader reader = new WriteRecorder.Reader( recording ) ) {
+            Write write;
+            while ( ( write = reader.next() ) != null ) {
+                if ( speed > 0 ) {
+                    long due = start + (long) ( TimeUnit.MICROSECONDS.toNanos( reader.micros() ) / speed );
+                    long wait = due - System.nanoTime();
+                    if ( wait > 0 ) {
+                        TimeUnit.NANOSECONDS.sleep( wait );
+                    }
+                }
+                forgetNodeIds( write );
+                if ( writer.enqueue( write ) && ++replayed % PROGRESS_EVERY == 0 ) {
+                    logger.info( String.format( "%d writes queued, %d waiting", replayed, writer.getQueue().size() ) );
+                }
+            }
+        }
+        while ( !writer.isIdle() ) {
+            Thread.sleep( 10 );
+        }
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    static void forgetNodeIds( Write write ) {
+        if ( write instanceof TokenWrite ) {
+            ( (TokenWrite) write ).identityNodeId = Write.NO_NODE;
+        } else if ( write instanceof KnowsWrite ) {
+            ( (KnowsWrite) write ).identityNodeId = Write.NO_NODE;
+            ( (KnowsWrite) write ).identityNodeId2 = Write.NO_NODE;
+        } else if ( write instanceof LikesOrHatesWrite ) {
+            ( (LikesOrHatesWrite) write ).identityNodeId = Write.NO_NODE;
+            ( (LikesOrHatesWrite) write ).pageNodeId = Write.NO_NODE;
+        }
+    }
+
+    public long getReplayed() {
+        return replayed;
+    }
+
+    public String report() {
+        WriterMetrics metrics = writer.getMetrics();
+        StringBuilder out = new StringBuilder();
+        double seconds = elapsedNanos / 1e9;
+        out.append( String.format( "%d writes in %.1f s: %.0f writes/s%n", replayed, seconds, replayed / Math.max( seconds, 1e-9 ) ) );
+        out.append( String.format( "%d batches, %.0f writes per batch on average%n",
+                metrics.drainSize.count(), metrics.drainSize.sum() / (double) Math.max( 1, metrics.drainSize.count() ) ) );
+        percentiles( out, "batch", metrics.batchNanos );
+        percentiles( out, "commit", metrics.commitNanos );
+        percentiles( out, "lag", metrics.lagNanos );
+        long peak = 0;
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            if ( pool.getType() == MemoryType.HEAP ) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        out.append( String.format( "heap: %d MB used, %d MB peak, %d MB max%n",
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 20, peak >> 20,
+                Runtime.getRuntime().maxMemory() >> 20 ) );
+        return out.toString();
+    }
+
+    private static void percentiles( StringBuilder out, String name, Histogram histogram ) {
+        out.append( String.format( "%-7s", name ) );
+        for ( int i = 0; i < PERCENTILES.length; i++ ) {
+            out.append( String.format( " %s %.1f ms", PERCENTILE_NAMES[ i ], histogram.percentile( PERCENTILES[ i ] ) / 1e6 ) );
+        }
+        out.append( String.format( " max %.1f ms%n", histogram.max() / 1e6 ) );
+    }
+
+    public static void main( final String[] args ) throws Exception {
+        if ( args.length < 2 ) {
+            System.err.println( "Usage: WriteReplay <store dir> <recording> [speed]" );
+            System.exit( 2 );
+        }
+        double speed = args.length > 2 ? Double.parseDouble( args[ 2 ] ) : 0;
+        GraphDatabaseService db = new GraphDatabaseFactory().newEmbeddedDatabase( args[ 0 ] );
+        try {
+            WriteReplay replay = new WriteReplay( db );
+            replay.replay( new File( args[ 1 ] ), speed );
+            System.out.print( replay.report() );
+        } finally {
+            BATCH_WRITER_SERVICE.SetGraphDatabase( null );
+            db.shutdown();
+        }
+        // the writer thread does not stop on its own
+        System.exit( 0 );
+    }
+}
@@ -0,0 +1,64 @@
+package pe.archety.writes;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import org.bouncycastle.util.encoders.Base64;
+import org.joda.time.DateTime;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+
+/*
+    Writes the writer gave up on, one JSON object per line:
+
+        {"time":"...","sequence":12,"write":"CREATE_LIKES_RELATIONSHIP{...}","error":"...","record":"<base64>"}
+
+    "record" is the WriteCodec encoding of the write, so it can be decoded and
+    queued again once whatever broke it has been fixed.
+ */
+public class DeadLetterFile implements Closeable {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final BufferedWriter out;
+    private final ByteBuffer scratch = ByteBuffer.allocate( 64 * 1024 );
+    private long count;
+
+    public DeadLetterFile( File file ) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if ( directory != null && !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException( "Could not create directory " + directory );
+        }
+        this.out = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file, true ), Charsets.UTF_8 ) );
+    }
+
+    public synchronized void write( Write write, Throwable error ) throws IOException {
+        LinkedHashMap<String, Object> entry = new LinkedHashMap<>();
+        entry.put( "time", new DateTime().toDateTimeISO().toString() );
+        entry.put( "sequence", write.sequence() );
+        entry.put( "write", write.toString() );
+        entry.put( "error", String.valueOf( error ) );
+        scratch.clear();
+        WriteCodec.encode( write, scratch );
+        entry.put( "record", Base64.toBase64String( scratch.array(), 0, scratch.position() ) );
+
+        out.write( objectMapper.writeValueAsString( entry ) );
+        out.newLine();
+        out.flush();
+        count++;
+    }
+
+    public synchronized long count() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
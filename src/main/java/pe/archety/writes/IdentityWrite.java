@@ -0,0 +1,49 @@
+package pe.archety.writes;
+
+import pe.archety.BatchWriterServiceAction;
+
+/*
+    CREATE_IDENTITY
+ */
+public final class IdentityWrite extends Write {
+    private static final WritePool<IdentityWrite> POOL = new WritePool<IdentityWrite>( WritePool.DEFAULT_CAPACITY ) {
+        @Override
+        protected IdentityWrite newInstance() {
+            return new IdentityWrite( this );
+        }
+    };
+    private static final int SHALLOW_BYTES = 24;
+
+    public String identityHash;
+
+    private IdentityWrite( WritePool<IdentityWrite> pool ) {
+        super( pool );
+    }
+
+    public static IdentityWrite acquire( String identityHash ) {
+        IdentityWrite write = POOL.acquire();
+        write.action = BatchWriterServiceAction.CREATE_IDENTITY;
+        write.identityHash = identityHash;
+        return write;
+    }
+
+    @Override
+    public int estimatedBytes() {
+        return SHALLOW_BYTES + estimatedBytes( identityHash );
+    }
+
+    @Override
+    public long transactionBytes() {
+        return nodeBytes( NO_NODE, identityHash );
+    }
+
+    @Override
+    protected void clear() {
+        identityHash = null;
+    }
+
+    @Override
+    public String toString() {
+        return action + "{identityHash=" + identityHash + "}";
+    }
+}
@@ -0,0 +1,13 @@
+package pe.archety.writes;
+
+/*
+    When the WriteJournal forces its mapped pages to disk.
+
+    NONE leaves it to the operating system, which survives a crash or restart
+    of the process but not of the machine. BATCH forces once per writer batch,
+    before it is applied. ALWAYS forces on every append, before the handler
+    answers 201.
+ */
+public enum JournalSyncPolicy {
+    NONE, BATCH, ALWAYS
+}
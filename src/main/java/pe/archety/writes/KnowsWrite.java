@@ -0,0 +1,81 @@
+package pe.archety.writes;
+
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.CommitSizer;
+
+/*
+    CREATE_[IDENTITY|2ND_IDENTITY|BOTH]_AND_KNOWS_RELATIONSHIP, CREATE_KNOWS_RELATIONSHIP
+
+    Both hashes are always set, the node ids only when the handler found them.
+ */
+public final class KnowsWrite extends Write {
+    private static final WritePool<KnowsWrite> POOL = new WritePool<KnowsWrite>( WritePool.DEFAULT_CAPACITY ) {
+        @Override
+        protected KnowsWrite newInstance() {
+            return new KnowsWrite( this );
+        }
+    };
+    private static final int SHALLOW_BYTES = 48;
+
+    public String identityHash;
+    public long identityNodeId = NO_NODE;
+    public String identityHash2;
+    public long identityNodeId2 = NO_NODE;
+    public String encryptedIdentity;
+
+    private KnowsWrite( WritePool<KnowsWrite> pool ) {
+        super( pool );
+    }
+
+    public static KnowsWrite acquire( String identityHash, long identityNodeId,
+                                      String identityHash2, long identityNodeId2,
+                                      String encryptedIdentity ) {
+        KnowsWrite write = POOL.acquire();
+        write.action = actionFor( identityNodeId == NO_NODE, identityNodeId2 == NO_NODE );
+        write.identityHash = identityHash;
+        write.identityNodeId = identityNodeId;
+        write.identityHash2 = identityHash2;
+        write.identityNodeId2 = identityNodeId2;
+        write.encryptedIdentity = encryptedIdentity;
+        return write;
+    }
+
+    static BatchWriterServiceAction actionFor( boolean createIdentity, boolean createIdentity2 ) {
+        if ( createIdentity && createIdentity2 ) {
+            return BatchWriterServiceAction.CREATE_BOTH_AND_KNOWS_RELATIONSHIP;
+        }
+        if ( createIdentity ) {
+            return BatchWriterServiceAction.CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP;
+        }
+        if ( createIdentity2 ) {
+            return BatchWriterServiceAction.CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP;
+        }
+        return BatchWriterServiceAction.CREATE_KNOWS_RELATIONSHIP;
+    }
+
+    @Override
+    public int estimatedBytes() {
+        return SHALLOW_BYTES + estimatedBytes( identityHash ) + estimatedBytes( identityHash2 ) + estimatedBytes( encryptedIdentity );
+    }
+
+    @Override
+    public long transactionBytes() {
+        return CommitSizer.RELATIONSHIP_BYTES + CommitSizer.propertyBytes( encryptedIdentity )
+                + nodeBytes( identityNodeId, identityHash ) + nodeBytes( identityNodeId2, identityHash2 );
+    }
+
+    @Override
+    protected void clear() {
+        identityHash = null;
+        identityNodeId = NO_NODE;
+        identityHash2 = null;
+        identityNodeId2 = NO_NODE;
+        encryptedIdentity = null;
+    }
+
+    @Override
+    public String toString() {
+        return action + "{identityHash=" + identityHash + ", identityNodeId=" + identityNodeId +
+                ", identityHash2=" + identityHash2 + ", identityNodeId2=" + identityNodeId2 + "}";
+    }
+}
@@ -0,0 +1,94 @@
+package pe.archety.writes;
+
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.CommitSizer;
+import pe.archety.Relationships;
+
+/*
+    CREATE_[IDENTITY|PAGE|BOTH]_AND_[LIKES|HATES]_RELATIONSHIP, CREATE_[LIKES|HATES]_RELATIONSHIP
+
+    identityHash and url are always set, identityNodeId and pageNodeId only when
+    the handler found the node in the cache or the index.
+ */
+public final class LikesOrHatesWrite extends Write {
+    private static final WritePool<LikesOrHatesWrite> POOL = new WritePool<LikesOrHatesWrite>( WritePool.DEFAULT_CAPACITY ) {
+        @Override
+        protected LikesOrHatesWrite newInstance() {
+            return new LikesOrHatesWrite( this );
+        }
+    };
+    private static final int SHALLOW_BYTES = 56;
+
+    public Relationships relationshipType;
+    public String identityHash;
+    public long identityNodeId = NO_NODE;
+    public String url;
+    public String title;
+    public long pageNodeId = NO_NODE;
+
+    private LikesOrHatesWrite( WritePool<LikesOrHatesWrite> pool ) {
+        super( pool );
+    }
+
+    public static LikesOrHatesWrite acquire( Relationships relationshipType,
+                                             String identityHash, long identityNodeId,
+                                             String url, String title, long pageNodeId ) {
+        LikesOrHatesWrite write = POOL.acquire();
+        write.action = actionFor( relationshipType, identityNodeId == NO_NODE, pageNodeId == NO_NODE );
+        write.relationshipType = relationshipType;
+        write.identityHash = identityHash;
+        write.identityNodeId = identityNodeId;
+        write.url = url;
+        write.title = title;
+        write.pageNodeId = pageNodeId;
+        return write;
+    }
+
+    static BatchWriterServiceAction actionFor( Relationships relationshipType, boolean createIdentity, boolean createPage ) {
+        boolean likes = relationshipType == Relationships.LIKES;
+        if ( createIdentity && createPage ) {
+            return likes ? BatchWriterServiceAction.CREATE_BOTH_AND_LIKES_RELATIONSHIP
+                         : BatchWriterServiceAction.CREATE_BOTH_AND_HATES_RELATIONSHIP;
+        }
+        if ( createIdentity ) {
+            return likes ? BatchWriterServiceAction.CREATE_IDENTITY_AND_LIKES_RELATIONSHIP
+                         : BatchWriterServiceAction.CREATE_IDENTITY_AND_HATES_RELATIONSHIP;
+        }
+        if ( createPage ) {
+            return likes ? BatchWriterServiceAction.CREATE_PAGE_AND_LIKES_RELATIONSHIP
+                         : BatchWriterServiceAction.CREATE_PAGE_AND_HATES_RELATIONSHIP;
+        }
+        return likes ? BatchWriterServiceAction.CREATE_LIKES_RELATIONSHIP
+                     : BatchWriterServiceAction.CREATE_HATES_RELATIONSHIP;
+    }
+
+    @Override
+    public int estimatedBytes() {
+        return SHALLOW_BYTES + estimatedBytes( identityHash ) + estimatedBytes( url ) + estimatedBytes( title );
+    }
+
+    @Override
+    public long transactionBytes() {
+        long bytes = CommitSizer.RELATIONSHIP_BYTES + nodeBytes( identityNodeId, identityHash );
+        if ( pageNodeId == NO_NODE ) {
+            bytes += nodeBytes( pageNodeId, url ) + CommitSizer.propertyBytes( title );
+        }
+        return bytes;
+    }
+
+    @Override
+    protected void clear() {
+        relationshipType = null;
+        identityHash = null;
+        identityNodeId = NO_NODE;
+        url = null;
+        title = null;
+        pageNodeId = NO_NODE;
+    }
+
+    @Override
+    public String toString() {
+        return action + "{identityHash=" + identityHash + ", identityNodeId=" + identityNodeId +
+                ", url=" + url + ", pageNodeId=" + pageNodeId + "}";
+    }
+}
@@ -0,0 +1,79 @@
+package pe.archety.writes;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+    Optionally runs over a drained batch after the WriteCoalescer.
+
+    Sorts the writes by the node whose records they touch the most, so a batch
+    walks the node and relationship stores in id order instead of jumping
+    around them: likes and hates by their page (a page's relationships all
+    end up together), everything else by its (first) identity. Nodes that do
+    not exist yet go last, grouped by hash or url. HIGH priority writes stay
+    ahead of everything so they still commit in the first chunk.
+
+    The sort is stable, and the only writes whose order matters, the identity
+    and token writes, are keyed by the identity's hash whether or not the
+    handler knew its node, so they keep their order: a CREATE_IDENTITY_WITH_TOKEN
+    and a later CREATE_TOKEN for the same identity get the same key. Likes,
+    hates and knows each create a distinct relationship (the duplicates were
+    coalesced) and commute, so they can go by node.
+
+    Belongs to the writer thread.
+ */
+public class LocalityOrder {
+    private static final long NOT_CREATED = 1L << 62;
+
+    private static final Comparator<Write> ORDER = new Comparator<Write>() {
+        @Override
+        public int compare( Write a, Write b ) {
+            boolean aHigh = a.priority() == WritePriority.HIGH;
+            boolean bHigh = b.priority() == WritePriority.HIGH;
+            if ( aHigh != bHigh ) {
+                return aHigh ? -1 : 1;
+            }
+            return Long.compare( a.localityKey, b.localityKey );
+        }
+    };
+
+    public void sort( List<Write> writes ) {
+        for ( Write write : writes ) {
+            write.localityKey = key( write );
+        }
+        Collections.sort( writes, ORDER );
+    }
+
+    static long key( Write write ) {
+        switch ( write.action ) {
+            case CREATE_IDENTITY:
+                return key( Write.NO_NODE, ( (IdentityWrite) write ).identityHash );
+
+            // by hash even when the node is known, see above
+            case CREATE_IDENTITY_WITH_TOKEN:
+            case CREATE_TOKEN:
+                return key( Write.NO_NODE, ( (TokenWrite) write ).identityHash );
+
+            case CREATE_PAGE:
+                return key( Write.NO_NODE, ( (PageWrite) write ).url );
+
+            case CREATE_KNOWS_RELATIONSHIP:
+            case CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP:
+            case CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP:
+            case CREATE_BOTH_AND_KNOWS_RELATIONSHIP: {
+                KnowsWrite knowsWrite = (KnowsWrite) write;
+                return key( knowsWrite.identityNodeId, knowsWrite.identityHash );
+            }
+
+            default: {
+                LikesOrHatesWrite likesOrHatesWrite = (LikesOrHatesWrite) write;
+                return key( likesOrHatesWrite.pageNodeId, likesOrHatesWrite.url );
+            }
+        }
+    }
+
+    private static long key( long nodeId, String name ) {
+        return nodeId == Write.NO_NODE ? NOT_CREATED + ( name.hashCode() & 0xffffffffL ) : nodeId;
+    }
+}
@@ -0,0 +1,76 @@
+package pe.archety.writes;
+
+import org.apache.log4j.Logger;
+import pe.archety.CommitSizer;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    Decides when the BatchWriterService stops gathering writes and commits:
+    as soon as batchSize writes are in hand or lingerNanos have passed since
+    the first one arrived, whichever comes first.
+
+    The linger is a small fixed cap, and the writer only waits it out when more
+    writes were already queued behind the first one: a lone write at low load
+    is committed right away, and under load the writes arriving while a commit
+    is in flight make the next batch anyway.
+
+    The batch size is adjusted after every commit. Batches that filled up grow,
+    batches that took longer than a CommitSizer chunk is meant to shrink. The
+    latency target is the CommitSizer's, this only follows it.
+ */
+public class MicroBatchController {
+    private final static Logger logger = Logger.getLogger( MicroBatchController.class );
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_MIN_BATCH_SIZE = 50;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 40_000;
+    public static final long DEFAULT_LINGER_MILLIS = 5;
+
+    private static final double GROWTH = 1.25;
+    private static final double SHRINK = 0.75;
+
+    private volatile int minBatchSize = DEFAULT_MIN_BATCH_SIZE;
+    private volatile int maxBatchSizeLimit = DEFAULT_MAX_BATCH_SIZE;
+
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile long lingerNanos = TimeUnit.MILLISECONDS.toNanos( DEFAULT_LINGER_MILLIS );
+
+    public void configure( int batchSize, int minBatchSize, int maxBatchSize, long lingerMillis ) {
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSizeLimit = maxBatchSize;
+        this.batchSize = clamp( batchSize, minBatchSize, maxBatchSize );
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos( Math.max( 0, lingerMillis ) );
+    }
+
+    public int batchSize() {
+        return batchSize;
+    }
+
+    public long lingerNanos() {
+        return lingerNanos;
+    }
+
+    /*
+        Called by the writer after each batch with how many writes it held,
+        whether it was cut by size rather than by the deadline, and how long
+        applying and committing it took.
+     */
+    public void onCommit( int writes, boolean filled, long commitNanos ) {
+        int previousSize = batchSize;
+        if ( commitNanos > CommitSizer.defaultTargetCommitNanos() ) {
+            batchSize = clamp( (int) ( writes * SHRINK ), minBatchSize, maxBatchSizeLimit );
+        } else if ( filled ) {
+            batchSize = clamp( (int) Math.ceil( batchSize * GROWTH ), minBatchSize, maxBatchSizeLimit );
+        }
+
+        if ( batchSize != previousSize && logger.isDebugEnabled() ) {
+            logger.debug( String.format( "Batch size %d -> %d after %d writes committed in %d [msec]",
+                    previousSize, batchSize, writes, TimeUnit.NANOSECONDS.toMillis( commitNanos ) ) );
+        }
+    }
+
+    private static int clamp( int value, int min, int max ) {
+        return Math.max( min, Math.min( max, value ) );
+    }
+}
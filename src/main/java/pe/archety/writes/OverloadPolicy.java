@@ -0,0 +1,14 @@
+package pe.archety.writes;
+
+/*
+    What WriteQueue does with a write when it is at capacity.
+ */
+public enum OverloadPolicy {
+    // Wait up to the block timeout for the writer to make room, then reject.
+    BLOCK,
+    // Reject right away; handlers answer 503 with a Retry-After.
+    REJECT,
+    // Reject LOW priority writes once the queue passes the shed threshold,
+    // keeping the remaining room for HIGH and NORMAL ones.
+    SHED
+}
@@ -0,0 +1,53 @@
+package pe.archety.writes;
+
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.CommitSizer;
+
+/*
+    CREATE_PAGE
+ */
+public final class PageWrite extends Write {
+    private static final WritePool<PageWrite> POOL = new WritePool<PageWrite>( WritePool.DEFAULT_CAPACITY ) {
+        @Override
+        protected PageWrite newInstance() {
+            return new PageWrite( this );
+        }
+    };
+    private static final int SHALLOW_BYTES = 24;
+
+    public String url;
+    public String title;
+
+    private PageWrite( WritePool<PageWrite> pool ) {
+        super( pool );
+    }
+
+    public static PageWrite acquire( String url, String title ) {
+        PageWrite write = POOL.acquire();
+        write.action = BatchWriterServiceAction.CREATE_PAGE;
+        write.url = url;
+        write.title = title;
+        return write;
+    }
+
+    @Override
+    public int estimatedBytes() {
+        return SHALLOW_BYTES + estimatedBytes( url ) + estimatedBytes( title );
+    }
+
+    @Override
+    public long transactionBytes() {
+        return nodeBytes( NO_NODE, url ) + CommitSizer.propertyBytes( title );
+    }
+
+    @Override
+    protected void clear() {
+        url = null;
+        title = null;
+    }
+
+    @Override
+    public String toString() {
+        return action + "{url=" + url + "}";
+    }
+}
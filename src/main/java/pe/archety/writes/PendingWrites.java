@@ -0,0 +1,214 @@
+package pe.archety.writes;
+
+import pe.archety.Relationships;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    The likes, hates and knows that are queued but not committed yet, by identityHash,
+    so the GET handlers can show clients their own writes straight away.
+
+    An Edge copies what the handlers need out of the write, since pooled writes
+    are recycled once applied. The BatchWriterService adds an edge when it accepts
+    the write and removes it once the write is committed or dead-lettered. Readers
+    must take edges() before they read the graph: an edge that is gone by then
+    has been committed and the graph has it.
+
+    Edges and the per identity lists are pooled like the writes, so submitting
+    does not allocate; readers get copies taken under the list's lock.
+ */
+public class PendingWrites {
+    public static final int DEFAULT_POOL_CAPACITY = WritePool.DEFAULT_CAPACITY;
+
+    public static final class Edge {
+        String identityHash;
+        public Relationships type;
+        public String url;
+        public String title;
+        public String identityHash2;
+        public String encryptedIdentity;
+
+        Edge() {
+        }
+
+        Edge set( String identityHash, Relationships type, String url, String title, String identityHash2, String encryptedIdentity ) {
+            this.identityHash = identityHash;
+            this.type = type;
+            this.url = url;
+            this.title = title;
+            this.identityHash2 = identityHash2;
+            this.encryptedIdentity = encryptedIdentity;
+            return this;
+        }
+
+        Edge copy() {
+            return new Edge().set( identityHash, type, url, title, identityHash2, encryptedIdentity );
+        }
+    }
+
+    /*
+        Once emptied and unmapped a list is dead and goes back to the pool; adders
+        and readers that raced the removal find it dead or holding another
+        identity, and try again or see nothing.
+     */
+    private static final class Edges {
+        final ArrayList<Edge> edges = new ArrayList<>( 4 );
+        String identityHash;
+        boolean dead = true;
+
+        boolean isFor( String identityHash ) {
+            return !dead && identityHash.equals( this.identityHash );
+        }
+    }
+
+    private final ConcurrentHashMap<String, Edges> edges = new ConcurrentHashMap<>();
+    private final ArrayBlockingQueue<Edge> freeEdges;
+    private final ArrayBlockingQueue<Edges> freeLists;
+
+    public PendingWrites() {
+        this( DEFAULT_POOL_CAPACITY );
+    }
+
+    public PendingWrites( int poolCapacity ) {
+        freeEdges = new ArrayBlockingQueue<>( poolCapacity );
+        freeLists = new ArrayBlockingQueue<>( poolCapacity );
+    }
+
+    // Returns the edge added for the write, null if it is not a likes, hates or knows.
+    public Edge add( Write write ) {
+        String identityHash;
+        Edge edge = freeEdges.poll();
+        if ( edge == null ) {
+            edge = new Edge();
+        }
+        if ( write instanceof LikesOrHatesWrite ) {
+            LikesOrHatesWrite likesOrHatesWrite = (LikesOrHatesWrite) write;
+            identityHash = likesOrHatesWrite.identityHash;
+            edge.set( identityHash, likesOrHatesWrite.relationshipType, likesOrHatesWrite.url, likesOrHatesWrite.title, null, null );
+        } else if ( write instanceof KnowsWrite ) {
+            KnowsWrite knowsWrite = (KnowsWrite) write;
+            identityHash = knowsWrite.identityHash;
+            edge.set( identityHash, Relationships.KNOWS, null, null, knowsWrite.identityHash2, knowsWrite.encryptedIdentity );
+        } else {
+            freeEdges.offer( edge );
+            return null;
+        }
+
+        while ( true ) {
+            Edges list = edges.get( identityHash );
+            if ( list == null ) {
+                Edges created = freeLists.poll();
+                if ( created == null ) {
+                    created = new Edges();
+                }
+                // dead until mapped, nobody may add to it before
+                created.identityHash = identityHash;
+                list = edges.putIfAbsent( identityHash, created );
+                if ( list == null ) {
+                    list = created;
+                    synchronized ( list ) {
+                        list.dead = false;
+                    }
+                } else {
+                    created.identityHash = null;
+                    freeLists.offer( created );
+                }
+            }
+            synchronized ( list ) {
+                if ( list.isFor( identityHash ) ) {
+                    list.edges.add( edge );
+                    write.pendingEdge = edge;
+                    return edge;
+                }
+            }
+        }
+    }
+
+    public void remove( Write write ) {
+        Edge edge = write.pendingEdge;
+        write.pendingEdge = null;
+        remove( edge );
+    }
+
+    public void remove( Edge edge ) {
+        if ( edge == null ) {
+            return;
+        }
+        String identityHash = edge.identityHash;
+        Edges list = edges.get( identityHash );
+        if ( list == null ) {
+            return;
+        }
+        boolean removed = false;
+        boolean emptied = false;
+        synchronized ( list ) {
+            if ( !list.isFor( identityHash ) ) {
+                return;
+            }
+            // by identity, two writes of the same like are two edges
+            for ( int i = 0; i < list.edges.size(); i++ ) {
+                if ( list.edges.get( i ) == edge ) {
+                    list.edges.remove( i );
+                    removed = true;
+                    break;
+                }
+            }
+            if ( list.edges.isEmpty() ) {
+                list.dead = true;
+                edges.remove( identityHash, list );
+                emptied = true;
+            }
+        }
+        if ( removed ) {
+            freeEdges.offer( edge.set( null, null, null, null, null, null ) );
+        }
+        if ( emptied ) {
+            freeLists.offer( list );
+        }
+    }
+
+    // A snapshot of the identity's pending edges of one type.
+    public List<Edge> edges( String identityHash, Relationships type ) {
+        Edges list = edges.get( identityHash );
+        if ( list == null ) {
+            return Collections.emptyList();
+        }
+        ArrayList<Edge> result = new ArrayList<>();
+        synchronized ( list ) {
+            if ( list.isFor( identityHash ) ) {
+                for ( Edge edge : list.edges ) {
+                    if ( edge.type == type ) {
+                        result.add( edge.copy() );
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /*
+        Forgets every pending edge. The edges stay with their writes rather than
+        going back to the pool, so removing one afterwards finds nothing to do.
+     */
+    public void clear() {
+        for ( String identityHash : edges.keySet() ) {
+            Edges list = edges.remove( identityHash );
+            if ( list == null ) {
+                continue;
+            }
+            synchronized ( list ) {
+                list.dead = true;
+                list.edges.clear();
+            }
+            freeLists.offer( list );
+        }
+    }
+
+    public int identities() {
+        return edges.size();
+    }
+}
@@ -0,0 +1,63 @@
+package pe.archety.writes;
+
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.CommitSizer;
+
+/*
+    CREATE_TOKEN, CREATE_IDENTITY_WITH_TOKEN
+ */
+public final class TokenWrite extends Write {
+    private static final WritePool<TokenWrite> POOL = new WritePool<TokenWrite>( WritePool.DEFAULT_CAPACITY ) {
+        @Override
+        protected TokenWrite newInstance() {
+            return new TokenWrite( this );
+        }
+    };
+    private static final int SHALLOW_BYTES = 40;
+    // a generatedToken, 64 hex digits
+    private static final long TOKEN_BYTES = CommitSizer.PROPERTY_BYTES + 2 * 64;
+
+    public String identity;
+    public String identityHash;
+    public long identityNodeId = NO_NODE;
+    // set by the writer, mailed once the transaction that stored it has committed
+    public String token;
+
+    private TokenWrite( WritePool<TokenWrite> pool ) {
+        super( pool );
+    }
+
+    public static TokenWrite acquire( String identity, String identityHash, long identityNodeId ) {
+        TokenWrite write = POOL.acquire();
+        write.action = identityNodeId == NO_NODE
+                ? BatchWriterServiceAction.CREATE_IDENTITY_WITH_TOKEN
+                : BatchWriterServiceAction.CREATE_TOKEN;
+        write.identity = identity;
+        write.identityHash = identityHash;
+        write.identityNodeId = identityNodeId;
+        return write;
+    }
+
+    @Override
+    public int estimatedBytes() {
+        return SHALLOW_BYTES + estimatedBytes( identity ) + estimatedBytes( identityHash );
+    }
+
+    @Override
+    public long transactionBytes() {
+        return TOKEN_BYTES + nodeBytes( identityNodeId, identityHash );
+    }
+
+    @Override
+    protected void clear() {
+        identity = null;
+        identityHash = null;
+        identityNodeId = NO_NODE;
+        token = null;
+    }
+
+    @Override
+    public String toString() {
+        return action + "{identityHash=" + identityHash + ", identityNodeId=" + identityNodeId + "}";
+    }
+}
@@ -0,0 +1,15 @@
+package pe.archety.writes;
+
+/*
+    How the writer waits on an empty WriteQueue.
+ */
+public enum WaitStrategy {
+    // Parks until a producer signals; producers only take the lock while the writer is parked.
+    BLOCKING,
+    // Spins, then yields, then parks for short spells; no producer ever signals.
+    SLEEPING,
+    // Yields between looks; low latency, keeps a core busy.
+    YIELDING,
+    // Never lets go of its core; lowest latency, for dedicated hardware only.
+    BUSY_SPIN
+}
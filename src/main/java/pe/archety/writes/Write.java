@@ -0,0 +1,100 @@
+package pe.archety.writes;
+
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.CommitSizer;
+
+/*
+    A single queued write for the BatchWriterService.
+
+    Writes are pooled: handlers acquire one from the family's pool, fill in the
+    fields and enqueue it; the writer hands it back with release() once the
+    transaction that applied it has been closed. Node ids are primitive longs,
+    NO_NODE meaning "not resolved yet, create it from the hash/url".
+    A journaled write also remembers where its record sits in the WriteJournal.
+    Writes accepted through the API carry a receipt from WriteReceipts.
+    A skipped write stays in its batch (so it is still committed and released
+    with it) but the writer does not apply it.
+ */
+public abstract class Write {
+    public static final long NO_NODE = -1L;
+    private static final int STRING_BYTES = 40;
+
+    public BatchWriterServiceAction action;
+    private final WritePool<? extends Write> pool;
+    int queuedBytes;
+    long queuedNanos;
+    long localityKey;
+    long sequence = -1;
+    long receipt = WriteReceipts.NO_RECEIPT;
+    long submittedNanos;
+    PendingWrites.Edge pendingEdge;
+    WriteJournal.Segment segment;
+    int journalOffset;
+    boolean skipped;
+
+    protected Write( WritePool<? extends Write> pool ) {
+        this.pool = pool;
+    }
+
+    protected abstract void clear();
+
+    // Rough heap footprint while the write sits in the queue: the object plus its strings.
+    public abstract int estimatedBytes();
+
+    protected static int estimatedBytes( String value ) {
+        return value == null ? 0 : STRING_BYTES + 2 * value.length();
+    }
+
+    // Rough transaction state applying the write may add, what the CommitSizer weighs a chunk by.
+    public abstract long transactionBytes();
+
+    // An unresolved node may have to be created, with its key property.
+    protected static long nodeBytes( long nodeId, String key ) {
+        return nodeId == NO_NODE ? CommitSizer.NODE_BYTES + CommitSizer.propertyBytes( key ) : 0;
+    }
+
+    // Journal sequence number, -1 when the write was not journaled.
+    public long sequence() {
+        return sequence;
+    }
+
+    public long receipt() {
+        return receipt;
+    }
+
+    // Starts the clock for the enqueue-to-commit lag.
+    public void markSubmitted() {
+        submittedNanos = System.nanoTime();
+    }
+
+    public long submittedNanos() {
+        return submittedNanos;
+    }
+
+    public boolean isSkipped() {
+        return skipped;
+    }
+
+    public void skip() {
+        skipped = true;
+    }
+
+    public WritePriority priority() {
+        return action.priority;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void release() {
+        action = null;
+        queuedBytes = 0;
+        queuedNanos = 0;
+        sequence = -1;
+        receipt = WriteReceipts.NO_RECEIPT;
+        submittedNanos = 0;
+        pendingEdge = null;
+        segment = null;
+        skipped = false;
+        clear();
+        pool.release( this );
+    }
+}
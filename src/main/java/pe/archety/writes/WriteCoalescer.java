@@ -0,0 +1,169 @@
+package pe.archety.writes;
+
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.RelationshipLookup.LongPairSet;
+import pe.archety.Relationships;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/*
+    Runs over a drained batch before the writer applies it.
+
+    Exact duplicate edges (same relationship type between the same identity and
+    page, or the same two identities) are skipped after their first occurrence,
+    and a bare CREATE_IDENTITY or CREATE_PAGE is skipped when another write in
+    the batch creates or references the same node anyway. Every other write
+    that still has to create a node the batch already creates is counted as
+    reused: the writer resolves it from the node created earlier in the batch
+    instead of going through the UniqueFactory again.
+
+    Every identity hash and url the batch references is numbered the first time
+    it is seen, and an edge is the pair of those numbers in a LongPairSet per
+    relationship type, so no key is built per write.
+
+    Belongs to the writer thread; the maps and sets are reused from batch to batch.
+ */
+public class WriteCoalescer {
+    // the batch's identity hashes and urls, numbered in the order they were referenced
+    private final HashMap<String, Integer> identities = new HashMap<>();
+    private final HashMap<String, Integer> pages = new HashMap<>();
+    private final HashSet<String> creatingIdentities = new HashSet<>();
+    private final HashSet<String> creatingPages = new HashSet<>();
+    private final EnumMap<Relationships, LongPairSet> edges = new EnumMap<>( Relationships.class );
+
+    public WriteCoalescer() {
+        for ( Relationships type : Relationships.values() ) {
+            edges.put( type, new LongPairSet() );
+        }
+    }
+
+    private int skippedNodes;
+    private int skippedEdges;
+    private int reusedNodes;
+
+    // Returns how many operations were coalesced away.
+    public int coalesce( List<Write> writes ) {
+        skippedNodes = 0;
+        skippedEdges = 0;
+        reusedNodes = 0;
+
+        for ( Write write : writes ) {
+            switch ( write.action ) {
+                case CREATE_IDENTITY:
+                case CREATE_PAGE:
+                    break;
+
+                case CREATE_IDENTITY_WITH_TOKEN:
+                case CREATE_TOKEN: {
+                    TokenWrite tokenWrite = (TokenWrite) write;
+                    number( identities, tokenWrite.identityHash );
+                    identity( tokenWrite.identityHash, tokenWrite.identityNodeId );
+                    break;
+                }
+
+                case CREATE_KNOWS_RELATIONSHIP:
+                case CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP:
+                case CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP:
+                case CREATE_BOTH_AND_KNOWS_RELATIONSHIP: {
+                    KnowsWrite knowsWrite = (KnowsWrite) write;
+                    if ( !edges.get( Relationships.KNOWS ).add( number( identities, knowsWrite.identityHash ),
+                            number( identities, knowsWrite.identityHash2 ) ) ) {
+                        skip( write );
+                        skippedEdges++;
+                        break;
+                    }
+                    identity( knowsWrite.identityHash, knowsWrite.identityNodeId );
+                    identity( knowsWrite.identityHash2, knowsWrite.identityNodeId2 );
+                    break;
+                }
+
+                default: {
+                    LikesOrHatesWrite likesOrHatesWrite = (LikesOrHatesWrite) write;
+                    if ( !edges.get( likesOrHatesWrite.relationshipType ).add( number( identities, likesOrHatesWrite.identityHash ),
+                            number( pages, likesOrHatesWrite.url ) ) ) {
+                        skip( write );
+                        skippedEdges++;
+                        break;
+                    }
+                    identity( likesOrHatesWrite.identityHash, likesOrHatesWrite.identityNodeId );
+                    page( likesOrHatesWrite.url, likesOrHatesWrite.pageNodeId );
+                }
+            }
+        }
+
+        // Bare creations go last, once everything the batch references is known.
+        for ( Write write : writes ) {
+            if ( write.action == BatchWriterServiceAction.CREATE_IDENTITY ) {
+                String identityHash = ( (IdentityWrite) write ).identityHash;
+                if ( identities.containsKey( identityHash ) ) {
+                    skip( write );
+                    skippedNodes++;
+                } else {
+                    identities.put( identityHash, identities.size() );
+                }
+            } else if ( write.action == BatchWriterServiceAction.CREATE_PAGE ) {
+                String url = ( (PageWrite) write ).url;
+                if ( pages.containsKey( url ) ) {
+                    skip( write );
+                    skippedNodes++;
+                } else {
+                    pages.put( url, pages.size() );
+                }
+            }
+        }
+
+        identities.clear();
+        pages.clear();
+        creatingIdentities.clear();
+        creatingPages.clear();
+        for ( LongPairSet pairs : edges.values() ) {
+            pairs.clear();
+        }
+        return coalesced();
+    }
+
+    private void identity( String identityHash, long identityNodeId ) {
+        if ( identityNodeId == Write.NO_NODE && !creatingIdentities.add( identityHash ) ) {
+            reusedNodes++;
+        }
+    }
+
+    private void page( String url, long pageNodeId ) {
+        if ( pageNodeId == Write.NO_NODE && !creatingPages.add( url ) ) {
+            reusedNodes++;
+        }
+    }
+
+    // The key's number in this batch, given the first time it is seen.
+    private static int number( HashMap<String, Integer> numbers, String key ) {
+        Integer number = numbers.get( key );
+        if ( number == null ) {
+            number = numbers.size();
+            numbers.put( key, number );
+        }
+        return number;
+    }
+
+    private static void skip( Write write ) {
+        write.skipped = true;
+    }
+
+    public int coalesced() {
+        return skippedNodes + skippedEdges + reusedNodes;
+    }
+
+    public int skippedNodes() {
+        return skippedNodes;
+    }
+
+    public int skippedEdges() {
+        return skippedEdges;
+    }
+
+    public int reusedNodes() {
+        return reusedNodes;
+    }
+}
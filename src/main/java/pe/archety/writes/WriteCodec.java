@@ -0,0 +1,233 @@
+package pe.archety.writes;
+
+import com.google.common.base.Charsets;
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.Relationships;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+    Compact binary form of a Write, used by the WriteJournal.
+
+    One byte of action ordinal followed by the family's fields. Identity hashes
+    are stored as the 64 raw SHA3 bytes rather than 88 Base64 characters (decoded
+    and encoded here, without intermediate arrays, as every append does it), node
+    ids as unsigned varints of id + 1 (so NO_NODE is a single zero byte) and
+    other strings as a varint length plus UTF-8 bytes.
+ */
+public final class WriteCodec {
+    private static final BatchWriterServiceAction[] ACTIONS = BatchWriterServiceAction.values();
+    private static final int HASH_BYTES = 64;
+    private static final int HASH_CHARS = 88;
+    private static final String BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    private static final byte[] BASE64_VALUES = new byte[ 128 ];
+    static {
+        Arrays.fill( BASE64_VALUES, (byte) -1 );
+        for ( int i = 0; i < BASE64_CHARS.length(); i++ ) {
+            BASE64_VALUES[ BASE64_CHARS.charAt( i ) ] = (byte) i;
+        }
+    }
+    private static final int NULL_STRING = 0;
+
+    private WriteCodec() {
+    }
+
+    public static void encode( Write write, ByteBuffer buffer ) {
+        encode( write, buffer, true );
+    }
+
+    // Without withIdentity a token write's plain identity (email or phone) is left out, as null.
+    public static void encode( Write write, ByteBuffer buffer, boolean withIdentity ) {
+        buffer.put( (byte) write.action.ordinal() );
+        switch ( write.action ) {
+            case CREATE_IDENTITY: {
+                putHash( buffer, ( (IdentityWrite) write ).identityHash );
+                break;
+            }
+
+            case CREATE_IDENTITY_WITH_TOKEN:
+            case CREATE_TOKEN: {
+                TokenWrite tokenWrite = (TokenWrite) write;
+                putString( buffer, withIdentity ? tokenWrite.identity : null );
+                putHash( buffer, tokenWrite.identityHash );
+                putNodeId( buffer, tokenWrite.identityNodeId );
+                break;
+            }
+
+            case CREATE_PAGE: {
+                PageWrite pageWrite = (PageWrite) write;
+                putString( buffer, pageWrite.url );
+                putString( buffer, pageWrite.title );
+                break;
+            }
+
+            case CREATE_KNOWS_RELATIONSHIP:
+            case CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP:
+            case CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP:
+            case CREATE_BOTH_AND_KNOWS_RELATIONSHIP: {
+                KnowsWrite knowsWrite = (KnowsWrite) write;
+                putHash( buffer, knowsWrite.identityHash );
+                putNodeId( buffer, knowsWrite.identityNodeId );
+                putHash( buffer, knowsWrite.identityHash2 );
+                putNodeId( buffer, knowsWrite.identityNodeId2 );
+                putString( buffer, knowsWrite.encryptedIdentity );
+                break;
+            }
+
+            default: {
+                LikesOrHatesWrite likesOrHatesWrite = (LikesOrHatesWrite) write;
+                putHash( buffer, likesOrHatesWrite.identityHash );
+                putNodeId( buffer, likesOrHatesWrite.identityNodeId );
+                putString( buffer, likesOrHatesWrite.url );
+                putString( buffer, likesOrHatesWrite.title );
+                putNodeId( buffer, likesOrHatesWrite.pageNodeId );
+            }
+        }
+    }
+
+    public static Write decode( ByteBuffer buffer ) {
+        BatchWriterServiceAction action = ACTIONS[ buffer.get() ];
+        switch ( action ) {
+            case CREATE_IDENTITY: {
+                return IdentityWrite.acquire( getHash( buffer ) );
+            }
+
+            case CREATE_IDENTITY_WITH_TOKEN:
+            case CREATE_TOKEN: {
+                String identity = getString( buffer );
+                String identityHash = getHash( buffer );
+                return TokenWrite.acquire( identity, identityHash, getNodeId( buffer ) );
+            }
+
+            case CREATE_PAGE: {
+                String url = getString( buffer );
+                return PageWrite.acquire( url, getString( buffer ) );
+            }
+
+            case CREATE_KNOWS_RELATIONSHIP:
+            case CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP:
+            case CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP:
+            case CREATE_BOTH_AND_KNOWS_RELATIONSHIP: {
+                String identityHash = getHash( buffer );
+                long identityNodeId = getNodeId( buffer );
+                String identityHash2 = getHash( buffer );
+                long identityNodeId2 = getNodeId( buffer );
+                return KnowsWrite.acquire( identityHash, identityNodeId, identityHash2, identityNodeId2, getString( buffer ) );
+            }
+
+            default: {
+                Relationships relationshipType = action.name().endsWith( "LIKES_RELATIONSHIP" )
+                        ? Relationships.LIKES
+                        : Relationships.HATES;
+                String identityHash = getHash( buffer );
+                long identityNodeId = getNodeId( buffer );
+                String url = getString( buffer );
+                String title = getString( buffer );
+                return LikesOrHatesWrite.acquire( relationshipType, identityHash, identityNodeId, url, title, getNodeId( buffer ) );
+            }
+        }
+    }
+
+    private static void putNodeId( ByteBuffer buffer, long nodeId ) {
+        putVarLong( buffer, nodeId + 1 );
+    }
+
+    private static long getNodeId( ByteBuffer buffer ) {
+        return getVarLong( buffer ) - 1;
+    }
+
+    /*
+        SHA3-512 digests in Base64 go in raw, decoded straight into the buffer;
+        anything else, non-canonical padding included, falls back to a string.
+     */
+    private static void putHash( ByteBuffer buffer, String hash ) {
+        int start = buffer.position();
+        if ( hash != null && hash.length() == HASH_CHARS && hash.endsWith( "==" ) ) {
+            buffer.put( (byte) 1 );
+            int bits = 0;
+            int accumulator = 0;
+            int i = 0;
+            for ( ; i < HASH_CHARS - 2; i++ ) {
+                char c = hash.charAt( i );
+                int value = c < 128 ? BASE64_VALUES[ c ] : -1;
+                if ( value < 0 ) {
+                    break;
+                }
+                accumulator = ( accumulator << 6 ) | value;
+                bits += 6;
+                if ( bits >= 8 ) {
+                    bits -= 8;
+                    buffer.put( (byte) ( accumulator >>> bits ) );
+                    accumulator &= ( 1 << bits ) - 1;
+                }
+            }
+            // the 4 bits left over are zero in the encoding of 64 bytes
+            if ( i == HASH_CHARS - 2 && accumulator == 0 ) {
+                return;
+            }
+            buffer.position( start );
+        }
+        buffer.put( (byte) 0 );
+        putString( buffer, hash );
+    }
+
+    private static String getHash( ByteBuffer buffer ) {
+        if ( buffer.get() == 1 ) {
+            char[] chars = new char[ HASH_CHARS ];
+            int length = 0;
+            for ( int i = 0; i < HASH_BYTES; i += 3 ) {
+                int group = ( buffer.get() & 0xFF ) << 16;
+                if ( i + 1 < HASH_BYTES ) {
+                    group |= ( buffer.get() & 0xFF ) << 8 | ( buffer.get() & 0xFF );
+                }
+                chars[ length++ ] = BASE64_CHARS.charAt( group >>> 18 );
+                chars[ length++ ] = BASE64_CHARS.charAt( ( group >>> 12 ) & 0x3F );
+                chars[ length++ ] = i + 1 < HASH_BYTES ? BASE64_CHARS.charAt( ( group >>> 6 ) & 0x3F ) : '=';
+                chars[ length++ ] = i + 1 < HASH_BYTES ? BASE64_CHARS.charAt( group & 0x3F ) : '=';
+            }
+            return new String( chars );
+        }
+        return getString( buffer );
+    }
+
+    private static void putString( ByteBuffer buffer, String value ) {
+        if ( value == null ) {
+            putVarLong( buffer, NULL_STRING );
+            return;
+        }
+        byte[] bytes = value.getBytes( Charsets.UTF_8 );
+        putVarLong( buffer, bytes.length + 1 );
+        buffer.put( bytes );
+    }
+
+    private static String getString( ByteBuffer buffer ) {
+        int length = (int) getVarLong( buffer );
+        if ( length == NULL_STRING ) {
+            return null;
+        }
+        byte[] bytes = new byte[ length - 1 ];
+        buffer.get( bytes );
+        return new String( bytes, Charsets.UTF_8 );
+    }
+
+    static void putVarLong( ByteBuffer buffer, long value ) {
+        while ( ( value & ~0x7FL ) != 0 ) {
+            buffer.put( (byte) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+        }
+        buffer.put( (byte) value );
+    }
+
+    static long getVarLong( ByteBuffer buffer ) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) ( b & 0x7F ) << shift;
+            shift += 7;
+        } while ( ( b & 0x80 ) != 0 );
+        return value;
+    }
+}
@@ -0,0 +1,357 @@
+package pe.archety.writes;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/*
+    Write-ahead journal for writes that were accepted with a 201 but not yet
+    committed to Neo4j.
+
+    Records go into fixed size memory-mapped segment files, each starting at a
+    multiple of 8 bytes:
+
+        [int payload length][int crc32 of sequence + receipt + payload][long sequence][long receipt][byte committed][payload]
+
+    Appending takes no lock. A producer encodes and checksums its record in a
+    buffer of its own, claims the bytes for it with one getAndAdd on the active
+    segment's offset and copies it in, so handlers only ever contend on that
+    counter. The producer that claims past the end of a segment rolls to a new
+    one, the only step behind a lock. As records are copied in concurrently a
+    crash can leave a hole before records that were finished; the scan skips
+    whatever does not pass its CRC 8 bytes at a time rather than stopping there.
+
+    Once the writer has committed a write its committed byte is flipped in place,
+    and a segment that is no longer appended to and has every record committed
+    is deleted. On startup every valid, uncommitted record is handed back by
+    recover().
+ */
+public class WriteJournal implements Closeable {
+    private final static Logger logger = Logger.getLogger( WriteJournal.class );
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final int HEADER_BYTES = 25;
+    // sequence and receipt, checksummed along with the payload
+    private static final int PREFIX_BYTES = 16;
+    private static final int COMMITTED_OFFSET = 24;
+    private static final int ALIGNMENT = 8;
+    private static final int SCRATCH_BYTES = 4 * 1024;
+    private static final String SUFFIX = ".journal";
+
+    private final File directory;
+    private final int segmentBytes;
+    private final JournalSyncPolicy syncPolicy;
+
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final ArrayList<Write> recovered = new ArrayList<>();
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final Object rollLock = new Object();
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+    private volatile Segment active;
+
+    static final class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        final long firstSequence;
+        // bytes claimed so far, past the end once the segment is full
+        final AtomicInteger claimed = new AtomicInteger();
+        // counted before a record claims its bytes, so a sealed segment knows them all
+        final AtomicInteger records = new AtomicInteger();
+        final AtomicInteger committed = new AtomicInteger();
+        final AtomicBoolean retired = new AtomicBoolean();
+        volatile boolean sealed;
+
+        Segment( File file, MappedByteBuffer buffer, long firstSequence ) {
+            this.file = file;
+            this.buffer = buffer;
+            this.firstSequence = firstSequence;
+        }
+    }
+
+    private static final class Scratch {
+        ByteBuffer buffer = ByteBuffer.allocate( SCRATCH_BYTES );
+        final CRC32 crc = new CRC32();
+    }
+
+    private WriteJournal( File directory, int segmentBytes, JournalSyncPolicy syncPolicy ) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.syncPolicy = syncPolicy;
+    }
+
+    public static WriteJournal open( File directory, int segmentBytes, JournalSyncPolicy syncPolicy ) throws IOException {
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException( "Could not create journal directory " + directory );
+        }
+        WriteJournal journal = new WriteJournal( directory, segmentBytes, syncPolicy );
+        journal.scan();
+        journal.active = journal.newSegment( journal.nextSequence.get() );
+        return journal;
+    }
+
+    private void scan() throws IOException {
+        File[] files = directory.listFiles( new FilenameFilter() {
+            @Override
+            public boolean accept( File dir, String name ) {
+                return name.endsWith( SUFFIX );
+            }
+        } );
+        if ( files == null ) {
+            return;
+        }
+        // names are zero padded first sequence numbers, so this is the order they were written in
+        Arrays.sort( files );
+
+        CRC32 crc = new CRC32();
+        long sequences = 0;
+        for ( File file : files ) {
+            String name = file.getName();
+            Segment segment = new Segment( file, map( file, file.length() ),
+                    Long.parseLong( name.substring( 0, name.length() - SUFFIX.length() ) ) );
+            segment.sealed = true;
+            sequences = Math.max( sequences, segment.firstSequence );
+            ByteBuffer buffer = segment.buffer;
+            int position = 0;
+            int torn = 0;
+            while ( position + HEADER_BYTES <= buffer.limit() ) {
+                int length = buffer.getInt( position );
+                if ( length <= 0 || position + HEADER_BYTES + length > buffer.limit() ) {
+                    position += ALIGNMENT;
+                    continue;
+                }
+                byte[] record = new byte[ PREFIX_BYTES + length ];
+                buffer.position( position + 8 );
+                buffer.get( record, 0, PREFIX_BYTES );
+                buffer.position( position + HEADER_BYTES );
+                buffer.get( record, PREFIX_BYTES, length );
+                crc.reset();
+                crc.update( record, 0, record.length );
+                if ( (int) crc.getValue() != buffer.getInt( position + 4 ) ) {
+                    torn++;
+                    position += ALIGNMENT;
+                    continue;
+                }
+
+                long sequence = buffer.getLong( position + 8 );
+                segment.records.incrementAndGet();
+                if ( buffer.get( position + COMMITTED_OFFSET ) != 0 ) {
+                    segment.committed.incrementAndGet();
+                } else {
+                    Write write = WriteCodec.decode( ByteBuffer.wrap( record, PREFIX_BYTES, length ) );
+                    write.sequence = sequence;
+                    write.receipt = buffer.getLong( position + 16 );
+                    write.segment = segment;
+                    write.journalOffset = position;
+                    recovered.add( write );
+                }
+                sequences = Math.max( sequences, sequence + 1 );
+                position += aligned( HEADER_BYTES + length );
+            }
+            segment.claimed.set( buffer.limit() );
+            if ( torn > 0 ) {
+                logger.warn( "Skipped " + torn + " torn record positions in " + file );
+            }
+
+            if ( segment.committed.get() == segment.records.get() ) {
+                retire( segment );
+            } else {
+                segments.add( segment );
+            }
+        }
+        nextSequence.set( sequences );
+    }
+
+    private static int aligned( int bytes ) {
+        return ( bytes + ALIGNMENT - 1 ) & -ALIGNMENT;
+    }
+
+    private Segment newSegment( long firstSequence ) throws IOException {
+        File file = new File( directory, String.format( "%020d%s", firstSequence, SUFFIX ) );
+        Segment segment = new Segment( file, map( file, segmentBytes ), firstSequence );
+        synchronized ( segments ) {
+            segments.add( segment );
+        }
+        return segment;
+    }
+
+    private static MappedByteBuffer map( File file, long length ) throws IOException {
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ) {
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, length );
+        }
+    }
+
+    /*
+        Uncommitted writes found when the journal was opened, in the order they
+        were journaled, with the receipts they were accepted with. They are still
+        linked to their records, so committing them later marks them like any
+        other write. Only returns them once.
+     */
+    public synchronized List<Write> recover() {
+        ArrayList<Write> writes = new ArrayList<>( recovered );
+        recovered.clear();
+        return writes;
+    }
+
+    public void append( Write write ) throws IOException {
+        long sequence = nextSequence.getAndIncrement();
+        Scratch scratch = this.scratch.get();
+        ByteBuffer record = scratch.buffer;
+        while ( true ) {
+            try {
+                record.clear();
+                record.putLong( sequence );
+                record.putLong( write.receipt );
+                WriteCodec.encode( write, record );
+                break;
+            } catch ( BufferOverflowException e ) {
+                record = scratch.buffer = ByteBuffer.allocate( record.capacity() * 2 );
+            }
+        }
+        int length = record.position() - PREFIX_BYTES;
+        int recordBytes = aligned( HEADER_BYTES + length );
+        if ( recordBytes > segmentBytes ) {
+            throw new IOException( "Write of " + length + " bytes does not fit in a journal segment" );
+        }
+        scratch.crc.reset();
+        scratch.crc.update( record.array(), 0, record.position() );
+
+        Segment segment;
+        int offset;
+        while ( true ) {
+            segment = active;
+            segment.records.incrementAndGet();
+            offset = segment.claimed.getAndAdd( recordBytes );
+            if ( offset >= 0 && offset + recordBytes <= segmentBytes ) {
+                break;
+            }
+            // past the end, that claim is left empty
+            segment.records.decrementAndGet();
+            retireIfDone( segment );
+            roll( segment );
+        }
+
+        // this thread's own view, the segment's position is not shared
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position( offset );
+        buffer.putInt( length );
+        buffer.putInt( (int) scratch.crc.getValue() );
+        buffer.putLong( sequence );
+        buffer.putLong( write.receipt );
+        buffer.put( (byte) 0 );
+        buffer.put( record.array(), PREFIX_BYTES, length );
+
+        write.sequence = sequence;
+        write.segment = segment;
+        write.journalOffset = offset;
+
+        if ( syncPolicy == JournalSyncPolicy.ALWAYS ) {
+            segment.buffer.force();
+        }
+    }
+
+    private void roll( Segment full ) throws IOException {
+        synchronized ( rollLock ) {
+            if ( active != full ) {
+                return;
+            }
+            full.sealed = true;
+            if ( syncPolicy != JournalSyncPolicy.NONE ) {
+                full.buffer.force();
+            }
+            // a producer may still be writing to the full segment with a sequence past that name
+            active = newSegment( Math.max( nextSequence.get(), full.firstSequence + 1 ) );
+        }
+        retireIfDone( full );
+    }
+
+    // Called by the writer before it applies a batch.
+    public void syncBatch() {
+        if ( syncPolicy == JournalSyncPolicy.BATCH ) {
+            active.buffer.force();
+        }
+    }
+
+    // Marks writes as committed to Neo4j and drops segments with nothing left to replay. Writer thread only.
+    public void committed( List<Write> writes ) {
+        for ( Write write : writes ) {
+            Segment segment = write.segment;
+            if ( segment == null ) {
+                continue;
+            }
+            segment.buffer.put( write.journalOffset + COMMITTED_OFFSET, (byte) 1 );
+            segment.committed.incrementAndGet();
+            write.segment = null;
+            retireIfDone( segment );
+        }
+    }
+
+    private void retireIfDone( Segment segment ) {
+        if ( segment.sealed && segment.committed.get() == segment.records.get()
+                && segment.retired.compareAndSet( false, true ) ) {
+            synchronized ( segments ) {
+                segments.remove( segment );
+            }
+            retire( segment );
+        }
+    }
+
+    /*
+        Java has no portable way to unmap a MappedByteBuffer, the mapping goes when
+        the buffer is collected. Deleting the file underneath it is fine on Linux.
+     */
+    private void retire( Segment segment ) {
+        if ( !segment.file.delete() ) {
+            logger.warn( "Could not delete journal segment " + segment.file );
+        }
+    }
+
+    public int segmentCount() {
+        synchronized ( segments ) {
+            return segments.size();
+        }
+    }
+
+    public long pendingRecords() {
+        long pending = 0;
+        synchronized ( segments ) {
+            for ( Segment segment : segments ) {
+                pending += segment.records.get() - segment.committed.get();
+            }
+        }
+        return pending;
+    }
+
+    public JournalSyncPolicy syncPolicy() {
+        return syncPolicy;
+    }
+
+    @Override
+    public void close() {
+        synchronized ( segments ) {
+            for ( Segment segment : segments ) {
+                segment.buffer.force();
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package pe.archety.writes;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+    Bounded free list of Write instances.
+
+    Acquire happens on the Undertow worker threads and release on the writer
+    thread, so the free list has to be shared; an ArrayBlockingQueue does not
+    allocate on offer/poll. When the pool is empty a new instance is created,
+    when it is full the released instance is left to the garbage collector.
+ */
+public abstract class WritePool<T extends Write> {
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final ArrayBlockingQueue<T> free;
+
+    protected WritePool( int capacity ) {
+        this.free = new ArrayBlockingQueue<>( capacity );
+    }
+
+    protected abstract T newInstance();
+
+    public T acquire() {
+        T write = free.poll();
+        if ( write == null ) {
+            write = newInstance();
+        }
+        return write;
+    }
+
+    // Only ever called by Write.release() on the pool the write was created by, so it is a T.
+    @SuppressWarnings("unchecked")
+    void release( Write write ) {
+        free.offer( (T) write );
+    }
+
+    public int available() {
+        return free.size();
+    }
+}
@@ -0,0 +1,11 @@
+package pe.archety.writes;
+
+/*
+    How important a queued write is when the writer falls behind.
+    Declared from most to least important.
+ */
+public enum WritePriority {
+    HIGH,
+    NORMAL,
+    LOW
+}
@@ -0,0 +1,404 @@
+package pe.archety.writes;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    Hand-off between the request handlers and the BatchWriterService, bounded
+    both by number of writes and by their estimated bytes.
+
+    Room is reserved on the counters before the write is put on the underlying
+    queue and given back when the writer drains it, so the limits can be changed
+    while the server runs. What happens when there is no room is decided by the
+    OverloadPolicy. With a WriteJournal attached a write is journaled after its
+    room is reserved and before the writer can see it.
+
+    Each WritePriority has its own preallocated WriteRing, so queueing a write
+    allocates nothing and takes no lock; a capacity past the ring size makes
+    producers wait for the writer instead. Only the BatchWriterService thread
+    takes writes out, and how it waits on an empty queue is its WaitStrategy.
+
+    The writer takes every HIGH write there
+    is first, so a token never waits behind a backlog of likes, and NORMAL ahead
+    of LOW, except that a lowShare of what is left of each drain is kept for LOW.
+    Once the oldest LOW write has waited maxLowWait, LOW gets half of it instead.
+ */
+public class WriteQueue {
+    public static final int DEFAULT_CAPACITY = 1_000_000;
+    public static final long DEFAULT_CAPACITY_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 100;
+    public static final double DEFAULT_SHED_THRESHOLD = 0.8;
+    public static final double DEFAULT_LOW_SHARE = 0.1;
+    public static final long DEFAULT_MAX_LOW_WAIT_MILLIS = 1000;
+    private static final double LATE_LOW_SHARE = 0.5;
+
+    // room for the default capacity in any one priority
+    public static final int DEFAULT_RING_SIZE = Integer.highestOneBit( DEFAULT_CAPACITY - 1 ) << 1;
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+    private static final long SLEEP_NANOS = 100_000;
+
+    private static final WritePriority[] PRIORITIES = WritePriority.values();
+
+    private final WriteRing[] rings = new WriteRing[ PRIORITIES.length ];
+    private final AtomicLong lateLowDrains = new AtomicLong();
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final ReentrantLock roomLock = new ReentrantLock();
+    private final Condition roomAvailable = roomLock.newCondition();
+    private final AtomicInteger roomWaiters = new AtomicInteger();
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private final Condition writeAvailable = publishLock.newCondition();
+    private volatile boolean writerParked;
+
+    private volatile int capacity = DEFAULT_CAPACITY;
+    private volatile long capacityBytes = DEFAULT_CAPACITY_BYTES;
+    private volatile OverloadPolicy policy = OverloadPolicy.REJECT;
+    private volatile long blockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT_MILLIS;
+    private volatile double shedThreshold = DEFAULT_SHED_THRESHOLD;
+    private volatile double lowShare = DEFAULT_LOW_SHARE;
+    private volatile long maxLowWaitNanos = TimeUnit.MILLISECONDS.toNanos( DEFAULT_MAX_LOW_WAIT_MILLIS );
+    private volatile WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+    private volatile WriteJournal journal;
+
+    public WriteQueue() {
+        this( DEFAULT_RING_SIZE );
+    }
+
+    public WriteQueue( int ringSize ) {
+        for ( int i = 0; i < PRIORITIES.length; i++ ) {
+            rings[ i ] = new WriteRing( ringSize );
+        }
+    }
+
+    public void configure( int capacity, long capacityBytes, OverloadPolicy policy,
+                           long blockTimeoutMillis, double shedThreshold ) {
+        this.capacity = capacity;
+        this.capacityBytes = capacityBytes;
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.shedThreshold = shedThreshold;
+    }
+
+    // Fraction of each drain kept for LOW writes, and how long one waits before LOW gets half.
+    public void configurePriorities( double lowShare, long maxLowWaitMillis ) {
+        this.lowShare = lowShare;
+        this.maxLowWaitNanos = TimeUnit.MILLISECONDS.toNanos( maxLowWaitMillis );
+    }
+
+    // How the writer waits on an empty queue.
+    public void setWaitStrategy( WaitStrategy waitStrategy ) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    public WaitStrategy waitStrategy() {
+        return waitStrategy;
+    }
+
+    public void setJournal( WriteJournal journal ) {
+        this.journal = journal;
+    }
+
+    /*
+        Returns false if the write was not accepted, in which case it has already
+        been released back to its pool. An IOException from the journal also
+        releases the write.
+     */
+    public boolean offer( Write write ) throws InterruptedException, IOException {
+        return offer( write, policy == OverloadPolicy.BLOCK ? blockTimeoutMillis : 0 );
+    }
+
+    /*
+        Like offer(), but waits up to timeoutMillis for room whatever the policy,
+        for callers that push back on their own client instead. It is still the
+        policy's limit the write waits to get under, so under SHED a LOW write
+        waits for the queue to drop below the shed threshold.
+     */
+    public boolean offer( Write write, long timeoutMillis ) throws InterruptedException, IOException {
+        int writeBytes = write.estimatedBytes();
+        int limit = policy == OverloadPolicy.SHED && write.priority() == WritePriority.LOW
+                ? (int) ( capacity * shedThreshold )
+                : capacity;
+        boolean reserved = reserveOrWait( writeBytes, limit, timeoutMillis );
+
+        if ( !reserved ) {
+            rejected.incrementAndGet();
+            write.release();
+            return false;
+        }
+
+        WriteJournal journal = this.journal;
+        if ( journal != null ) {
+            try {
+                journal.append( write );
+            } catch ( IOException e ) {
+                unreserve( writeBytes );
+                rejected.incrementAndGet();
+                write.release();
+                throw e;
+            }
+        }
+
+        write.queuedBytes = writeBytes;
+        put( write );
+        return true;
+    }
+
+    // Puts back a write recovered from the journal, regardless of the limits.
+    public void restore( Write write ) throws InterruptedException {
+        int writeBytes = write.estimatedBytes();
+        count.incrementAndGet();
+        bytes.addAndGet( writeBytes );
+        write.queuedBytes = writeBytes;
+        put( write );
+    }
+
+    private void put( Write write ) {
+        write.queuedNanos = System.nanoTime();
+        rings[ write.priority().ordinal() ].put( write );
+        // publishing was a volatile store, so a writer about to park either sees it or has set the flag
+        if ( writerParked ) {
+            publishLock.lock();
+            try {
+                writeAvailable.signal();
+            } finally {
+                publishLock.unlock();
+            }
+        }
+    }
+
+    private void unreserve( int writeBytes ) {
+        bytes.addAndGet( -writeBytes );
+        count.decrementAndGet();
+        signalRoom();
+    }
+
+    private boolean reserve( int writeBytes, int limit ) {
+        if ( count.incrementAndGet() > limit ) {
+            count.decrementAndGet();
+            return false;
+        }
+        if ( bytes.addAndGet( writeBytes ) > capacityBytes ) {
+            bytes.addAndGet( -writeBytes );
+            count.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean reserveOrWait( int writeBytes, int limit, long timeoutMillis ) throws InterruptedException {
+        if ( reserve( writeBytes, limit ) ) {
+            return true;
+        }
+        if ( timeoutMillis <= 0 ) {
+            return false;
+        }
+        long remaining = TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+        // counted before reserve() is retried, so a drain either leaves room for it or signals
+        roomWaiters.incrementAndGet();
+        roomLock.lock();
+        try {
+            while ( !reserve( writeBytes, limit ) ) {
+                if ( remaining <= 0 ) {
+                    return false;
+                }
+                remaining = roomAvailable.awaitNanos( remaining );
+            }
+            return true;
+        } finally {
+            roomLock.unlock();
+            roomWaiters.decrementAndGet();
+        }
+    }
+
+    // Only the BatchWriterService thread may take writes out.
+    public int drainTo( List<Write> writes, int maxWrites ) {
+        int start = writes.size();
+        int remaining = Math.min( maxWrites, queued() );
+        remaining -= ring( WritePriority.HIGH ).drainTo( writes, remaining );
+        if ( remaining > 0 && ring( WritePriority.LOW ).hasNext() ) {
+            int lowRoom;
+            if ( isLowLate() ) {
+                lateLowDrains.incrementAndGet();
+                lowRoom = (int) Math.ceil( remaining * LATE_LOW_SHARE );
+            } else {
+                lowRoom = (int) ( remaining * lowShare );
+            }
+            remaining -= ring( WritePriority.LOW ).drainTo( writes, lowRoom );
+        }
+        remaining -= ring( WritePriority.NORMAL ).drainTo( writes, remaining );
+        ring( WritePriority.LOW ).drainTo( writes, remaining );
+
+        int drained = writes.size() - start;
+        if ( drained > 0 ) {
+            long drainedBytes = 0;
+            for ( int i = start; i < writes.size(); i++ ) {
+                drainedBytes += writes.get( i ).queuedBytes;
+            }
+            bytes.addAndGet( -drainedBytes );
+            count.addAndGet( -drained );
+            signalRoom();
+        }
+        return drained;
+    }
+
+    private WriteRing ring( WritePriority priority ) {
+        return rings[ priority.ordinal() ];
+    }
+
+    // Claimed slots, a write still being published included.
+    private int queued() {
+        int queued = 0;
+        for ( WriteRing ring : rings ) {
+            queued += ring.size();
+        }
+        return queued;
+    }
+
+    private boolean hasNext() {
+        for ( WriteRing ring : rings ) {
+            if ( ring.hasNext() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Write take() {
+        Write write = ring( WritePriority.HIGH ).take();
+        if ( write == null && isLowLate() ) {
+            lateLowDrains.incrementAndGet();
+            write = ring( WritePriority.LOW ).take();
+        }
+        if ( write == null ) {
+            write = ring( WritePriority.NORMAL ).take();
+        }
+        if ( write == null ) {
+            write = ring( WritePriority.LOW ).take();
+        }
+        return write;
+    }
+
+    private void await( long remainingNanos, int attempt ) throws InterruptedException {
+        switch ( waitStrategy ) {
+            case BUSY_SPIN:
+                break;
+
+            case YIELDING:
+                Thread.yield();
+                break;
+
+            case SLEEPING:
+                if ( attempt >= SPINS + YIELDS ) {
+                    LockSupport.parkNanos( Math.min( remainingNanos, SLEEP_NANOS ) );
+                } else if ( attempt >= SPINS ) {
+                    Thread.yield();
+                }
+                break;
+
+            default:
+                publishLock.lockInterruptibly();
+                try {
+                    writerParked = true;
+                    if ( !hasNext() ) {
+                        writeAvailable.awaitNanos( remainingNanos );
+                    }
+                } finally {
+                    writerParked = false;
+                    publishLock.unlock();
+                }
+        }
+        if ( Thread.interrupted() ) {
+            throw new InterruptedException();
+        }
+    }
+
+    // Only the taker looks at the head of LOW, so it cannot be released underneath it.
+    private boolean isLowLate() {
+        Write oldest = ring( WritePriority.LOW ).peek();
+        return oldest != null && System.nanoTime() - oldest.queuedNanos > maxLowWaitNanos;
+    }
+
+    private void signalRoom() {
+        if ( roomWaiters.get() > 0 ) {
+            roomLock.lock();
+            try {
+                roomAvailable.signalAll();
+            } finally {
+                roomLock.unlock();
+            }
+        }
+    }
+
+    public Write poll( long timeout, TimeUnit unit ) throws InterruptedException {
+        Write write = take();
+        if ( write == null ) {
+            long deadline = System.nanoTime() + unit.toNanos( timeout );
+            int attempt = 0;
+            while ( ( write = take() ) == null ) {
+                long remaining = deadline - System.nanoTime();
+                if ( remaining <= 0 ) {
+                    return null;
+                }
+                await( remaining, attempt++ );
+            }
+        }
+        bytes.addAndGet( -write.queuedBytes );
+        count.decrementAndGet();
+        signalRoom();
+        return write;
+    }
+
+    public int drainTo( List<Write> writes ) {
+        return drainTo( writes, Integer.MAX_VALUE );
+    }
+
+    // True when not even a HIGH priority write would be accepted right now.
+    public boolean isSaturated() {
+        return count.get() >= capacity || bytes.get() >= capacityBytes;
+    }
+
+    public int size() {
+        return count.get();
+    }
+
+    public int size( WritePriority priority ) {
+        return ring( priority ).size();
+    }
+
+    // How long the oldest write of that priority has been queued, 0 if there is none.
+    public long oldestWaitNanos( WritePriority priority ) {
+        Write oldest = ring( priority ).oldest();
+        long queuedNanos = oldest == null ? 0 : oldest.queuedNanos;
+        return queuedNanos == 0 ? 0 : Math.max( 0, System.nanoTime() - queuedNanos );
+    }
+
+    // Drains in which LOW writes had waited too long and got half the room.
+    public long lateLowDrains() {
+        return lateLowDrains.get();
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    public long rejected() {
+        return rejected.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public OverloadPolicy policy() {
+        return policy;
+    }
+}
@@ -0,0 +1,158 @@
+package pe.archety.writes;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    Hands out receipt ids for accepted writes and remembers what became of them.
+
+    Receipts are consecutive, so the status of the last `capacity` receipts fits
+    in a ring: each slot holds receipt << 2 | status, which tells a slot that has
+    been reused by a newer receipt from the one that is asked for. Older receipts
+    report UNKNOWN.
+
+    The first receipt of a run is its startup time in seconds << EPOCH_SHIFT, so
+    a restart does not hand out the receipts of the previous run again (unless
+    that one issued more than a million a second), and receipts stay below 2^53
+    for JSON clients. Writes the journal replays keep their receipts, restore()
+    makes them known again.
+
+    Anyone waiting for a receipt registers a Listener; it is called exactly once,
+    on the thread that completes the write, or not at all if cancel() got there
+    first.
+ */
+public class WriteReceipts {
+    public static final long NO_RECEIPT = -1L;
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    static final int EPOCH_SHIFT = 20;
+
+    private static final int PENDING = 0;
+    private static final int COMMITTED = 1;
+    private static final int DEAD_LETTERED = 2;
+    private static final int FORGOTTEN = 3;
+
+    public interface Listener {
+        void completed( long receipt, WriteStatus status );
+    }
+
+    private final AtomicLong nextReceipt;
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final ConcurrentHashMap<Long, Listener> listeners = new ConcurrentHashMap<>();
+
+    public WriteReceipts() {
+        this( DEFAULT_CAPACITY );
+    }
+
+    public WriteReceipts( int capacity ) {
+        this( capacity, System.currentTimeMillis() / 1000 );
+    }
+
+    WriteReceipts( int capacity, long startupSeconds ) {
+        nextReceipt = new AtomicLong( startupSeconds << EPOCH_SHIFT );
+        if ( Integer.bitCount( capacity ) != 1 ) {
+            throw new IllegalArgumentException( "Capacity must be a power of two" );
+        }
+        slots = new AtomicLongArray( capacity );
+        mask = capacity - 1;
+        // an all zero slot would pass for a pending receipt 0, -1 matches no receipt
+        for ( int i = 0; i < capacity; i++ ) {
+            slots.set( i, -1L );
+        }
+    }
+
+    public long issue() {
+        long receipt = nextReceipt.getAndIncrement();
+        slots.set( (int) receipt & mask, receipt << 2 | PENDING );
+        return receipt;
+    }
+
+    public long issue( Write write ) {
+        write.receipt = issue();
+        return write.receipt;
+    }
+
+    // Pending again, for a write of an earlier run the journal replays. Ignores NO_RECEIPT.
+    public void restore( Write write ) {
+        long receipt = write.receipt;
+        if ( receipt >= 0 ) {
+            slots.set( (int) receipt & mask, receipt << 2 | PENDING );
+        }
+    }
+
+    public WriteStatus status( long receipt ) {
+        if ( receipt < 0 ) {
+            return WriteStatus.UNKNOWN;
+        }
+        long slot = slots.get( (int) receipt & mask );
+        if ( slot >>> 2 != receipt ) {
+            return WriteStatus.UNKNOWN;
+        }
+        switch ( (int) slot & 3 ) {
+            case PENDING:
+                return WriteStatus.PENDING;
+            case COMMITTED:
+                return WriteStatus.COMMITTED;
+            case DEAD_LETTERED:
+                return WriteStatus.DEAD_LETTERED;
+            default:
+                return WriteStatus.UNKNOWN;
+        }
+    }
+
+    public void committed( long receipt ) {
+        complete( receipt, COMMITTED, WriteStatus.COMMITTED );
+    }
+
+    public void deadLettered( long receipt ) {
+        complete( receipt, DEAD_LETTERED, WriteStatus.DEAD_LETTERED );
+    }
+
+    // For a write that was turned away after its receipt was issued.
+    public void forget( long receipt ) {
+        complete( receipt, FORGOTTEN, WriteStatus.UNKNOWN );
+    }
+
+    // Only the first completion counts, a dead-lettered write is not committed later.
+    private void complete( long receipt, int status, WriteStatus writeStatus ) {
+        if ( receipt < 0 || !slots.compareAndSet( (int) receipt & mask, receipt << 2 | PENDING, receipt << 2 | status ) ) {
+            return;
+        }
+        if ( !listeners.isEmpty() ) {
+            Listener listener = listeners.remove( receipt );
+            if ( listener != null ) {
+                listener.completed( receipt, writeStatus );
+            }
+        }
+    }
+
+    /*
+        Calls the listener once the write is done, right away if it already is.
+        Returns false, without calling it, for a receipt that is not known.
+     */
+    public boolean onCompletion( long receipt, Listener listener ) {
+        WriteStatus status = status( receipt );
+        if ( status == WriteStatus.UNKNOWN ) {
+            return false;
+        }
+        if ( status == WriteStatus.PENDING ) {
+            listeners.put( receipt, listener );
+            status = status( receipt );
+            if ( status == WriteStatus.PENDING || listeners.remove( receipt ) == null ) {
+                return true;
+            }
+        }
+        listener.completed( receipt, status );
+        return true;
+    }
+
+    // Returns true if the listener was still waiting and will now never be called.
+    public boolean cancel( long receipt ) {
+        return listeners.remove( receipt ) != null;
+    }
+
+    public int waiting() {
+        return listeners.size();
+    }
+}
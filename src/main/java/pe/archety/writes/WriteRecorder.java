@@ -0,0 +1,178 @@
+package pe.archety.writes;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/*
+    Records every write the BatchWriterService drains, for the WriteReplay tool
+    to play back against another store.
+
+    After an 8 byte header every write is an int length, the microseconds from
+    the start of the recording to when it was submitted as a varint, and the
+    write in its WriteCodec form. Writes are recorded in the order they were
+    drained, so the times are not always increasing. Node ids are recorded as
+    the handlers had them; the replay decides whether to keep them.
+
+    Recordings get copied to other machines, so the plain identity (email or
+    phone) of token writes is not recorded, they are read back with a null
+    identity. Only the hashes and the already encrypted knows identities are
+    kept; replaying does not mail anything.
+
+    Written by the writer thread only, through a buffer of its own.
+ */
+public class WriteRecorder implements Closeable {
+    static final long MAGIC = 0x4152435752454331L; // "ARCWREC1"
+    private static final int BUFFER_BYTES = 1024 * 1024;
+    private static final int LENGTH_BYTES = 4;
+
+    private final FileChannel channel;
+    private final long startNanos;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect( BUFFER_BYTES );
+    private long recorded;
+
+    public WriteRecorder( File file ) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if ( directory != null && !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException( "Could not create directory " + directory );
+        }
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        raf.setLength( 0 );
+        channel = raf.getChannel();
+        startNanos = System.nanoTime();
+        buffer.putLong( MAGIC );
+    }
+
+    public void record( List<Write> writes ) throws IOException {
+        for ( Write write : writes ) {
+            record( write );
+        }
+        flush();
+    }
+
+    void record( Write write ) throws IOException {
+        long micros = Math.max( 0, ( write.submittedNanos() - startNanos ) / 1000 );
+        while ( true ) {
+            int start = buffer.position();
+            try {
+                buffer.position( start + LENGTH_BYTES );
+                WriteCodec.putVarLong( buffer, micros );
+                WriteCodec.encode( write, buffer, false );
+                buffer.putInt( start, buffer.position() - start - LENGTH_BYTES );
+                recorded++;
+                return;
+            } catch ( BufferOverflowException | IllegalArgumentException e ) {
+                buffer.position( start );
+                if ( start == 0 ) {
+                    // a write bigger than the whole buffer
+                    buffer = ByteBuffer.allocateDirect( buffer.capacity() * 2 );
+                } else {
+                    flush();
+                }
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while ( buffer.hasRemaining() ) {
+            channel.write( buffer );
+        }
+        buffer.clear();
+    }
+
+    public long recorded() {
+        return recorded;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /*
+        Reads a recording back. next() returns null at its end, and at a record
+        torn by a crash.
+     */
+    public static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect( BUFFER_BYTES );
+        private long micros;
+
+        public Reader( File file ) throws IOException {
+            channel = new RandomAccessFile( file, "r" ).getChannel();
+            buffer.flip();
+            if ( !fill( 8 ) || buffer.getLong() != MAGIC ) {
+                channel.close();
+                throw new IOException( file + " is not a write recording" );
+            }
+        }
+
+        public Write next() throws IOException {
+            if ( !fill( LENGTH_BYTES ) ) {
+                return null;
+            }
+            int length = buffer.getInt();
+            if ( length <= 0 ) {
+                return null;
+            }
+            ByteBuffer record = buffer;
+            if ( length > buffer.capacity() ) {
+                record = ByteBuffer.allocate( length );
+                while ( record.hasRemaining() ) {
+                    if ( !buffer.hasRemaining() && !fill( 1 ) ) {
+                        return null;
+                    }
+                    int take = Math.min( record.remaining(), buffer.remaining() );
+                    ByteBuffer slice = buffer.duplicate();
+                    slice.limit( slice.position() + take );
+                    record.put( slice );
+                    buffer.position( buffer.position() + take );
+                }
+                record.flip();
+            } else if ( !fill( length ) ) {
+                return null;
+            }
+            int end = record.position() + length;
+            micros = WriteCodec.getVarLong( record );
+            Write write = WriteCodec.decode( record );
+            record.position( Math.min( end, record.limit() ) );
+            return write;
+        }
+
+        // When the write last returned was submitted, in microseconds from the start of the recording.
+        public long micros() {
+            return micros;
+        }
+
+        // Makes sure the buffer holds at least bytes, false at the end of the file.
+        private boolean fill( int bytes ) throws IOException {
+            if ( buffer.remaining() >= bytes ) {
+                return true;
+            }
+            buffer.compact();
+            while ( buffer.position() < bytes ) {
+                if ( channel.read( buffer ) < 0 ) {
+                    buffer.flip();
+                    return false;
+                }
+            }
+            buffer.flip();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
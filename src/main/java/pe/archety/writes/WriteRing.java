@@ -0,0 +1,119 @@
+package pe.archety.writes;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Multi-producer, single-consumer ring of queued writes in the manner of the
+    LMAX Disruptor, allocated once and allocation free from then on.
+
+    A producer claims a sequence with one getAndIncrement, waits (only if the
+    ring is full) for the consumer to be done with the slot's previous lap,
+    stores the write in the slot and publishes it by setting the slot's lap
+    number. The consumer walks its own sequence over the published slots and
+    hands them back by advancing consumed once per drain.
+ */
+final class WriteRing {
+    private final Write[] slots;
+    private final AtomicIntegerArray published;
+    private final int mask;
+    private final int shift;
+    private final AtomicLong claimed = new AtomicLong();
+    // every slot before it is free again
+    private volatile long consumed;
+    // the consumer's own position, only the consumer touches it
+    private long next;
+
+    WriteRing( int size ) {
+        if ( size < 1 || Integer.bitCount( size ) != 1 ) {
+            throw new IllegalArgumentException( "Ring size must be a power of two: " + size );
+        }
+        slots = new Write[ size ];
+        published = new AtomicIntegerArray( size );
+        for ( int i = 0; i < size; i++ ) {
+            published.set( i, -1 );
+        }
+        mask = size - 1;
+        shift = Integer.numberOfTrailingZeros( size );
+    }
+
+    void put( Write write ) {
+        long sequence = claimed.getAndIncrement();
+        long wrapPoint = sequence - slots.length;
+        if ( wrapPoint >= consumed ) {
+            awaitRoom( wrapPoint );
+        }
+        int index = (int) sequence & mask;
+        slots[ index ] = write;
+        // a volatile store: the write is visible before its slot reads as published
+        published.set( index, (int) ( sequence >>> shift ) );
+    }
+
+    private void awaitRoom( long wrapPoint ) {
+        int spins = 0;
+        while ( wrapPoint >= consumed ) {
+            if ( ++spins < 100 ) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos( 1000 );
+            }
+        }
+    }
+
+    private boolean isPublished( long sequence ) {
+        return published.get( (int) sequence & mask ) == (int) ( sequence >>> shift );
+    }
+
+    // Consumer only from here on
+
+    boolean hasNext() {
+        return isPublished( next );
+    }
+
+    Write peek() {
+        return isPublished( next ) ? slots[ (int) next & mask ] : null;
+    }
+
+    Write take() {
+        if ( !isPublished( next ) ) {
+            return null;
+        }
+        int index = (int) next & mask;
+        Write write = slots[ index ];
+        slots[ index ] = null;
+        consumed = ++next;
+        return write;
+    }
+
+    int drainTo( List<Write> writes, int maxWrites ) {
+        int drained = 0;
+        while ( drained < maxWrites && isPublished( next ) ) {
+            int index = (int) next & mask;
+            writes.add( slots[ index ] );
+            slots[ index ] = null;
+            next++;
+            drained++;
+        }
+        if ( drained > 0 ) {
+            consumed = next;
+        }
+        return drained;
+    }
+
+    // Claimed and not consumed yet, a put that is still storing its write included.
+    int size() {
+        return (int) Math.max( 0, claimed.get() - consumed );
+    }
+
+    // Any thread: the oldest queued write, or null; may be gone by the time it is looked at.
+    Write oldest() {
+        long sequence = consumed;
+        return isPublished( sequence ) ? slots[ (int) sequence & mask ] : null;
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+}
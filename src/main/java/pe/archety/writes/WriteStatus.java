@@ -0,0 +1,15 @@
+package pe.archety.writes;
+
+/*
+    Where a write stands, as reported for its receipt.
+ */
+public enum WriteStatus {
+    // Queued or being applied, not visible yet.
+    PENDING,
+    // Committed to the graph (or coalesced into a write that was).
+    COMMITTED,
+    // Could not be committed and went to the dead letter file.
+    DEAD_LETTERED,
+    // Never issued, or too old to be remembered.
+    UNKNOWN
+}
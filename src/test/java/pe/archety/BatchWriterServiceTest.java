@@ -0,0 +1,379 @@
+package pe.archety;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.neo4j.tooling.GlobalGraphOperations;
+import pe.archety.mail.FileMailTransport;
+import pe.archety.mail.TokenMailer;
+import pe.archety.writes.DeadLetterFile;
+import pe.archety.writes.KnowsWrite;
+import pe.archety.writes.LikesOrHatesWrite;
+import pe.archety.writes.TokenWrite;
+import pe.archety.writes.Write;
+import pe.archety.writes.WriteStatus;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
+
+public class BatchWriterServiceTest {
+    private static GraphDatabaseService db;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        ArchetypeServer.identityCache.invalidateAll();
+        ArchetypeServer.urlCache.invalidateAll();
+
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        BATCH_WRITER_SERVICE.SetGraphDatabase( db );
+        // whatever the handler tests queued without a database goes in before the test starts
+        awaitEmptyQueue();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        awaitEmptyQueue();
+        BATCH_WRITER_SERVICE.SetGraphDatabase( null );
+        BATCH_WRITER_SERVICE.setDeadLetterFile( null );
+        BATCH_WRITER_SERVICE.setTokenMailer( null );
+        BATCH_WRITER_SERVICE.setLanes( BatchWriterService.DEFAULT_LANES );
+        BATCH_WRITER_SERVICE.setDeferredResolution( false );
+        db.shutdown();
+    }
+
+    private static void awaitEmptyQueue() throws InterruptedException {
+        for ( int i = 0; i < 500 && !BATCH_WRITER_SERVICE.isIdle(); i++ ) {
+            Thread.sleep( 10 );
+        }
+    }
+
+    private static int countLikes( String identityHash ) {
+        try ( Transaction tx = db.beginTx() ) {
+            Node identity = IteratorUtil.singleOrNull( db.findNodesByLabelAndProperty( Labels.Identity, "identity", identityHash ) );
+            if ( identity == null ) {
+                return 0;
+            }
+            return IteratorUtil.count( identity.getRelationships( Relationships.LIKES ) );
+        }
+    }
+
+    @Test
+    public void shouldApplyWritesWithinMilliseconds() throws Exception {
+        String identityHash = ArchetypeConstants.calculateHash( "maxdemarzi@gmail.com" );
+        long start = System.nanoTime();
+        BATCH_WRITER_SERVICE.enqueue( LikesOrHatesWrite.acquire( Relationships.LIKES,
+                identityHash, Write.NO_NODE, "http://en.wikipedia.org/wiki/Neo4j", "Neo4j", Write.NO_NODE ) );
+
+        while ( countLikes( identityHash ) == 0 && System.nanoTime() - start < 5_000_000_000L ) {
+            Thread.sleep( 1 );
+        }
+
+        assertEquals( 1, countLikes( identityHash ) );
+        assertTrue( System.nanoTime() - start < 1_000_000_000L );
+    }
+
+    @Test
+    public void shouldNotDuplicateRepeatedLikes() throws Exception {
+        String identityHash = ArchetypeConstants.calculateHash( "maxdemarzi@gmail.com" );
+        for ( int i = 0; i < 3; i++ ) {
+            BATCH_WRITER_SERVICE.enqueue( LikesOrHatesWrite.acquire( Relationships.LIKES,
+                    identityHash, Write.NO_NODE, "http://en.wikipedia.org/wiki/Neo4j", "Neo4j", Write.NO_NODE ) );
+        }
+        awaitEmptyQueue();
+
+        assertEquals( 1, countLikes( identityHash ) );
+    }
+
+    private static void like( String identity ) throws Exception {
+        BATCH_WRITER_SERVICE.enqueue( LikesOrHatesWrite.acquire( Relationships.LIKES,
+                ArchetypeConstants.calculateHash( identity ), Write.NO_NODE,
+                "http://en.wikipedia.org/wiki/Neo4j", "Neo4j", Write.NO_NODE ) );
+    }
+
+    @Test
+    public void shouldDeadLetterTheWriteThatBreaksTheCommit() throws Exception {
+        final String poison = ArchetypeConstants.calculateHash( "poison@meh.com" );
+        db.registerTransactionEventHandler( new TransactionEventHandler.Adapter<Object>() {
+            @Override
+            public Object beforeCommit( TransactionData data ) throws Exception {
+                for ( Node node : data.createdNodes() ) {
+                    if ( poison.equals( node.getProperty( "identity", null ) ) ) {
+                        throw new IllegalStateException( "poison" );
+                    }
+                }
+                return null;
+            }
+        } );
+        File file = new File( folder.getRoot(), "dead-letters.json" );
+        BATCH_WRITER_SERVICE.setDeadLetterFile( new DeadLetterFile( file ) );
+        long deadLetters = BATCH_WRITER_SERVICE.getDeadLetters();
+
+        // held back so all of them land in one batch
+        BATCH_WRITER_SERVICE.SetGraphDatabase( null );
+        Thread.sleep( 200 );
+        for ( int i = 0; i < 20; i++ ) {
+            like( i == 13 ? "poison@meh.com" : "user" + i + "@meh.com" );
+        }
+        BATCH_WRITER_SERVICE.SetGraphDatabase( db );
+        awaitEmptyQueue();
+
+        for ( int i = 0; i < 20; i++ ) {
+            if ( i != 13 ) {
+                assertEquals( 1, countLikes( ArchetypeConstants.calculateHash( "user" + i + "@meh.com" ) ) );
+            }
+        }
+        assertEquals( 0, countLikes( poison ) );
+        assertEquals( deadLetters + 1, BATCH_WRITER_SERVICE.getDeadLetters() );
+        List<String> lines = Files.readLines( file, Charsets.UTF_8 );
+        assertEquals( 1, lines.size() );
+        assertTrue( lines.get( 0 ).contains( poison ) );
+    }
+
+    @Test
+    public void shouldDeadLetterWritesThatFailWithoutLosingTheRest() throws Exception {
+        long deadLetters = BATCH_WRITER_SERVICE.getDeadLetters();
+        String identityHash = ArchetypeConstants.calculateHash( "maxdemarzi@gmail.com" );
+
+        BATCH_WRITER_SERVICE.SetGraphDatabase( null );
+        Thread.sleep( 200 );
+        BATCH_WRITER_SERVICE.enqueue( LikesOrHatesWrite.acquire( Relationships.LIKES,
+                identityHash, Write.NO_NODE, "http://en.wikipedia.org/wiki/Nowhere", "Nowhere", 123456789L ) );
+        like( "maxdemarzi@gmail.com" );
+        BATCH_WRITER_SERVICE.SetGraphDatabase( db );
+        awaitEmptyQueue();
+
+        assertEquals( 1, countLikes( identityHash ) );
+        assertEquals( deadLetters + 1, BATCH_WRITER_SERVICE.getDeadLetters() );
+    }
+
+    @Test
+    public void shouldDeadLetterTheWritesOfALaneThatFails() throws Exception {
+        assertLaneFailureDeadLetters( 4 );
+    }
+
+    @Test
+    public void shouldDeadLetterTheWritesOfTheOnlyLaneWhenItFails() throws Exception {
+        assertLaneFailureDeadLetters( 1 );
+    }
+
+    private void assertLaneFailureDeadLetters( int lanes ) throws Exception {
+        BATCH_WRITER_SERVICE.setLanes( lanes );
+        long deadLetters = BATCH_WRITER_SERVICE.getDeadLetters();
+        // every transaction the lanes begin fails with an Error, which no commit retry catches
+        GraphDatabaseService broken = (GraphDatabaseService) Proxy.newProxyInstance( getClass().getClassLoader(),
+                new Class<?>[]{ GraphDatabaseService.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+                        if ( method.getName().equals( "beginTx" ) ) {
+                            throw new AssertionError( "lane down" );
+                        }
+                        try {
+                            return method.invoke( db, args );
+                        } catch ( InvocationTargetException e ) {
+                            throw e.getCause();
+                        }
+                    }
+                } );
+
+        BATCH_WRITER_SERVICE.SetGraphDatabase( null );
+        Thread.sleep( 200 );
+        long[] receipts = new long[ 8 ];
+        for ( int i = 0; i < receipts.length; i++ ) {
+            receipts[ i ] = BATCH_WRITER_SERVICE.submit( LikesOrHatesWrite.acquire( Relationships.LIKES,
+                    ArchetypeConstants.calculateHash( "user" + i + "@meh.com" ), Write.NO_NODE,
+                    "http://en.wikipedia.org/wiki/Neo4j", "Neo4j", Write.NO_NODE ) );
+        }
+        BATCH_WRITER_SERVICE.SetGraphDatabase( broken );
+        awaitEmptyQueue();
+
+        assertTrue( BATCH_WRITER_SERVICE.isIdle() );
+        assertEquals( deadLetters + receipts.length, BATCH_WRITER_SERVICE.getDeadLetters() );
+        for ( int i = 0; i < receipts.length; i++ ) {
+            assertEquals( WriteStatus.DEAD_LETTERED, BATCH_WRITER_SERVICE.getReceipts().status( receipts[ i ] ) );
+            assertTrue( BATCH_WRITER_SERVICE.getPending().edges(
+                    ArchetypeConstants.calculateHash( "user" + i + "@meh.com" ), Relationships.LIKES ).isEmpty() );
+        }
+    }
+
+    @Test
+    public void shouldKeepWritingAfterABatchFailsBeforeTheLanes() throws Exception {
+        BATCH_WRITER_SERVICE.setDeferredResolution( true );
+        long deadLetters = BATCH_WRITER_SERVICE.getDeadLetters();
+        // the writer's index seeks fail once, as a store error while resolving would
+        final AtomicBoolean failed = new AtomicBoolean();
+        GraphDatabaseService flaky = (GraphDatabaseService) Proxy.newProxyInstance( getClass().getClassLoader(),
+                new Class<?>[]{ GraphDatabaseService.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable {
+                        if ( method.getName().equals( "findNodesByLabelAndProperty" ) && failed.compareAndSet( false, true ) ) {
+                            throw new IllegalStateException( "store error" );
+                        }
+                        try {
+                            return method.invoke( db, args );
+                        } catch ( InvocationTargetException e ) {
+                            throw e.getCause();
+                        }
+                    }
+                } );
+
+        BATCH_WRITER_SERVICE.SetGraphDatabase( null );
+        Thread.sleep( 200 );
+        String identityHash = ArchetypeConstants.calculateHash( "user0@meh.com" );
+        long receipt = BATCH_WRITER_SERVICE.submit( LikesOrHatesWrite.acquire( Relationships.LIKES,
+                identityHash, Write.NO_NODE, "http://en.wikipedia.org/wiki/Neo4j", "Neo4j", Write.NO_NODE ) );
+        BATCH_WRITER_SERVICE.SetGraphDatabase( flaky );
+        awaitEmptyQueue();
+
+        assertTrue( BATCH_WRITER_SERVICE.isIdle() );
+        assertEquals( WriteStatus.DEAD_LETTERED, BATCH_WRITER_SERVICE.getReceipts().status( receipt ) );
+        assertEquals( deadLetters + 1, BATCH_WRITER_SERVICE.getDeadLetters() );
+        assertTrue( BATCH_WRITER_SERVICE.getPending().edges( identityHash, Relationships.LIKES ).isEmpty() );
+
+        // the writer is still there for the next batch
+        assertTrue( BATCH_WRITER_SERVICE.isRunning() );
+        like( "user0@meh.com" );
+        awaitEmptyQueue();
+        assertEquals( 1, countLikes( identityHash ) );
+    }
+
+    @Test
+    public void shouldNotDeadLetterWritesWhenTheDatabaseIsGone() throws Exception {
+        long deadLetters = BATCH_WRITER_SERVICE.getDeadLetters();
+        GraphDatabaseService gone = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        gone.shutdown();
+        WriterLane lane = new WriterLane( BATCH_WRITER_SERVICE, 0, false );
+        List<Write> writes = new ArrayList<>();
+        for ( int i = 0; i < 4; i++ ) {
+            writes.add( LikesOrHatesWrite.acquire( Relationships.LIKES,
+                    ArchetypeConstants.calculateHash( "user" + i + "@meh.com" ), Write.NO_NODE,
+                    "http://en.wikipedia.org/wiki/Neo4j", "Neo4j", Write.NO_NODE ) );
+        }
+
+        try {
+            lane.apply( gone, writes );
+            fail( "applied writes to a database that was shut down" );
+        } catch ( WriterLane.DatabaseUnavailableException e ) {
+            // the writer stops on it
+        }
+        assertEquals( deadLetters, BATCH_WRITER_SERVICE.getDeadLetters() );
+        assertEquals( writes, lane.unfinished( writes ) );
+        for ( Write write : writes ) {
+            assertFalse( write.isSkipped() );
+        }
+    }
+
+    @Test
+    public void shouldApplyWritesInParallelLanes() throws Exception {
+        BATCH_WRITER_SERVICE.setLanes( 4 );
+        long deadLetters = BATCH_WRITER_SERVICE.getDeadLetters();
+
+        // everyone likes the same two pages and knows the next person, so the lanes contend
+        BATCH_WRITER_SERVICE.SetGraphDatabase( null );
+        Thread.sleep( 200 );
+        for ( int i = 0; i < 200; i++ ) {
+            String identityHash = ArchetypeConstants.calculateHash( "user" + i + "@meh.com" );
+            for ( int page = 0; page < 2; page++ ) {
+                BATCH_WRITER_SERVICE.enqueue( LikesOrHatesWrite.acquire( Relationships.LIKES,
+                        identityHash, Write.NO_NODE, "http://en.wikipedia.org/wiki/Page_" + page, "Page " + page, Write.NO_NODE ) );
+            }
+            BATCH_WRITER_SERVICE.enqueue( KnowsWrite.acquire( identityHash, Write.NO_NODE,
+                    ArchetypeConstants.calculateHash( "user" + ( ( i + 1 ) % 200 ) + "@meh.com" ), Write.NO_NODE, "encrypted" ) );
+        }
+        BATCH_WRITER_SERVICE.SetGraphDatabase( db );
+        awaitEmptyQueue();
+
+        assertEquals( deadLetters, BATCH_WRITER_SERVICE.getDeadLetters() );
+        try ( Transaction tx = db.beginTx() ) {
+            assertEquals( 200, IteratorUtil.count( GlobalGraphOperations.at( db ).getAllNodesWithLabel( Labels.Identity ) ) );
+            assertEquals( 2, IteratorUtil.count( GlobalGraphOperations.at( db ).getAllNodesWithLabel( Labels.Page ) ) );
+            for ( Node page : GlobalGraphOperations.at( db ).getAllNodesWithLabel( Labels.Page ) ) {
+                assertEquals( 200, IteratorUtil.count( page.getRelationships( Relationships.LIKES ) ) );
+            }
+            for ( Node identity : GlobalGraphOperations.at( db ).getAllNodesWithLabel( Labels.Identity ) ) {
+                assertEquals( 2, IteratorUtil.count( identity.getRelationships( Relationships.KNOWS ) ) );
+            }
+        }
+    }
+
+    @Test
+    public void shouldCountTheRelationshipsCommitted() throws Exception {
+        String identityHash = ArchetypeConstants.calculateHash( "maxdemarzi@gmail.com" );
+
+        BATCH_WRITER_SERVICE.SetGraphDatabase( null );
+        Thread.sleep( 200 );
+        for ( int i = 0; i < 10; i++ ) {
+            like( "user" + i + "@meh.com" );
+        }
+        // repeated, and one that fails so the batch is split and retried
+        like( "maxdemarzi@gmail.com" );
+        like( "maxdemarzi@gmail.com" );
+        BATCH_WRITER_SERVICE.enqueue( LikesOrHatesWrite.acquire( Relationships.LIKES,
+                identityHash, Write.NO_NODE, "http://en.wikipedia.org/wiki/Nowhere", "Nowhere", 123456789L ) );
+        BATCH_WRITER_SERVICE.enqueue( LikesOrHatesWrite.acquire( Relationships.HATES,
+                identityHash, Write.NO_NODE, "http://en.wikipedia.org/wiki/Mongodb", "Mongodb", Write.NO_NODE ) );
+        BATCH_WRITER_SERVICE.enqueue( KnowsWrite.acquire( identityHash, Write.NO_NODE,
+                ArchetypeConstants.calculateHash( "user0@meh.com" ), Write.NO_NODE, "encrypted" ) );
+        BATCH_WRITER_SERVICE.SetGraphDatabase( db );
+        awaitEmptyQueue();
+
+        try ( Transaction tx = db.beginTx() ) {
+            Node identity = IteratorUtil.single( db.findNodesByLabelAndProperty( Labels.Identity, "identity", identityHash ) );
+            assertEquals( 1, NodeCounters.get( identity, NodeCounters.LIKES ) );
+            assertEquals( 1, NodeCounters.get( identity, NodeCounters.HATES ) );
+            assertEquals( 1, NodeCounters.get( identity, NodeCounters.KNOWS ) );
+            Node neo4j = IteratorUtil.single( db.findNodesByLabelAndProperty( Labels.Page, "url", "http://en.wikipedia.org/wiki/Neo4j" ) );
+            assertEquals( 11, NodeCounters.get( neo4j, NodeCounters.LIKED ) );
+            assertEquals( 0, NodeCounters.get( neo4j, NodeCounters.HATED ) );
+            Node mongodb = IteratorUtil.single( db.findNodesByLabelAndProperty( Labels.Page, "url", "http://en.wikipedia.org/wiki/Mongodb" ) );
+            assertEquals( 1, NodeCounters.get( mongodb, NodeCounters.HATED ) );
+        }
+    }
+
+    @Test
+    public void shouldMailTokensOnceCommitted() throws Exception {
+        File mails = folder.newFile( "mails.json" );
+        TokenMailer mailer = new TokenMailer( new FileMailTransport( mails ) );
+        mailer.start();
+        BATCH_WRITER_SERVICE.setTokenMailer( mailer );
+
+        String identityHash = ArchetypeConstants.calculateHash( "maxdemarzi@gmail.com" );
+        BATCH_WRITER_SERVICE.enqueue( TokenWrite.acquire( "maxdemarzi@gmail.com", identityHash, Write.NO_NODE ) );
+        awaitEmptyQueue();
+        mailer.stop( 5000 );
+
+        List<String> lines = Files.readLines( mails, Charsets.UTF_8 );
+        assertEquals( 1, lines.size() );
+        try ( Transaction tx = db.beginTx() ) {
+            Node identity = IteratorUtil.single( db.findNodesByLabelAndProperty( Labels.Identity, "identity", identityHash ) );
+            assertTrue( lines.get( 0 ).contains( "\"to\":\"maxdemarzi@gmail.com\"" ) );
+            assertTrue( lines.get( 0 ).contains( "\"token\":\"" + identity.getProperty( "generatedToken" ) + "\"" ) );
+        }
+        assertEquals( 1, mailer.getSent() );
+    }
+}
@@ -0,0 +1,44 @@
+package pe.archety;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommitSizerTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void shouldSizeChunksToTheTargetCommitTime() {
+        CommitSizer sizer = new CommitSizer( "test", TimeUnit.MILLISECONDS.toNanos( 100 ), 16 * MB );
+        assertEquals( 4 * MB, sizer.chunkBytes() );
+        assertFalse( sizer.isFull( MB ) );
+        assertTrue( sizer.isFull( 4 * MB ) );
+
+        // 4 MB in 400 ms, a quarter of that fits in 100 ms
+        sizer.onCommit( 1000, 4 * MB, TimeUnit.MILLISECONDS.toNanos( 400 ) );
+        assertEquals( MB, sizer.chunkBytes() );
+
+        // much faster commits grow the chunk, but never past the budget
+        for ( int i = 0; i < 20; i++ ) {
+            sizer.onCommit( 1000, sizer.chunkBytes(), TimeUnit.MILLISECONDS.toNanos( 1 ) );
+        }
+        assertEquals( 16 * MB, sizer.chunkBytes() );
+        assertEquals( 21, sizer.commits() );
+        assertEquals( 21000, sizer.committedOperations() );
+    }
+
+    @Test
+    public void shouldNotShrinkBelowTheMinimumNorLearnFromTailChunks() {
+        CommitSizer sizer = new CommitSizer( "test", TimeUnit.MILLISECONDS.toNanos( 100 ), 16 * MB );
+
+        sizer.onCommit( 10, 1024, TimeUnit.SECONDS.toNanos( 10 ) );
+        assertEquals( 4 * MB, sizer.chunkBytes() );
+
+        sizer.onCommit( 1000, 4 * MB, TimeUnit.SECONDS.toNanos( 100 ) );
+        assertEquals( CommitSizer.MIN_CHUNK_BYTES, sizer.chunkBytes() );
+    }
+}
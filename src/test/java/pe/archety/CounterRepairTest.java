@@ -0,0 +1,121 @@
+package pe.archety;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CounterRepairTest {
+    private GraphDatabaseService db;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldRecomputeTheCountersFromTheRelationships() throws Exception {
+        // more nodes than fit in a chunk, written without counters and one of them wrong
+        int identities = CounterRepair.CHUNK_NODES + 500;
+        List<Long> identityIds = new ArrayList<>();
+        long neo4jId;
+        long mongodbId;
+        try ( Transaction tx = db.beginTx() ) {
+            Node neo4j = db.createNode( Labels.Page );
+            Node mongodb = db.createNode( Labels.Page );
+            Node previous = null;
+            for ( int i = 0; i < identities; i++ ) {
+                Node identity = db.createNode( Labels.Identity );
+                identity.createRelationshipTo( neo4j, Relationships.LIKES );
+                if ( i % 2 == 0 ) {
+                    identity.createRelationshipTo( mongodb, Relationships.HATES );
+                }
+                if ( previous != null ) {
+                    identity.createRelationshipTo( previous, Relationships.KNOWS );
+                }
+                previous = identity;
+                identityIds.add( identity.getId() );
+            }
+            neo4j.setProperty( NodeCounters.LIKED, 3L );
+            neo4jId = neo4j.getId();
+            mongodbId = mongodb.getId();
+            tx.success();
+        }
+
+        CounterRepair repair = new CounterRepair( db, 4 );
+        repair.repair();
+
+        assertEquals( identities + 2, repair.checked() );
+        try ( Transaction tx = db.beginTx() ) {
+            assertEquals( identities, NodeCounters.get( db.getNodeById( neo4jId ), NodeCounters.LIKED ) );
+            assertEquals( 0, NodeCounters.get( db.getNodeById( neo4jId ), NodeCounters.HATED ) );
+            assertEquals( identities / 2, NodeCounters.get( db.getNodeById( mongodbId ), NodeCounters.HATED ) );
+            for ( int i = 0; i < identities; i++ ) {
+                Node identity = db.getNodeById( identityIds.get( i ) );
+                assertEquals( 1, NodeCounters.get( identity, NodeCounters.LIKES ) );
+                assertEquals( i % 2 == 0 ? 1 : 0, NodeCounters.get( identity, NodeCounters.HATES ) );
+                assertEquals( i == 0 ? 0 : 1, NodeCounters.get( identity, NodeCounters.KNOWS ) );
+            }
+        }
+
+        // nothing left to correct
+        CounterRepair again = new CounterRepair( db, 4 );
+        again.repair();
+        assertEquals( 0, again.corrected() );
+        assertEquals( 0, again.failed() );
+    }
+
+    @Test
+    public void shouldCountTheNodesOfChunksThatFail() throws Exception {
+        final long neo4jId;
+        try ( Transaction tx = db.beginTx() ) {
+            Node neo4j = db.createNode( Labels.Page );
+            db.createNode( Labels.Page );
+            db.createNode( Labels.Identity ).createRelationshipTo( neo4j, Relationships.LIKES );
+            neo4jId = neo4j.getId();
+            tx.success();
+        }
+        // setting the counter of one page fails its chunk
+        TransactionEventHandler<Object> failing = new TransactionEventHandler.Adapter<Object>() {
+            @Override
+            public Object beforeCommit( TransactionData data ) throws Exception {
+                for ( PropertyEntry<Node> entry : data.assignedNodeProperties() ) {
+                    if ( entry.entity().getId() == neo4jId ) {
+                        throw new IllegalStateException( "store error" );
+                    }
+                }
+                return null;
+            }
+        };
+        db.registerTransactionEventHandler( failing );
+
+        CounterRepair repair = new CounterRepair( db, 2 );
+        repair.repair();
+        assertEquals( 1, repair.checked() );
+        assertEquals( 2, repair.failed() );
+
+        db.unregisterTransactionEventHandler( failing );
+        CounterRepair again = new CounterRepair( db, 2 );
+        again.repair();
+        assertEquals( 0, again.failed() );
+        try ( Transaction tx = db.beginTx() ) {
+            assertEquals( 1, NodeCounters.get( db.getNodeById( neo4jId ), NodeCounters.LIKED ) );
+        }
+    }
+}
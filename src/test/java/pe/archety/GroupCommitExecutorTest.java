@@ -0,0 +1,102 @@
+package pe.archety;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GroupCommitExecutorTest {
+    private GraphDatabaseService db;
+    private GroupCommitExecutor groupCommit;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        // a long window, so everything submitted below lands in one group
+        groupCommit = new GroupCommitExecutor( db, TimeUnit.MILLISECONDS.toMicros( 200 ), 100 );
+        groupCommit.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        groupCommit.stop( 1000 );
+        db.shutdown();
+    }
+
+    private static GroupCommitExecutor.Work<Long> createIdentity( final String identity ) {
+        return new GroupCommitExecutor.Work<Long>() {
+            @Override
+            public Long apply( GraphDatabaseService db ) {
+                Node node = db.createNode( Labels.Identity );
+                node.setProperty( "identity", identity );
+                return node.getId();
+            }
+        };
+    }
+
+    private int identities() {
+        try ( Transaction tx = db.beginTx() ) {
+            int count = 0;
+            for ( Node ignored : db.findNodesByLabelAndProperty( Labels.Identity, "identity", "a" ) ) {
+                count++;
+            }
+            for ( Node ignored : db.findNodesByLabelAndProperty( Labels.Identity, "identity", "b" ) ) {
+                count++;
+            }
+            tx.success();
+            return count;
+        }
+    }
+
+    @Test
+    public void shouldCommitConcurrentSubmissionsTogether() throws Exception {
+        ArrayList<ListenableFuture<Long>> futures = new ArrayList<>();
+        for ( int i = 0; i < 10; i++ ) {
+            futures.add( groupCommit.submit( createIdentity( i % 2 == 0 ? "a" : "b" ) ) );
+        }
+        for ( ListenableFuture<Long> future : futures ) {
+            assertTrue( future.get( 10, TimeUnit.SECONDS ) >= 0 );
+        }
+        assertEquals( 1, groupCommit.commits() );
+        assertEquals( 10, groupCommit.applied() );
+        assertEquals( 10, identities() );
+    }
+
+    @Test
+    public void shouldRetryTheOthersAloneWhenOneFails() throws Exception {
+        ListenableFuture<Long> first = groupCommit.submit( createIdentity( "a" ) );
+        ListenableFuture<Long> failing = groupCommit.submit( new GroupCommitExecutor.Work<Long>() {
+            @Override
+            public Long apply( GraphDatabaseService db ) {
+                db.createNode( Labels.Identity ).setProperty( "identity", "b" );
+                throw new IllegalArgumentException( "no" );
+            }
+        } );
+        ListenableFuture<Long> last = groupCommit.submit( createIdentity( "b" ) );
+
+        first.get( 10, TimeUnit.SECONDS );
+        last.get( 10, TimeUnit.SECONDS );
+        try {
+            failing.get( 10, TimeUnit.SECONDS );
+            fail();
+        } catch ( ExecutionException e ) {
+            assertTrue( e.getCause() instanceof IllegalArgumentException );
+        }
+        assertEquals( 1, groupCommit.fallbacks() );
+        assertEquals( 2, groupCommit.commits() );
+        // nothing of the failed work was committed
+        assertEquals( 2, identities() );
+    }
+}
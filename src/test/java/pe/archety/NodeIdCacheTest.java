@@ -0,0 +1,155 @@
+package pe.archety;
+
+import org.junit.Test;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static pe.archety.ArchetypeConstants.URLPREFIX;
+
+public class NodeIdCacheTest {
+
+    @Test
+    public void shouldCacheIdentityHashes() {
+        NodeIdCache cache = NodeIdCache.forDigests( 100_000 );
+        for ( int i = 0; i < 50_000; i++ ) {
+            cache.put( ArchetypeConstants.calculateHash( "user" + i + "@meh.com" ), i );
+        }
+        cache.put( ArchetypeConstants.calculateHash( "user7@meh.com" ), 77 );
+
+        assertEquals( 50_000, cache.size() );
+        for ( int i = 0; i < 50_000; i++ ) {
+            assertEquals( i == 7 ? 77L : (long) i, (long) cache.getIfPresent( ArchetypeConstants.calculateHash( "user" + i + "@meh.com" ) ) );
+        }
+        assertNull( cache.getIfPresent( ArchetypeConstants.calculateHash( "nobody@meh.com" ) ) );
+
+        // not a digest, never cached
+        cache.put( "maxdemarzi@gmail.com", 1 );
+        assertNull( cache.getIfPresent( "maxdemarzi@gmail.com" ) );
+
+        cache.invalidateAll();
+        assertEquals( 0, cache.size() );
+        assertNull( cache.getIfPresent( ArchetypeConstants.calculateHash( "user7@meh.com" ) ) );
+    }
+
+    @Test
+    public void shouldCacheUrlsExactly() {
+        NodeIdCache cache = NodeIdCache.forUrls( 1000 );
+        cache.put( URLPREFIX + "Neo4j", 1 );
+        cache.put( URLPREFIX + "Neo4j_", 2 );
+        cache.put( URLPREFIX + "Caf\u00e9", 3 );
+        cache.put( URLPREFIX + "\ud83d\ude00", 4 );
+        cache.put( URLPREFIX, 5 );
+
+        assertEquals( 1L, (long) cache.getIfPresent( URLPREFIX + "Neo4j" ) );
+        assertEquals( 2L, (long) cache.getIfPresent( URLPREFIX + "Neo4j_" ) );
+        assertEquals( 3L, (long) cache.getIfPresent( URLPREFIX + "Caf\u00e9" ) );
+        assertEquals( 4L, (long) cache.getIfPresent( URLPREFIX + "\ud83d\ude00" ) );
+        assertEquals( 5L, (long) cache.getIfPresent( URLPREFIX ) );
+        assertNull( cache.getIfPresent( URLPREFIX + "Neo4" ) );
+        assertNull( cache.getIfPresent( "Neo4j" ) );
+
+        // too long to keep inline, kept as a digest
+        StringBuilder title = new StringBuilder();
+        for ( int i = 0; i < NodeIdCache.URL_KEY_BYTES + 1; i++ ) {
+            title.append( 'x' );
+        }
+        cache.put( URLPREFIX + title, 6 );
+        assertEquals( 6L, (long) cache.getIfPresent( URLPREFIX + title ) );
+        assertNull( cache.getIfPresent( URLPREFIX + title + "x" ) );
+        title.setLength( NodeIdCache.URL_KEY_BYTES );
+        cache.put( URLPREFIX + title, 7 );
+        assertEquals( 7L, (long) cache.getIfPresent( URLPREFIX + title ) );
+        assertEquals( 6L, (long) cache.getIfPresent( URLPREFIX + title + "x" ) );
+    }
+
+    @Test
+    public void shouldCachePercentEncodedTitles() throws Exception {
+        NodeIdCache cache = NodeIdCache.forUrls( 1000 );
+        String moscow = URLPREFIX + URLEncoder.encode( "\u041c\u043e\u0441\u043a\u0432\u0430", "UTF-8" );
+        String kremlin = URLPREFIX + URLEncoder.encode( "\u041c\u043e\u0441\u043a\u043e\u0432\u0441\u043a\u0438\u0439_\u041a\u0440\u0435\u043c\u043b\u044c", "UTF-8" );
+        assertTrue( kremlin.length() - URLPREFIX.length() > NodeIdCache.URL_KEY_BYTES );
+        cache.put( moscow, 1 );
+        cache.put( kremlin, 2 );
+
+        assertEquals( 2, cache.size() );
+        assertEquals( 1L, (long) cache.getIfPresent( moscow ) );
+        assertEquals( 2L, (long) cache.getIfPresent( kremlin ) );
+        assertNull( cache.getIfPresent( kremlin.toLowerCase() ) );
+    }
+
+    @Test
+    public void shouldEvictWhatIsNotRead() {
+        int maximumSize = NodeIdCache.SEGMENTS * 100;
+        NodeIdCache cache = NodeIdCache.forUrls( maximumSize );
+        int hotKeys = maximumSize / 4;
+        for ( int i = 0; i < hotKeys; i++ ) {
+            cache.put( URLPREFIX + "Hot_" + i, i );
+        }
+        for ( int i = 0; i < maximumSize * 4; i++ ) {
+            cache.put( URLPREFIX + "Cold_" + i, i );
+            // the hot quarter keeps being read
+            cache.getIfPresent( URLPREFIX + "Hot_" + ( i % hotKeys ) );
+        }
+
+        assertTrue( cache.size() <= maximumSize );
+        int hot = 0;
+        for ( int i = 0; i < hotKeys; i++ ) {
+            Long nodeId = cache.getIfPresent( URLPREFIX + "Hot_" + i );
+            if ( nodeId != null ) {
+                assertEquals( i, (long) nodeId );
+                hot++;
+            }
+        }
+        assertTrue( "only " + hot + " hot entries left", hot > hotKeys * 9 / 10 );
+        // every entry left can still be found after all the evictions shifted them around
+        int cold = 0;
+        for ( int i = 0; i < maximumSize * 4; i++ ) {
+            Long nodeId = cache.getIfPresent( URLPREFIX + "Cold_" + i );
+            if ( nodeId != null ) {
+                assertEquals( i, (long) nodeId );
+                cold++;
+            }
+        }
+        assertEquals( cache.size(), hot + cold );
+    }
+
+    @Test
+    public void shouldTakeConcurrentReadsAndWrites() throws Exception {
+        final NodeIdCache cache = NodeIdCache.forDigests( 1_000_000 );
+        final List<String> hashes = new ArrayList<>();
+        for ( int i = 0; i < 20_000; i++ ) {
+            hashes.add( ArchetypeConstants.calculateHash( "user" + i + "@meh.com" ) );
+        }
+        final AtomicInteger wrong = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for ( int t = 0; t < 8; t++ ) {
+            final int offset = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for ( int i = offset; i < hashes.size(); i += 4 ) {
+                        cache.put( hashes.get( i ), i );
+                        Long nodeId = cache.getIfPresent( hashes.get( i ) );
+                        if ( nodeId == null || nodeId != i ) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads.add( thread );
+            thread.start();
+        }
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+
+        assertEquals( 0, wrong.get() );
+        assertEquals( hashes.size(), cache.size() );
+    }
+}
@@ -0,0 +1,97 @@
+package pe.archety;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import pe.archety.writes.IdentityWrite;
+import pe.archety.writes.KnowsWrite;
+import pe.archety.writes.LikesOrHatesWrite;
+import pe.archety.writes.TokenWrite;
+import pe.archety.writes.Write;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NodeResolverTest {
+    private static final String URL = "http://en.wikipedia.org/wiki/Neo4j";
+    private static final String NEW_URL = "http://en.wikipedia.org/wiki/Mongodb";
+    private static final String KNOWN = ArchetypeConstants.calculateHash( "known@meh.com" );
+    private static final String NEW = ArchetypeConstants.calculateHash( "new@meh.com" );
+
+    private GraphDatabaseService db;
+    private long identityId;
+    private long pageId;
+
+    @Before
+    public void setUp() {
+        ArchetypeServer.identityCache.invalidateAll();
+        ArchetypeServer.urlCache.invalidateAll();
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        try ( Transaction tx = db.beginTx() ) {
+            Node identity = db.createNode( Labels.Identity );
+            identity.setProperty( "identity", KNOWN );
+            identityId = identity.getId();
+            Node page = db.createNode( Labels.Page );
+            page.setProperty( "url", URL );
+            pageId = page.getId();
+            tx.success();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        ArchetypeServer.identityCache.invalidateAll();
+        ArchetypeServer.urlCache.invalidateAll();
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldResolveWhatTheBatchMissesOnce() {
+        LikesOrHatesWrite likes = LikesOrHatesWrite.acquire( Relationships.LIKES, KNOWN, Write.NO_NODE, URL, "Neo4j", Write.NO_NODE );
+        LikesOrHatesWrite likesNew = LikesOrHatesWrite.acquire( Relationships.LIKES, NEW, Write.NO_NODE, NEW_URL, "Mongodb", Write.NO_NODE );
+        KnowsWrite knows = KnowsWrite.acquire( KNOWN, Write.NO_NODE, NEW, Write.NO_NODE, "x" );
+        TokenWrite token = TokenWrite.acquire( "me@meh.com", KNOWN, Write.NO_NODE );
+        List<Write> writes = Arrays.<Write>asList( likes, likesNew, knows, token );
+
+        NodeResolver resolver = new NodeResolver();
+        resolver.resolve( db, writes );
+
+        assertEquals( identityId, likes.identityNodeId );
+        assertEquals( pageId, likes.pageNodeId );
+        assertEquals( Write.NO_NODE, likesNew.identityNodeId );
+        assertEquals( Write.NO_NODE, likesNew.pageNodeId );
+        assertEquals( identityId, knows.identityNodeId );
+        assertEquals( Write.NO_NODE, knows.identityNodeId2 );
+        assertEquals( identityId, token.identityNodeId );
+        // known, new, URL and NEW_URL, each once
+        assertEquals( 4, resolver.lookups() );
+        assertEquals( 2, resolver.found() );
+        assertEquals( Long.valueOf( identityId ), ArchetypeServer.identityCache.getIfPresent( KNOWN ) );
+        assertEquals( Long.valueOf( pageId ), ArchetypeServer.urlCache.getIfPresent( URL ) );
+    }
+
+    @Test
+    public void shouldSkipCreatingIdentitiesThatExistAndUseTheCache() {
+        Write known = IdentityWrite.acquire( KNOWN );
+        Write unknown = IdentityWrite.acquire( NEW );
+        NodeResolver resolver = new NodeResolver();
+        resolver.resolve( db, Arrays.asList( known, unknown ) );
+
+        assertTrue( known.isSkipped() );
+        assertFalse( unknown.isSkipped() );
+
+        // cached now, nothing left to seek
+        LikesOrHatesWrite likes = LikesOrHatesWrite.acquire( Relationships.LIKES, KNOWN, Write.NO_NODE, URL, "Neo4j", pageId );
+        resolver.resolve( db, Arrays.<Write>asList( likes ) );
+        assertEquals( identityId, likes.identityNodeId );
+        assertEquals( 2, resolver.lookups() );
+    }
+}
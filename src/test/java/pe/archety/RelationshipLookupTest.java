@@ -0,0 +1,84 @@
+package pe.archety;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RelationshipLookupTest {
+    private GraphDatabaseService db;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldFindExistingRelationshipsFromEitherSide() {
+        RelationshipLookup lookup = new RelationshipLookup( 100, 1000 );
+        try ( Transaction tx = db.beginTx() ) {
+            Node identity = db.createNode();
+            Node page = db.createNode();
+            Node other = db.createNode();
+            identity.createRelationshipTo( page, Relationships.LIKES );
+            // a popular page, the identity side runs out first
+            for ( int i = 0; i < 50; i++ ) {
+                db.createNode().createRelationshipTo( other, Relationships.LIKES );
+            }
+
+            assertTrue( lookup.exists( identity, page, Relationships.LIKES ) );
+            assertFalse( lookup.exists( identity, page, Relationships.HATES ) );
+            assertFalse( lookup.exists( page, identity, Relationships.LIKES ) );
+            assertFalse( lookup.exists( identity, other, Relationships.LIKES ) );
+
+            lookup.create( identity, other, Relationships.LIKES );
+            assertTrue( lookup.exists( identity, other, Relationships.LIKES ) );
+            tx.success();
+        }
+        assertEquals( 0, lookup.cachedNodes() );
+    }
+
+    @Test
+    public void shouldCacheNeighboursOfDenseNodes() {
+        RelationshipLookup lookup = new RelationshipLookup( 100, 1000 );
+        try ( Transaction tx = db.beginTx() ) {
+            Node identity = db.createNode();
+            Node dense = db.createNode();
+            Node[] pages = new Node[ 300 ];
+            for ( int i = 0; i < pages.length; i++ ) {
+                pages[ i ] = db.createNode();
+                identity.createRelationshipTo( pages[ i ], Relationships.LIKES );
+                dense.createRelationshipTo( pages[ i ], Relationships.LIKES );
+            }
+            Node page = db.createNode();
+            for ( int i = 0; i < 200; i++ ) {
+                db.createNode().createRelationshipTo( page, Relationships.LIKES );
+            }
+
+            assertFalse( lookup.exists( identity, page, Relationships.LIKES ) );
+            assertEquals( 1, lookup.cachedNodes() );
+            assertTrue( lookup.exists( identity, pages[ 123 ], Relationships.LIKES ) );
+
+            lookup.create( identity, page, Relationships.LIKES );
+            lookup.startBatch();
+            assertTrue( lookup.exists( identity, page, Relationships.LIKES ) );
+
+            lookup.invalidate();
+            assertEquals( 0, lookup.cachedNodes() );
+            assertTrue( lookup.exists( identity, page, Relationships.LIKES ) );
+            tx.success();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package pe.archety.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import io.undertow.Undertow;
+import io.undertow.server.RoutingHandler;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.kernel.impl.util.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pe.archety.ArchetypeConstants;
+import pe.archety.BatchWriterService;
+import pe.archety.Labels;
+import pe.archety.handlers.api.CreateBulkHandler;
+import pe.archety.handlers.api.CreateLikesOrHatesHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Likes per second, all the way into the graph, posted one request at a time
+    versus as one POST /v1/bulk body. Identities and pages exist already, so no
+    page is checked against Wikipedia; every invocation waits for the writer to
+    be idle again so the rate is one that can be sustained.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkIngestBenchmark {
+    private static final int WRITES = 2_000;
+    private static final int IDENTITIES = 10_000;
+    private static final int PAGES = 10_000;
+    private static final int PORT = 9091;
+
+    private File storeDir;
+    private GraphDatabaseService db;
+    private BatchWriterService writer;
+    private Undertow undertow;
+    private Random random;
+
+    @Setup
+    public void setUp() {
+        storeDir = Files.createTempDir();
+        db = new GraphDatabaseFactory().newEmbeddedDatabase( storeDir.getAbsolutePath() );
+        try ( Transaction tx = db.beginTx() ) {
+            db.schema().constraintFor( Labels.Identity ).assertPropertyIsUnique( "identity" ).create();
+            db.schema().constraintFor( Labels.Page ).assertPropertyIsUnique( "url" ).create();
+            tx.success();
+        }
+        try ( Transaction tx = db.beginTx() ) {
+            db.schema().awaitIndexesOnline( 1, TimeUnit.MINUTES );
+            for ( int i = 0; i < IDENTITIES; i++ ) {
+                Node identity = db.createNode( Labels.Identity );
+                identity.setProperty( "identity", ArchetypeConstants.calculateHash( "user" + i + "@meh.com" ) );
+            }
+            for ( int i = 0; i < PAGES; i++ ) {
+                Node page = db.createNode( Labels.Page );
+                page.setProperty( "url", "http://en.wikipedia.org/wiki/Page_" + i );
+                page.setProperty( "title", "Page " + i );
+            }
+            tx.success();
+        }
+        writer = BatchWriterService.INSTANCE;
+        writer.SetGraphDatabase( db );
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        undertow = Undertow.builder()
+                .addHttpListener( PORT, "localhost" )
+                .setHandler( new RoutingHandler()
+                                .add( "POST", "/v1/identities/{identity}/likes", new CreateLikesOrHatesHandler( db, objectMapper, "LIKES" ) )
+                                .add( "POST", "/v1/bulk", new CreateBulkHandler( db, objectMapper ) )
+                )
+                .build();
+        undertow.start();
+        random = new Random( 42 );
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        undertow.stop();
+        writer.SetGraphDatabase( null );
+        db.shutdown();
+        FileUtils.deleteRecursively( storeDir );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WRITES)
+    public void singlePosts() throws Exception {
+        for ( int i = 0; i < WRITES; i++ ) {
+            post( "/v1/identities/user" + random.nextInt( IDENTITIES ) + "@meh.com/likes",
+                    "{\"url\":\"http://en.wikipedia.org/wiki/Page_" + random.nextInt( PAGES ) + "\"}" );
+        }
+        awaitWriter();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WRITES)
+    public void bulkPost() throws Exception {
+        StringBuilder body = new StringBuilder( WRITES * 120 );
+        for ( int i = 0; i < WRITES; i++ ) {
+            body.append( "{\"identity\":\"user" ).append( random.nextInt( IDENTITIES ) )
+                    .append( "@meh.com\",\"relationship_type\":\"likes\",\"url\":\"http://en.wikipedia.org/wiki/Page_" )
+                    .append( random.nextInt( PAGES ) ).append( "\"}\n" );
+        }
+        post( "/v1/bulk", body.toString() );
+        awaitWriter();
+    }
+
+    private void awaitWriter() throws InterruptedException {
+        while ( !writer.isIdle() ) {
+            Thread.sleep( 1 );
+        }
+    }
+
+    private static void post( String path, String body ) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL( "http://localhost:" + PORT + path ).openConnection();
+        connection.setRequestMethod( "POST" );
+        connection.setDoOutput( true );
+        try ( OutputStream out = connection.getOutputStream() ) {
+            out.write( body.getBytes( Charsets.UTF_8 ) );
+        }
+        if ( connection.getResponseCode() >= 300 ) {
+            throw new IOException( path + " answered " + connection.getResponseCode() );
+        }
+        try ( InputStream in = connection.getInputStream() ) {
+            ByteStreams.toByteArray( in );
+        }
+    }
+
+    public static void main( String[] args ) throws Exception {
+        Options options = new OptionsBuilder()
+                .include( BulkIngestBenchmark.class.getSimpleName() )
+                .build();
+        new Runner( options ).run();
+    }
+}
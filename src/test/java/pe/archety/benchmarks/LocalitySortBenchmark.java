@@ -0,0 +1,119 @@
+package pe.archety.benchmarks;
+
+import com.google.common.io.Files;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+import org.neo4j.kernel.impl.util.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pe.archety.ArchetypeConstants;
+import pe.archety.BatchWriterService;
+import pe.archety.Labels;
+import pe.archety.Relationships;
+import pe.archety.writes.LikesOrHatesWrite;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Likes per second through the BatchWriterService with and without the
+    LocalityOrder sort, on a store several times larger than its memory mapped
+    windows and with the object cache off, so the writes have to go to the
+    store files. The likes are between random, already existing identities and
+    pages, enqueued in rounds of 20000 and waited for until the writer is idle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocalitySortBenchmark {
+    private static final int WRITES = 20_000;
+    private static final int IDENTITIES = 200_000;
+    private static final int PAGES = 200_000;
+    private static final int CREATE_CHUNK = 50_000;
+
+    @Param({ "false", "true" })
+    public boolean localitySort;
+
+    private File storeDir;
+    private GraphDatabaseService db;
+    private BatchWriterService writer;
+    private String[] hashes;
+    private long[] identityIds;
+    private String[] urls;
+    private long[] pageIds;
+    private Random random;
+
+    @Setup
+    public void setUp() {
+        storeDir = Files.createTempDir();
+        db = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder( storeDir.getAbsolutePath() )
+                .setConfig( GraphDatabaseSettings.cache_type, "none" )
+                .setConfig( GraphDatabaseSettings.nodestore_mapped_memory_size, "1M" )
+                .setConfig( GraphDatabaseSettings.relationshipstore_mapped_memory_size, "1M" )
+                .setConfig( GraphDatabaseSettings.nodestore_propertystore_mapped_memory_size, "1M" )
+                .newGraphDatabase();
+        hashes = new String[ IDENTITIES ];
+        identityIds = new long[ IDENTITIES ];
+        urls = new String[ PAGES ];
+        pageIds = new long[ PAGES ];
+        for ( int start = 0; start < IDENTITIES; start += CREATE_CHUNK ) {
+            try ( Transaction tx = db.beginTx() ) {
+                for ( int i = start; i < start + CREATE_CHUNK; i++ ) {
+                    hashes[ i ] = ArchetypeConstants.calculateHash( "user" + i + "@meh.com" );
+                    identityIds[ i ] = db.createNode( Labels.Identity ).getId();
+                }
+                tx.success();
+            }
+        }
+        for ( int start = 0; start < PAGES; start += CREATE_CHUNK ) {
+            try ( Transaction tx = db.beginTx() ) {
+                for ( int i = start; i < start + CREATE_CHUNK; i++ ) {
+                    urls[ i ] = "http://en.wikipedia.org/wiki/Page_" + i;
+                    pageIds[ i ] = db.createNode( Labels.Page ).getId();
+                }
+                tx.success();
+            }
+        }
+        writer = BatchWriterService.INSTANCE;
+        writer.setLocalitySort( localitySort );
+        writer.SetGraphDatabase( db );
+        random = new Random( 42 );
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        writer.SetGraphDatabase( null );
+        writer.setLocalitySort( false );
+        db.shutdown();
+        FileUtils.deleteRecursively( storeDir );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WRITES)
+    public void likes() throws Exception {
+        for ( int i = 0; i < WRITES; i++ ) {
+            int identity = random.nextInt( IDENTITIES );
+            int page = random.nextInt( PAGES );
+            writer.enqueue( LikesOrHatesWrite.acquire( Relationships.LIKES, hashes[ identity ], identityIds[ identity ],
+                    urls[ page ], "Page " + page, pageIds[ page ] ) );
+        }
+        while ( !writer.isIdle() ) {
+            Thread.sleep( 1 );
+        }
+    }
+
+    public static void main( String[] args ) throws Exception {
+        Options options = new OptionsBuilder()
+                .include( LocalitySortBenchmark.class.getSimpleName() )
+                .build();
+        new Runner( options ).run();
+    }
+}
@@ -0,0 +1,113 @@
+package pe.archety.benchmarks;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pe.archety.ArchetypeConstants;
+import pe.archety.NodeIdCache;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+    The identity and url caches with 10M entries, as the Guava caches
+    ArchetypeServer had and as NodeIdCache: lookups of cached keys and puts of
+    keys already there. After filling a cache the setup prints the heap it
+    took (and the direct memory, for the NodeIdCache), measured between full
+    collections.
+
+    Only every tenth key is kept to look up, the 10M strings themselves would
+    take gigabytes. Needs a 5g heap for the Guava identity cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx5g", "-XX:MaxDirectMemorySize=2g" })
+public class NodeIdCacheBenchmark {
+    private static final int ENTRIES = 10_000_000;
+    private static final int SAMPLE_EVERY = 10;
+
+    @Param({ "guava", "offHeap" })
+    public String cache;
+
+    @Param({ "identity", "url" })
+    public String keys;
+
+    private Cache<String, Long> guava;
+    private NodeIdCache offHeap;
+    private String[] sample;
+
+    @Setup
+    public void setUp() {
+        long heapBefore = usedHeap();
+        if ( cache.equals( "guava" ) ) {
+            guava = CacheBuilder.newBuilder().maximumSize( ENTRIES ).build();
+        } else {
+            offHeap = keys.equals( "identity" ) ? NodeIdCache.forDigests( ENTRIES ) : NodeIdCache.forUrls( ENTRIES );
+        }
+        sample = new String[ ENTRIES / SAMPLE_EVERY ];
+        long sampleBytes = 0;
+        for ( int i = 0; i < ENTRIES; i++ ) {
+            String key = key( i );
+            put( key, i );
+            if ( i % SAMPLE_EVERY == 0 ) {
+                sample[ i / SAMPLE_EVERY ] = key;
+                // String, its char array and the array slot
+                sampleBytes += 24 + 16 + key.length() * 2 + 8;
+            }
+        }
+        long heap = Math.max( 0, usedHeap() - heapBefore - sampleBytes );
+        System.out.println();
+        System.out.println( String.format( "%s %s cache of %d entries: %d MB heap (%d B an entry)%s",
+                cache, keys, ENTRIES, heap >> 20, heap / ENTRIES,
+                offHeap == null ? "" : String.format( ", %d MB direct (%d B an entry)",
+                        offHeap.offHeapBytes() >> 20, offHeap.offHeapBytes() / ENTRIES ) ) );
+    }
+
+    private String key( int i ) {
+        if ( keys.equals( "identity" ) ) {
+            return ArchetypeConstants.calculateHash( "user" + i + "@meh.com" );
+        }
+        return ArchetypeConstants.URLPREFIX + "Page_number_" + i;
+    }
+
+    private void put( String key, long nodeId ) {
+        if ( guava != null ) {
+            guava.put( key, nodeId );
+        } else {
+            offHeap.put( key, nodeId );
+        }
+    }
+
+    private static long usedHeap() {
+        for ( int i = 0; i < 3; i++ ) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @Benchmark
+    public Long getIfPresent() {
+        String key = sample[ ThreadLocalRandom.current().nextInt( sample.length ) ];
+        return guava != null ? guava.getIfPresent( key ) : offHeap.getIfPresent( key );
+    }
+
+    @Benchmark
+    public void put() {
+        int i = ThreadLocalRandom.current().nextInt( sample.length );
+        put( sample[ i ], i * SAMPLE_EVERY );
+    }
+
+    public static void main( String[] args ) throws Exception {
+        Options options = new OptionsBuilder()
+                .include( NodeIdCacheBenchmark.class.getSimpleName() )
+                .build();
+        new Runner( options ).run();
+    }
+}
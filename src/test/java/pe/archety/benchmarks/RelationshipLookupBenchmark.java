@@ -0,0 +1,125 @@
+package pe.archety.benchmarks;
+
+import org.neo4j.graphalgo.GraphAlgoFactory;
+import org.neo4j.graphalgo.PathFinder;
+import org.neo4j.graphdb.*;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pe.archety.RelationshipLookup;
+import pe.archety.Relationships;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Cost of "does this identity already like this page" for an identity with
+    10k+ likes, against pages with few and with many incoming likes: the old
+    one hop shortestPath, the lockstep scan alone (dense threshold out of reach)
+    and the lockstep scan with the dense node neighbour cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelationshipLookupBenchmark {
+    private static final PathFinder<Path> ONE_HOP_LIKES_PATH = GraphAlgoFactory.shortestPath(
+            PathExpanders.forTypeAndDirection( Relationships.LIKES, Direction.OUTGOING ), 1 );
+
+    @Param({ "10000", "50000" })
+    public int likes;
+
+    private GraphDatabaseService db;
+    private Node heavy;
+    private Node[] pages;
+    private Node popular;
+    private Node quiet;
+    private RelationshipLookup scanOnly;
+    private RelationshipLookup cached;
+    private Random random;
+    private Transaction tx;
+
+    @Setup
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        pages = new Node[ likes ];
+        try ( Transaction tx = db.beginTx() ) {
+            heavy = db.createNode();
+            for ( int i = 0; i < likes; i++ ) {
+                pages[ i ] = db.createNode();
+                heavy.createRelationshipTo( pages[ i ], Relationships.LIKES );
+            }
+            popular = db.createNode();
+            for ( int i = 0; i < likes; i++ ) {
+                db.createNode().createRelationshipTo( popular, Relationships.LIKES );
+            }
+            quiet = db.createNode();
+            tx.success();
+        }
+        scanOnly = new RelationshipLookup( Integer.MAX_VALUE, 0 );
+        cached = new RelationshipLookup();
+        random = new Random( 42 );
+        tx = db.beginTx();
+    }
+
+    @TearDown
+    public void tearDown() {
+        tx.close();
+        db.shutdown();
+    }
+
+    private Node likedPage() {
+        return pages[ random.nextInt( likes ) ];
+    }
+
+    @Benchmark
+    public boolean shortestPathLiked() {
+        return ONE_HOP_LIKES_PATH.findSinglePath( heavy, likedPage() ) != null;
+    }
+
+    @Benchmark
+    public boolean shortestPathNewQuietPage() {
+        return ONE_HOP_LIKES_PATH.findSinglePath( heavy, quiet ) != null;
+    }
+
+    @Benchmark
+    public boolean shortestPathNewPopularPage() {
+        return ONE_HOP_LIKES_PATH.findSinglePath( heavy, popular ) != null;
+    }
+
+    @Benchmark
+    public boolean scanLiked() {
+        return scanOnly.exists( heavy, likedPage(), Relationships.LIKES );
+    }
+
+    @Benchmark
+    public boolean scanNewQuietPage() {
+        return scanOnly.exists( heavy, quiet, Relationships.LIKES );
+    }
+
+    @Benchmark
+    public boolean scanNewPopularPage() {
+        return scanOnly.exists( heavy, popular, Relationships.LIKES );
+    }
+
+    @Benchmark
+    public boolean cachedLiked() {
+        return cached.exists( heavy, likedPage(), Relationships.LIKES );
+    }
+
+    @Benchmark
+    public boolean cachedNewPopularPage() {
+        return cached.exists( heavy, popular, Relationships.LIKES );
+    }
+
+    public static void main( String[] args ) throws Exception {
+        Options options = new OptionsBuilder()
+                .include( RelationshipLookupBenchmark.class.getSimpleName() )
+                .build();
+        new Runner( options ).run();
+    }
+}
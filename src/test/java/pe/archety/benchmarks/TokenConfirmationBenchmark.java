@@ -0,0 +1,125 @@
+package pe.archety.benchmarks;
+
+import com.google.common.io.Files;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.kernel.impl.util.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pe.archety.GroupCommitExecutor;
+import pe.archety.Labels;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Token confirmations per second from 64 request threads at once, each in a
+    transaction of its own as GetTokenHandler used to, and through the
+    GroupCommitExecutor. After every iteration it prints how many commits
+    that took, the number the log has to be forced for.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(64)
+public class TokenConfirmationBenchmark {
+    private static final int IDENTITIES = 10_000;
+
+    private File storeDir;
+    private GraphDatabaseService db;
+    private GroupCommitExecutor groupCommit;
+    private final AtomicLong confirmations = new AtomicLong();
+    private final AtomicLong ownCommits = new AtomicLong();
+    private long groupCommits;
+
+    @Setup
+    public void setUp() {
+        storeDir = Files.createTempDir();
+        db = new GraphDatabaseFactory().newEmbeddedDatabase( storeDir.getAbsolutePath() );
+        try ( Transaction tx = db.beginTx() ) {
+            db.schema().indexFor( Labels.Identity ).on( "generatedToken" ).create();
+            tx.success();
+        }
+        try ( Transaction tx = db.beginTx() ) {
+            db.schema().awaitIndexesOnline( 1, TimeUnit.MINUTES );
+            for ( int i = 0; i < IDENTITIES; i++ ) {
+                Node identity = db.createNode( Labels.Identity );
+                identity.setProperty( "identity", "identity" + i );
+                identity.setProperty( "generatedToken", token( i ) );
+            }
+            tx.success();
+        }
+        groupCommit = new GroupCommitExecutor( db );
+        groupCommit.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        groupCommit.stop( 1000 );
+        db.shutdown();
+        FileUtils.deleteRecursively( storeDir );
+    }
+
+    @TearDown(Level.Iteration)
+    public void printCommits() {
+        long commits = ownCommits.getAndSet( 0 ) + groupCommit.commits() - groupCommits;
+        groupCommits = groupCommit.commits();
+        System.out.println( " " + confirmations.getAndSet( 0 ) + " confirmations in " + commits + " commits" );
+    }
+
+    private static String token( int i ) {
+        return "token" + i;
+    }
+
+    private static boolean confirm( GraphDatabaseService db, String token ) {
+        Node identityNode = IteratorUtil.singleOrNull( db.findNodesByLabelAndProperty( Labels.Identity, "generatedToken", token ) );
+        if ( identityNode == null ) {
+            return false;
+        }
+        identityNode.setProperty( "authenticatedToken", token );
+        return true;
+    }
+
+    @Benchmark
+    public boolean ownTransaction() {
+        String token = token( ThreadLocalRandom.current().nextInt( IDENTITIES ) );
+        boolean confirmed;
+        try ( Transaction tx = db.beginTx() ) {
+            confirmed = confirm( db, token );
+            tx.success();
+        }
+        ownCommits.incrementAndGet();
+        confirmations.incrementAndGet();
+        return confirmed;
+    }
+
+    @Benchmark
+    public boolean groupCommit() throws Exception {
+        final String token = token( ThreadLocalRandom.current().nextInt( IDENTITIES ) );
+        boolean confirmed = groupCommit.submit( new GroupCommitExecutor.Work<Boolean>() {
+            @Override
+            public Boolean apply( GraphDatabaseService db ) {
+                return confirm( db, token );
+            }
+        } ).get();
+        confirmations.incrementAndGet();
+        return confirmed;
+    }
+
+    public static void main( String[] args ) throws Exception {
+        Options options = new OptionsBuilder()
+                .include( TokenConfirmationBenchmark.class.getSimpleName() )
+                .build();
+        new Runner( options ).run();
+    }
+}
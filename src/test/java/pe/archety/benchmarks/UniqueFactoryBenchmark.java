@@ -0,0 +1,117 @@
+package pe.archety.benchmarks;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.UniqueFactory;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pe.archety.ArchetypeConstants;
+import pe.archety.BatchWriterService;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Per-write cost of resolving an identity on an impermanent database, in
+    batches of 1000 writes per transaction where a third of the keys repeat
+    within the batch: a new UniqueNodeFactory per write (the old writer),
+    one long-lived factory, and the long-lived factory behind a per-batch
+    key to node map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UniqueFactoryBenchmark {
+    private static final int BATCH = 1000;
+    private static final int EXISTING = 10_000;
+
+    private GraphDatabaseService db;
+    private UniqueFactory.UniqueNodeFactory identityFactory;
+    private String[] hashes;
+    private Random random;
+
+    @Setup
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        hashes = new String[ EXISTING ];
+        try ( Transaction tx = db.beginTx() ) {
+            identityFactory = BatchWriterService.uniqueIdentityFactory( db );
+            for ( int i = 0; i < EXISTING; i++ ) {
+                hashes[ i ] = ArchetypeConstants.calculateHash( "user" + i + "@meh.com" );
+                identityFactory.getOrCreate( "identity", hashes[ i ] );
+            }
+            tx.success();
+        }
+        random = new Random( 42 );
+    }
+
+    @TearDown
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    private String[] batch() {
+        String[] keys = new String[ BATCH ];
+        for ( int i = 0; i < BATCH; i++ ) {
+            keys[ i ] = i % 3 == 2 ? keys[ i - 1 ] : hashes[ random.nextInt( EXISTING ) ];
+        }
+        return keys;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void factoryPerWrite( Blackhole blackhole ) {
+        String[] keys = batch();
+        try ( Transaction tx = db.beginTx() ) {
+            for ( String key : keys ) {
+                blackhole.consume( BatchWriterService.uniqueIdentityFactory( db ).getOrCreate( "identity", key ) );
+            }
+            tx.success();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sharedFactory( Blackhole blackhole ) {
+        String[] keys = batch();
+        try ( Transaction tx = db.beginTx() ) {
+            for ( String key : keys ) {
+                blackhole.consume( identityFactory.getOrCreate( "identity", key ) );
+            }
+            tx.success();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sharedFactoryResolvedOncePerBatch( Blackhole blackhole ) {
+        String[] keys = batch();
+        HashMap<String, Object> resolved = new HashMap<>();
+        try ( Transaction tx = db.beginTx() ) {
+            for ( String key : keys ) {
+                Object node = resolved.get( key );
+                if ( node == null ) {
+                    node = identityFactory.getOrCreate( "identity", key );
+                    resolved.put( key, node );
+                }
+                blackhole.consume( node );
+            }
+            tx.success();
+        }
+    }
+
+    public static void main( String[] args ) throws Exception {
+        Options options = new OptionsBuilder()
+                .include( UniqueFactoryBenchmark.class.getSimpleName() )
+                .build();
+        new Runner( options ).run();
+    }
+}
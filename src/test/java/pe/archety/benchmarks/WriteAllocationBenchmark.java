@@ -0,0 +1,66 @@
+package pe.archety.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.Relationships;
+import pe.archety.writes.LikesOrHatesWrite;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Bytes allocated per CREATE_LIKES_RELATIONSHIP write, from the handler building it
+    to the writer reading its fields, with the old HashMap<String,Object> encoding
+    and with the pooled LikesOrHatesWrite. Look at gc.alloc.rate.norm in the output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteAllocationBenchmark {
+    private static final String IDENTITY_HASH = "0wBiz3pZ3bOcUqSzX8wL6YXb4sgC4EhbTXN8Qh7Z0wGg6Mt4o7ovBVpwpqHYMnGyp3LiJfHgXIp2l7Aw0R1kzA==";
+    private static final String URL = "http://en.wikipedia.org/wiki/Neo4j";
+
+    private long identityNodeId = 5_000_000L;
+    private long pageNodeId = 9_000_000L;
+
+    @Benchmark
+    public void hashMapWrite( Blackhole blackhole ) {
+        HashMap<String, Object> write = new HashMap<>();
+        HashMap<String, Object> data = new HashMap<>();
+        data.put( "identityNodeId", identityNodeId++ );
+        data.put( "pageNodeId", pageNodeId++ );
+        write.put( "action", BatchWriterServiceAction.CREATE_LIKES_RELATIONSHIP );
+        write.put( "data", data );
+
+        blackhole.consume( (BatchWriterServiceAction) write.get( "action" ) );
+        blackhole.consume( (long) (Long) ( (HashMap) write.get( "data" ) ).get( "identityNodeId" ) );
+        blackhole.consume( (long) (Long) ( (HashMap) write.get( "data" ) ).get( "pageNodeId" ) );
+    }
+
+    @Benchmark
+    public void pooledWrite( Blackhole blackhole ) {
+        LikesOrHatesWrite write = LikesOrHatesWrite.acquire( Relationships.LIKES,
+                IDENTITY_HASH, identityNodeId++, URL, "", pageNodeId++ );
+
+        blackhole.consume( write.action );
+        blackhole.consume( write.identityNodeId );
+        blackhole.consume( write.pageNodeId );
+        write.release();
+    }
+
+    public static void main( String[] args ) throws Exception {
+        Options options = new OptionsBuilder()
+                .include( WriteAllocationBenchmark.class.getSimpleName() )
+                .addProfiler( GCProfiler.class )
+                .build();
+        new Runner( options ).run();
+    }
+}
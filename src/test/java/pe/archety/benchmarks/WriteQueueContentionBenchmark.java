@@ -0,0 +1,140 @@
+package pe.archety.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pe.archety.Relationships;
+import pe.archety.writes.JournalSyncPolicy;
+import pe.archety.writes.LikesOrHatesWrite;
+import pe.archety.writes.OverloadPolicy;
+import pe.archety.writes.WaitStrategy;
+import pe.archety.writes.Write;
+import pe.archety.writes.WriteJournal;
+import pe.archety.writes.WriteQueue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Writes queued per second by 1, 16 and 200 handler threads at once, with a
+    writer thread taking them out the way the BatchWriterService does and
+    handing them back to their pool. Nothing reaches a graph, so this is the
+    cost of the hand-off alone; gc.alloc.rate.norm shows what a queued write
+    allocates. With journaled the writes also go through a WriteJournal in a
+    temporary directory, never forced to disk, and the writer marks them
+    committed as the BatchWriterService does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteQueueContentionBenchmark {
+    private static final String IDENTITY_HASH = "0wBiz3pZ3bOcUqSzX8wL6YXb4sgC4EhbTXN8Qh7Z0wGg6Mt4o7ovBVpwpqHYMnGyp3LiJfHgXIp2l7Aw0R1kzA==";
+    private static final String URL = "http://en.wikipedia.org/wiki/Neo4j";
+    private static final int BATCH_SIZE = 500;
+
+    @Param({ "BLOCKING", "SLEEPING" })
+    public WaitStrategy waitStrategy;
+
+    @Param({ "false", "true" })
+    public boolean journaled;
+
+    private WriteQueue queue;
+    private File directory;
+    private WriteJournal journal;
+    private Thread writer;
+    private volatile boolean running;
+
+    @Setup
+    public void setUp() throws IOException {
+        queue = new WriteQueue();
+        queue.configure( WriteQueue.DEFAULT_CAPACITY, WriteQueue.DEFAULT_CAPACITY_BYTES, OverloadPolicy.BLOCK,
+                WriteQueue.DEFAULT_BLOCK_TIMEOUT_MILLIS, 1.0 );
+        queue.setWaitStrategy( waitStrategy );
+        if ( journaled ) {
+            directory = Files.createTempDirectory( "journal" ).toFile();
+            journal = WriteJournal.open( directory, WriteJournal.DEFAULT_SEGMENT_BYTES, JournalSyncPolicy.NONE );
+            queue.setJournal( journal );
+        }
+        running = true;
+        writer = new Thread( "writer" ) {
+            @Override
+            public void run() {
+                ArrayList<Write> writes = new ArrayList<>( BATCH_SIZE );
+                try {
+                    while ( running ) {
+                        Write first = queue.poll( 100, TimeUnit.MILLISECONDS );
+                        if ( first == null ) {
+                            continue;
+                        }
+                        writes.add( first );
+                        queue.drainTo( writes, BATCH_SIZE - 1 );
+                        if ( journal != null ) {
+                            journal.syncBatch();
+                            journal.committed( writes );
+                        }
+                        for ( Write write : writes ) {
+                            write.release();
+                        }
+                        writes.clear();
+                    }
+                } catch ( InterruptedException ignored ) {
+                }
+            }
+        };
+        writer.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        running = false;
+        writer.join();
+        if ( journal != null ) {
+            journal.close();
+            File[] segments = directory.listFiles();
+            if ( segments != null ) {
+                for ( File segment : segments ) {
+                    segment.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean oneProducer() throws Exception {
+        return offer();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean sixteenProducers() throws Exception {
+        return offer();
+    }
+
+    @Benchmark
+    @Threads(200)
+    public boolean twoHundredProducers() throws Exception {
+        return offer();
+    }
+
+    private boolean offer() throws Exception {
+        return queue.offer( LikesOrHatesWrite.acquire( Relationships.LIKES, IDENTITY_HASH, 1L, URL, "Neo4j", 2L ) );
+    }
+
+    public static void main( String[] args ) throws Exception {
+        Options options = new OptionsBuilder()
+                .include( WriteQueueContentionBenchmark.class.getSimpleName() )
+                .addProfiler( GCProfiler.class )
+                .build();
+        new Runner( options ).run();
+    }
+}
@@ -0,0 +1,103 @@
+package pe.archety.benchmarks;
+
+import com.google.common.io.Files;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.kernel.impl.util.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import pe.archety.ArchetypeConstants;
+import pe.archety.BatchWriterService;
+import pe.archety.Labels;
+import pe.archety.Relationships;
+import pe.archety.writes.LikesOrHatesWrite;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Likes per second through the BatchWriterService with 1 to 8 writer lanes,
+    on an on-disk database so every commit forces the logical log. The workload
+    is likes between random, already existing identities and pages, enqueued in
+    rounds of 20000 and waited for until the writer is idle again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriterLaneBenchmark {
+    private static final int WRITES = 20_000;
+    private static final int IDENTITIES = 50_000;
+    private static final int PAGES = 20_000;
+
+    @Param({ "1", "2", "4", "8" })
+    public int lanes;
+
+    private File storeDir;
+    private GraphDatabaseService db;
+    private BatchWriterService writer;
+    private String[] hashes;
+    private long[] identityIds;
+    private String[] urls;
+    private long[] pageIds;
+    private Random random;
+
+    @Setup
+    public void setUp() {
+        storeDir = Files.createTempDir();
+        db = new GraphDatabaseFactory().newEmbeddedDatabase( storeDir.getAbsolutePath() );
+        hashes = new String[ IDENTITIES ];
+        identityIds = new long[ IDENTITIES ];
+        urls = new String[ PAGES ];
+        pageIds = new long[ PAGES ];
+        try ( Transaction tx = db.beginTx() ) {
+            for ( int i = 0; i < IDENTITIES; i++ ) {
+                hashes[ i ] = ArchetypeConstants.calculateHash( "user" + i + "@meh.com" );
+                identityIds[ i ] = db.createNode( Labels.Identity ).getId();
+            }
+            for ( int i = 0; i < PAGES; i++ ) {
+                urls[ i ] = "http://en.wikipedia.org/wiki/Page_" + i;
+                pageIds[ i ] = db.createNode( Labels.Page ).getId();
+            }
+            tx.success();
+        }
+        writer = BatchWriterService.INSTANCE;
+        writer.setLanes( lanes );
+        writer.SetGraphDatabase( db );
+        random = new Random( 42 );
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        writer.SetGraphDatabase( null );
+        db.shutdown();
+        FileUtils.deleteRecursively( storeDir );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WRITES)
+    public void likes() throws Exception {
+        for ( int i = 0; i < WRITES; i++ ) {
+            int identity = random.nextInt( IDENTITIES );
+            int page = random.nextInt( PAGES );
+            writer.enqueue( LikesOrHatesWrite.acquire( Relationships.LIKES, hashes[ identity ], identityIds[ identity ],
+                    urls[ page ], "Page " + page, pageIds[ page ] ) );
+        }
+        while ( !writer.isIdle() ) {
+            Thread.sleep( 1 );
+        }
+    }
+
+    public static void main( String[] args ) throws Exception {
+        Options options = new OptionsBuilder()
+                .include( WriterLaneBenchmark.class.getSimpleName() )
+                .build();
+        new Runner( options ).run();
+    }
+}
@@ -0,0 +1,72 @@
+package pe.archety.handlers.admin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import pe.archety.ArchetypeConstants;
+import pe.archety.ArchetypeServer;
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.Relationships;
+import pe.archety.writes.LikesOrHatesWrite;
+import pe.archety.writes.Write;
+import pe.archety.writes.WritePriority;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
+
+public class MetricsHandlerTest {
+    private static GraphDatabaseService db;
+
+    @Before
+    public void setUp() throws Exception {
+        ArchetypeServer.identityCache.invalidateAll();
+        ArchetypeServer.urlCache.invalidateAll();
+
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        BATCH_WRITER_SERVICE.SetGraphDatabase( db );
+        awaitIdle();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        awaitIdle();
+        BATCH_WRITER_SERVICE.SetGraphDatabase( null );
+        db.shutdown();
+    }
+
+    private static void awaitIdle() throws InterruptedException {
+        for ( int i = 0; i < 500 && !BATCH_WRITER_SERVICE.isIdle(); i++ ) {
+            Thread.sleep( 10 );
+        }
+    }
+
+    @Test
+    public void shouldExposeWhatTheWriterDid() throws Exception {
+        long committed = BATCH_WRITER_SERVICE.getMetrics().committed( BatchWriterServiceAction.CREATE_BOTH_AND_LIKES_RELATIONSHIP );
+        long lags = BATCH_WRITER_SERVICE.getMetrics().lagNanos.count();
+        long lowLags = BATCH_WRITER_SERVICE.getMetrics().lagNanos( WritePriority.LOW ).count();
+        BATCH_WRITER_SERVICE.enqueue( LikesOrHatesWrite.acquire( Relationships.LIKES,
+                ArchetypeConstants.calculateHash( "maxdemarzi@gmail.com" ), Write.NO_NODE,
+                "http://en.wikipedia.org/wiki/Neo4j", "Neo4j", Write.NO_NODE ) );
+        awaitIdle();
+
+        assertEquals( committed + 1, BATCH_WRITER_SERVICE.getMetrics().committed( BatchWriterServiceAction.CREATE_BOTH_AND_LIKES_RELATIONSHIP ) );
+        assertEquals( lags + 1, BATCH_WRITER_SERVICE.getMetrics().lagNanos.count() );
+
+        String text = new MetricsHandler( BATCH_WRITER_SERVICE ).render();
+        assertTrue( text.contains( "# TYPE archetype_writer_queue_depth gauge\narchetype_writer_queue_depth 0\n" ) );
+        assertTrue( text.contains( "archetype_writer_committed_total{action=\"CREATE_BOTH_AND_LIKES_RELATIONSHIP\"} " + ( committed + 1 ) + "\n" ) );
+        assertTrue( text.contains( "# TYPE archetype_writer_lag_seconds histogram\narchetype_writer_lag_seconds_bucket{le=\"0.001\"} " ) );
+        assertTrue( text.contains( "archetype_writer_lag_seconds_bucket{le=\"+Inf\"} " + ( lags + 1 ) + "\n" ) );
+        assertTrue( text.contains( "archetype_writer_lag_seconds_count " + ( lags + 1 ) + "\n" ) );
+        assertTrue( text.contains( "archetype_writer_priority_queue_depth{priority=\"HIGH\"} 0\n" ) );
+        assertTrue( text.contains( "archetype_writer_priority_lag_seconds_bucket{priority=\"LOW\",le=\"30\"} " ) );
+        assertTrue( text.contains( "archetype_writer_priority_lag_seconds_count{priority=\"LOW\"} " + ( lowLags + 1 ) + "\n" ) );
+        assertTrue( text.contains( "archetype_writer_drain_size_bucket{le=\"40000\"} " ) );
+        assertTrue( text.contains( "archetype_writer_lane_commits_total{lane=\"0\"} " + BATCH_WRITER_SERVICE.getCommitSizers().get( 0 ).commits() + "\n" ) );
+        assertTrue( BATCH_WRITER_SERVICE.getCommitSizers().get( 0 ).committedOperations() >= 1 );
+    }
+}
@@ -0,0 +1,97 @@
+package pe.archety.handlers.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.undertow.Undertow;
+import io.undertow.server.RoutingHandler;
+import org.glassfish.jersey.client.JerseyClient;
+import org.glassfish.jersey.client.JerseyClientBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import pe.archety.ArchetypeServer;
+import pe.archety.writes.OverloadPolicy;
+import pe.archety.writes.WriteQueue;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
+import static pe.archety.ArchetypeServer.JSON_UTF8;
+
+public class BackpressureHandlerTest {
+    private static GraphDatabaseService db;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static Undertow undertow;
+    private static final JerseyClient client = JerseyClientBuilder.createClient();
+
+    @Before
+    public void setUp() {
+        ArchetypeServer.identityCache.invalidateAll();
+        ArchetypeServer.urlCache.invalidateAll();
+
+        // No room at all in the writer's queue
+        BATCH_WRITER_SERVICE.getQueue().configure( 0, WriteQueue.DEFAULT_CAPACITY_BYTES, OverloadPolicy.REJECT,
+                WriteQueue.DEFAULT_BLOCK_TIMEOUT_MILLIS, WriteQueue.DEFAULT_SHED_THRESHOLD );
+
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        undertow = Undertow.builder()
+                .addHttpListener( 9090, "localhost" )
+                .setHandler( new BackpressureHandler( new RoutingHandler()
+                                .add( "POST", "/v1/identities", new CreateIdentityHandler( db, objectMapper ) )
+                                .add( "GET", "/v1/identities/{identity}/likes", new GetLikesOrHatesHandler( db, objectMapper, pe.archety.Relationships.LIKES ) )
+                ) )
+                .build();
+        undertow.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        BATCH_WRITER_SERVICE.getQueue().configure( WriteQueue.DEFAULT_CAPACITY, WriteQueue.DEFAULT_CAPACITY_BYTES, OverloadPolicy.REJECT,
+                WriteQueue.DEFAULT_BLOCK_TIMEOUT_MILLIS, WriteQueue.DEFAULT_SHED_THRESHOLD );
+        db.shutdown();
+        undertow.stop();
+    }
+
+    @Test
+    public void shouldRejectWritesWhenWriterIsSaturated() throws IOException {
+        Response response = client.target( "http://localhost:9090" )
+                .register( HashMap.class )
+                .path( "/v1/identities" )
+                .request( JSON_UTF8 )
+                .post( Entity.entity( objectMapper.writeValueAsString( identity1 ), JSON_UTF8 ) );
+
+        int code = response.getStatus();
+        HashMap actual = objectMapper.readValue( response.readEntity( String.class ), HashMap.class );
+
+        assertEquals( 503, code );
+        assertNotNull( response.getHeaderString( "Retry-After" ) );
+        assertEquals( errorSaturatedResponse, actual );
+    }
+
+    @Test
+    public void shouldLetReadsThroughWhenWriterIsSaturated() throws IOException {
+        Response response = client.target( "http://localhost:9090" )
+                .register( HashMap.class )
+                .path( "/v1/identities/" + identity1.get( "email" ) + "/likes" )
+                .request( JSON_UTF8 )
+                .get();
+
+        assertEquals( 404, response.getStatus() );
+    }
+
+    public static final HashMap<String, Object> identity1 =
+            new HashMap<String, Object>() {{
+                put( "email", "maxdemarzi@gmail.com" );
+            }};
+
+    public static final HashMap<String, Object> errorSaturatedResponse =
+            new HashMap<String, Object>() {{
+                put( "error", "Too many pending writes, try again later." );
+            }};
+}
@@ -0,0 +1,144 @@
+package pe.archety.handlers.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.undertow.Undertow;
+import io.undertow.server.RoutingHandler;
+import org.glassfish.jersey.client.JerseyClient;
+import org.glassfish.jersey.client.JerseyClientBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import pe.archety.ArchetypeConstants;
+import pe.archety.ArchetypeServer;
+import pe.archety.Labels;
+import pe.archety.Relationships;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
+import static pe.archety.ArchetypeServer.JSON_UTF8;
+
+public class CreateBulkHandlerTest {
+    private static GraphDatabaseService db;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static Undertow undertow;
+    private static final JerseyClient client = JerseyClientBuilder.createClient();
+
+    @Before
+    public void setUp() throws Exception {
+        ArchetypeServer.identityCache.invalidateAll();
+        ArchetypeServer.urlCache.invalidateAll();
+
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        // the page is there already, so nothing has to be checked against Wikipedia
+        try ( Transaction tx = db.beginTx() ) {
+            Node page = db.createNode( Labels.Page );
+            page.setProperty( "url", "http://en.wikipedia.org/wiki/Neo4j" );
+            page.setProperty( "title", "Neo4j" );
+            tx.success();
+        }
+        BATCH_WRITER_SERVICE.SetGraphDatabase( db );
+        undertow = Undertow.builder()
+                .addHttpListener( 9090, "localhost" )
+                .setHandler( new RoutingHandler()
+                                .add( "POST", "/v1/bulk", new CreateBulkHandler( db, objectMapper ) )
+                )
+                .build();
+        undertow.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for ( int i = 0; i < 500 && !BATCH_WRITER_SERVICE.isIdle(); i++ ) {
+            Thread.sleep( 10 );
+        }
+        BATCH_WRITER_SERVICE.SetGraphDatabase( null );
+        db.shutdown();
+        undertow.stop();
+    }
+
+    @Test
+    public void shouldQueueEveryGoodLineAndReportTheRest() throws Exception {
+        String body =
+                "{\"identity\":\"maxdemarzi@gmail.com\",\"relationship_type\":\"likes\",\"url\":\"http://en.wikipedia.org/wiki/Neo4j\"}\n" +
+                "{\"identity\":\"3125137509\",\"relationship_type\":\"hates\",\"title\":\"Neo4j\"}\n" +
+                "\n" +
+                "{\"identity\":\"maxdemarzi@gmail.com\",\"relationship_type\":\"knows\",\"phone\":\"3125137509\"}\n" +
+                "{\"identity\":\"maxdemarzi@gmail.com\",\"relationship_type\":\"knows\",\"email\":\"not an email\"}\n" +
+                "{\"identity\":\"maxdemarzi@gmail.com\",\"relationship_type\":\"loves\",\"title\":\"Neo4j\"}\n" +
+                "{\"identity\":\"maxdemarzi@gmail.com\",\n";
+
+        Response response = client.target( "http://localhost:9090" )
+                .path( "/v1/bulk" )
+                .request( JSON_UTF8 )
+                .post( Entity.entity( body, "application/x-ndjson" ) );
+        HashMap actual = objectMapper.readValue( response.readEntity( String.class ), HashMap.class );
+
+        assertEquals( 200, response.getStatus() );
+        assertEquals( 7, actual.get( "lines" ) );
+        assertEquals( 3, actual.get( "accepted" ) );
+        assertEquals( 3, actual.get( "failed" ) );
+        List<Map> errors = (List<Map>) actual.get( "errors" );
+        assertEquals( 5, errors.get( 0 ).get( "line" ) );
+        assertEquals( "Email not valid.", errors.get( 0 ).get( "error" ) );
+        assertEquals( "Unknown relationship_type loves.", errors.get( 1 ).get( "error" ) );
+        assertEquals( "Error parsing JSON.", errors.get( 2 ).get( "error" ) );
+
+        for ( int i = 0; i < 500 && !BATCH_WRITER_SERVICE.isIdle(); i++ ) {
+            Thread.sleep( 10 );
+        }
+        try ( Transaction tx = db.beginTx() ) {
+            Node max = IteratorUtil.single( db.findNodesByLabelAndProperty( Labels.Identity, "identity",
+                    ArchetypeConstants.calculateHash( "maxdemarzi@gmail.com" ) ) );
+            Node phone = IteratorUtil.single( db.findNodesByLabelAndProperty( Labels.Identity, "identity",
+                    ArchetypeConstants.calculateHash( "+13125137509" ) ) );
+            assertEquals( 1, IteratorUtil.count( max.getRelationships( Relationships.LIKES ) ) );
+            assertEquals( 1, IteratorUtil.count( phone.getRelationships( Relationships.HATES ) ) );
+            assertEquals( 1, IteratorUtil.count( max.getRelationships( Relationships.KNOWS ) ) );
+        }
+    }
+
+    @Test
+    public void shouldReportALineWhosePageCannotBeFoundAndQueueTheRest() throws IOException {
+        // not in the graph, and Wikipedia either does not have it or cannot be reached
+        String body =
+                "{\"identity\":\"maxdemarzi@gmail.com\",\"relationship_type\":\"likes\",\"url\":\"http://en.wikipedia.org/wiki/Neo4j\"}\n" +
+                "{\"identity\":\"maxdemarzi@gmail.com\",\"relationship_type\":\"likes\",\"url\":\"http://en.wikipedia.org/wiki/No_Such_Page_Xyzzy\"}\n";
+
+        Response response = client.target( "http://localhost:9090" )
+                .path( "/v1/bulk" )
+                .request( JSON_UTF8 )
+                .post( Entity.entity( body, "application/x-ndjson" ) );
+        HashMap actual = objectMapper.readValue( response.readEntity( String.class ), HashMap.class );
+
+        assertEquals( 200, response.getStatus() );
+        assertEquals( 1, actual.get( "accepted" ) );
+        assertEquals( 1, actual.get( "failed" ) );
+        List<Map> errors = (List<Map>) actual.get( "errors" );
+        assertEquals( 2, errors.get( 0 ).get( "line" ) );
+    }
+
+    @Test
+    public void shouldAnswerWithAnEmptySummaryForAnEmptyBody() throws IOException {
+        Response response = client.target( "http://localhost:9090" )
+                .path( "/v1/bulk" )
+                .request( JSON_UTF8 )
+                .post( Entity.entity( "", "application/x-ndjson" ) );
+        HashMap actual = objectMapper.readValue( response.readEntity( String.class ), HashMap.class );
+
+        assertEquals( 200, response.getStatus() );
+        assertEquals( 0, actual.get( "lines" ) );
+        assertEquals( 0, actual.get( "accepted" ) );
+    }
+}
@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 import static org.junit.Assert.assertEquals;
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
 import static pe.archety.ArchetypeServer.JSON_UTF8;
 
 public class GetKnowsHandlerTest {
@@ -34,6 +35,7 @@ public class GetKnowsHandlerTest {
 
     @Before
     public void setUp() throws Exception {
+        BATCH_WRITER_SERVICE.getPending().clear();
         ArchetypeServer.identityCache.invalidateAll();
         ArchetypeServer.urlCache.invalidateAll();
 
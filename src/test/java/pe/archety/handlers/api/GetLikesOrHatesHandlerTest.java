@@ -17,6 +17,8 @@ import pe.archety.ArchetypeConstants;
 import pe.archety.ArchetypeServer;
 import pe.archety.Labels;
 import pe.archety.Relationships;
+import pe.archety.writes.LikesOrHatesWrite;
+import pe.archety.writes.Write;
 
 import javax.ws.rs.core.Response;
 import java.io.IOException;
@@ -24,6 +26,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 import static org.junit.Assert.assertEquals;
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
 import static pe.archety.ArchetypeServer.JSON_UTF8;
 
 public class GetLikesOrHatesHandlerTest {
@@ -34,6 +37,7 @@ public class GetLikesOrHatesHandlerTest {
 
     @Before
     public void setUp() throws JsonProcessingException {
+        BATCH_WRITER_SERVICE.getPending().clear();
         ArchetypeServer.identityCache.invalidateAll();
         ArchetypeServer.urlCache.invalidateAll();
         db = new TestGraphDatabaseFactory().newImpermanentDatabase();
@@ -149,6 +153,31 @@ public class GetLikesOrHatesHandlerTest {
         assertEquals( likes2Response, actual );
     }
 
+    @Test
+    public void shouldGetPendingLikes() throws IOException {
+        // queued for the writer but not committed yet
+        LikesOrHatesWrite write = LikesOrHatesWrite.acquire( Relationships.LIKES,
+                ArchetypeConstants.calculateHash( (String) identity3.get( "email" ) ), Write.NO_NODE,
+                "http://en.wikipedia.org/wiki/Neo4j", "Neo4j", Write.NO_NODE );
+        BATCH_WRITER_SERVICE.getPending().add( write );
+        try {
+            Response response = client.target("http://localhost:9090")
+                    .register(HashMap.class)
+                    .path("/v1/identities/" + identity3.get("email") + "/likes")
+                    .request(JSON_UTF8)
+                    .get();
+
+            int code = response.getStatus();
+            ArrayList<HashMap<String, String>> actual = objectMapper.readValue( response.readEntity( String.class ), ArrayList.class );
+
+            assertEquals( 200, code );
+            assertEquals( likes1Response, actual );
+        } finally {
+            BATCH_WRITER_SERVICE.getPending().remove( write );
+            write.release();
+        }
+    }
+
     @Test
     public void shouldNotGetLikesFromUnknownIdentity() throws IOException {
         Response response = client.target("http://localhost:9090")
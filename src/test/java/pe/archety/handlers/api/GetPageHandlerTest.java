@@ -0,0 +1,131 @@
+package pe.archety.handlers.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.undertow.Undertow;
+import io.undertow.server.RoutingHandler;
+import org.glassfish.jersey.client.JerseyClient;
+import org.glassfish.jersey.client.JerseyClientBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import pe.archety.ArchetypeConstants;
+import pe.archety.ArchetypeServer;
+import pe.archety.Labels;
+import pe.archety.NodeCounters;
+
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static pe.archety.ArchetypeServer.JSON_UTF8;
+
+public class GetPageHandlerTest {
+    private static GraphDatabaseService db;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static Undertow undertow;
+    private static final JerseyClient client = JerseyClientBuilder.createClient();
+
+    @Before
+    public void setUp() throws Exception {
+        ArchetypeServer.urlCache.invalidateAll();
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        populateDB(db);
+        undertow = Undertow.builder()
+                .addHttpListener( 9090, "localhost" )
+                .setHandler(new RoutingHandler()
+                                .add( "GET", "/v1/pages", new GetPageHandler(db, objectMapper))
+                )
+                .build();
+        undertow.start();
+    }
+
+    private void populateDB(GraphDatabaseService db) {
+        try ( Transaction tx = db.beginTx() ) {
+            Node pageNode = db.createNode(Labels.Page);
+            pageNode.setProperty("title", "Neo4j");
+            pageNode.setProperty("url", ArchetypeConstants.URLPREFIX + "Neo4j");
+            pageNode.setProperty(NodeCounters.LIKED, 2L);
+            tx.success();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.shutdown();
+        undertow.stop();
+    }
+
+    @Test
+    public void shouldGetPageUsingUrl() throws IOException {
+        Response response = client.target("http://localhost:9090")
+                .path("/v1/pages")
+                .queryParam("url", "http://en.wikipedia.org/wiki/Neo4j")
+                .request(JSON_UTF8)
+                .get();
+
+        int code = response.getStatus();
+        HashMap actual = objectMapper.readValue( response.readEntity( String.class ), HashMap.class );
+
+        assertEquals( 200, code );
+        assertEquals( pageResponse, actual );
+    }
+
+    @Test
+    public void shouldGetPageUsingTitle() throws IOException {
+        Response response = client.target("http://localhost:9090")
+                .path("/v1/pages")
+                .queryParam("title", "Neo4j")
+                .request(JSON_UTF8)
+                .get();
+
+        int code = response.getStatus();
+        HashMap actual = objectMapper.readValue( response.readEntity( String.class ), HashMap.class );
+
+        assertEquals( 200, code );
+        assertEquals( pageResponse, actual );
+    }
+
+    @Test
+    public void shouldNotGetUnknownPage() throws IOException {
+        Response response = client.target("http://localhost:9090")
+                .path("/v1/pages")
+                .queryParam("title", "Mongodb")
+                .request(JSON_UTF8)
+                .get();
+
+        assertEquals( 404, response.getStatus() );
+    }
+
+    @Test
+    public void shouldNotGetPageWithInvalidUrl() throws IOException {
+        Response response = client.target("http://localhost:9090")
+                .path("/v1/pages")
+                .queryParam("url", "http://www.neo4j.org")
+                .request(JSON_UTF8)
+                .get();
+
+        int code = response.getStatus();
+        HashMap actual = objectMapper.readValue( response.readEntity( String.class ), HashMap.class );
+
+        assertEquals( 400, code );
+        assertEquals( errorInvalidUrlResponse, actual );
+    }
+
+    public static final HashMap<String, Object> pageResponse =
+            new HashMap<String, Object>() {{
+                put( "url", "http://en.wikipedia.org/wiki/Neo4j" );
+                put( "title", "Neo4j" );
+                put( "likes", 2 );
+                put( "hates", 0 );
+            }};
+
+    public static final HashMap<String, Object> errorInvalidUrlResponse =
+            new HashMap<String, Object>() {{
+                put( "error", "URL must start with http://en.wikipedia.org/wiki/" );
+            }};
+}
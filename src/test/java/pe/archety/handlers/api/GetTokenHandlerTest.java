@@ -14,6 +14,7 @@ import org.neo4j.graphdb.Transaction;
 import org.neo4j.test.TestGraphDatabaseFactory;
 import pe.archety.ArchetypeConstants;
 import pe.archety.ArchetypeServer;
+import pe.archety.GroupCommitExecutor;
 import pe.archety.Labels;
 
 import javax.ws.rs.core.Response;
@@ -28,6 +29,7 @@ import static pe.archety.ArchetypeServer.JSON_UTF8;
 
 public class GetTokenHandlerTest {
     private static GraphDatabaseService db;
+    private static GroupCommitExecutor groupCommit;
     private static final ObjectMapper objectMapper = new ObjectMapper();
     private static Undertow undertow;
     private static final JerseyClient client = JerseyClientBuilder.createClient();
@@ -43,10 +45,12 @@ public class GetTokenHandlerTest {
 
         db = new TestGraphDatabaseFactory().newImpermanentDatabase();
         populateDb(db);
+        groupCommit = new GroupCommitExecutor( db );
+        groupCommit.start();
         undertow = Undertow.builder()
                 .addHttpListener( 9090, "localhost" )
                 .setHandler(new RoutingHandler()
-                                .add( "GET", "/v1/tokens/{token}", new GetTokenHandler( db ))
+                                .add( "GET", "/v1/tokens/{token}", new GetTokenHandler( groupCommit ))
                 )
                 .build();
         undertow.start();
@@ -79,8 +83,9 @@ public class GetTokenHandlerTest {
 
     @After
     public void tearDown() throws Exception {
-        db.shutdown();
         undertow.stop();
+        groupCommit.stop( 10000 );
+        db.shutdown();
     }
 
     @Test
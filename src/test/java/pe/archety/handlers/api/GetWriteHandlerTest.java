@@ -0,0 +1,108 @@
+package pe.archety.handlers.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.undertow.Undertow;
+import io.undertow.server.RoutingHandler;
+import org.glassfish.jersey.client.JerseyClient;
+import org.glassfish.jersey.client.JerseyClientBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import pe.archety.ArchetypeConstants;
+import pe.archety.ArchetypeServer;
+import pe.archety.Labels;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
+import static pe.archety.ArchetypeServer.JSON_UTF8;
+
+public class GetWriteHandlerTest {
+    private static GraphDatabaseService db;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static Undertow undertow;
+    private static final JerseyClient client = JerseyClientBuilder.createClient();
+
+    @Before
+    public void setUp() {
+        ArchetypeServer.identityCache.invalidateAll();
+        ArchetypeServer.urlCache.invalidateAll();
+
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        BATCH_WRITER_SERVICE.SetGraphDatabase( db );
+        undertow = Undertow.builder()
+                .addHttpListener( 9090, "localhost" )
+                .setHandler( new RoutingHandler()
+                                .add( "POST", "/v1/identities", new CreateIdentityHandler( db, objectMapper ) )
+                                .add( "GET", "/v1/writes/{receipt}", new GetWriteHandler( objectMapper ) )
+                )
+                .build();
+        undertow.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for ( int i = 0; i < 500 && !BATCH_WRITER_SERVICE.isIdle(); i++ ) {
+            Thread.sleep( 10 );
+        }
+        BATCH_WRITER_SERVICE.SetGraphDatabase( null );
+        db.shutdown();
+        undertow.stop();
+    }
+
+    @Test
+    public void shouldAnswerOnceTheWriteIsCommitted() throws IOException {
+        Response response = client.target( "http://localhost:9090" )
+                .path( "/v1/identities" )
+                .queryParam( "wait", "commit" )
+                .request( JSON_UTF8 )
+                .post( Entity.entity( objectMapper.writeValueAsString( CreateIdentityHandlerTest.identity1 ), JSON_UTF8 ) );
+
+        assertEquals( 201, response.getStatus() );
+        String receipt = response.getHeaderString( WriteAcknowledgement.RECEIPT_HEADER.toString() );
+        assertNotNull( receipt );
+        assertEquals( CreateIdentityHandlerTest.identity1Response, objectMapper.readValue( response.readEntity( String.class ), HashMap.class ) );
+
+        // visible as soon as the response is in
+        try ( Transaction tx = db.beginTx() ) {
+            assertNotNull( IteratorUtil.singleOrNull( db.findNodesByLabelAndProperty( Labels.Identity, "identity",
+                    ArchetypeConstants.calculateHash( "maxdemarzi@gmail.com" ) ) ) );
+        }
+
+        response = client.target( "http://localhost:9090" )
+                .path( "/v1/writes/" + receipt )
+                .request( JSON_UTF8 )
+                .get();
+        HashMap actual = objectMapper.readValue( response.readEntity( String.class ), HashMap.class );
+
+        assertEquals( 200, response.getStatus() );
+        assertEquals( "committed", actual.get( "status" ) );
+    }
+
+    @Test
+    public void shouldNotFindUnknownReceipts() throws IOException {
+        Response response = client.target( "http://localhost:9090" )
+                .path( "/v1/writes/999999999999" )
+                .request( JSON_UTF8 )
+                .get();
+
+        assertEquals( 404, response.getStatus() );
+        assertEquals( "Receipt not found.", objectMapper.readValue( response.readEntity( String.class ), HashMap.class ).get( "error" ) );
+
+        response = client.target( "http://localhost:9090" )
+                .path( "/v1/writes/garbage" )
+                .request( JSON_UTF8 )
+                .get();
+
+        assertEquals( 400, response.getStatus() );
+    }
+}
@@ -0,0 +1,98 @@
+package pe.archety.handlers.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.undertow.Undertow;
+import io.undertow.server.RoutingHandler;
+import org.glassfish.jersey.client.JerseyClient;
+import org.glassfish.jersey.client.JerseyClientBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import pe.archety.ArchetypeServer;
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.idempotency.IdempotencyStore;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Response;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
+import static pe.archety.ArchetypeServer.JSON_UTF8;
+
+public class IdempotencyHandlerTest {
+    private static GraphDatabaseService db;
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static Undertow undertow;
+    private static final JerseyClient client = JerseyClientBuilder.createClient();
+
+    @Before
+    public void setUp() {
+        ArchetypeServer.identityCache.invalidateAll();
+        ArchetypeServer.urlCache.invalidateAll();
+
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        undertow = Undertow.builder()
+                .addHttpListener( 9090, "localhost" )
+                .setHandler( new IdempotencyHandler( new BackpressureHandler( new RoutingHandler()
+                                .add( "POST", "/v1/identities", new CreateIdentityHandler( db, objectMapper ) )
+                ), new IdempotencyStore( IdempotencyStore.DEFAULT_WINDOW_MILLIS, IdempotencyStore.DEFAULT_MAX_ENTRIES ) ) )
+                .build();
+        undertow.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.shutdown();
+        undertow.stop();
+    }
+
+    private static Response post( String key, String email ) throws Exception {
+        HashMap<String, Object> identity = new HashMap<>();
+        identity.put( "email", email );
+        return client.target( "http://localhost:9090" )
+                .path( "/v1/identities" )
+                .request( JSON_UTF8 )
+                .header( "Idempotency-Key", key )
+                .post( Entity.entity( objectMapper.writeValueAsString( identity ), JSON_UTF8 ) );
+    }
+
+    @Test
+    public void shouldReplayTheFirstResponseWithoutQueueingAgain() throws Exception {
+        long submitted = BATCH_WRITER_SERVICE.getMetrics().submitted( BatchWriterServiceAction.CREATE_IDENTITY );
+
+        Response first = post( "retry-1", "idempotent@meh.com" );
+        assertEquals( 201, first.getStatus() );
+        String receipt = first.getHeaderString( "X-Write-Receipt" );
+        assertNotNull( receipt );
+        String body = first.readEntity( String.class );
+        assertNull( first.getHeaderString( "Idempotent-Replayed" ) );
+
+        Response repeat = post( "retry-1", "idempotent@meh.com" );
+        assertEquals( 201, repeat.getStatus() );
+        assertEquals( "true", repeat.getHeaderString( "Idempotent-Replayed" ) );
+        assertEquals( receipt, repeat.getHeaderString( "X-Write-Receipt" ) );
+        assertEquals( JSON_UTF8, repeat.getHeaderString( "Content-Type" ) );
+        assertEquals( body, repeat.readEntity( String.class ) );
+
+        assertEquals( submitted + 1, BATCH_WRITER_SERVICE.getMetrics().submitted( BatchWriterServiceAction.CREATE_IDENTITY ) );
+
+        Response other = post( "retry-2", "idempotent@meh.com" );
+        assertEquals( 201, other.getStatus() );
+        assertNull( other.getHeaderString( "Idempotent-Replayed" ) );
+        assertEquals( submitted + 2, BATCH_WRITER_SERVICE.getMetrics().submitted( BatchWriterServiceAction.CREATE_IDENTITY ) );
+    }
+
+    @Test
+    public void shouldTurnAwayKeysThatAreTooLong() throws Exception {
+        StringBuilder key = new StringBuilder();
+        for ( int i = 0; i <= IdempotencyHandler.MAX_KEY_LENGTH; i++ ) {
+            key.append( 'k' );
+        }
+        assertEquals( 400, post( key.toString(), "idempotent@meh.com" ).getStatus() );
+    }
+}
@@ -0,0 +1,108 @@
+package pe.archety.idempotency;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IdempotencyStoreTest {
+    private static final long WINDOW = 12_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static StoredResponse created( String body ) {
+        return new StoredResponse( 201, Collections.singletonMap( "Content-Type", "application/json" ), body.getBytes() );
+    }
+
+    @Test
+    public void shouldReplayWithinTheWindowAndForgetAfterIt() {
+        IdempotencyStore store = new IdempotencyStore( WINDOW, 100 );
+        assertNull( store.begin( "a", 1_000 ) );
+        assertTrue( store.begin( "a", 1_500 ).isInFlight() );
+
+        StoredResponse response = created( "{}" );
+        store.complete( "a", response, 2_000 );
+        assertSame( response, store.begin( "a", 12_500 ) );
+
+        // a failed first request is tried again for real
+        assertNull( store.begin( "b", 3_000 ) );
+        store.abandon( "b" );
+        assertNull( store.begin( "b", 3_000 ) );
+
+        // the bucket of "a" ends at 2000, once it is a window old it is dropped whole
+        assertNull( store.begin( "a", 14_000 ) );
+        assertEquals( 2, store.size() );
+    }
+
+    @Test
+    public void shouldDropTheOldestBucketsPastMaxEntries() {
+        IdempotencyStore store = new IdempotencyStore( WINDOW, 2 );
+        assertNull( store.begin( "a", 0 ) );
+        assertNull( store.begin( "b", 1_000 ) );
+        assertNull( store.begin( "c", 2_000 ) );
+        assertEquals( 1, store.evicted() );
+        assertNull( store.begin( "a", 2_500 ) );
+
+        // the current bucket alone is full, new keys go through without being kept
+        assertNull( store.begin( "d", 2_600 ) );
+        assertNull( store.begin( "d", 2_700 ) );
+        assertEquals( 2, store.size() );
+    }
+
+    @Test
+    public void shouldLoadWhatIsStillInsideTheWindow() throws Exception {
+        File file = new File( folder.getRoot(), "idempotency/keys.json" );
+        IdempotencyStore store = new IdempotencyStore( WINDOW, 100 );
+        store.load( file, 0 );
+        long now = System.currentTimeMillis();
+        store.begin( "old", now - WINDOW - 1 );
+        store.complete( "old", created( "old" ), now - WINDOW - 1 );
+        store.begin( "new", now );
+        store.complete( "new", created( "new" ), now );
+        store.close();
+
+        IdempotencyStore reopened = IdempotencyStore.open( WINDOW, 100, file );
+        assertEquals( 1, reopened.size() );
+        StoredResponse response = reopened.begin( "new" );
+        assertEquals( 201, response.status );
+        assertEquals( "application/json", response.headers.get( "Content-Type" ) );
+        assertArrayEquals( "new".getBytes(), response.body );
+        assertNull( reopened.begin( "old" ) );
+        reopened.close();
+    }
+
+    @Test
+    public void shouldCompactTheFileWhenBucketsAreDropped() throws Exception {
+        File file = new File( folder.getRoot(), "keys.json" );
+        IdempotencyStore store = new IdempotencyStore( WINDOW, 100 );
+        store.load( file, 0 );
+        long now = System.currentTimeMillis();
+        for ( int i = 0; i < 10; i++ ) {
+            store.begin( "old" + i, now - 2 * WINDOW );
+            store.complete( "old" + i, created( "old" ), now - 2 * WINDOW );
+        }
+        // the bucket of the old keys is dropped as the new one starts
+        store.begin( "new", now );
+        store.complete( "new", created( "new" ), now );
+        store.close();
+
+        // "new" may be there twice, appended and compacted; loading keeps one
+        List<String> lines = Files.readLines( file, Charsets.UTF_8 );
+        assertTrue( lines.size() >= 1 );
+        for ( String line : lines ) {
+            assertTrue( line, line.contains( "\"new\"" ) );
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package pe.archety.mail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenMailerTest {
+
+    // Keeps what it was given, failing the first attempt of every mail to anyone@failing.com
+    private static class MemoryTransport implements MailTransport {
+        final List<TokenMail> delivered = Collections.synchronizedList( new ArrayList<TokenMail>() );
+
+        @Override
+        public List<TokenMail> send( List<TokenMail> mails ) {
+            ArrayList<TokenMail> retry = new ArrayList<>();
+            for ( TokenMail mail : mails ) {
+                if ( mail.identity.endsWith( "@failing.com" ) && mail.attempts() == 1 ) {
+                    retry.add( mail );
+                } else if ( mail.identity.endsWith( "@broken.com" ) ) {
+                    retry.add( mail );
+                } else {
+                    delivered.add( mail );
+                }
+            }
+            return retry;
+        }
+    }
+
+    private static void awaitIdle( TokenMailer mailer ) throws InterruptedException {
+        for ( int i = 0; i < 500 && !mailer.isIdle(); i++ ) {
+            Thread.sleep( 10 );
+        }
+    }
+
+    @Test
+    public void shouldRetryWhatTheTransportGivesBack() throws Exception {
+        MemoryTransport transport = new MemoryTransport();
+        TokenMailer mailer = new TokenMailer( transport, 10, 1, 1 );
+        mailer.start();
+
+        assertTrue( mailer.offer( "maxdemarzi@gmail.com", "token1" ) );
+        assertTrue( mailer.offer( "someone@failing.com", "token2" ) );
+        assertTrue( mailer.offer( "someone@broken.com", "token3" ) );
+        awaitIdle( mailer );
+
+        assertEquals( 2, transport.delivered.size() );
+        assertEquals( 2, mailer.getSent() );
+        assertEquals( 1, mailer.getFailed() );
+        assertEquals( 1 + TokenMailer.MAX_ATTEMPTS - 1, mailer.getRetried() );
+        mailer.stop( 1000 );
+    }
+
+    @Test
+    public void shouldDropMailsRatherThanWaitWhenFull() throws Exception {
+        TokenMailer mailer = new TokenMailer( new MemoryTransport(), 2, 1 );
+
+        assertTrue( mailer.offer( "maxdemarzi@gmail.com", "token1" ) );
+        assertTrue( mailer.offer( "maxdemarzi@gmail.com", "token2" ) );
+        assertFalse( mailer.offer( "maxdemarzi@gmail.com", "token3" ) );
+        assertEquals( 1, mailer.getDropped() );
+        assertEquals( 2, mailer.queued() );
+        assertFalse( mailer.isIdle() );
+    }
+}
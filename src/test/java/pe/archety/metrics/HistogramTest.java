@@ -0,0 +1,50 @@
+package pe.archety.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void shouldPlaceEveryValueInABucketThatHoldsIt() {
+        long[] values = { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE };
+        for ( long value : values ) {
+            int index = Histogram.index( value );
+            assertTrue( value <= Histogram.highestValue( index ) );
+            assertTrue( index == 0 || value > Histogram.highestValue( index - 1 ) );
+        }
+    }
+
+    @Test
+    public void shouldReadPercentilesBackWithinOneEighth() {
+        Histogram histogram = new Histogram();
+        for ( int i = 1; i <= 10000; i++ ) {
+            histogram.record( i );
+        }
+        assertEquals( 10000, histogram.count() );
+        assertEquals( 10000L * 10001 / 2, histogram.sum() );
+        assertEquals( 10000, histogram.max() );
+        assertEquals( 10000, histogram.percentile( 1.0 ) );
+
+        long median = histogram.percentile( 0.5 );
+        assertTrue( median >= 5000 && median <= 5000 * 9 / 8 );
+        long p99 = histogram.percentile( 0.99 );
+        assertTrue( p99 >= 9900 && p99 <= 10000 );
+        assertEquals( 0, new Histogram().percentile( 0.5 ) );
+    }
+
+    @Test
+    public void shouldCountValuesAtOrBelowABound() {
+        Histogram histogram = new Histogram();
+        for ( int i = 1; i <= 1000; i++ ) {
+            histogram.record( i );
+        }
+        assertEquals( 0, histogram.countAtOrBelow( 0 ) );
+        assertEquals( 7, histogram.countAtOrBelow( 7 ) );
+        assertEquals( 1000, histogram.countAtOrBelow( Long.MAX_VALUE ) );
+        long half = histogram.countAtOrBelow( 500 );
+        assertTrue( half <= 500 && half >= 500 * 7 / 8 );
+    }
+}
@@ -0,0 +1,97 @@
+package pe.archety.tools;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.tooling.GlobalGraphOperations;
+import pe.archety.ArchetypeConstants;
+import pe.archety.BatchWriterService;
+import pe.archety.Labels;
+import pe.archety.NodeCounters;
+import pe.archety.Relationships;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class BulkLoaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldLoadWhatTheApiWouldHaveWritten() throws Exception {
+        File pages = folder.newFile( "pages.csv" );
+        Files.write( "url,title\n" +
+                "http://en.wikipedia.org/wiki/Neo4j,Neo4j\n" +
+                ",\"Oracle Database\"\n" +
+                "ftp://example.com,Nope\n", pages, Charsets.UTF_8 );
+        File likes = folder.newFile( "likes.json" );
+        Files.write( "{\"identity\":\"maxdemarzi@gmail.com\",\"relationship_type\":\"likes\",\"url\":\"http://en.wikipedia.org/wiki/Neo4j\"}\n" +
+                "{\"identity\":\"maxdemarzi@gmail.com\",\"relationship_type\":\"likes\",\"title\":\"Neo4j\"}\n" +
+                "{\"identity\":\"3125137509\",\"relationship_type\":\"hates\",\"title\":\"Oracle Database\"}\n" +
+                "{\"identity\":\"maxdemarzi@gmail.com\",\"relationship_type\":\"knows\",\"phone\":\"3125137509\"}\n" +
+                "{\"identity\":\"someone@meh.com\"}\n" +
+                "{\"identity\":\"maxdemarzi@gmail.com\",\"relationship_type\":\"loves\"}\n", likes, Charsets.UTF_8 );
+
+        File storeDir = new File( folder.getRoot(), "graph.db" );
+        BulkLoader loader = new BulkLoader( storeDir );
+        loader.load( pages );
+        loader.load( likes );
+        loader.finish();
+        assertEquals( 2, loader.getFailed() );
+
+        GraphDatabaseService db = new GraphDatabaseFactory().newEmbeddedDatabase( storeDir.getAbsolutePath() );
+        try {
+            String max = ArchetypeConstants.calculateHash( "maxdemarzi@gmail.com" );
+            try ( Transaction tx = db.beginTx() ) {
+                db.schema().awaitIndexesOnline( 1, java.util.concurrent.TimeUnit.MINUTES );
+                assertEquals( 4, IteratorUtil.count( db.schema().getConstraints() ) );
+                assertEquals( 3, IteratorUtil.count( GlobalGraphOperations.at( db ).getAllNodesWithLabel( Labels.Identity ) ) );
+                assertEquals( 2, IteratorUtil.count( GlobalGraphOperations.at( db ).getAllNodesWithLabel( Labels.Page ) ) );
+
+                Node identity = IteratorUtil.single( db.findNodesByLabelAndProperty( Labels.Identity, "identity", max ) );
+                assertEquals( 1, IteratorUtil.count( identity.getRelationships( Relationships.LIKES ) ) );
+                Relationship knows = IteratorUtil.single( identity.getRelationships( Relationships.KNOWS ) );
+                assertEquals( "+13125137509",
+                        ArchetypeConstants.decrypt( (String) knows.getProperty( "encryptedIdentity" ), "maxdemarzi@gmail.com" ) );
+                Node oracle = IteratorUtil.single( db.findNodesByLabelAndProperty( Labels.Page, "url", "http://en.wikipedia.org/wiki/Oracle_Database" ) );
+                assertEquals( "Oracle Database", oracle.getProperty( "title" ) );
+                assertEquals( 1, IteratorUtil.count( oracle.getRelationships( Relationships.HATES ) ) );
+
+                // the counters are there without a repair
+                assertEquals( 1, NodeCounters.get( identity, NodeCounters.LIKES ) );
+                assertEquals( 1, NodeCounters.get( identity, NodeCounters.KNOWS ) );
+                assertEquals( 0, NodeCounters.get( identity, NodeCounters.HATES ) );
+                assertEquals( 1, NodeCounters.get( oracle, NodeCounters.HATED ) );
+                Node neo4j = IteratorUtil.single( db.findNodesByLabelAndProperty( Labels.Page, "url", "http://en.wikipedia.org/wiki/Neo4j" ) );
+                assertEquals( 1, NodeCounters.get( neo4j, NodeCounters.LIKED ) );
+                Node phone = IteratorUtil.single( db.findNodesByLabelAndProperty( Labels.Identity, "identity",
+                        ArchetypeConstants.calculateHash( "+13125137509" ) ) );
+                assertEquals( 1, NodeCounters.get( phone, NodeCounters.HATES ) );
+
+                // the writer's unique factories find the loaded nodes rather than creating new ones
+                assertEquals( identity, BatchWriterService.uniqueIdentityFactory( db ).getOrCreate( "identity", max ) );
+                assertEquals( oracle, BatchWriterService.uniquePageFactory( db ).getOrCreate( "url", "http://en.wikipedia.org/wiki/Oracle_Database" ) );
+                assertEquals( oracle, db.index().forNodes( "node_auto_index" ).query( "title", "oracle" ).getSingle() );
+                tx.success();
+            }
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldParseQuotedCsvFields() {
+        assertEquals( Arrays.asList( "a", "b, c", "d \"e\"", "" ), BulkLoader.parseCsv( "a,\"b, c\",\"d \"\"e\"\"\"," ) );
+    }
+}
@@ -0,0 +1,83 @@
+package pe.archety.tools;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.IteratorUtil;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.neo4j.tooling.GlobalGraphOperations;
+import pe.archety.ArchetypeConstants;
+import pe.archety.ArchetypeServer;
+import pe.archety.Labels;
+import pe.archety.Relationships;
+import pe.archety.writes.IdentityWrite;
+import pe.archety.writes.LikesOrHatesWrite;
+import pe.archety.writes.OverloadPolicy;
+import pe.archety.writes.Write;
+import pe.archety.writes.WriteQueue;
+import pe.archety.writes.WriteRecorder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static pe.archety.ArchetypeConstants.BATCH_WRITER_SERVICE;
+
+public class WriteReplayTest {
+    private static final String URL = "http://en.wikipedia.org/wiki/Neo4j";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GraphDatabaseService db;
+
+    @After
+    public void tearDown() {
+        BATCH_WRITER_SERVICE.SetGraphDatabase( null );
+        BATCH_WRITER_SERVICE.setDeferredResolution( false );
+        BATCH_WRITER_SERVICE.getQueue().configure( WriteQueue.DEFAULT_CAPACITY, WriteQueue.DEFAULT_CAPACITY_BYTES,
+                OverloadPolicy.REJECT, WriteQueue.DEFAULT_BLOCK_TIMEOUT_MILLIS, WriteQueue.DEFAULT_SHED_THRESHOLD );
+        ArchetypeServer.identityCache.invalidateAll();
+        ArchetypeServer.urlCache.invalidateAll();
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldReplayIntoANewStore() throws Exception {
+        String max = ArchetypeConstants.calculateHash( "maxdemarzi@gmail.com" );
+        String someone = ArchetypeConstants.calculateHash( "someone@meh.com" );
+        // node ids of the store the recording was made on
+        List<Write> writes = Arrays.<Write>asList(
+                IdentityWrite.acquire( someone ),
+                LikesOrHatesWrite.acquire( Relationships.LIKES, max, 1234L, URL, "Neo4j", 5678L ),
+                LikesOrHatesWrite.acquire( Relationships.HATES, someone, 4321L, URL, "Neo4j", 5678L ) );
+        for ( Write write : writes ) {
+            write.markSubmitted();
+        }
+        File recording = folder.newFile( "writes.rec" );
+        try ( WriteRecorder recorder = new WriteRecorder( recording ) ) {
+            recorder.record( writes );
+        }
+
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        WriteReplay replay = new WriteReplay( db );
+        replay.replay( recording, 0 );
+        assertEquals( 3, replay.getReplayed() );
+        assertTrue( replay.report().startsWith( "3 writes in " ) );
+
+        try ( Transaction tx = db.beginTx() ) {
+            assertEquals( 4, IteratorUtil.count( db.schema().getConstraints() ) );
+            assertEquals( 2, IteratorUtil.count( GlobalGraphOperations.at( db ).getAllNodesWithLabel( Labels.Identity ) ) );
+            Node page = IteratorUtil.single( GlobalGraphOperations.at( db ).getAllNodesWithLabel( Labels.Page ) );
+            assertEquals( URL, page.getProperty( "url" ) );
+            assertEquals( 2, IteratorUtil.count( page.getRelationships() ) );
+            tx.success();
+        }
+    }
+}
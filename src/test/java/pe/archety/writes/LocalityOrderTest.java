@@ -0,0 +1,62 @@
+package pe.archety.writes;
+
+import org.junit.Test;
+import pe.archety.Relationships;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LocalityOrderTest {
+
+    private static Write like( String identityHash, long identityNodeId, String url, long pageNodeId ) {
+        return LikesOrHatesWrite.acquire( Relationships.LIKES, identityHash, identityNodeId, url, "", pageNodeId );
+    }
+
+    @Test
+    public void shouldSortByNodeGroupingLikesByPage() {
+        Write likes30 = like( "a", 5L, "http://en.wikipedia.org/wiki/C", 30L );
+        Write likes10 = like( "b", 9L, "http://en.wikipedia.org/wiki/A", 10L );
+        Write knows = KnowsWrite.acquire( "c", 20L, "d", 2L, "x" );
+        Write likesNew = like( "a", 5L, "http://en.wikipedia.org/wiki/New", Write.NO_NODE );
+        Write likes10Again = like( "c", 20L, "http://en.wikipedia.org/wiki/A", 10L );
+        Write token = TokenWrite.acquire( "me@meh.com", "e", 40L );
+
+        ArrayList<Write> writes = new ArrayList<>( Arrays.asList( likes30, likes10, knows, likesNew, likes10Again, token ) );
+        new LocalityOrder().sort( writes );
+
+        assertEquals( Arrays.asList( token, likes10, likes10Again, knows, likes30, likesNew ), writes );
+    }
+
+    @Test
+    public void shouldKeepTheOrderOfWritesToTheSameIdentity() {
+        Write first = TokenWrite.acquire( "me@meh.com", "hash", 7L );
+        Write like = like( "hash", 7L, "http://en.wikipedia.org/wiki/A", 1L );
+        Write second = TokenWrite.acquire( "me@meh.com", "hash", 7L );
+        Write created = TokenWrite.acquire( "new@meh.com", "new", Write.NO_NODE );
+        Write createdAgain = TokenWrite.acquire( "new@meh.com", "new", Write.NO_NODE );
+
+        ArrayList<Write> writes = new ArrayList<>( Arrays.asList( created, first, like, second, createdAgain ) );
+        new LocalityOrder().sort( writes );
+
+        assertTrue( writes.indexOf( first ) < writes.indexOf( second ) );
+        assertTrue( writes.indexOf( created ) < writes.indexOf( createdAgain ) );
+        assertSame( like, writes.get( 4 ) );
+    }
+
+    @Test
+    public void shouldKeepTokensInOrderWhetherOrNotTheNodeWasKnown() {
+        // the handler had not cached the identity for the first token, it had for the second
+        Write stale = TokenWrite.acquire( "me@meh.com", "hash", Write.NO_NODE );
+        Write fresh = TokenWrite.acquire( "me@meh.com", "hash", 7L );
+        Write other = TokenWrite.acquire( "you@meh.com", "other", 3L );
+
+        ArrayList<Write> writes = new ArrayList<>( Arrays.asList( stale, other, fresh ) );
+        new LocalityOrder().sort( writes );
+
+        assertTrue( writes.indexOf( stale ) < writes.indexOf( fresh ) );
+    }
+}
@@ -0,0 +1,62 @@
+package pe.archety.writes;
+
+import org.junit.Test;
+import pe.archety.CommitSizer;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MicroBatchControllerTest {
+
+    private static long millis( long millis ) {
+        return TimeUnit.MILLISECONDS.toNanos( millis );
+    }
+
+    @Test
+    public void shouldGrowFullBatchesThatCommitFast() {
+        MicroBatchController controller = new MicroBatchController();
+        controller.configure( 500, 50, 40_000, 5 );
+
+        controller.onCommit( 500, true, millis( 10 ) );
+        assertTrue( controller.batchSize() > 500 );
+    }
+
+    @Test
+    public void shouldNotGrowBatchesCutByTheDeadline() {
+        MicroBatchController controller = new MicroBatchController();
+        controller.configure( 500, 50, 40_000, 5 );
+
+        controller.onCommit( 3, false, millis( 2 ) );
+        assertEquals( 500, controller.batchSize() );
+    }
+
+    @Test
+    public void shouldShrinkBatchesThatCommitSlowly() {
+        MicroBatchController controller = new MicroBatchController();
+        controller.configure( 4000, 50, 40_000, 5 );
+
+        // over the CommitSizer's target
+        controller.onCommit( 4000, true, CommitSizer.defaultTargetCommitNanos() + millis( 100 ) );
+        assertEquals( 3000, controller.batchSize() );
+    }
+
+    @Test
+    public void shouldStayWithinLimits() {
+        MicroBatchController controller = new MicroBatchController();
+        controller.configure( 60, 50, 100, 5 );
+
+        for ( int i = 0; i < 10; i++ ) {
+            controller.onCommit( 60, true, CommitSizer.defaultTargetCommitNanos() * 2 );
+        }
+        assertEquals( 50, controller.batchSize() );
+        // the linger is a fixed cap, slow commits do not stretch it
+        assertEquals( millis( 5 ), controller.lingerNanos() );
+
+        for ( int i = 0; i < 10; i++ ) {
+            controller.onCommit( controller.batchSize(), true, millis( 1 ) );
+        }
+        assertEquals( 100, controller.batchSize() );
+    }
+}
@@ -0,0 +1,65 @@
+package pe.archety.writes;
+
+import org.junit.Test;
+import pe.archety.ArchetypeConstants;
+import pe.archety.Relationships;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PendingWritesTest {
+    private static final String HASH = ArchetypeConstants.calculateHash( "maxdemarzi@gmail.com" );
+    private static final String HASH2 = ArchetypeConstants.calculateHash( "+13125551212" );
+
+    @Test
+    public void shouldKeepEdgesUntilRemoved() {
+        PendingWrites pending = new PendingWrites();
+        Write likes = LikesOrHatesWrite.acquire( Relationships.LIKES, HASH, Write.NO_NODE,
+                "http://en.wikipedia.org/wiki/Neo4j", "Neo4j", Write.NO_NODE );
+        Write sameLikes = LikesOrHatesWrite.acquire( Relationships.LIKES, HASH, Write.NO_NODE,
+                "http://en.wikipedia.org/wiki/Neo4j", "Neo4j", Write.NO_NODE );
+        Write knows = KnowsWrite.acquire( HASH, Write.NO_NODE, HASH2, Write.NO_NODE, "encrypted" );
+        pending.add( likes );
+        pending.add( sameLikes );
+        pending.add( knows );
+        assertNull( pending.add( IdentityWrite.acquire( HASH ) ) );
+
+        List<PendingWrites.Edge> edges = pending.edges( HASH, Relationships.LIKES );
+        assertEquals( 2, edges.size() );
+        assertEquals( "Neo4j", edges.get( 0 ).title );
+        assertEquals( 0, pending.edges( HASH, Relationships.HATES ).size() );
+        assertEquals( HASH2, pending.edges( HASH, Relationships.KNOWS ).get( 0 ).identityHash2 );
+
+        pending.remove( likes );
+        pending.remove( likes );
+        assertEquals( 1, pending.edges( HASH, Relationships.LIKES ).size() );
+
+        pending.remove( sameLikes );
+        pending.remove( knows );
+        assertEquals( 0, pending.edges( HASH, Relationships.LIKES ).size() );
+        assertEquals( 0, pending.identities() );
+    }
+
+    @Test
+    public void shouldReuseEdgesOnceRemoved() {
+        PendingWrites pending = new PendingWrites( 16 );
+        Write likes = LikesOrHatesWrite.acquire( Relationships.LIKES, HASH, Write.NO_NODE,
+                "http://en.wikipedia.org/wiki/Neo4j", "Neo4j", Write.NO_NODE );
+        PendingWrites.Edge edge = pending.add( likes );
+        List<PendingWrites.Edge> snapshot = pending.edges( HASH, Relationships.LIKES );
+        pending.remove( likes );
+
+        Write hates = LikesOrHatesWrite.acquire( Relationships.HATES, HASH2, Write.NO_NODE,
+                "http://en.wikipedia.org/wiki/Mongodb", "Mongodb", Write.NO_NODE );
+        assertSame( edge, pending.add( hates ) );
+
+        // the copy handed out before is untouched
+        assertEquals( "Neo4j", snapshot.get( 0 ).title );
+        assertEquals( 0, pending.edges( HASH, Relationships.LIKES ).size() );
+        assertEquals( "Mongodb", pending.edges( HASH2, Relationships.HATES ).get( 0 ).title );
+        assertEquals( 1, pending.identities() );
+    }
+}
@@ -0,0 +1,78 @@
+package pe.archety.writes;
+
+import org.junit.Test;
+import pe.archety.Relationships;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteCoalescerTest {
+    private static final String URL = "http://en.wikipedia.org/wiki/Neo4j";
+    private static final String URL2 = "http://en.wikipedia.org/wiki/Mongodb";
+
+    private static LikesOrHatesWrite like( String identityHash, String url ) {
+        return LikesOrHatesWrite.acquire( Relationships.LIKES, identityHash, Write.NO_NODE, url, "", Write.NO_NODE );
+    }
+
+    @Test
+    public void shouldSkipDuplicateEdges() {
+        Write first = like( "a", URL );
+        Write retry = like( "a", URL );
+        Write hates = LikesOrHatesWrite.acquire( Relationships.HATES, "a", Write.NO_NODE, URL, "", Write.NO_NODE );
+        Write knows = KnowsWrite.acquire( "a", 1L, "b", 2L, "x" );
+        Write knowsAgain = KnowsWrite.acquire( "a", 1L, "b", 2L, "y" );
+        Write knowsBack = KnowsWrite.acquire( "b", 2L, "a", 1L, "z" );
+
+        WriteCoalescer coalescer = new WriteCoalescer();
+        coalescer.coalesce( new ArrayList<>( Arrays.asList( first, retry, hates, knows, knowsAgain, knowsBack ) ) );
+
+        assertFalse( first.isSkipped() );
+        assertTrue( retry.isSkipped() );
+        assertFalse( hates.isSkipped() );
+        assertFalse( knows.isSkipped() );
+        assertTrue( knowsAgain.isSkipped() );
+        assertFalse( knowsBack.isSkipped() );
+        assertEquals( 2, coalescer.skippedEdges() );
+    }
+
+    @Test
+    public void shouldSkipBareCreationsOfReferencedNodes() {
+        Write identity = IdentityWrite.acquire( "a" );
+        Write identityAgain = IdentityWrite.acquire( "a" );
+        Write otherIdentity = IdentityWrite.acquire( "c" );
+        Write page = PageWrite.acquire( URL, "Neo4j" );
+        Write otherPage = PageWrite.acquire( URL2, "Mongodb" );
+        Write like = like( "a", URL );
+
+        WriteCoalescer coalescer = new WriteCoalescer();
+        coalescer.coalesce( new ArrayList<>( Arrays.asList( identity, identityAgain, otherIdentity, page, otherPage, like ) ) );
+
+        assertTrue( identity.isSkipped() );
+        assertTrue( identityAgain.isSkipped() );
+        assertFalse( otherIdentity.isSkipped() );
+        assertTrue( page.isSkipped() );
+        assertFalse( otherPage.isSkipped() );
+        assertFalse( like.isSkipped() );
+        assertEquals( 3, coalescer.skippedNodes() );
+    }
+
+    @Test
+    public void shouldCountReusedNodesAndResetBetweenBatches() {
+        WriteCoalescer coalescer = new WriteCoalescer();
+        int coalesced = coalescer.coalesce( new ArrayList<Write>( Arrays.asList(
+                like( "a", URL ), like( "a", URL2 ), like( "b", URL ),
+                TokenWrite.acquire( "b@meh.com", "b", Write.NO_NODE ) ) ) );
+
+        // "a" and URL are created once each and reused, "b" is created once and reused by the token
+        assertEquals( 3, coalescer.reusedNodes() );
+        assertEquals( 3, coalesced );
+
+        Write like = like( "a", URL );
+        assertEquals( 0, coalescer.coalesce( new ArrayList<>( Arrays.asList( like ) ) ) );
+        assertFalse( like.isSkipped() );
+    }
+}
@@ -0,0 +1,206 @@
+package pe.archety.writes;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pe.archety.ArchetypeConstants;
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.Relationships;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteJournalTest {
+    private static final String HASH = ArchetypeConstants.calculateHash( "maxdemarzi@gmail.com" );
+    private static final String HASH2 = ArchetypeConstants.calculateHash( "+13125551212" );
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static LikesOrHatesWrite like() {
+        return LikesOrHatesWrite.acquire( Relationships.LIKES, HASH, Write.NO_NODE,
+                "http://en.wikipedia.org/wiki/Neo4j", "Neo4j", 42L );
+    }
+
+    @Test
+    public void shouldRecoverUncommittedWrites() throws Exception {
+        File directory = folder.newFolder();
+        WriteJournal journal = WriteJournal.open( directory, 4096, JournalSyncPolicy.NONE );
+        Write committed = like();
+        journal.append( committed );
+        Write accepted = TokenWrite.acquire( "maxdemarzi@gmail.com", HASH, 7L );
+        long receipt = new WriteReceipts().issue( accepted );
+        journal.append( accepted );
+        journal.append( KnowsWrite.acquire( HASH, 1L, HASH2, Write.NO_NODE, "encrypted" ) );
+        journal.committed( Collections.singletonList( committed ) );
+        journal.close();
+
+        WriteJournal reopened = WriteJournal.open( directory, 4096, JournalSyncPolicy.NONE );
+        List<Write> recovered = reopened.recover();
+        assertEquals( 2, recovered.size() );
+
+        TokenWrite token = (TokenWrite) recovered.get( 0 );
+        assertEquals( 1, token.sequence() );
+        assertEquals( receipt, token.receipt() );
+        assertEquals( BatchWriterServiceAction.CREATE_TOKEN, token.action );
+        assertEquals( "maxdemarzi@gmail.com", token.identity );
+        assertEquals( HASH, token.identityHash );
+        assertEquals( 7L, token.identityNodeId );
+
+        KnowsWrite knows = (KnowsWrite) recovered.get( 1 );
+        assertEquals( BatchWriterServiceAction.CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP, knows.action );
+        assertEquals( HASH2, knows.identityHash2 );
+        assertEquals( Write.NO_NODE, knows.identityNodeId2 );
+        assertEquals( "encrypted", knows.encryptedIdentity );
+
+        Write next = like();
+        reopened.append( next );
+        assertEquals( 3, next.sequence() );
+        assertEquals( 3, reopened.pendingRecords() );
+    }
+
+    @Test
+    public void shouldRoundTripLikes() throws Exception {
+        File directory = folder.newFolder();
+        WriteJournal journal = WriteJournal.open( directory, 4096, JournalSyncPolicy.ALWAYS );
+        journal.append( LikesOrHatesWrite.acquire( Relationships.HATES, HASH, 3L,
+                "http://en.wikipedia.org/wiki/Caf%C3%A9", null, Write.NO_NODE ) );
+        journal.close();
+
+        LikesOrHatesWrite hates = (LikesOrHatesWrite) WriteJournal.open( directory, 4096, JournalSyncPolicy.NONE ).recover().get( 0 );
+        assertEquals( BatchWriterServiceAction.CREATE_PAGE_AND_HATES_RELATIONSHIP, hates.action );
+        assertEquals( Relationships.HATES, hates.relationshipType );
+        assertEquals( HASH, hates.identityHash );
+        assertEquals( 3L, hates.identityNodeId );
+        assertEquals( "http://en.wikipedia.org/wiki/Caf%C3%A9", hates.url );
+        assertNull( hates.title );
+        assertEquals( Write.NO_NODE, hates.pageNodeId );
+    }
+
+    @Test
+    public void shouldDeleteCommittedSegments() throws Exception {
+        File directory = folder.newFolder();
+        WriteJournal journal = WriteJournal.open( directory, 512, JournalSyncPolicy.BATCH );
+        Write[] writes = new Write[ 20 ];
+        for ( int i = 0; i < writes.length; i++ ) {
+            writes[ i ] = like();
+            journal.append( writes[ i ] );
+        }
+        int segments = journal.segmentCount();
+        assertEquals( segments, directory.list().length );
+
+        journal.committed( Arrays.asList( writes ) );
+        assertEquals( 1, journal.segmentCount() );
+        assertEquals( 1, directory.list().length );
+        assertEquals( 0, journal.pendingRecords() );
+    }
+
+    @Test
+    public void shouldStopAtTornRecord() throws Exception {
+        File directory = folder.newFolder();
+        WriteJournal journal = WriteJournal.open( directory, 4096, JournalSyncPolicy.NONE );
+        journal.append( like() );
+        Write torn = like();
+        journal.append( torn );
+        journal.close();
+
+        File segment = directory.listFiles()[ 0 ];
+        try ( RandomAccessFile raf = new RandomAccessFile( segment, "rw" ) ) {
+            // somewhere in the payload of the second record
+            raf.seek( torn.journalOffset + 40 );
+            int b = raf.read();
+            raf.seek( torn.journalOffset + 40 );
+            raf.write( ~b );
+        }
+
+        assertEquals( 1, WriteJournal.open( directory, 4096, JournalSyncPolicy.NONE ).recover().size() );
+    }
+
+    @Test
+    public void shouldSkipTornRecordBeforeFinishedOnes() throws Exception {
+        File directory = folder.newFolder();
+        WriteJournal journal = WriteJournal.open( directory, 4096, JournalSyncPolicy.NONE );
+        journal.append( like() );
+        Write torn = like();
+        journal.append( torn );
+        journal.append( IdentityWrite.acquire( HASH2 ) );
+        journal.close();
+
+        File segment = directory.listFiles()[ 0 ];
+        try ( RandomAccessFile raf = new RandomAccessFile( segment, "rw" ) ) {
+            // a producer that claimed its bytes but never got to write its length
+            raf.seek( torn.journalOffset );
+            raf.writeInt( 0 );
+        }
+
+        List<Write> recovered = WriteJournal.open( directory, 4096, JournalSyncPolicy.NONE ).recover();
+        assertEquals( 2, recovered.size() );
+        assertEquals( HASH2, ( (IdentityWrite) recovered.get( 1 ) ).identityHash );
+        assertEquals( 2, recovered.get( 1 ).sequence() );
+    }
+
+    @Test
+    public void shouldTakeConcurrentAppends() throws Exception {
+        File directory = folder.newFolder();
+        // small segments, so producers keep rolling over to new ones
+        final WriteJournal journal = WriteJournal.open( directory, 2048, JournalSyncPolicy.NONE );
+        final int perThread = 500;
+        final List<Write> appended = Collections.synchronizedList( new ArrayList<Write>() );
+        final AtomicInteger failed = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for ( int t = 0; t < 8; t++ ) {
+            final String hash = t % 2 == 0 ? HASH : "not a digest " + t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for ( int i = 0; i < perThread; i++ ) {
+                            Write write = IdentityWrite.acquire( hash );
+                            journal.append( write );
+                            appended.add( write );
+                        }
+                    } catch ( IOException e ) {
+                        failed.incrementAndGet();
+                    }
+                }
+            };
+            threads.add( thread );
+            thread.start();
+        }
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+        assertEquals( 0, failed.get() );
+        assertEquals( 8 * perThread, journal.pendingRecords() );
+
+        // commit half, the rest comes back once each
+        List<Write> committed = new ArrayList<>( appended.subList( 0, appended.size() / 2 ) );
+        journal.committed( committed );
+        journal.close();
+        List<Write> recovered = WriteJournal.open( directory, 2048, JournalSyncPolicy.NONE ).recover();
+        assertEquals( appended.size() - committed.size(), recovered.size() );
+        Set<Long> expected = new HashSet<>();
+        for ( Write write : appended.subList( committed.size(), appended.size() ) ) {
+            expected.add( write.sequence() );
+        }
+        Set<Long> sequences = new HashSet<>();
+        for ( Write write : recovered ) {
+            sequences.add( write.sequence() );
+            String hash = ( (IdentityWrite) write ).identityHash;
+            assertTrue( hash, hash.equals( HASH ) || hash.startsWith( "not a digest " ) );
+        }
+        assertEquals( expected, sequences );
+    }
+}
@@ -0,0 +1,57 @@
+package pe.archety.writes;
+
+import org.junit.Test;
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.Relationships;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class WritePoolTest {
+
+    @Test
+    public void shouldRecycleReleasedWrites() {
+        LikesOrHatesWrite write = LikesOrHatesWrite.acquire( Relationships.LIKES, "hash", 1L, "url", "title", 2L );
+        write.release();
+
+        assertNull( write.action );
+        assertNull( write.identityHash );
+        assertEquals( Write.NO_NODE, write.identityNodeId );
+        assertEquals( Write.NO_NODE, write.pageNodeId );
+
+        LikesOrHatesWrite recycled = LikesOrHatesWrite.acquire( Relationships.HATES, "hash2", Write.NO_NODE, "url2", "title2", 3L );
+        assertSame( write, recycled );
+        assertEquals( BatchWriterServiceAction.CREATE_IDENTITY_AND_HATES_RELATIONSHIP, recycled.action );
+        recycled.release();
+    }
+
+    @Test
+    public void shouldPickLikesOrHatesActionFromMissingNodes() {
+        assertEquals( BatchWriterServiceAction.CREATE_BOTH_AND_LIKES_RELATIONSHIP,
+                LikesOrHatesWrite.actionFor( Relationships.LIKES, true, true ) );
+        assertEquals( BatchWriterServiceAction.CREATE_PAGE_AND_HATES_RELATIONSHIP,
+                LikesOrHatesWrite.actionFor( Relationships.HATES, false, true ) );
+        assertEquals( BatchWriterServiceAction.CREATE_LIKES_RELATIONSHIP,
+                LikesOrHatesWrite.actionFor( Relationships.LIKES, false, false ) );
+    }
+
+    @Test
+    public void shouldPickKnowsActionFromMissingNodes() {
+        assertEquals( BatchWriterServiceAction.CREATE_BOTH_AND_KNOWS_RELATIONSHIP, KnowsWrite.actionFor( true, true ) );
+        assertEquals( BatchWriterServiceAction.CREATE_IDENTITY_AND_KNOWS_RELATIONSHIP, KnowsWrite.actionFor( true, false ) );
+        assertEquals( BatchWriterServiceAction.CREATE_2ND_IDENTITY_AND_KNOWS_RELATIONSHIP, KnowsWrite.actionFor( false, true ) );
+        assertEquals( BatchWriterServiceAction.CREATE_KNOWS_RELATIONSHIP, KnowsWrite.actionFor( false, false ) );
+    }
+
+    @Test
+    public void shouldPickTokenActionFromMissingNode() {
+        TokenWrite write = TokenWrite.acquire( "me@meh.com", "hash", Write.NO_NODE );
+        assertEquals( BatchWriterServiceAction.CREATE_IDENTITY_WITH_TOKEN, write.action );
+        write.release();
+
+        write = TokenWrite.acquire( "me@meh.com", "hash", 7L );
+        assertEquals( BatchWriterServiceAction.CREATE_TOKEN, write.action );
+        write.release();
+    }
+}
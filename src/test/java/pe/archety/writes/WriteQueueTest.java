@@ -0,0 +1,216 @@
+package pe.archety.writes;
+
+import org.junit.Test;
+import pe.archety.Relationships;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteQueueTest {
+
+    private static Write like() {
+        return LikesOrHatesWrite.acquire( Relationships.LIKES, "hash", 1L, "http://en.wikipedia.org/wiki/Neo4j", "Neo4j", 2L );
+    }
+
+    private static Write token() {
+        return TokenWrite.acquire( "me@meh.com", "hash", 1L );
+    }
+
+    private static Write identity() {
+        return IdentityWrite.acquire( "hash" );
+    }
+
+    private static int count( ArrayList<Write> writes, WritePriority priority ) {
+        int count = 0;
+        for ( Write write : writes ) {
+            if ( write.priority() == priority ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void shouldRejectOverCountCapacity() throws Exception {
+        WriteQueue queue = new WriteQueue();
+        queue.configure( 2, WriteQueue.DEFAULT_CAPACITY_BYTES, OverloadPolicy.REJECT, 0, 1.0 );
+
+        assertTrue( queue.offer( like() ) );
+        assertTrue( queue.offer( like() ) );
+        assertFalse( queue.offer( like() ) );
+        assertTrue( queue.isSaturated() );
+        assertEquals( 1, queue.rejected() );
+
+        ArrayList<Write> writes = new ArrayList<>();
+        assertEquals( 2, queue.drainTo( writes ) );
+        assertEquals( 0, queue.size() );
+        assertEquals( 0, queue.bytes() );
+        assertTrue( queue.offer( like() ) );
+    }
+
+    @Test
+    public void shouldRejectOverByteCapacity() throws Exception {
+        WriteQueue queue = new WriteQueue();
+        Write write = like();
+        queue.configure( 100, write.estimatedBytes() + 1, OverloadPolicy.REJECT, 0, 1.0 );
+
+        assertTrue( queue.offer( write ) );
+        assertFalse( queue.offer( like() ) );
+    }
+
+    @Test
+    public void shouldShedLowPriorityWritesFirst() throws Exception {
+        WriteQueue queue = new WriteQueue();
+        queue.configure( 4, WriteQueue.DEFAULT_CAPACITY_BYTES, OverloadPolicy.SHED, 0, 0.5 );
+
+        assertTrue( queue.offer( like() ) );
+        assertTrue( queue.offer( like() ) );
+        assertFalse( queue.offer( like() ) );
+        assertTrue( queue.offer( token() ) );
+        assertTrue( queue.offer( token() ) );
+        assertFalse( queue.offer( token() ) );
+    }
+
+    @Test
+    public void shouldBlockUntilTimeout() throws Exception {
+        WriteQueue queue = new WriteQueue();
+        queue.configure( 1, WriteQueue.DEFAULT_CAPACITY_BYTES, OverloadPolicy.BLOCK, 50, 1.0 );
+
+        assertTrue( queue.offer( like() ) );
+        long start = System.nanoTime();
+        assertFalse( queue.offer( like() ) );
+        assertTrue( System.nanoTime() - start >= 40_000_000L );
+    }
+
+    @Test
+    public void shouldBlockUntilWriterDrains() throws Exception {
+        final WriteQueue queue = new WriteQueue();
+        queue.configure( 1, WriteQueue.DEFAULT_CAPACITY_BYTES, OverloadPolicy.BLOCK, 5000, 1.0 );
+        assertTrue( queue.offer( like() ) );
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep( 50 );
+                } catch ( InterruptedException ignored ) {
+                }
+                queue.drainTo( new ArrayList<Write>() );
+            }
+        };
+        writer.start();
+
+        assertTrue( queue.offer( like() ) );
+        writer.join();
+    }
+
+    @Test
+    public void shouldWaitForTheShedThresholdWhenAskedTo() throws Exception {
+        final WriteQueue queue = new WriteQueue();
+        queue.configure( 4, WriteQueue.DEFAULT_CAPACITY_BYTES, OverloadPolicy.SHED, 0, 0.5 );
+        assertTrue( queue.offer( like() ) );
+        assertTrue( queue.offer( like() ) );
+        // shed at once without a wait, but not full
+        assertFalse( queue.offer( like() ) );
+        assertFalse( queue.isSaturated() );
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep( 50 );
+                    queue.poll( 0, TimeUnit.MILLISECONDS );
+                } catch ( InterruptedException ignored ) {
+                }
+            }
+        };
+        writer.start();
+
+        assertTrue( queue.offer( like(), 5000 ) );
+        writer.join();
+        assertEquals( 2, queue.size() );
+    }
+
+    @Test
+    public void shouldDrainHighPriorityWritesFirst() throws Exception {
+        WriteQueue queue = new WriteQueue();
+        for ( int i = 0; i < 100; i++ ) {
+            assertTrue( queue.offer( like() ) );
+        }
+        assertTrue( queue.offer( identity() ) );
+        assertTrue( queue.offer( token() ) );
+        assertEquals( 100, queue.size( WritePriority.LOW ) );
+        assertEquals( 1, queue.size( WritePriority.HIGH ) );
+
+        assertEquals( WritePriority.HIGH, queue.poll( 0, TimeUnit.MILLISECONDS ).priority() );
+        assertEquals( WritePriority.NORMAL, queue.poll( 0, TimeUnit.MILLISECONDS ).priority() );
+        assertTrue( queue.offer( token() ) );
+
+        ArrayList<Write> writes = new ArrayList<>();
+        assertEquals( 10, queue.drainTo( writes, 10 ) );
+        assertEquals( WritePriority.HIGH, writes.get( 0 ).priority() );
+        assertEquals( 91, queue.size() );
+        assertEquals( 0, queue.size( WritePriority.HIGH ) );
+    }
+
+    @Test
+    public void shouldKeepAShareOfEachDrainForLowPriorityWrites() throws Exception {
+        WriteQueue queue = new WriteQueue();
+        queue.configurePriorities( 0.2, 60_000 );
+        for ( int i = 0; i < 20; i++ ) {
+            assertTrue( queue.offer( like() ) );
+            assertTrue( queue.offer( identity() ) );
+        }
+
+        ArrayList<Write> writes = new ArrayList<>();
+        assertEquals( 10, queue.drainTo( writes, 10 ) );
+        assertEquals( 8, count( writes, WritePriority.NORMAL ) );
+        assertEquals( 2, count( writes, WritePriority.LOW ) );
+        assertEquals( 0, queue.lateLowDrains() );
+
+        // once the oldest like has waited too long it gets half
+        queue.configurePriorities( 0.2, 0 );
+        Thread.sleep( 1 );
+        writes.clear();
+        assertEquals( 10, queue.drainTo( writes, 10 ) );
+        assertEquals( 5, count( writes, WritePriority.LOW ) );
+        assertEquals( 1, queue.lateLowDrains() );
+
+        // and with nothing else queued it gets everything
+        writes.clear();
+        assertEquals( 20, queue.drainTo( writes ) );
+        assertEquals( 13, count( writes, WritePriority.LOW ) );
+        assertEquals( 0, queue.size() );
+        assertEquals( 0, queue.bytes() );
+    }
+
+    @Test
+    public void shouldWakeTheWriterWithEveryWaitStrategy() throws Exception {
+        for ( WaitStrategy waitStrategy : WaitStrategy.values() ) {
+            final WriteQueue queue = new WriteQueue( 16 );
+            queue.setWaitStrategy( waitStrategy );
+            assertNull( queue.poll( 10, TimeUnit.MILLISECONDS ) );
+
+            Thread handler = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep( 20 );
+                        queue.offer( token() );
+                    } catch ( Exception ignored ) {
+                    }
+                }
+            };
+            handler.start();
+            Write write = queue.poll( 10, TimeUnit.SECONDS );
+            handler.join();
+            assertEquals( waitStrategy.name(), WritePriority.HIGH, write.priority() );
+            assertEquals( 0, queue.size() );
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package pe.archety.writes;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteReceiptsTest {
+
+    @Test
+    public void shouldTrackStatusOfRecentReceipts() {
+        WriteReceipts receipts = new WriteReceipts( 4 );
+        long first = receipts.issue();
+        long second = receipts.issue();
+        assertEquals( WriteStatus.PENDING, receipts.status( first ) );
+        assertEquals( WriteStatus.UNKNOWN, receipts.status( second + 1 ) );
+
+        receipts.deadLettered( second );
+        receipts.committed( second );
+        receipts.committed( first );
+        assertEquals( WriteStatus.COMMITTED, receipts.status( first ) );
+        assertEquals( WriteStatus.DEAD_LETTERED, receipts.status( second ) );
+
+        // four more take over every slot
+        for ( int i = 0; i < 4; i++ ) {
+            receipts.issue();
+        }
+        assertEquals( WriteStatus.UNKNOWN, receipts.status( first ) );
+        receipts.committed( first );
+        assertEquals( WriteStatus.PENDING, receipts.status( first + 4 ) );
+    }
+
+    @Test
+    public void shouldCallListenersOnce() {
+        WriteReceipts receipts = new WriteReceipts();
+        final List<WriteStatus> seen = new ArrayList<>();
+        WriteReceipts.Listener listener = new WriteReceipts.Listener() {
+            @Override
+            public void completed( long receipt, WriteStatus status ) {
+                seen.add( status );
+            }
+        };
+
+        long pending = receipts.issue();
+        assertTrue( receipts.onCompletion( pending, listener ) );
+        assertTrue( seen.isEmpty() );
+        receipts.committed( pending );
+        receipts.committed( pending );
+        assertEquals( 1, seen.size() );
+        assertEquals( 0, receipts.waiting() );
+
+        // already done, answered right away
+        assertTrue( receipts.onCompletion( pending, listener ) );
+        assertEquals( 2, seen.size() );
+
+        long cancelled = receipts.issue();
+        receipts.onCompletion( cancelled, listener );
+        assertTrue( receipts.cancel( cancelled ) );
+        receipts.deadLettered( cancelled );
+        assertEquals( 2, seen.size() );
+
+        assertFalse( receipts.onCompletion( 12345, listener ) );
+    }
+
+    @Test
+    public void shouldNotReuseTheReceiptsOfAnEarlierRun() {
+        WriteReceipts before = new WriteReceipts( 4, 1_400_000_000L );
+        long last = 0;
+        for ( int i = 0; i < 1000; i++ ) {
+            last = before.issue();
+        }
+        WriteReceipts after = new WriteReceipts( 4, 1_400_000_001L );
+        assertTrue( after.issue() > last );
+
+        // a write the journal replays is known again, under its old receipt
+        Write replayed = IdentityWrite.acquire( "hash" );
+        replayed.receipt = last;
+        after.restore( replayed );
+        assertEquals( WriteStatus.PENDING, after.status( last ) );
+        after.committed( last );
+        assertEquals( WriteStatus.COMMITTED, after.status( last ) );
+    }
+}
@@ -0,0 +1,85 @@
+package pe.archety.writes;
+
+import com.google.common.base.Strings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import pe.archety.ArchetypeConstants;
+import pe.archety.BatchWriterServiceAction;
+import pe.archety.Relationships;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteRecorderTest {
+    private static final String HASH = ArchetypeConstants.calculateHash( "maxdemarzi@gmail.com" );
+    private static final String URL = "http://en.wikipedia.org/wiki/Neo4j";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldReadBackWhatWasRecorded() throws Exception {
+        File file = folder.newFile( "writes.rec" );
+        String longTitle = Strings.repeat( "Neo4j ", 400_000 );
+        ArrayList<Write> writes = new ArrayList<>();
+        for ( int i = 0; i < 20_000; i++ ) {
+            writes.add( LikesOrHatesWrite.acquire( Relationships.LIKES, HASH, i, URL, "Neo4j", Write.NO_NODE ) );
+        }
+        writes.add( PageWrite.acquire( URL, longTitle ) );
+        writes.add( IdentityWrite.acquire( HASH ) );
+        writes.add( TokenWrite.acquire( "maxdemarzi@gmail.com", HASH, Write.NO_NODE ) );
+        for ( Write write : writes ) {
+            write.markSubmitted();
+        }
+
+        try ( WriteRecorder recorder = new WriteRecorder( file ) ) {
+            recorder.record( writes.subList( 0, 10_000 ) );
+            recorder.record( writes.subList( 10_000, writes.size() ) );
+            assertEquals( writes.size(), recorder.recorded() );
+        }
+
+        try ( WriteRecorder.Reader reader = new WriteRecorder.Reader( file ) ) {
+            long micros = 0;
+            for ( int i = 0; i < 20_000; i++ ) {
+                LikesOrHatesWrite write = (LikesOrHatesWrite) reader.next();
+                assertEquals( BatchWriterServiceAction.CREATE_PAGE_AND_LIKES_RELATIONSHIP, write.action );
+                assertEquals( HASH, write.identityHash );
+                assertEquals( i, write.identityNodeId );
+                assertTrue( reader.micros() >= micros );
+                micros = reader.micros();
+            }
+            assertEquals( longTitle, ( (PageWrite) reader.next() ).title );
+            assertEquals( HASH, ( (IdentityWrite) reader.next() ).identityHash );
+            // no email or phone in a recording
+            TokenWrite token = (TokenWrite) reader.next();
+            assertEquals( HASH, token.identityHash );
+            assertNull( token.identity );
+            assertNull( reader.next() );
+        }
+    }
+
+    @Test
+    public void shouldStopAtATornRecord() throws Exception {
+        File file = folder.newFile( "writes.rec" );
+        Write identity = IdentityWrite.acquire( HASH );
+        Write like = LikesOrHatesWrite.acquire( Relationships.LIKES, HASH, 1L, URL, "Neo4j", 2L );
+        try ( WriteRecorder recorder = new WriteRecorder( file ) ) {
+            recorder.record( Arrays.asList( identity, like ) );
+        }
+        try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ) {
+            raf.setLength( raf.length() - 3 );
+        }
+
+        try ( WriteRecorder.Reader reader = new WriteRecorder.Reader( file ) ) {
+            assertEquals( HASH, ( (IdentityWrite) reader.next() ).identityHash );
+            assertNull( reader.next() );
+        }
+    }
+}
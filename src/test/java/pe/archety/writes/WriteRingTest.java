@@ -0,0 +1,105 @@
+package pe.archety.writes;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WriteRingTest {
+
+    private static Write identity( int i ) {
+        return IdentityWrite.acquire( "hash" + i );
+    }
+
+    @Test
+    public void shouldKeepOrderAcrossLaps() throws Exception {
+        WriteRing ring = new WriteRing( 4 );
+        assertFalse( ring.hasNext() );
+        assertNull( ring.take() );
+
+        ArrayList<Write> writes = new ArrayList<>();
+        for ( int lap = 0; lap < 5; lap++ ) {
+            Write first = identity( 0 );
+            Write second = identity( 1 );
+            Write third = identity( 2 );
+            ring.put( first );
+            ring.put( second );
+            ring.put( third );
+            assertEquals( 3, ring.size() );
+            assertSame( first, ring.peek() );
+            assertSame( first, ring.take() );
+
+            writes.clear();
+            assertEquals( 2, ring.drainTo( writes, 10 ) );
+            assertSame( second, writes.get( 0 ) );
+            assertSame( third, writes.get( 1 ) );
+            assertEquals( 0, ring.size() );
+            assertFalse( ring.hasNext() );
+        }
+    }
+
+    @Test
+    public void shouldMakeProducersWaitForRoom() throws Exception {
+        final WriteRing ring = new WriteRing( 2 );
+        ring.put( identity( 0 ) );
+        ring.put( identity( 1 ) );
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                ring.put( identity( 2 ) );
+            }
+        };
+        producer.start();
+        producer.join( 50 );
+        assertTrue( producer.isAlive() );
+
+        assertEquals( "hash0", ( (IdentityWrite) ring.take() ).identityHash );
+        producer.join( TimeUnit.SECONDS.toMillis( 10 ) );
+        assertFalse( producer.isAlive() );
+        assertEquals( 2, ring.drainTo( new ArrayList<Write>(), 10 ) );
+    }
+
+    @Test
+    public void shouldHandEveryWriteOverOnceWithManyProducers() throws Exception {
+        final WriteRing ring = new WriteRing( 64 );
+        final int producers = 8;
+        final int perProducer = 5_000;
+        Thread[] threads = new Thread[ producers ];
+        for ( int p = 0; p < producers; p++ ) {
+            final int offset = p * perProducer;
+            threads[ p ] = new Thread() {
+                @Override
+                public void run() {
+                    for ( int i = 0; i < perProducer; i++ ) {
+                        ring.put( identity( offset + i ) );
+                    }
+                }
+            };
+            threads[ p ].start();
+        }
+
+        HashSet<String> seen = new HashSet<>();
+        ArrayList<Write> writes = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 30 );
+        while ( seen.size() < producers * perProducer && System.nanoTime() < deadline ) {
+            writes.clear();
+            ring.drainTo( writes, 16 );
+            for ( Write write : writes ) {
+                assertTrue( seen.add( ( (IdentityWrite) write ).identityHash ) );
+            }
+        }
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+        assertEquals( producers * perProducer, seen.size() );
+        assertEquals( 0, ring.size() );
+    }
+}